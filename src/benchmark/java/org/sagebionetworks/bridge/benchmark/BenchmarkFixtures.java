@@ -0,0 +1,147 @@
+package org.sagebionetworks.bridge.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.joda.time.DateTime;
+import org.sagebionetworks.repo.model.table.ColumnModel;
+
+import org.sagebionetworks.bridge.exporter3.ParticipantVersionHelper;
+import org.sagebionetworks.bridge.rest.model.ParticipantVersion;
+import org.sagebionetworks.bridge.rest.model.SharingScope;
+import org.sagebionetworks.bridge.rest.model.UploadTableRow;
+
+/**
+ * Generates deterministic fixtures for the benchmarks, so that they run offline and give comparable results between
+ * runs. Sizes are passed in, so each benchmark can pick realistic values.
+ */
+public class BenchmarkFixtures {
+    public static final String APP_ID = "benchmark-app";
+    public static final String ASSESSMENT_GUID = "benchmark-assessment-guid";
+    public static final String PARTICIPANT_VERSION_TABLE_ID = "syn1234";
+    public static final String RECORD_ID = "benchmark-record";
+    public static final String STUDY_ID = "benchmark-study";
+
+    private static final DateTime CREATED_ON = DateTime.parse("2024-01-15T10:30:00.000Z");
+    private static final long RANDOM_SEED = 1234L;
+
+    /** Assessment config with the given number of questions, alternating between choice and text questions. */
+    public static String makeAssessmentConfigJson(int numQuestions) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"type\":\"assessment\",\"identifier\":\"benchmark\",\"steps\":[");
+        for (int i = 0; i < numQuestions; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            if (i % 2 == 0) {
+                builder.append("{\"type\":\"choiceQuestion\",\"identifier\":\"choiceQ").append(i)
+                        .append("\",\"title\":\"Choice question ").append(i)
+                        .append("\",\"baseType\":\"integer\",\"singleChoice\":true,\"choices\":[")
+                        .append("{\"value\":1,\"text\":\"One\"},{\"value\":2,\"text\":\"Two\"},")
+                        .append("{\"value\":3,\"text\":\"Three\"}]}");
+            } else {
+                builder.append("{\"type\":\"simpleQuestion\",\"identifier\":\"simpleQ").append(i)
+                        .append("\",\"title\":\"Text question ").append(i)
+                        .append("\",\"inputItem\":{\"type\":\"string\",\"placeholder\":\"Enter text\"}}");
+            }
+        }
+        builder.append("]}");
+        return builder.toString();
+    }
+
+    /** Assessment result that answers every question in {@link #makeAssessmentConfigJson}. */
+    public static String makeAssessmentResultJson(int numQuestions) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"type\":\"assessment\",\"identifier\":\"benchmark\",\"stepHistory\":[");
+        for (int i = 0; i < numQuestions; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            if (i % 2 == 0) {
+                builder.append("{\"type\":\"answer\",\"identifier\":\"choiceQ").append(i)
+                        .append("\",\"answerType\":{\"type\":\"integer\"},\"value\":").append(i % 3 + 1)
+                        .append('}');
+            } else {
+                builder.append("{\"type\":\"answer\",\"identifier\":\"simpleQ").append(i)
+                        .append("\",\"answerType\":{\"type\":\"string\"},\"value\":\"answer text ").append(i)
+                        .append("\"}");
+            }
+        }
+        builder.append("]}");
+        return builder.toString();
+    }
+
+    /** Upload table rows for a single assessment, with the given number of metadata and data columns. */
+    public static List<UploadTableRow> makeUploadTableRows(int numRows, int numMetadataColumns,
+            int numDataColumns) {
+        List<UploadTableRow> rowList = new ArrayList<>(numRows);
+        for (int i = 0; i < numRows; i++) {
+            UploadTableRow row = new UploadTableRow().recordId(RECORD_ID + "-" + i).assessmentGuid(ASSESSMENT_GUID)
+                    .createdOn(CREATED_ON.plusMinutes(i)).testData(i % 10 == 0).healthCode("healthCode-" + i % 1000)
+                    .participantVersion(i % 5 + 1);
+            for (int j = 0; j < numMetadataColumns; j++) {
+                row.putMetadataItem("metadata" + j, "metadata value " + i + "-" + j);
+            }
+            for (int j = 0; j < numDataColumns; j++) {
+                // Some rows are missing some values, as they would be in real data.
+                if ((i + j) % 7 != 0) {
+                    row.putDataItem("data" + j, "data value " + i + "-" + j);
+                }
+            }
+            rowList.add(row);
+        }
+        return rowList;
+    }
+
+    /** Participant version with every field filled in. */
+    public static ParticipantVersion makeParticipantVersion() {
+        ParticipantVersion participantVersion = new ParticipantVersion();
+        participantVersion.setAppId(APP_ID);
+        participantVersion.setHealthCode("benchmark-health-code");
+        participantVersion.setParticipantVersion(3);
+        participantVersion.setCreatedOn(CREATED_ON);
+        participantVersion.setModifiedOn(CREATED_ON.plusDays(1));
+        participantVersion.setDataGroups(ImmutableList.of("group-c", "group-a", "group-b"));
+        participantVersion.setLanguages(ImmutableList.of("en", "es"));
+        participantVersion.setSharingScope(SharingScope.SPONSORS_AND_PARTNERS);
+        participantVersion.setStudyMemberships(ImmutableMap.of(STUDY_ID, "external-id", "other-study",
+                "<none>"));
+        participantVersion.setTimeZone("America/Los_Angeles");
+        return participantVersion;
+    }
+
+    /** Column models for the participant version table. The column ID is the column name with an "id-" prefix. */
+    public static List<ColumnModel> makeParticipantVersionColumnModels() {
+        String[] columnNames = { ParticipantVersionHelper.COLUMN_NAME_HEALTH_CODE,
+                ParticipantVersionHelper.COLUMN_NAME_PARTICIPANT_VERSION,
+                ParticipantVersionHelper.COLUMN_NAME_CREATED_ON, ParticipantVersionHelper.COLUMN_NAME_MODIFIED_ON,
+                ParticipantVersionHelper.COLUMN_NAME_DATA_GROUPS, ParticipantVersionHelper.COLUMN_NAME_LANGUAGES,
+                ParticipantVersionHelper.COLUMN_NAME_SHARING_SCOPE,
+                ParticipantVersionHelper.COLUMN_NAME_STUDY_MEMBERSHIPS,
+                ParticipantVersionHelper.COLUMN_NAME_CLIENT_TIME_ZONE };
+        List<ColumnModel> columnModelList = new ArrayList<>();
+        for (String columnName : columnNames) {
+            columnModelList.add(new ColumnModel().setName(columnName).setId("id-" + columnName));
+        }
+        return columnModelList;
+    }
+
+    /**
+     * Text-like file content of the given size. Sensor and survey data compresses well, so random bytes would make
+     * zip benchmarks unrealistic.
+     */
+    public static byte[] makeFileContent(int size) {
+        Random random = new Random(RANDOM_SEED);
+        StringBuilder builder = new StringBuilder(size);
+        while (builder.length() < size) {
+            builder.append("{\"timestamp\":").append(random.nextInt(1000000)).append(",\"x\":")
+                    .append(random.nextFloat()).append(",\"y\":").append(random.nextFloat()).append("}\n");
+        }
+        builder.setLength(size);
+        return builder.toString().getBytes(Charsets.UTF_8);
+    }
+}
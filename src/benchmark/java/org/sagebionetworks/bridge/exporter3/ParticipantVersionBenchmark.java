@@ -0,0 +1,55 @@
+package org.sagebionetworks.bridge.exporter3;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sagebionetworks.repo.model.table.PartialRow;
+
+import org.sagebionetworks.bridge.benchmark.BenchmarkFixtures;
+import org.sagebionetworks.bridge.rest.model.ParticipantVersion;
+import org.sagebionetworks.bridge.synapse.SynapseHelper;
+
+/**
+ * Benchmarks making the Synapse row for a participant version. Synapse is mocked, so this measures the row building
+ * and the column lookup, not the network.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+public class ParticipantVersionBenchmark {
+    private ParticipantVersionHelper participantVersionHelper;
+    private ParticipantVersion participantVersion;
+
+    @Setup
+    public void setup() throws Exception {
+        SynapseHelper mockSynapseHelper = mock(SynapseHelper.class);
+        when(mockSynapseHelper.getColumnModelsForTableWithRetry(BenchmarkFixtures.PARTICIPANT_VERSION_TABLE_ID))
+                .thenReturn(BenchmarkFixtures.makeParticipantVersionColumnModels());
+
+        participantVersionHelper = new ParticipantVersionHelper();
+        participantVersionHelper.setSynapseHelper(mockSynapseHelper);
+
+        participantVersion = BenchmarkFixtures.makeParticipantVersion();
+    }
+
+    @Benchmark
+    public PartialRow makeRowForParticipantVersion() throws Exception {
+        return participantVersionHelper.makeRowForParticipantVersion(BenchmarkFixtures.STUDY_ID,
+                BenchmarkFixtures.PARTICIPANT_VERSION_TABLE_ID, participantVersion);
+    }
+}
@@ -0,0 +1,152 @@
+package org.sagebionetworks.bridge.exporter3;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import au.com.bytecode.opencsv.CSVWriter;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.commons.io.output.NullWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.sagebionetworks.bridge.benchmark.BenchmarkFixtures;
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
+import org.sagebionetworks.bridge.rest.model.Assessment;
+import org.sagebionetworks.bridge.rest.model.Study;
+import org.sagebionetworks.bridge.rest.model.UploadTableRow;
+import org.sagebionetworks.bridge.rest.model.UploadTableRowQuery;
+import org.sagebionetworks.bridge.workerPlatform.bridge.BridgeHelper;
+
+/**
+ * Benchmarks generating the CSV for a single assessment. Rows are served from a mock Bridge, and files are written to
+ * an in-memory file helper, so this measures CSV generation rather than the network or the disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+public class UploadCsvBenchmark {
+    private static final int NUM_ROWS = 100000;
+
+    @Param({ "5" })
+    public int numMetadataColumns;
+
+    @Param({ "10", "50" })
+    public int numDataColumns;
+
+    private Assessment assessment;
+    private UploadCsvWorkerProcessor.CsvColumns columns;
+    private File csvFile;
+    private List<String> dataColumnList;
+    private InMemoryFileHelper fileHelper;
+    private List<String> metadataColumnList;
+    private UploadCsvWorkerProcessor processor;
+    private UploadCsvRequest request;
+    private List<UploadTableRow> rowList;
+    private Study study;
+    private File tmpDir;
+
+    @Setup
+    public void setup() throws IOException {
+        rowList = BenchmarkFixtures.makeUploadTableRows(NUM_ROWS, numMetadataColumns, numDataColumns);
+
+        metadataColumnList = new ArrayList<>();
+        for (int i = 0; i < numMetadataColumns; i++) {
+            metadataColumnList.add("metadata" + i);
+        }
+        metadataColumnList.sort(null);
+
+        dataColumnList = new ArrayList<>();
+        for (int i = 0; i < numDataColumns; i++) {
+            dataColumnList.add("data" + i);
+        }
+        dataColumnList.sort(null);
+
+        assessment = new Assessment().guid(BenchmarkFixtures.ASSESSMENT_GUID).identifier("benchmark-assessment")
+                .revision(1L).title("Benchmark Assessment");
+        study = new Study().identifier(BenchmarkFixtures.STUDY_ID).name("Benchmark Study");
+
+        request = new UploadCsvRequest();
+        request.setAppId(BenchmarkFixtures.APP_ID);
+        request.setStudyId(BenchmarkFixtures.STUDY_ID);
+
+        columns = new UploadCsvWorkerProcessor.CsvColumns();
+        rowList.forEach(columns::addRow);
+
+        BridgeHelper mockBridgeHelper = mock(BridgeHelper.class);
+        when(mockBridgeHelper.getAssessmentByGuid(BenchmarkFixtures.APP_ID, BenchmarkFixtures.ASSESSMENT_GUID))
+                .thenReturn(assessment);
+        when(mockBridgeHelper.queryUploadTableRows(eq(BenchmarkFixtures.APP_ID), eq(BenchmarkFixtures.STUDY_ID),
+                any())).thenAnswer(invocation -> {
+                    UploadTableRowQuery query = invocation.getArgumentAt(2, UploadTableRowQuery.class);
+                    int start = Math.min(query.getStart(), rowList.size());
+                    int end = Math.min(start + query.getPageSize(), rowList.size());
+                    return rowList.subList(start, end);
+                });
+
+        fileHelper = new InMemoryFileHelper();
+        tmpDir = fileHelper.createTempDir();
+
+        processor = new UploadCsvWorkerProcessor();
+        processor.setBridgeHelper(mockBridgeHelper);
+        processor.setFileHelper(fileHelper);
+        processor.setUploadCsvPrefetchExecutorService(MoreExecutors.newDirectExecutorService());
+
+        // Each page acquires a permit from the processor's Bridge rate limiter, so use a single page to keep the rate
+        // limiter out of the measurement.
+        processor.setPageSize(NUM_ROWS);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteCsv() {
+        // Don't let CSVs pile up in memory between invocations.
+        if (csvFile != null) {
+            fileHelper.deleteFile(csvFile);
+            csvFile = null;
+        }
+    }
+
+    @TearDown
+    public void teardown() {
+        fileHelper.deleteDir(tmpDir);
+    }
+
+    @Benchmark
+    public File generateCsvForAssessment() throws IOException {
+        csvFile = processor.generateCsvForAssessment(tmpDir, request, study, BenchmarkFixtures.ASSESSMENT_GUID,
+                columns).getCsvFile();
+        return csvFile;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_ROWS)
+    public void writeCsvRow() throws IOException {
+        try (CSVWriter csvWriter = new CSVWriter(new NullWriter())) {
+            for (UploadTableRow row : rowList) {
+                processor.writeCsvRow(csvWriter, study, assessment, metadataColumnList, dataColumnList, row);
+            }
+        }
+    }
+}
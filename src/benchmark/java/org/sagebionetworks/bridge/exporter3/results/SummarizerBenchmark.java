@@ -0,0 +1,70 @@
+package org.sagebionetworks.bridge.exporter3.results;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.sagebionetworks.bridge.benchmark.BenchmarkFixtures;
+import org.sagebionetworks.bridge.rest.model.Assessment;
+import org.sagebionetworks.bridge.rest.model.AssessmentConfig;
+
+/**
+ * Benchmarks summarizing a single result, which Exporter 3 does for every upload. ARC uses a real result captured
+ * from the app. Surveys use a generated config and result with the given number of questions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+public class SummarizerBenchmark {
+    private static final String RECORD_ID = "benchmark-record";
+
+    @Param({ "10", "100" })
+    public int numQuestions;
+
+    private ArcResultSummarizer arcSummarizer;
+    private String surveyResultJson;
+    private AssessmentResultSummarizer surveySummarizer;
+
+    @Setup
+    public void setup() {
+        Assessment arcAssessment = new Assessment().guid(BenchmarkFixtures.ASSESSMENT_GUID)
+                .frameworkIdentifier(ArcResultSummarizer.FRAMEWORK_IDENTIFIER)
+                .identifier(ArcResultSummarizer.DIAN_APP_CONTAINER_ASSESSMENT_IDENTIFIER);
+        arcSummarizer = new ArcResultSummarizer(arcAssessment);
+
+        Assessment surveyAssessment = new Assessment().guid(BenchmarkFixtures.ASSESSMENT_GUID)
+                .frameworkIdentifier(AssessmentResultSummarizer.FRAMEWORK_IDENTIFIER);
+        AssessmentConfig assessmentConfig = new AssessmentConfig().config(BenchmarkFixtures.makeAssessmentConfigJson(
+                numQuestions));
+        surveySummarizer = new AssessmentResultSummarizer(surveyAssessment, assessmentConfig);
+        surveyResultJson = BenchmarkFixtures.makeAssessmentResultJson(numQuestions);
+
+        // Summarizers are cached and reused in the worker, so parse the config outside of the benchmark.
+        surveySummarizer.getColumnNames();
+    }
+
+    @Benchmark
+    public Map<String, String> arcSummarizeResults() {
+        return arcSummarizer.summarizeResults(BenchmarkFixtures.APP_ID, RECORD_ID,
+                TestJsonKt.testArcDataJson_100534_85);
+    }
+
+    @Benchmark
+    public Map<String, String> surveySummarizeResults() {
+        return surveySummarizer.summarizeResults(BenchmarkFixtures.APP_ID, RECORD_ID, surveyResultJson);
+    }
+}
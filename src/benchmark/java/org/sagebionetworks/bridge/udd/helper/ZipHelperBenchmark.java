@@ -0,0 +1,107 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.sagebionetworks.bridge.benchmark.BenchmarkFixtures;
+import org.sagebionetworks.bridge.file.InMemoryFileHelper;
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
+
+/**
+ * Benchmarks zipping and unzipping files. Files are kept in an in-memory file helper, so this measures compression
+ * rather than the disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+public class ZipHelperBenchmark {
+    private static final int NUM_FILES = 10;
+
+    @Param({ "100000", "10000000" })
+    public int fileSize;
+
+    private InMemoryFileHelper fileHelper;
+    private List<File> sourceFileList;
+    private File tmpDir;
+    private File unzipDir;
+    private Map<String, File> unzippedFileMap;
+    private File zipFile;
+    private ZipHelper zipHelper;
+    private File zipOutputFile;
+
+    @Setup
+    public void setup() throws IOException {
+        fileHelper = new InMemoryFileHelper();
+        tmpDir = fileHelper.createTempDir();
+
+        byte[] content = BenchmarkFixtures.makeFileContent(fileSize);
+        sourceFileList = new ArrayList<>();
+        for (int i = 0; i < NUM_FILES; i++) {
+            File sourceFile = fileHelper.newFile(tmpDir, "file" + i + ".json");
+            fileHelper.writeBytes(sourceFile, content);
+            sourceFileList.add(sourceFile);
+        }
+
+        zipHelper = new ZipHelper();
+        zipHelper.setFileHelper(fileHelper);
+
+        // Make a zip file for the unzip benchmark.
+        zipFile = fileHelper.newFile(tmpDir, "source.zip");
+        zipHelper.zip(sourceFileList, zipFile);
+
+        zipOutputFile = fileHelper.newFile(tmpDir, "output.zip");
+    }
+
+    @Setup(Level.Invocation)
+    public void makeUnzipDir() {
+        unzipDir = fileHelper.createTempDir();
+    }
+
+    @TearDown(Level.Invocation)
+    public void cleanupInvocation() {
+        // Don't let output pile up in memory between invocations.
+        if (fileHelper.fileExists(zipOutputFile)) {
+            fileHelper.deleteFile(zipOutputFile);
+        }
+        if (unzippedFileMap != null) {
+            for (File unzippedFile : unzippedFileMap.values()) {
+                fileHelper.deleteFile(unzippedFile);
+            }
+            unzippedFileMap = null;
+        }
+        fileHelper.deleteDir(unzipDir);
+    }
+
+    @Benchmark
+    public File zip() throws IOException {
+        zipHelper.zip(sourceFileList, zipOutputFile);
+        return zipOutputFile;
+    }
+
+    @Benchmark
+    public Map<String, File> unzip() throws IOException, PollSqsWorkerBadRequestException {
+        unzippedFileMap = zipHelper.unzip(zipFile, unzipDir);
+        return unzippedFileMap;
+    }
+}
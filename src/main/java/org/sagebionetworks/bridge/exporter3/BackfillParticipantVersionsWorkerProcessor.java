@@ -1,12 +1,20 @@
 package org.sagebionetworks.bridge.exporter3;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.util.List;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Resource;
+
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Stopwatch;
-import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.base.Throwables;
+import org.sagebionetworks.client.exceptions.SynapseServiceUnavailable;
+import org.sagebionetworks.client.exceptions.SynapseTooManyRequestsException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -14,11 +22,13 @@ import org.springframework.stereotype.Component;
 
 import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
-import org.sagebionetworks.bridge.s3.S3Helper;
+import org.sagebionetworks.bridge.rest.exceptions.BridgeSDKException;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
 import org.sagebionetworks.bridge.worker.ThrowingConsumer;
 import org.sagebionetworks.bridge.workerPlatform.bridge.BridgeHelper;
 import org.sagebionetworks.bridge.workerPlatform.dynamodb.DynamoHelper;
+import org.sagebionetworks.bridge.workerPlatform.s3.S3StreamHelper;
+import org.sagebionetworks.bridge.workerPlatform.util.AdaptiveRateLimiter;
 
 /**
  * This worker takes a list of participants and calls the Backfill Participant Version API on Bridge Server, which both
@@ -26,6 +36,10 @@ import org.sagebionetworks.bridge.workerPlatform.dynamodb.DynamoHelper;
  * version doesn't exist at all for a participant and needs to be created. This can happen if the participant predates
  * the Participant Versions feature, or if the Synapse project wasn’t initialized until after the participant was
  * enrolled and already started submitting health data.
+ *
+ * The health code list is streamed from S3, so the list can be arbitrarily large. Health codes are backfilled on a
+ * worker pool, all sharing the same adaptive rate limiter, which backs off when Bridge or Synapse throttles us and
+ * speeds up when Bridge is healthy.
  */
 @Component("BackfillParticipantVersionsWorker")
 public class BackfillParticipantVersionsWorkerProcessor implements ThrowingConsumer<JsonNode> {
@@ -34,21 +48,46 @@ public class BackfillParticipantVersionsWorkerProcessor implements ThrowingConsu
     // If there are a lot of health codes, write log messages regularly so we know the worker is still running.
     private static final int REPORTING_INTERVAL = 1000;
 
+    // Package-scoped for unit tests.
     static final String CONFIG_KEY_BACKFILL_BUCKET = "backfill.bucket";
+    static final String CONFIG_KEY_CHECKPOINT_INTERVAL = "backfill.participant.versions.checkpoint.interval";
+    static final String CONFIG_KEY_MAX_CONCURRENT = "backfill.participant.versions.max.concurrent";
+    static final String CONFIG_KEY_RATE_INITIAL = "backfill.participant.versions.rate.initial";
+    static final String CONFIG_KEY_RATE_MAX = "backfill.participant.versions.rate.max";
+    static final String CONFIG_KEY_RATE_MIN = "backfill.participant.versions.rate.min";
+    static final String CONFIG_KEY_TARGET_LATENCY_MILLIS = "backfill.participant.versions.target.latency.millis";
+    static final int MAX_THROTTLE_RETRIES = 3;
+    // If Synapse throttles Bridge, Bridge can pass that back to us as a 5xx with Synapse's error message.
+    static final String SYNAPSE_THROTTLE_MESSAGE = "Too Many Requests";
     static final String WORKER_ID = "BackfillParticipantVersionsWorker";
 
-    // Rate limiter. We accept this many health codes per second. Since Synapse throttles at 10 requests per second,
-    // so there's no point in going faster than that.
-    private final RateLimiter rateLimiter = RateLimiter.create(10.0);
-
+    private ExecutorService backfillExecutorService;
     private String backfillBucket;
     private BridgeHelper bridgeHelper;
+    private int checkpointInterval;
     private DynamoHelper dynamoHelper;
-    private S3Helper s3Helper;
+    private int maxConcurrent;
+    private AdaptiveRateLimiter rateLimiter;
+    private S3StreamHelper s3StreamHelper;
+
+    /** Executor that backfills health codes. Shared across all in-flight backfills. */
+    @Resource(name = "backfillExecutorService")
+    public final void setBackfillExecutorService(ExecutorService backfillExecutorService) {
+        this.backfillExecutorService = backfillExecutorService;
+    }
 
     @Autowired
     public final void setConfig(Config config) {
         this.backfillBucket = config.get(CONFIG_KEY_BACKFILL_BUCKET);
+        this.checkpointInterval = config.getInt(CONFIG_KEY_CHECKPOINT_INTERVAL);
+        this.maxConcurrent = config.getInt(CONFIG_KEY_MAX_CONCURRENT);
+
+        // The backfill API writes to Synapse, which throttles at 10 requests per second, so we start there and never
+        // go above it. The rate limiter is shared across all requests, so that concurrent backfills don't gang up on
+        // Bridge.
+        this.rateLimiter = new AdaptiveRateLimiter(config.getInt(CONFIG_KEY_RATE_INITIAL),
+                config.getInt(CONFIG_KEY_RATE_MIN), config.getInt(CONFIG_KEY_RATE_MAX),
+                config.getInt(CONFIG_KEY_TARGET_LATENCY_MILLIS));
     }
 
     @Autowired
@@ -62,8 +101,8 @@ public class BackfillParticipantVersionsWorkerProcessor implements ThrowingConsu
     }
 
     @Autowired
-    public final void setS3Helper(S3Helper s3Helper) {
-        this.s3Helper = s3Helper;
+    public final void setS3StreamHelper(S3StreamHelper s3StreamHelper) {
+        this.s3StreamHelper = s3StreamHelper;
     }
 
     @Override
@@ -90,37 +129,117 @@ public class BackfillParticipantVersionsWorkerProcessor implements ThrowingConsu
         String appId = request.getAppId();
         String s3Key = request.getS3Key();
 
-        // Get list of health codes from S3.
-        List<String> healthCodeList = s3Helper.readS3FileAsLines(backfillBucket, s3Key);
-        int totalHealthCodes = healthCodeList.size();
-        LOG.info("Starting backfill participant versions for app " + appId + " s3 key " + s3Key + " with " +
-                totalHealthCodes + " health codes");
+        // If a previous attempt at this request got partway through, pick up where it left off.
+        String checkpointKey = appId + ":" + s3Key;
+        int startOffset = dynamoHelper.getWorkerCheckpoint(WORKER_ID, checkpointKey);
+        LOG.info("Starting backfill participant versions for app " + appId + " s3 key " + s3Key + ", starting at " +
+                startOffset);
 
-        // Backfill health codes in a loop.
-        int numHealthCodes = 0;
+        // Stream health codes from S3, and backfill them on the worker pool. Every checkpoint interval, this thread
+        // waits for the health codes in flight and saves a checkpoint. This way, a checkpoint is only saved once every
+        // health code before it is done.
+        Semaphore inFlightPermits = new Semaphore(maxConcurrent);
         Stopwatch stopwatch = Stopwatch.createStarted();
-        for (String healthCode : healthCodeList) {
-            // Rate limit.
-            rateLimiter.acquire();
+        int numHealthCodes = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                s3StreamHelper.getObjectStream(backfillBucket, s3Key), StandardCharsets.UTF_8))) {
+            String healthCode;
+            while ((healthCode = reader.readLine()) != null) {
+                numHealthCodes++;
+                if (numHealthCodes <= startOffset || healthCode.isEmpty()) {
+                    // Already done, or blank line.
+                    continue;
+                }
+
+                String finalHealthCode = healthCode;
+                inFlightPermits.acquireUninterruptibly();
+                try {
+                    backfillExecutorService.execute(() -> {
+                        try {
+                            backfillHealthCode(appId, finalHealthCode);
+                        } finally {
+                            inFlightPermits.release();
+                        }
+                    });
+                } catch (RuntimeException ex) {
+                    // Executor rejected the task.
+                    inFlightPermits.release();
+                    throw ex;
+                }
+
+                // Checkpoint.
+                if (numHealthCodes % checkpointInterval == 0) {
+                    inFlightPermits.acquireUninterruptibly(maxConcurrent);
+                    try {
+                        dynamoHelper.writeWorkerCheckpoint(WORKER_ID, checkpointKey, numHealthCodes);
+                    } finally {
+                        inFlightPermits.release(maxConcurrent);
+                    }
+                }
+
+                // Reporting.
+                if (numHealthCodes % REPORTING_INTERVAL == 0) {
+                    LOG.info("Backfilling participant versions for app " + appId + ": " + numHealthCodes +
+                            " health codes in " + stopwatch.elapsed(TimeUnit.SECONDS) + " seconds, rate " +
+                            rateLimiter.getRate() + "/s");
+                }
+            }
+        } finally {
+            // Wait for the remaining health codes.
+            inFlightPermits.acquireUninterruptibly(maxConcurrent);
+        }
 
-            // Backfill.
+        // We're done, so the next request for this file starts from the top.
+        dynamoHelper.deleteWorkerCheckpoint(WORKER_ID, checkpointKey);
+
+        // Write to Worker Log in DDB so we can signal end of processing.
+        String tag = "app=" + appId + ", s3Key=" + s3Key + ", totalHealthCodes=" + numHealthCodes;
+        dynamoHelper.writeWorkerLog(WORKER_ID, tag);
+    }
+
+    // Backfills a single health code. If Bridge or Synapse throttles us, the rate limiter backs off and we try again.
+    private void backfillHealthCode(String appId, String healthCode) {
+        for (int numTries = 1; ; numTries++) {
+            rateLimiter.acquire();
+            Stopwatch callStopwatch = Stopwatch.createStarted();
             try {
                 bridgeHelper.backfillParticipantVersion(appId, "healthcode:" + healthCode);
+                rateLimiter.onSuccess(callStopwatch.elapsed(TimeUnit.MILLISECONDS));
+                return;
             } catch (Exception ex) {
-                LOG.error("Error backfilling participant version for app " + appId + " health code " + healthCode, ex);
+                if (isThrottled(ex)) {
+                    rateLimiter.onThrottle();
+                    if (numTries <= MAX_THROTTLE_RETRIES) {
+                        LOG.warn("Throttled backfill for app " + appId + " health code " + healthCode +
+                                ", rate is now " + rateLimiter.getRate() + "/s: " + ex.getMessage());
+                        continue;
+                    }
+                }
+                LOG.error("Error backfilling participant version for app " + appId + " health code " + healthCode,
+                        ex);
+                return;
             }
+        }
+    }
 
-            // Reporting.
-            numHealthCodes++;
-            if (numHealthCodes % REPORTING_INTERVAL == 0) {
-                LOG.info("Backfilling participant versions for app " + appId + ": " + numHealthCodes +
-                        " health codes out of " + totalHealthCodes + " in " + stopwatch.elapsed(TimeUnit.SECONDS) +
-                        " seconds");
+    // Package-scoped for unit tests.
+    static boolean isThrottled(Exception ex) {
+        for (Throwable cause : Throwables.getCausalChain(ex)) {
+            if (cause instanceof SynapseTooManyRequestsException || cause instanceof SynapseServiceUnavailable) {
+                return true;
+            }
+            if (cause instanceof BridgeSDKException) {
+                BridgeSDKException bridgeEx = (BridgeSDKException) cause;
+                int status = bridgeEx.getStatusCode();
+                if (status == 429 || status == 503) {
+                    return true;
+                }
+                if (status >= 500 && bridgeEx.getMessage() != null &&
+                        bridgeEx.getMessage().contains(SYNAPSE_THROTTLE_MESSAGE)) {
+                    return true;
+                }
             }
         }
-
-        // Write to Worker Log in DDB so we can signal end of processing.
-        String tag = "app=" + appId + ", s3Key=" + s3Key + ", totalHealthCodes=" + totalHealthCodes;
-        dynamoHelper.writeWorkerLog(WORKER_ID, tag);
+        return false;
     }
 }
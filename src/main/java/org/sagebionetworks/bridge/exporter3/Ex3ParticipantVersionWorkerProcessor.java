@@ -34,6 +34,7 @@ import org.sagebionetworks.bridge.synapse.SynapseHelper;
 import org.sagebionetworks.bridge.worker.ThrowingConsumer;
 import org.sagebionetworks.bridge.workerPlatform.bridge.BridgeHelper;
 import org.sagebionetworks.bridge.workerPlatform.bridge.BridgeUtils;
+import org.sagebionetworks.bridge.workerPlatform.metrics.WorkerMetrics;
 
 /** Worker for exporting Participant Versions in Exporter 3.0. */
 @Component("Ex3ParticipantVersionWorker")
@@ -44,8 +45,9 @@ public class Ex3ParticipantVersionWorkerProcessor implements ThrowingConsumer<Js
     private ParticipantVersionHelper participantVersionHelper;
     private ExecutorService synapseExecutorService;
     private SynapseHelper synapseHelper;
+    private SynapseRowCoalescer synapseRowCoalescer;
 
-    @Autowired
+    @Resource(name = "cachingBridgeHelper")
     public final void setBridgeHelper(BridgeHelper bridgeHelper) {
         this.bridgeHelper = bridgeHelper;
     }
@@ -73,6 +75,15 @@ public class Ex3ParticipantVersionWorkerProcessor implements ThrowingConsumer<Js
         this.synapseHelper = synapseHelper;
     }
 
+    /**
+     * Gathers participant version rows from concurrent requests, so that each participant version table gets one
+     * append per batch window instead of one append per request.
+     */
+    @Resource(name = "participantVersionRowCoalescer")
+    public final void setSynapseRowCoalescer(SynapseRowCoalescer synapseRowCoalescer) {
+        this.synapseRowCoalescer = synapseRowCoalescer;
+    }
+
     @Override
     public void accept(JsonNode jsonNode) throws ExecutionException, InterruptedException, IOException, PollSqsWorkerBadRequestException,
             PollSqsWorkerRetryableException, SynapseException {
@@ -195,27 +206,20 @@ public class Ex3ParticipantVersionWorkerProcessor implements ThrowingConsumer<Js
 
     private Future<?> exportParticipantVersionRowToSynapse(String appId, String healthCode, int versionNum,
             String participantVersionTableId, PartialRow row) {
-        PartialRowSet rowSet = new PartialRowSet();
-        rowSet.setRows(ImmutableList.of(row));
-        rowSet.setTableId(participantVersionTableId);
-
-        return synapseExecutorService.submit(() -> {
-            Stopwatch stopwatch = Stopwatch.createStarted();
-            try {
-                RowReferenceSet rowReferenceSet = synapseHelper.appendRowsToTable(rowSet, participantVersionTableId);
-                if (rowReferenceSet.getRows().size() != 1) {
-                    LOG.error("Expected to write 1 participant version for app " + appId + " healthCode " + healthCode +
-                            " version " + versionNum + " to table " + participantVersionTableId + ", instead wrote " +
-                            rowReferenceSet.getRows().size());
-                }
-            } catch (BridgeSynapseException | SynapseException ex) {
-                throw new RuntimeException(ex);
-            } finally {
-                LOG.info("Appending participant version healthCode=" + healthCode + ", version=" + versionNum +
-                        ", tableId=" + participantVersionTableId + " took " + stopwatch.elapsed(TimeUnit.MILLISECONDS) +
-                        "ms");
-            }
-        });
+        // The coalescer appends this row along with rows from other requests for the same table. The future fails if
+        // the row wasn't written, so that the request is retried.
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        return synapseRowCoalescer.appendRows(participantVersionTableId, ImmutableList.of(row)).whenComplete(
+                (rowReferenceList, ex) -> {
+                    if (ex != null) {
+                        LOG.error("Error writing participant version for app " + appId + " healthCode " +
+                                healthCode + " version " + versionNum + " to table " + participantVersionTableId, ex);
+                        participantVersionHelper.invalidateColumnsOnSchemaChangeError(participantVersionTableId, ex);
+                    }
+                    LOG.info("Appending participant version healthCode=" + healthCode + ", version=" + versionNum +
+                            ", tableId=" + participantVersionTableId + " took " +
+                            stopwatch.elapsed(TimeUnit.MILLISECONDS) + "ms");
+                });
     }
 
     // Separate method for logging
@@ -231,9 +235,9 @@ public class Ex3ParticipantVersionWorkerProcessor implements ThrowingConsumer<Js
 
         return synapseExecutorService.submit(() -> {
             Stopwatch stopwatch = Stopwatch.createStarted();
-            try {
-                RowReferenceSet rowReferenceSet = synapseHelper.appendRowsToTable(rowSet,
-                        participantVersionDemographicsTableId);
+            try (WorkerMetrics.TimedCall call = WorkerMetrics.startSynapseCall("appendRowsToTable")) {
+                RowReferenceSet rowReferenceSet = call.success(synapseHelper.appendRowsToTable(rowSet,
+                        participantVersionDemographicsTableId));
                 if (rowReferenceSet.getRows() == null) {
                     rowReferenceSet.setRows(ImmutableList.of());
                 }
@@ -244,6 +248,8 @@ public class Ex3ParticipantVersionWorkerProcessor implements ThrowingConsumer<Js
                             rowReferenceSet.getRows().size());
                 }
             } catch (BridgeSynapseException | SynapseException ex) {
+                participantVersionHelper.invalidateColumnsOnSchemaChangeError(participantVersionDemographicsTableId,
+                        ex);
                 throw new RuntimeException(ex);
             } finally {
                 LOG.info("Appending participant demographics healthCode=" + healthCode + ", version=" + versionNum +
@@ -1,40 +1,51 @@
 package org.sagebionetworks.bridge.exporter3;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.File;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.security.cert.CertificateEncodingException;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
+import javax.annotation.Resource;
+
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Stopwatch;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
-import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
 import org.bouncycastle.cms.CMSException;
 import org.joda.time.LocalDate;
 import org.jsoup.Jsoup;
 import org.jsoup.safety.Safelist;
+import org.sagebionetworks.client.exceptions.SynapseConflictingUpdateException;
 import org.sagebionetworks.client.exceptions.SynapseException;
 import org.sagebionetworks.repo.model.FileEntity;
 import org.sagebionetworks.repo.model.annotation.v2.AnnotationsValue;
@@ -52,7 +63,6 @@ import org.sagebionetworks.bridge.exceptions.BridgeSynapseException;
 import org.sagebionetworks.bridge.exporter3.results.ArcResultSummarizer;
 import org.sagebionetworks.bridge.exporter3.results.AssessmentSummarizer;
 import org.sagebionetworks.bridge.exporter3.results.AssessmentSummarizerProvider;
-import org.sagebionetworks.bridge.file.FileHelper;
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.sagebionetworks.bridge.rest.exceptions.EntityNotFoundException;
 import org.sagebionetworks.bridge.rest.model.App;
@@ -78,6 +88,8 @@ import org.sagebionetworks.bridge.worker.ThrowingConsumer;
 import org.sagebionetworks.bridge.workerPlatform.bridge.BridgeHelper;
 import org.sagebionetworks.bridge.workerPlatform.bridge.BridgeUtils;
 import org.sagebionetworks.bridge.workerPlatform.exceptions.WorkerException;
+import org.sagebionetworks.bridge.workerPlatform.metrics.WorkerMetrics;
+import org.sagebionetworks.bridge.workerPlatform.s3.S3StreamHelper;
 import org.sagebionetworks.bridge.workerPlatform.util.Constants;
 import org.sagebionetworks.bridge.workerPlatform.util.JsonUtils;
 
@@ -115,17 +127,31 @@ public class Exporter3WorkerProcessor implements ThrowingConsumer<JsonNode> {
             "sessionStartEventId",
     };
 
+    // Decrypted uploads up to this size are kept in memory for the upload table row. Assessment uploads are much
+    // smaller than this. Bigger uploads (eg sensor data) aren't worth holding on to.
+    static final int MAX_CACHED_PAYLOAD_BYTES = 10 * 1024 * 1024;
+
+    // Date folders are shared by every record exported that day, so we cache their folder IDs instead of asking
+    // Synapse for each record. The TTL bounds how long we'd keep using a folder that was deleted out from under us.
+    static final int SYNAPSE_FOLDER_ID_CACHE_MAX_SIZE = 1000;
+    static final int SYNAPSE_FOLDER_ID_CACHE_TTL_MINUTES = 60;
+
     // Valid characters are alphanumeric, underscores, and periods. This pattern is used to match invalid characters to
     // convert them to underscores.
     private static final Pattern METADATA_NAME_REPLACEMENT_PATTERN = Pattern.compile("[^\\w\\.]");
 
+    // Maps parent folder ID and date to the date folder ID. Shared by all Exporter 3 threads.
+    private final Cache<String, String> synapseFolderIdCache = CacheBuilder.newBuilder()
+            .maximumSize(SYNAPSE_FOLDER_ID_CACHE_MAX_SIZE)
+            .expireAfterWrite(SYNAPSE_FOLDER_ID_CACHE_TTL_MINUTES, TimeUnit.MINUTES).build();
+
     private AssessmentSummarizerProvider summarizerProvider;
     private BridgeHelper bridgeHelper;
     private LoadingCache<String, CmsEncryptor> cmsEncryptorCache;
-    private FileHelper fileHelper;
-    private DigestUtils md5DigestUtils;
+    private ExecutorService exporter3ExecutorService;
     private String rawHealthDataBucket;
     private S3Helper s3Helper;
+    private S3StreamHelper s3StreamHelper;
     private SynapseHelper synapseHelper;
     private String uploadBucket;
     private ZipHelper zipHelper;
@@ -141,7 +167,7 @@ public class Exporter3WorkerProcessor implements ThrowingConsumer<JsonNode> {
         this.summarizerProvider = summarizerProvider;
     }
 
-    @Autowired
+    @Resource(name = "cachingBridgeHelper")
     public final void setBridgeHelper(BridgeHelper bridgeHelper) {
         this.bridgeHelper = bridgeHelper;
     }
@@ -151,19 +177,19 @@ public class Exporter3WorkerProcessor implements ThrowingConsumer<JsonNode> {
         this.cmsEncryptorCache = cmsEncryptorCache;
     }
 
-    @Autowired
-    public final void setFileHelper(FileHelper fileHelper) {
-        this.fileHelper = fileHelper;
+    @Resource(name = "exporter3ExecutorService")
+    public final void setExporter3ExecutorService(ExecutorService exporter3ExecutorService) {
+        this.exporter3ExecutorService = exporter3ExecutorService;
     }
 
     @Autowired
-    public final void setMd5DigestUtils(DigestUtils md5DigestUtils) {
-        this.md5DigestUtils = md5DigestUtils;
+    public final void setS3Helper(S3Helper s3Helper) {
+        this.s3Helper = s3Helper;
     }
 
     @Autowired
-    public final void setS3Helper(S3Helper s3Helper) {
-        this.s3Helper = s3Helper;
+    public final void setS3StreamHelper(S3StreamHelper s3StreamHelper) {
+        this.s3StreamHelper = s3StreamHelper;
     }
 
     @Autowired
@@ -276,72 +302,111 @@ public class Exporter3WorkerProcessor implements ThrowingConsumer<JsonNode> {
             metadataMap.put(METADATA_KEY_CONTENT_TYPE, contentType);
         }
 
+        // https://sagebionetworks.jira.com/browse/DHP-1151 - Right now, JSON to Table Row is only available if the
+        // app is configured for export.
+        boolean uploadTableEnabled = exportForApp && Boolean.TRUE.equals(app.getExporter3Configuration()
+                .isUploadTableEnabled());
+
         // Copy the file to the raw health data bucket. This includes folderization.
         // Note that in Exporter 3.0, upload ID is the same as record ID.
+        // If we need the upload table row, keep a copy of the decrypted file while we stream it, so we don't have to
+        // download it again. This only lives for this call to process(). Uploads without an assessment don't get a
+        // table row (see getUploadTableRow()), so don't bother copying those.
         String hexMd5;
+        BoundedByteArrayOutputStream payloadBuffer = null;
         if (upload.isEncrypted()) {
-            hexMd5 = decryptAndUploadFile(app, upload, record, metadataMap, exportForApp, studiesToExport);
+            if (uploadTableEnabled && getAssessmentGuidForUploadTable(appId, metadataMap) != null) {
+                payloadBuffer = new BoundedByteArrayOutputStream(MAX_CACHED_PAYLOAD_BYTES);
+            }
+            hexMd5 = decryptAndUploadFile(app, upload, record, metadataMap, exportForApp, studiesToExport,
+                    payloadBuffer);
         } else {
             hexMd5 = copyUploadToHealthDataBucket(app, upload, record, metadataMap, exportForApp, studiesToExport);
         }
+        byte[] decryptedPayload = payloadBuffer != null ? payloadBuffer.toByteArrayOrNull() : null;
 
-        // Upload to Synapse.
-        ExportToAppNotification notification = new ExportToAppNotification();
-        notification.setAppId(appId);
-        notification.setRecordId(recordId);
-        UploadTableRow tableRow = null;
+        // Upload to Synapse. The app-wide export and each study export are independent, so run them as concurrent
+        // stages on the Exporter 3 executor. Every Synapse call still goes through SynapseHelper's rate limiter.
+        CompletableFuture<ExportedRecordInfo> appRecordInfoFuture = null;
+        CompletableFuture<UploadTableRow> tableRowFuture = CompletableFuture.completedFuture(null);
         if (exportForApp) {
-            ExportedRecordInfo recordInfo = exportToSynapse(appId, null,
-                    app.getExporter3Configuration(), upload, record, metadataMap, hexMd5);
-            record.setExportedRecord(recordInfo);
-            notification.setRecord(recordInfo);
+            appRecordInfoFuture = supplyAsync(() -> {
+                ExportedRecordInfo recordInfo = exportToSynapse(appId, null, app.getExporter3Configuration(), upload,
+                        record, metadataMap, hexMd5);
 
-            // Log message for our dashboards.
-            LOG.info("Exported upload to app-wide project: appId=" + appId + ", recordId=" + recordId);
-
-            // https://sagebionetworks.jira.com/browse/DHP-1151 - Right now, JSON to Table Row is only available if the
-            // app is configured for export.
-            if (Boolean.TRUE.equals(app.getExporter3Configuration().isUploadTableEnabled())) {
-                try {
-                    tableRow = getUploadTableRow(upload, record, participant, recordId, metadataMap);
-                } catch (PollSqsWorkerBadRequestException ex) {
-                    // We won't be able to generate a CSV row no matter how hard we try. However, we don't want to
-                    // prevent export to Synapse. Log an error and move on.
-                    LOG.error("Bad request getting UploadTableRow for appId=" + appId + ", recordId=" + recordId +
-                            ": " + ex.getMessage(), ex);
-                }
+                // Log message for our dashboards.
+                LOG.info("Exported upload to app-wide project: appId=" + appId + ", recordId=" + recordId);
+                return recordInfo;
+            });
+
+            if (uploadTableEnabled) {
+                tableRowFuture = supplyAsync(() -> {
+                    try {
+                        return getUploadTableRow(upload, record, participant, recordId, metadataMap,
+                                decryptedPayload);
+                    } catch (PollSqsWorkerBadRequestException ex) {
+                        // We won't be able to generate a CSV row no matter how hard we try. However, we don't want to
+                        // prevent export to Synapse. Log an error and move on.
+                        LOG.error("Bad request getting UploadTableRow for appId=" + appId + ", recordId=" +
+                                recordId + ": " + ex.getMessage(), ex);
+                        return null;
+                    }
+                });
             }
         }
 
+        Map<String, CompletableFuture<ExportedRecordInfo>> studyRecordInfoFutureMap = new LinkedHashMap<>();
+        List<CompletableFuture<?>> allFutureList = new ArrayList<>();
+        if (appRecordInfoFuture != null) {
+            allFutureList.add(appRecordInfoFuture);
+        }
+        allFutureList.add(tableRowFuture);
         for (Study study : studiesToExport) {
             String studyId = study.getIdentifier();
-            ExportedRecordInfo recordInfo = exportToSynapse(appId, studyId,
-                    study.getExporter3Configuration(), upload, record, metadataMap, hexMd5);
-            record.putExportedStudyRecordsItem(studyId, recordInfo);
-            notification.putStudyRecordsItem(studyId, recordInfo);
-
-            // Log message for our dashboards.
-            LOG.info("Exported upload to study-specific project: appId=" + appId + ", study=" + studyId + "-" +
-                    study.getName() + ", recordId=" + recordId);
-
-            // Save result table row to each study
-            if (tableRow != null && Boolean.TRUE.equals(study.getExporter3Configuration().isUploadTableEnabled())) {
-                // Copy the table row. This way, stuff we do for one study doesn't affect the other.
-                UploadTableRow studyTableRow = copyRow(tableRow);
-
-                // Add external ID to table row metadata. The value is study-specific, so we need to put the logic here.
-                String externalId = participant.getExternalIds().get(studyId);
-                if (externalId != null) {
-                    // externalId may contain the studyId as a suffix. If it does, we need to remove it.
-                    if (externalId.endsWith(":" + studyId)) {
-                        externalId = externalId.substring(0, externalId.length() - studyId.length() - 1);
+            CompletableFuture<ExportedRecordInfo> studyRecordInfoFuture = supplyAsync(() -> {
+                ExportedRecordInfo recordInfo = exportToSynapse(appId, studyId, study.getExporter3Configuration(),
+                        upload, record, metadataMap, hexMd5);
+
+                // Log message for our dashboards.
+                LOG.info("Exported upload to study-specific project: appId=" + appId + ", study=" + studyId + "-" +
+                        study.getName() + ", recordId=" + recordId);
+                return recordInfo;
+            });
+            studyRecordInfoFutureMap.put(studyId, studyRecordInfoFuture);
+            allFutureList.add(studyRecordInfoFuture);
+
+            // Save result table row to each study, once both the study export and the table row are done.
+            if (Boolean.TRUE.equals(study.getExporter3Configuration().isUploadTableEnabled())) {
+                allFutureList.add(studyRecordInfoFuture.thenCombineAsync(tableRowFuture, (recordInfo, tableRow) -> {
+                    if (tableRow != null) {
+                        saveStudyTableRow(appId, studyId, participant, tableRow);
                     }
+                    return null;
+                }, exporter3ExecutorService));
+            }
+        }
 
-                    studyTableRow.getMetadata().put("externalId", externalId);
-                }
+        // Wait for all branches to finish, even if one of them fails, so that we never finalize the record while
+        // another branch is still writing to Synapse or Bridge.
+        CompletableFuture.allOf(allFutureList.toArray(new CompletableFuture<?>[0])).exceptionally(ex -> null).join();
+        for (CompletableFuture<?> future : allFutureList) {
+            joinExportTask(future);
+        }
 
-                bridgeHelper.saveUploadTableRow(appId, studyId, studyTableRow);
-            }
+        // All branches succeeded. Now we can fill in the record and the notification.
+        ExportToAppNotification notification = new ExportToAppNotification();
+        notification.setAppId(appId);
+        notification.setRecordId(recordId);
+        if (appRecordInfoFuture != null) {
+            ExportedRecordInfo recordInfo = joinExportTask(appRecordInfoFuture);
+            record.setExportedRecord(recordInfo);
+            notification.setRecord(recordInfo);
+        }
+        for (Map.Entry<String, CompletableFuture<ExportedRecordInfo>> studyEntry :
+                studyRecordInfoFutureMap.entrySet()) {
+            ExportedRecordInfo recordInfo = joinExportTask(studyEntry.getValue());
+            record.putExportedStudyRecordsItem(studyEntry.getKey(), recordInfo);
+            notification.putStudyRecordsItem(studyEntry.getKey(), recordInfo);
         }
 
         // Mark record as exported.
@@ -352,70 +417,133 @@ public class Exporter3WorkerProcessor implements ThrowingConsumer<JsonNode> {
         bridgeHelper.sendExportNotifications(notification);
     }
 
+    // Copies the table row and saves it to the given study, with the study-specific external ID.
+    private void saveStudyTableRow(String appId, String studyId, StudyParticipant participant,
+            UploadTableRow tableRow) {
+        // Copy the table row. This way, stuff we do for one study doesn't affect the other.
+        UploadTableRow studyTableRow = copyRow(tableRow);
+
+        // Add external ID to table row metadata. The value is study-specific, so we need to put the logic here.
+        String externalId = participant.getExternalIds().get(studyId);
+        if (externalId != null) {
+            // externalId may contain the studyId as a suffix. If it does, we need to remove it.
+            if (externalId.endsWith(":" + studyId)) {
+                externalId = externalId.substring(0, externalId.length() - studyId.length() - 1);
+            }
+
+            studyTableRow.getMetadata().put("externalId", externalId);
+        }
+
+        try {
+            bridgeHelper.saveUploadTableRow(appId, studyId, studyTableRow);
+        } catch (IOException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    // Runs an export stage on the Exporter 3 executor. Checked exceptions are wrapped in a CompletionException and
+    // unwrapped again by joinExportTask().
+    private <T> CompletableFuture<T> supplyAsync(Callable<T> callable) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return callable.call();
+            } catch (RuntimeException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new CompletionException(ex);
+            }
+        }, exporter3ExecutorService);
+    }
+
+    // Gets the result of an export stage, rethrowing the original exception if the stage failed.
+    private static <T> T joinExportTask(CompletableFuture<T> future) throws IOException,
+            PollSqsWorkerBadRequestException, PollSqsWorkerRetryableException, SynapseException, WorkerException {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof PollSqsWorkerBadRequestException) {
+                throw (PollSqsWorkerBadRequestException) cause;
+            } else if (cause instanceof PollSqsWorkerRetryableException) {
+                throw (PollSqsWorkerRetryableException) cause;
+            } else if (cause instanceof SynapseException) {
+                throw (SynapseException) cause;
+            } else if (cause instanceof WorkerException) {
+                throw (WorkerException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new WorkerException(cause);
+            }
+        }
+    }
+
     private String decryptAndUploadFile(App app, Upload upload, HealthDataRecordEx3 record,
-            Map<String, String> metadataMap, boolean exportForApp, List<Study> studiesToExport)
+            Map<String, String> metadataMap, boolean exportForApp, List<Study> studiesToExport,
+            BoundedByteArrayOutputStream payloadBuffer)
             throws IOException, PollSqsWorkerBadRequestException, WorkerException {
         String appId = app.getIdentifier();
         String uploadId = upload.getUploadId();
 
-        File tempDir = fileHelper.createTempDir();
+        CmsEncryptor encryptor;
         try {
-            // Step 1: Download from S3.
-            File downloadedFile = fileHelper.newFile(tempDir, uploadId);
-            s3Helper.downloadS3File(uploadBucket, uploadId, downloadedFile);
-
-            // Step 2: Decrypt - Stream from input file to output file.
-            // Note: Neither FileHelper nor CmsEncryptor introduce any buffering. Since we're creating and closing
-            // streams, it's our responsibility to add the buffered stream.
-            CmsEncryptor encryptor;
-            try {
-                encryptor = cmsEncryptorCache.get(appId);
-            } catch (CacheLoader.InvalidCacheLoadException ex) {
-                // Note that the cache loader can never return null. If the value would be null, instead an
-                // InvalidCacheLoadException is thrown. This is verified in unit tests.
-                throw new PollSqsWorkerBadRequestException("No encryptor for app " + appId, ex);
-            } catch (UncheckedExecutionException | ExecutionException ex) {
-                throw new WorkerException(ex);
-            }
+            encryptor = cmsEncryptorCache.get(appId);
+        } catch (CacheLoader.InvalidCacheLoadException ex) {
+            // Note that the cache loader can never return null. If the value would be null, instead an
+            // InvalidCacheLoadException is thrown. This is verified in unit tests.
+            throw new PollSqsWorkerBadRequestException("No encryptor for app " + appId, ex);
+        } catch (UncheckedExecutionException | ExecutionException ex) {
+            throw new WorkerException(ex);
+        }
 
-            File decryptedFile = fileHelper.newFile(tempDir, uploadId + "-decrypted");
-            try (InputStream inputFileStream = getBufferedInputStream(fileHelper.getInputStream(downloadedFile));
-                    InputStream decryptedInputFileStream = encryptor.decrypt(inputFileStream);
-                    OutputStream outputFileStream = new BufferedOutputStream(fileHelper.getOutputStream(
-                            decryptedFile))) {
-                ByteStreams.copy(decryptedInputFileStream, outputFileStream);
-            } catch (WrongEncryptionKeyException ex) {
-                LOG.warn("Wrong encryption key for app " + appId + " record " + uploadId);
-                throw new PollSqsWorkerBadRequestException("Wrong encryption key for app " + appId + " record " +
-                        uploadId);
-            } catch (CertificateEncodingException | CMSException ex) {
-                throw new WorkerException(ex);
-            }
+        // Every destination gets the same file. Upload it once, then use server-side copies for the rest.
+        List<String> s3KeyList = new ArrayList<>();
+        if (exportForApp) {
+            s3KeyList.add(getRawS3KeyForUpload(appId, null, upload, record));
+        }
+        for (Study study : studiesToExport) {
+            s3KeyList.add(getRawS3KeyForUpload(appId, study.getIdentifier(), upload, record));
+        }
+        String firstS3Key = s3KeyList.get(0);
+        ObjectMetadata s3Metadata = makeS3Metadata(upload, record, metadataMap);
 
-            // Step 3: Upload it to the raw uploads bucket.
-            ObjectMetadata s3Metadata = makeS3Metadata(upload, record, metadataMap);
-            if (exportForApp) {
-                String s3Key = getRawS3KeyForUpload(appId, null, upload, record);
-                s3Helper.writeFileToS3(rawHealthDataBucket, s3Key, decryptedFile, s3Metadata);
-            }
-            for (Study study : studiesToExport) {
-                String s3Key = getRawS3KeyForUpload(appId, study.getIdentifier(), upload, record);
-                s3Helper.writeFileToS3(rawHealthDataBucket, s3Key, decryptedFile, s3Metadata);
-            }
+        // Stream from the upload bucket, through the decryptor and the MD5 digest, to the raw uploads bucket. Nothing
+        // is written to local disk, and memory use is bounded by the S3 upload part size (plus the payload buffer, if
+        // the caller asked for one).
+        // Note: Neither S3 nor CmsEncryptor introduce any buffering. Since we're creating and closing streams, it's
+        // our responsibility to add the buffered stream.
+        MessageDigest md5Digest = DigestUtils.getMd5Digest();
+        try (InputStream encryptedInputStream = getBufferedInputStream(s3StreamHelper.getObjectStream(uploadBucket,
+                uploadId));
+                InputStream decryptedInputStream = new DigestInputStream(teeToPayloadBuffer(
+                        encryptor.decrypt(encryptedInputStream), payloadBuffer), md5Digest)) {
+            s3StreamHelper.uploadStream(rawHealthDataBucket, firstS3Key, s3Metadata, decryptedInputStream);
+        } catch (WrongEncryptionKeyException ex) {
+            LOG.warn("Wrong encryption key for app " + appId + " record " + uploadId);
+            throw new PollSqsWorkerBadRequestException("Wrong encryption key for app " + appId + " record " +
+                    uploadId);
+        } catch (CertificateEncodingException | CMSException ex) {
+            throw new WorkerException(ex);
+        }
 
-            // Step 4: While we have the file on disk, calculate the MD5 (hex-encoded). We'll need this for Synapse.
-            byte[] md5 = md5DigestUtils.digest(decryptedFile);
-            String hexMd5 = Hex.encodeHexString(md5);
-            return hexMd5;
-        } finally {
-            // Cleanup: Delete the temp dir.
-            try {
-                fileHelper.deleteDirRecursively(tempDir);
-            } catch (IOException ex) {
-                LOG.error("Error deleting temp dir " + tempDir.getAbsolutePath() + " for app=" + appId + ", upload=" +
-                        uploadId + ": " + ex.getMessage(), ex);
-            }
+        for (String s3Key : s3KeyList.subList(1, s3KeyList.size())) {
+            s3Helper.copyS3File(rawHealthDataBucket, firstS3Key, rawHealthDataBucket, s3Key, s3Metadata);
+        }
+
+        // We'll need the MD5 (hex-encoded) for Synapse.
+        return Hex.encodeHexString(md5Digest.digest());
+    }
+
+    private static InputStream teeToPayloadBuffer(InputStream inputStream,
+            BoundedByteArrayOutputStream payloadBuffer) {
+        if (payloadBuffer == null) {
+            return inputStream;
         }
+        return new TeeInputStream(inputStream, payloadBuffer);
     }
 
     private String copyUploadToHealthDataBucket(App app, Upload upload, HealthDataRecordEx3 record,
@@ -511,7 +639,7 @@ public class Exporter3WorkerProcessor implements ThrowingConsumer<JsonNode> {
         // Exports are folderized by calendar date (YYYY-MM-DD). Create that folder if it doesn't already exist.
         // Folder limits are documented in https://sagebionetworks.jira.com/browse/PLFM-6365
         String dateStr = getCalendarDateForRecord(record);
-        String folderId = synapseHelper.createFolderIfNotExists(exporter3Config.getRawDataFolderId(), dateStr);
+        String folderId = getOrCreateDateFolder(exporter3Config.getRawDataFolderId(), dateStr);
 
         String filename = getFilenameForUpload(upload);
         String s3Key = getRawS3KeyForUpload(appId, studyId, upload, record);
@@ -528,25 +656,25 @@ public class Exporter3WorkerProcessor implements ThrowingConsumer<JsonNode> {
         // pre-computed in a previous step and passed in.
         fileHandle.setContentMd5(hexMd5);
 
-        fileHandle = synapseHelper.createS3FileHandleWithRetry(fileHandle);
+        try (WorkerMetrics.TimedCall call = WorkerMetrics.startSynapseCall("createS3FileHandle")) {
+            fileHandle = call.success(synapseHelper.createS3FileHandleWithRetry(fileHandle));
+        }
 
-        // Create FileEntity.
-        String existingEntityId = synapseHelper.lookupChildWithRetry(folderId, filename);
-        FileEntity fileEntity;
-        if (existingEntityId != null) {
-            // This could come up in a redrive, or if the export task fails and is automatically re-sent by SQS.
-            fileEntity = synapseHelper.getEntityWithRetry(existingEntityId, FileEntity.class);
-            fileEntity.setDataFileHandleId(fileHandle.getId());
-            fileEntity.setName(filename);
-            fileEntity.setParentId(folderId);
-            fileEntity = synapseHelper.updateEntityWithRetry(fileEntity);
-        } else {
-            // New file entity.
-            fileEntity = new FileEntity();
-            fileEntity.setDataFileHandleId(fileHandle.getId());
-            fileEntity.setName(filename);
-            fileEntity.setParentId(folderId);
-            fileEntity = synapseHelper.createEntityWithRetry(fileEntity);
+        // Create FileEntity. Almost all exports are new records, so try to create the entity first. This saves us a
+        // lookup call for every record. If the entity already exists, Synapse returns a 409 Conflict. This could come
+        // up in a redrive, or if the export task fails and is automatically re-sent by SQS.
+        FileEntity fileEntity = new FileEntity();
+        fileEntity.setDataFileHandleId(fileHandle.getId());
+        fileEntity.setName(filename);
+        fileEntity.setParentId(folderId);
+        try (WorkerMetrics.TimedCall call = WorkerMetrics.startSynapseCall("createEntity")) {
+            fileEntity = call.success(synapseHelper.createEntityWithRetry(fileEntity));
+        } catch (SynapseConflictingUpdateException ex) {
+            fileEntity = updateExistingFileEntity(folderId, filename, fileHandle.getId());
+            if (fileEntity == null) {
+                // The conflict wasn't a name conflict in this folder, so there's nothing we can do here.
+                throw ex;
+            }
         }
         String fileEntityId = fileEntity.getId();
 
@@ -571,7 +699,10 @@ public class Exporter3WorkerProcessor implements ThrowingConsumer<JsonNode> {
             annotationMap.put(METADATA_KEY_PARTICIPANT_VERSION, value);
         }
 
-        synapseHelper.addAnnotationsToEntity(fileEntityId, annotationMap);
+        try (WorkerMetrics.TimedCall call = WorkerMetrics.startSynapseCall("addAnnotations")) {
+            synapseHelper.addAnnotationsToEntity(fileEntityId, annotationMap);
+            call.success();
+        }
 
         // Create record info for notifications.
         ExportedRecordInfo recordInfo = new ExportedRecordInfo();
@@ -602,13 +733,9 @@ public class Exporter3WorkerProcessor implements ThrowingConsumer<JsonNode> {
         return builder.toString();
     }
 
-    // Creates the upload table row for the upload.
-    // Package-scoped for unit tests.
-    UploadTableRow getUploadTableRow(Upload upload, HealthDataRecordEx3 record, StudyParticipant participant,
-            String recordId, Map<String, String> metadataMap) throws IOException, PollSqsWorkerBadRequestException {
-        UploadTableRow tableRow = null;
+    // The assessment whose upload table the upload goes in, or null if the upload doesn't get a table row.
+    private static String getAssessmentGuidForUploadTable(String appId, Map<String, String> metadataMap) {
         String assessmentGuid = metadataMap.get(METADATA_KEY_ASSESSMENT_GUID);
-        String appId = record.getAppId();
 
         /**
          * If assessmentGuid is null then this is a session level upload, which may contain results from multiple assessments.
@@ -622,7 +749,19 @@ public class Exporter3WorkerProcessor implements ThrowingConsumer<JsonNode> {
         if (assessmentGuid == null && ("arc".equals(appId) || "inv-arc".equals(appId))) {
             assessmentGuid = ArcResultSummarizer.DIAN_APP_CONTAINER_ASSESSMENT_GUID;
         }
+        return assessmentGuid;
+    }
 
+    // Creates the upload table row for the upload.
+    // Package-scoped for unit tests.
+    // decryptedPayload is the decrypted upload, if we still have it from the export. If it's null, we download the
+    // upload from the raw health data bucket.
+    UploadTableRow getUploadTableRow(Upload upload, HealthDataRecordEx3 record, StudyParticipant participant,
+            String recordId, Map<String, String> metadataMap, byte[] decryptedPayload) throws IOException,
+            PollSqsWorkerBadRequestException {
+        UploadTableRow tableRow = null;
+        String appId = record.getAppId();
+        String assessmentGuid = getAssessmentGuidForUploadTable(appId, metadataMap);
 
         if (assessmentGuid != null) {
             // Top-level parameters.
@@ -675,63 +814,58 @@ public class Exporter3WorkerProcessor implements ThrowingConsumer<JsonNode> {
             }
             AssessmentSummarizer summarizer = summarizerProvider.getSummarizer(assessment, assessmentConfig);
             if (summarizer != null) {
-                File tempDir = fileHelper.createTempDir();
-                try {
-                    // Local file name doesn't matter here because it's temporary.
-                    File downloadedFile = fileHelper.newFile(tempDir, upload.getUploadId());
+                // We only need metadata.json and the result file. Read just those entries into memory, and skip
+                // everything else in the archive.
+                Set<String> wantedEntryNameSet = ImmutableSet.of(FILENAME_METADATA_JSON,
+                        summarizer.getResultFilename());
+                Map<String, byte[]> entryMap;
+                if (decryptedPayload != null) {
+                    // We already have the decrypted file from the export. No need to download it again.
+                    entryMap = zipHelper.extractEntries(new ByteArrayInputStream(decryptedPayload),
+                            wantedEntryNameSet);
+                } else {
                     String s3Key = getRawS3KeyForUpload(appId, null, upload, record);
-                    s3Helper.downloadS3File(rawHealthDataBucket, s3Key, downloadedFile);
-
-                    Map<String, File> unzippedFileMap = zipHelper.unzip(downloadedFile, tempDir);
-
-                    // Load some metadata params from the metadata.json file.
-                    File metadataJsonFile = unzippedFileMap.get(FILENAME_METADATA_JSON);
-                    if (metadataJsonFile != null) {
-                        String metadataJsonString = IOUtils.toString(fileHelper.getInputStream(metadataJsonFile),
-                                StandardCharsets.UTF_8);
-                        JsonNode metadataJsonNode = DefaultObjectMapper.INSTANCE.readTree(metadataJsonString);
-
-                        // TODO https://sagebionetworks.jira.com/browse/DHP-1074 Load jsonSchema from metadata.json file
-                        // and validate against schema
-
-                        for (String key: TABLE_ROW_METADATA_JSON_KEYS) {
-                            String value = JsonUtils.asText(metadataJsonNode, key);
-                            if (value != null) {
-                                tableRowMetadata.put(key, value);
-                            } else {
-                                // We still want to include a blank value in the table row, so that the column is
-                                // present in the CSV.
-                                tableRowMetadata.put(key, "");
-                            }
-                        }
-                    } else {
-                        LOG.warn("Unable to load metadata.json file for appId=" + appId + ", recordId=" + recordId +
-                                ", assessmentGuid=" + assessmentGuid);
+                    try (InputStream inputStream = getBufferedInputStream(s3StreamHelper.getObjectStream(
+                            rawHealthDataBucket, s3Key))) {
+                        entryMap = zipHelper.extractEntries(inputStream, wantedEntryNameSet);
                     }
+                }
 
-                    // Summarize results file.
-                    // Note: This may need to be refactored in the future to accommodate assessments that use multiple
-                    // files - voice analysis, images, motion sensors, etc. In those cases, we'll need to pass the
-                    // whole file map into the summarizer.
-                    File resultFile = unzippedFileMap.get(summarizer.getResultFilename());
-                    if (resultFile != null) {
-                        String resultString = IOUtils.toString(fileHelper.getInputStream(resultFile),
-                                StandardCharsets.UTF_8);
-                        Map<String, String> data = summarizer.summarizeResults(appId, recordId, resultString);
-                        tableRow.setData(data);
-                    } else {
-                        LOG.warn("Unable to load result file for appId=" + appId + ", recordId=" + recordId +
-                                ", assessmentGuid=" + assessmentGuid);
-                    }
-                } finally {
-                    // Delete temp directory used for unzipping archive
-                    try {
-                        fileHelper.deleteDirRecursively(tempDir);
-                    } catch (IOException ex) {
-                        // Deleting the temp dir is best-effort. If we can't delete it, just log an error and move on.
-                        LOG.error("Error deleting temp dir " + tempDir.getAbsolutePath() + " for appId=" + appId +
-                                ", recordId=" + recordId, ex);
+                // Load some metadata params from the metadata.json file.
+                byte[] metadataJsonBytes = entryMap.get(FILENAME_METADATA_JSON);
+                if (metadataJsonBytes != null) {
+                    JsonNode metadataJsonNode = DefaultObjectMapper.INSTANCE.readTree(metadataJsonBytes);
+
+                    // TODO https://sagebionetworks.jira.com/browse/DHP-1074 Load jsonSchema from metadata.json file
+                    // and validate against schema
+
+                    for (String key: TABLE_ROW_METADATA_JSON_KEYS) {
+                        String value = JsonUtils.asText(metadataJsonNode, key);
+                        if (value != null) {
+                            tableRowMetadata.put(key, value);
+                        } else {
+                            // We still want to include a blank value in the table row, so that the column is
+                            // present in the CSV.
+                            tableRowMetadata.put(key, "");
+                        }
                     }
+                } else {
+                    LOG.warn("Unable to load metadata.json file for appId=" + appId + ", recordId=" + recordId +
+                            ", assessmentGuid=" + assessmentGuid);
+                }
+
+                // Summarize results file.
+                // Note: This may need to be refactored in the future to accommodate assessments that use multiple
+                // files - voice analysis, images, motion sensors, etc. In those cases, we'll need to pass the
+                // whole file map into the summarizer.
+                byte[] resultBytes = entryMap.get(summarizer.getResultFilename());
+                if (resultBytes != null) {
+                    String resultString = new String(resultBytes, StandardCharsets.UTF_8);
+                    Map<String, String> data = summarizer.summarizeResults(appId, recordId, resultString);
+                    tableRow.setData(data);
+                } else {
+                    LOG.warn("Unable to load result file for appId=" + appId + ", recordId=" + recordId +
+                            ", assessmentGuid=" + assessmentGuid);
                 }
             }
         }
@@ -758,6 +892,52 @@ public class Exporter3WorkerProcessor implements ThrowingConsumer<JsonNode> {
         return copy;
     }
 
+    // Points the existing file entity with the given name at the new file handle. Returns null if there is no such
+    // entity.
+    private FileEntity updateExistingFileEntity(String folderId, String filename, String fileHandleId)
+            throws SynapseException {
+        String existingEntityId;
+        try (WorkerMetrics.TimedCall call = WorkerMetrics.startSynapseCall("lookupChild")) {
+            existingEntityId = call.success(synapseHelper.lookupChildWithRetry(folderId, filename));
+        }
+        if (existingEntityId == null) {
+            return null;
+        }
+
+        FileEntity fileEntity;
+        try (WorkerMetrics.TimedCall call = WorkerMetrics.startSynapseCall("getEntity")) {
+            fileEntity = call.success(synapseHelper.getEntityWithRetry(existingEntityId, FileEntity.class));
+        }
+        fileEntity.setDataFileHandleId(fileHandleId);
+        fileEntity.setName(filename);
+        fileEntity.setParentId(folderId);
+        try (WorkerMetrics.TimedCall call = WorkerMetrics.startSynapseCall("updateEntity")) {
+            return call.success(synapseHelper.updateEntityWithRetry(fileEntity));
+        }
+    }
+
+    // Gets the folder ID for the given date under the given parent folder, creating the folder if needed. The first
+    // call for each parent and date goes to Synapse. Concurrent calls for the same key wait for that call instead of
+    // making their own. Races with other hosts are handled by createFolderIfNotExists().
+    private String getOrCreateDateFolder(String parentId, String dateStr) throws SynapseException {
+        try {
+            return synapseFolderIdCache.get(parentId + '/' + dateStr, () -> {
+                try (WorkerMetrics.TimedCall call = WorkerMetrics.startSynapseCall("createFolderIfNotExists")) {
+                    return call.success(synapseHelper.createFolderIfNotExists(parentId, dateStr));
+                }
+            });
+        } catch (ExecutionException ex) {
+            // The loader only throws SynapseException as a checked exception.
+            Throwable cause = ex.getCause();
+            if (cause instanceof SynapseException) {
+                throw (SynapseException) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (UncheckedExecutionException ex) {
+            throw (RuntimeException) ex.getCause();
+        }
+    }
+
     private String getFilenameForUpload(Upload upload) {
         return upload.getUploadId() + '-' + upload.getFilename();
     }
@@ -775,4 +955,43 @@ public class Exporter3WorkerProcessor implements ThrowingConsumer<JsonNode> {
     InputStream getBufferedInputStream(InputStream inputStream) {
         return new BufferedInputStream(inputStream);
     }
+
+    // Keeps a copy of everything written to it, up to a max size. Past that, it drops what it has, and the caller
+    // falls back to downloading the file from S3. This keeps memory bounded for large sensor uploads.
+    static class BoundedByteArrayOutputStream extends ByteArrayOutputStream {
+        private final int maxSize;
+        private boolean overflowed = false;
+
+        BoundedByteArrayOutputStream(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if (checkSize(1)) {
+                super.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            if (checkSize(len)) {
+                super.write(b, off, len);
+            }
+        }
+
+        private boolean checkSize(int len) {
+            if (!overflowed && count + len > maxSize) {
+                overflowed = true;
+                buf = new byte[0];
+                count = 0;
+            }
+            return !overflowed;
+        }
+
+        // Returns the bytes written, or null if we went over the max size.
+        synchronized byte[] toByteArrayOrNull() {
+            return overflowed ? null : toByteArray();
+        }
+    }
 }
@@ -7,8 +7,11 @@ import java.util.List;
 import java.util.Map;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
-import com.jcabi.aspects.Cacheable;
+import org.sagebionetworks.client.exceptions.SynapseBadRequestException;
 import org.sagebionetworks.client.exceptions.SynapseException;
 import org.sagebionetworks.repo.model.table.ColumnModel;
 import org.sagebionetworks.repo.model.table.PartialRow;
@@ -22,6 +25,7 @@ import org.sagebionetworks.bridge.rest.model.DemographicResponse;
 import org.sagebionetworks.bridge.rest.model.DemographicValueResponse;
 import org.sagebionetworks.bridge.rest.model.ParticipantVersion;
 import org.sagebionetworks.bridge.synapse.SynapseHelper;
+import org.sagebionetworks.bridge.workerPlatform.metrics.WorkerMetrics;
 import org.sagebionetworks.bridge.workerPlatform.util.Constants;
 
 /** Helper class that encapsulates exporting a single participant version. */
@@ -48,9 +52,26 @@ public class ParticipantVersionHelper {
 
     static final String EXT_ID_NONE = "<none>";
 
+    // Column IDs only change if someone changes a table's schema, so we cache them until Synapse tells us otherwise.
+    // The max size just keeps the cache from growing forever. Package-scoped for unit tests.
+    static final int COLUMN_ID_CACHE_MAX_SIZE = 1000;
+    static final String METRIC_NAME_COLUMN_ID_CACHE_HIT = "columnIdCacheHit";
+    static final String METRIC_NAME_COLUMN_ID_CACHE_MISS = "columnIdCacheMiss";
+    static final String METRIC_SERVICE = "ParticipantVersionHelper";
+
     private static final int MAX_LANGUAGE_LENGTH = 5;
     private static final int MAX_LANGUAGES = 10;
 
+    // Maps table ID to a map of column names to column IDs. Shared by all threads. This used to be jcabi's
+    // @Cacheable(forever = true), which did cache it (the aspect is woven at compile time, so private calls are
+    // intercepted too), but it was unbounded, couldn't be invalidated when a schema changes, and had no metrics.
+    private final Cache<String, Map<String, String>> columnNameToIdCache = CacheBuilder.newBuilder()
+            .maximumSize(COLUMN_ID_CACHE_MAX_SIZE).build();
+
+    // Maps demographics table ID to its compiled row template. Shared by all threads.
+    private final Cache<String, DemographicsRowTemplate> demographicsRowTemplateCache = CacheBuilder.newBuilder()
+            .maximumSize(COLUMN_ID_CACHE_MAX_SIZE).build();
+
     private SynapseHelper synapseHelper;
 
     @Autowired
@@ -143,7 +164,6 @@ public class ParticipantVersionHelper {
     public List<PartialRow> makeRowsForParticipantVersionDemographics(String studyId,
             String participantVersionDemographicsTableId, ParticipantVersion participantVersion)
             throws SynapseException {
-        Map<String, String> columnNameToId = getColumnNameToIdMap(participantVersionDemographicsTableId);
         String healthCode = participantVersion.getHealthCode();
         Integer versionNum = participantVersion.getParticipantVersion();
         if (healthCode == null || versionNum == null) {
@@ -151,96 +171,118 @@ public class ParticipantVersionHelper {
             // participant versions table
             return new ArrayList<>();
         }
+        DemographicsRowTemplate template = getDemographicsRowTemplate(participantVersionDemographicsTableId);
+
+        // Values that are the same for every row are filled in once. The rest are overwritten for each row.
+        String[] values = new String[DemographicsRowTemplate.NUM_COLUMNS];
+        values[DemographicsRowTemplate.INDEX_HEALTH_CODE] = healthCode;
+        values[DemographicsRowTemplate.INDEX_PARTICIPANT_VERSION] = versionNum.toString();
 
         List<PartialRow> rows = new ArrayList<>();
         if (participantVersion.getAppDemographics() != null) {
             // include app-level demographics for both study- and app-level export
-            rows.addAll(
-                    makeRowsFromDemographicsMap(participantVersion.getAppDemographics(), columnNameToId, null,
-                            healthCode, versionNum));
+            addRowsFromDemographicsMap(rows, template, values, null, participantVersion.getAppDemographics());
         }
         if (participantVersion.getStudyDemographics() != null) {
             if (studyId == null) {
                 // app-level export, so include all substudy demographics too
                 for (Map.Entry<String, Map<String, DemographicResponse>> entry : participantVersion
                         .getStudyDemographics().entrySet()) {
-                    String demographicsStudyId = entry.getKey();
-                    Map<String, DemographicResponse> demographics = entry.getValue();
-                    rows.addAll(makeRowsFromDemographicsMap(demographics, columnNameToId, demographicsStudyId,
-                            healthCode, versionNum));
+                    addRowsFromDemographicsMap(rows, template, values, entry.getKey(), entry.getValue());
                 }
             } else if (participantVersion.getStudyDemographics().get(studyId) != null) {
                 // study-level export, so include only demographics for that study
-                rows.addAll(makeRowsFromDemographicsMap(participantVersion.getStudyDemographics().get(studyId),
-                        columnNameToId, studyId, healthCode, versionNum));
+                addRowsFromDemographicsMap(rows, template, values, studyId,
+                        participantVersion.getStudyDemographics().get(studyId));
             }
         }
 
         return rows;
     }
 
-    // Helper method for making Synapse table rows from map of categoryName to
-    // demographic.
-    private List<PartialRow> makeRowsFromDemographicsMap(Map<String, DemographicResponse> demographics,
-            Map<String, String> columnNameToId, String studyId, String healthCode, Integer versionNum) {
-        List<PartialRow> rows = new ArrayList<>();
+    // Helper method for making Synapse table rows from map of categoryName to demographic. Rows are added to the
+    // given list. The values array already has the health code and participant version.
+    private static void addRowsFromDemographicsMap(List<PartialRow> rows, DemographicsRowTemplate template,
+            String[] values, String studyId, Map<String, DemographicResponse> demographics) {
         if (demographics == null) {
             // should not happen but for safety
-            return rows;
+            return;
         }
+        values[DemographicsRowTemplate.INDEX_STUDY_ID] = studyId;
         for (Map.Entry<String, DemographicResponse> entry : demographics.entrySet()) {
             if (entry.getKey() == null || entry.getValue() == null) {
                 // don't bother saving when null categoryName or demographic
                 continue;
             }
-            String categoryName = entry.getKey();
             DemographicResponse demographic = entry.getValue();
-            String units = demographic.getUnits();
-            for (DemographicValueResponse demographicValue : demographic.getValues()) {
-                String value = demographicValue.getValue();
-                String invalidity = demographicValue.getInvalidity();
-                rows.add(makeDemographicsRow(columnNameToId, healthCode, versionNum, studyId, categoryName,
-                        value, units, invalidity));
-            }
-            if (demographic.getValues().isEmpty()) {
+            values[DemographicsRowTemplate.INDEX_CATEGORY_NAME] = entry.getKey();
+            values[DemographicsRowTemplate.INDEX_UNITS] = demographic.getUnits();
+            List<DemographicValueResponse> demographicValueList = demographic.getValues();
+            if (demographicValueList.isEmpty()) {
                 // nothing selected in a multiple choice category, but we should still add a row
-                rows.add(makeDemographicsRow(columnNameToId, healthCode, versionNum, studyId, categoryName, null,
-                        units, null));
+                values[DemographicsRowTemplate.INDEX_VALUE] = null;
+                values[DemographicsRowTemplate.INDEX_INVALIDITY] = null;
+                rows.add(template.makeRow(values));
+                continue;
+            }
+            for (DemographicValueResponse demographicValue : demographicValueList) {
+                values[DemographicsRowTemplate.INDEX_VALUE] = demographicValue.getValue();
+                values[DemographicsRowTemplate.INDEX_INVALIDITY] = demographicValue.getInvalidity();
+                rows.add(template.makeRow(values));
             }
         }
-        return rows;
     }
 
-    private PartialRow makeDemographicsRow(Map<String, String> columnNameToId, String healthCode, Integer versionNum,
-            String studyId, String categoryName, String value, String units, String invalidity) {
-        Map<String, String> rowMap = new HashMap<>();
-        rowMap.put(columnNameToId.get(COLUMN_NAME_HEALTH_CODE), healthCode);
-        rowMap.put(columnNameToId.get(COLUMN_NAME_PARTICIPANT_VERSION), versionNum.toString());
-        rowMap.put(columnNameToId.get(COLUMN_NAME_STUDY_ID), studyId);
-        rowMap.put(columnNameToId.get(COLUMN_NAME_DEMOGRAPHIC_CATEGORY_NAME), categoryName);
-        rowMap.put(columnNameToId.get(COLUMN_NAME_DEMOGRAPHIC_VALUE), value);
-        if (units != null) {
-            rowMap.put(columnNameToId.get(COLUMN_NAME_DEMOGRAPHIC_UNITS), units);
+    // Gets the compiled row template for the given demographics table. Templates are cached alongside column IDs.
+    private DemographicsRowTemplate getDemographicsRowTemplate(String tableId) throws SynapseException {
+        DemographicsRowTemplate template = demographicsRowTemplateCache.getIfPresent(tableId);
+        if (template == null) {
+            template = new DemographicsRowTemplate(getColumnNameToIdMap(tableId));
+            demographicsRowTemplateCache.put(tableId, template);
         }
-        if (invalidity != null) {
-            rowMap.put(columnNameToId.get(COLUMN_NAME_DEMOGRAPHIC_INVALIDITY), invalidity);
+        return template;
+    }
+
+    /**
+     * If appending rows to the given table failed because the table's schema changed (Synapse rejects the row with a
+     * 400 Bad Request), this drops the table's column IDs from the cache, so that the retry picks up the new columns.
+     * Other errors are ignored.
+     */
+    public void invalidateColumnsOnSchemaChangeError(String tableId, Throwable ex) {
+        for (Throwable cause : Throwables.getCausalChain(ex)) {
+            if (cause instanceof SynapseBadRequestException) {
+                LOG.warn("Invalidating cached column IDs for table " + tableId + " after error: " +
+                        cause.getMessage());
+                columnNameToIdCache.invalidate(tableId);
+                demographicsRowTemplateCache.invalidate(tableId);
+                return;
+            }
         }
-        PartialRow row = new PartialRow();
-        row.setValues(rowMap);
-        return row;
     }
 
     /**
      * This creates a map that maps column names to column IDs. Since this requires a network call and a bit of
-     * computation, we cache it. This should never change, so we cache it forever.
+     * computation, we cache it. If two threads miss at the same time, they both call Synapse, which is fine since they
+     * get the same answer.
      */
-    @Cacheable(forever = true)
     private Map<String, String> getColumnNameToIdMap(String tableId) throws SynapseException {
-        List<ColumnModel> columnModelList = synapseHelper.getColumnModelsForTableWithRetry(tableId);
-        Map<String, String> columnNameToId = new HashMap<>();
+        Map<String, String> columnNameToId = columnNameToIdCache.getIfPresent(tableId);
+        if (columnNameToId != null) {
+            WorkerMetrics.incrementCount(METRIC_SERVICE, METRIC_NAME_COLUMN_ID_CACHE_HIT, 1);
+            return columnNameToId;
+        }
+        WorkerMetrics.incrementCount(METRIC_SERVICE, METRIC_NAME_COLUMN_ID_CACHE_MISS, 1);
+
+        List<ColumnModel> columnModelList;
+        try (WorkerMetrics.TimedCall call = WorkerMetrics.startSynapseCall("getColumnModelsForTable")) {
+            columnModelList = call.success(synapseHelper.getColumnModelsForTableWithRetry(tableId));
+        }
+        columnNameToId = new HashMap<>();
         for (ColumnModel columnModel : columnModelList) {
             columnNameToId.put(columnModel.getName(), columnModel.getId());
         }
+        columnNameToId = Collections.unmodifiableMap(columnNameToId);
+        columnNameToIdCache.put(tableId, columnNameToId);
         return columnNameToId;
     }
 
@@ -275,4 +317,49 @@ public class ParticipantVersionHelper {
         Collections.sort(pairs);
         return "|" + Constants.PIPE_JOINER.join(pairs) + "|";
     }
+
+    /**
+     * Participant Version Demographics table layout, with column IDs resolved once per table. Rows are built from a
+     * values array indexed the same way as the columns, so building a row is just filling in a pre-sized map.
+     */
+    static class DemographicsRowTemplate {
+        // Column indexes. Optional columns are at the end, and are only written if they have a value.
+        static final int INDEX_HEALTH_CODE = 0;
+        static final int INDEX_PARTICIPANT_VERSION = 1;
+        static final int INDEX_STUDY_ID = 2;
+        static final int INDEX_CATEGORY_NAME = 3;
+        static final int INDEX_VALUE = 4;
+        static final int INDEX_UNITS = 5;
+        static final int INDEX_INVALIDITY = 6;
+        static final int NUM_COLUMNS = 7;
+        private static final int FIRST_OPTIONAL_INDEX = INDEX_UNITS;
+
+        // Big enough that the row map never resizes at the default load factor.
+        private static final int ROW_MAP_CAPACITY = NUM_COLUMNS * 4 / 3 + 1;
+
+        private final String[] columnIds = new String[NUM_COLUMNS];
+
+        DemographicsRowTemplate(Map<String, String> columnNameToId) {
+            columnIds[INDEX_HEALTH_CODE] = columnNameToId.get(COLUMN_NAME_HEALTH_CODE);
+            columnIds[INDEX_PARTICIPANT_VERSION] = columnNameToId.get(COLUMN_NAME_PARTICIPANT_VERSION);
+            columnIds[INDEX_STUDY_ID] = columnNameToId.get(COLUMN_NAME_STUDY_ID);
+            columnIds[INDEX_CATEGORY_NAME] = columnNameToId.get(COLUMN_NAME_DEMOGRAPHIC_CATEGORY_NAME);
+            columnIds[INDEX_VALUE] = columnNameToId.get(COLUMN_NAME_DEMOGRAPHIC_VALUE);
+            columnIds[INDEX_UNITS] = columnNameToId.get(COLUMN_NAME_DEMOGRAPHIC_UNITS);
+            columnIds[INDEX_INVALIDITY] = columnNameToId.get(COLUMN_NAME_DEMOGRAPHIC_INVALIDITY);
+        }
+
+        /** Makes a row from the given values. The values array can be reused for the next row. */
+        PartialRow makeRow(String[] values) {
+            Map<String, String> rowMap = new HashMap<>(ROW_MAP_CAPACITY);
+            for (int i = 0; i < NUM_COLUMNS; i++) {
+                if (i < FIRST_OPTIONAL_INDEX || values[i] != null) {
+                    rowMap.put(columnIds[i], values[i]);
+                }
+            }
+            PartialRow row = new PartialRow();
+            row.setValues(rowMap);
+            return row;
+        }
+    }
 }
@@ -5,8 +5,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Resource;
+
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Stopwatch;
 import com.google.common.util.concurrent.RateLimiter;
@@ -33,6 +38,7 @@ import org.sagebionetworks.bridge.worker.ThrowingConsumer;
 import org.sagebionetworks.bridge.workerPlatform.bridge.BridgeHelper;
 import org.sagebionetworks.bridge.workerPlatform.bridge.BridgeUtils;
 import org.sagebionetworks.bridge.workerPlatform.dynamodb.DynamoHelper;
+import org.sagebionetworks.bridge.workerPlatform.metrics.WorkerMetrics;
 
 /**
  * This worker is used if the participant version exists on Bridge but needs to be re-exported to Synapse for whatever
@@ -46,25 +52,35 @@ public class RedriveParticipantVersionsWorkerProcessor implements ThrowingConsum
     private static final int REPORTING_INTERVAL = 1000;
 
     static final String CONFIG_KEY_BACKFILL_BUCKET = "backfill.bucket";
+    static final String CONFIG_KEY_CHUNK_BYTES = "redrive.participant.versions.chunk.bytes";
+    static final String CONFIG_KEY_CHUNK_ROWS = "redrive.participant.versions.chunk.rows";
+    static final String CONFIG_KEY_MAX_CONCURRENT = "redrive.participant.versions.max.concurrent";
     static final String WORKER_ID = "RedriveParticipantVersionsWorker";
 
     // Rate limiter. We accept this many health codes per second. Since Synapse throttles at 10 requests per second,
-    // so there's no point in going faster than that.
+    // so there's no point in going faster than that. This is shared by all worker threads.
     private final RateLimiter rateLimiter = RateLimiter.create(10.0);
 
     private String backfillBucket;
     private BridgeHelper bridgeHelper;
+    private int chunkBytes;
+    private int chunkRows;
     private DynamoHelper dynamoHelper;
+    private int maxConcurrent;
     private ParticipantVersionHelper participantVersionHelper;
+    private ExecutorService redriveExecutorService;
     private S3Helper s3Helper;
     private SynapseHelper synapseHelper;
 
     @Autowired
     public final void setConfig(Config config) {
         this.backfillBucket = config.get(CONFIG_KEY_BACKFILL_BUCKET);
+        this.chunkBytes = config.getInt(CONFIG_KEY_CHUNK_BYTES);
+        this.chunkRows = config.getInt(CONFIG_KEY_CHUNK_ROWS);
+        this.maxConcurrent = config.getInt(CONFIG_KEY_MAX_CONCURRENT);
     }
 
-    @Autowired
+    @Resource(name = "cachingBridgeHelper")
     public final void setBridgeHelper(BridgeHelper bridgeHelper) {
         this.bridgeHelper = bridgeHelper;
     }
@@ -79,6 +95,15 @@ public class RedriveParticipantVersionsWorkerProcessor implements ThrowingConsum
         this.dynamoHelper = dynamoHelper;
     }
 
+    /**
+     * Executor service (thread pool) for fetching participant versions from Bridge. Each request only keeps
+     * maxConcurrent health codes in flight, and all health codes share the same rate limiter.
+     */
+    @Resource(name = "redriveExecutorService")
+    public final void setRedriveExecutorService(ExecutorService redriveExecutorService) {
+        this.redriveExecutorService = redriveExecutorService;
+    }
+
     @Autowired
     public final void setS3Helper(S3Helper s3Helper) {
         this.s3Helper = s3Helper;
@@ -137,29 +162,61 @@ public class RedriveParticipantVersionsWorkerProcessor implements ThrowingConsum
         // Get list of health codes from S3.
         List<String> healthCodeList = s3Helper.readS3FileAsLines(backfillBucket, s3Key);
         int totalHealthCodes = healthCodeList.size();
+
+        // If a previous attempt at this request got partway through, pick up where it left off.
+        String checkpointKey = appId + ":" + s3Key;
+        int startOffset = dynamoHelper.getWorkerCheckpoint(WORKER_ID, checkpointKey);
         LOG.info("Starting redrive participant versions for app " + appId + " s3 key " + s3Key + " with " +
-                totalHealthCodes + " health codes");
+                totalHealthCodes + " health codes, starting at " + startOffset);
 
-        // Backfill health codes in a loop.
-        Map<String, Boolean> studyIdToExportEnabled = new HashMap<>();
-        Map<String, String> studyIdToParticipantVersionTableId = new HashMap<>();
-        Map<String, List<PartialRow>> tableIdToRows = new HashMap<>();
-        int numHealthCodes = 0;
+        // Backfill health codes on the worker pool. Workers add rows to the row buffer. Once the buffer has a full
+        // chunk, this thread waits for the health codes in flight, appends the rows to Synapse, and saves a
+        // checkpoint. This way, we never hold more than a chunk or so of rows, and a checkpoint is only saved once
+        // every health code before it is in Synapse.
+        Map<String, Boolean> studyIdToExportEnabled = new ConcurrentHashMap<>();
+        Map<String, String> studyIdToParticipantVersionTableId = new ConcurrentHashMap<>();
+        RowBuffer rowBuffer = new RowBuffer();
+        Semaphore inFlightPermits = new Semaphore(maxConcurrent);
         Stopwatch stopwatch = Stopwatch.createStarted();
-        for (String healthCode : healthCodeList) {
-            // Rate limit.
-            rateLimiter.acquire();
-
-            // Backfill.
+        String finalAppParticipantVersionTableId = appParticipantVersionTableId;
+        for (int i = startOffset; i < totalHealthCodes; i++) {
+            String healthCode = healthCodeList.get(i);
+            inFlightPermits.acquireUninterruptibly();
             try {
-                processHealthCode(appId, healthCode, exportForApp, appParticipantVersionTableId,
-                        studyIdToExportEnabled, studyIdToParticipantVersionTableId, tableIdToRows);
-            } catch (Exception ex) {
-                LOG.error("Error redriving participant version for app " + appId + " health code " + healthCode, ex);
+                redriveExecutorService.execute(() -> {
+                    try {
+                        // Rate limit.
+                        rateLimiter.acquire();
+
+                        // Backfill.
+                        processHealthCode(appId, healthCode, exportForApp, finalAppParticipantVersionTableId,
+                                studyIdToExportEnabled, studyIdToParticipantVersionTableId, rowBuffer);
+                    } catch (Exception ex) {
+                        LOG.error("Error redriving participant version for app " + appId + " health code " +
+                                healthCode, ex);
+                    } finally {
+                        inFlightPermits.release();
+                    }
+                });
+            } catch (RuntimeException ex) {
+                // Executor rejected the task.
+                inFlightPermits.release();
+                throw ex;
+            }
+
+            // Write full chunks to Synapse.
+            if (rowBuffer.isFull(chunkRows, chunkBytes)) {
+                inFlightPermits.acquireUninterruptibly(maxConcurrent);
+                try {
+                    appendRowsToSynapse(appId, rowBuffer.drain());
+                    dynamoHelper.writeWorkerCheckpoint(WORKER_ID, checkpointKey, i + 1);
+                } finally {
+                    inFlightPermits.release(maxConcurrent);
+                }
             }
 
             // Reporting.
-            numHealthCodes++;
+            int numHealthCodes = i + 1;
             if (numHealthCodes % REPORTING_INTERVAL == 0) {
                 LOG.info("Redriving participant versions for app " + appId + ": " + numHealthCodes +
                         " health codes out of " + totalHealthCodes + " in " + stopwatch.elapsed(TimeUnit.SECONDS) +
@@ -167,31 +224,50 @@ public class RedriveParticipantVersionsWorkerProcessor implements ThrowingConsum
             }
         }
 
-        // Write rows to Synapse.
+        // Wait for the remaining health codes, then write the remaining rows to Synapse.
+        inFlightPermits.acquireUninterruptibly(maxConcurrent);
+        appendRowsToSynapse(appId, rowBuffer.drain());
+
+        // We're done, so the next request for this file starts from the top.
+        dynamoHelper.deleteWorkerCheckpoint(WORKER_ID, checkpointKey);
+
+        // Write to Worker Log in DDB so we can signal end of processing.
+        String tag = "app=" + appId + ", s3Key=" + s3Key + ", totalHealthCodes=" + totalHealthCodes;
+        dynamoHelper.writeWorkerLog(WORKER_ID, tag);
+    }
+
+    // Appends rows to Synapse, in chunks of at most chunkRows rows per table.
+    private void appendRowsToSynapse(String appId, Map<String, List<PartialRow>> tableIdToRows)
+            throws BridgeSynapseException, SynapseException {
         for (Map.Entry<String, List<PartialRow>> tableIdRowEntry : tableIdToRows.entrySet()) {
             String tableId = tableIdRowEntry.getKey();
             List<PartialRow> rowList = tableIdRowEntry.getValue();
-            int numRows = rowList.size();
+            for (int i = 0; i < rowList.size(); i += chunkRows) {
+                List<PartialRow> chunk = rowList.subList(i, Math.min(i + chunkRows, rowList.size()));
+                int numRows = chunk.size();
 
-            PartialRowSet rowSet = new PartialRowSet();
-            rowSet.setRows(rowList);
-            rowSet.setTableId(tableId);
+                PartialRowSet rowSet = new PartialRowSet();
+                rowSet.setRows(chunk);
+                rowSet.setTableId(tableId);
 
-            RowReferenceSet rowReferenceSet = synapseHelper.appendRowsToTable(rowSet, tableId);
-            if (rowReferenceSet.getRows().size() != numRows) {
-                LOG.error("Expected to write " + numRows + " participant versions to table " + tableId + " app " +
-                        appId + ", instead wrote " + rowReferenceSet.getRows().size());
+                RowReferenceSet rowReferenceSet;
+                try (WorkerMetrics.TimedCall call = WorkerMetrics.startSynapseCall("appendRowsToTable")) {
+                    rowReferenceSet = call.success(synapseHelper.appendRowsToTable(rowSet, tableId));
+                } catch (BridgeSynapseException | SynapseException ex) {
+                    participantVersionHelper.invalidateColumnsOnSchemaChangeError(tableId, ex);
+                    throw ex;
+                }
+                if (rowReferenceSet.getRows().size() != numRows) {
+                    LOG.error("Expected to write " + numRows + " participant versions to table " + tableId +
+                            " app " + appId + ", instead wrote " + rowReferenceSet.getRows().size());
+                }
             }
         }
-
-        // Write to Worker Log in DDB so we can signal end of processing.
-        String tag = "app=" + appId + ", s3Key=" + s3Key + ", totalHealthCodes=" + totalHealthCodes;
-        dynamoHelper.writeWorkerLog(WORKER_ID, tag);
     }
 
     private void processHealthCode(String appId, String healthCode, boolean exportForApp,
             String appParticipantVersionTableId, Map<String, Boolean> studyIdToExportEnabled,
-            Map<String, String> studyIdToParticipantVersionTableId, Map<String, List<PartialRow>> tableIdToRows)
+            Map<String, String> studyIdToParticipantVersionTableId, RowBuffer rowBuffer)
             throws IOException, SynapseException {
         // Get all participant versions.
         List<ParticipantVersion> participantVersionList = bridgeHelper.getAllParticipantVersionsForUser(appId,
@@ -204,14 +280,17 @@ public class RedriveParticipantVersionsWorkerProcessor implements ThrowingConsum
                     Boolean studyExportEnabled = studyIdToExportEnabled.get(studyId);
                     if (studyExportEnabled == null) {
                         // Study not in our cache. Fetch the study from Bridge.
+                        // Two workers might both fetch the same study. That's fine, since they get the same result.
+                        // Put the table ID first, so that other workers never see the study as enabled without a
+                        // table ID.
                         Study study = bridgeHelper.getStudy(appId, studyId);
                         studyExportEnabled = BridgeUtils.isExporter3Configured(study);
-                        studyIdToExportEnabled.put(studyId, studyExportEnabled);
                         if (studyExportEnabled) {
                             String studyParticipantVersionTableId = study.getExporter3Configuration()
                                     .getParticipantVersionTableId();
                             studyIdToParticipantVersionTableId.put(studyId, studyParticipantVersionTableId);
                         }
+                        studyIdToExportEnabled.put(studyId, studyExportEnabled);
                     }
 
                     if (studyExportEnabled) {
@@ -223,18 +302,57 @@ public class RedriveParticipantVersionsWorkerProcessor implements ThrowingConsum
             if (exportForApp) {
                 PartialRow row = participantVersionHelper.makeRowForParticipantVersion(null,
                         appParticipantVersionTableId, participantVersion);
-                List<PartialRow> rowList = tableIdToRows.computeIfAbsent(appParticipantVersionTableId,
-                        tableId -> new ArrayList<>());
-                rowList.add(row);
+                rowBuffer.addRow(appParticipantVersionTableId, row);
             }
             for (String studyId : studyIdsToExport) {
                 String studyParticipantVersionTableId = studyIdToParticipantVersionTableId.get(studyId);
                 PartialRow row = participantVersionHelper.makeRowForParticipantVersion(studyId,
                         studyParticipantVersionTableId, participantVersion);
-                List<PartialRow> rowList = tableIdToRows.computeIfAbsent(studyParticipantVersionTableId,
-                        tableId -> new ArrayList<>());
-                rowList.add(row);
+                rowBuffer.addRow(studyParticipantVersionTableId, row);
+            }
+        }
+    }
+
+    /** Rows waiting to be appended to Synapse, keyed by table ID. Worker threads add rows concurrently. */
+    private static class RowBuffer {
+        private Map<String, List<PartialRow>> tableIdToRows = new HashMap<>();
+        private int maxRowsPerTable = 0;
+        private long numBytes = 0;
+
+        synchronized void addRow(String tableId, PartialRow row) {
+            List<PartialRow> rowList = tableIdToRows.computeIfAbsent(tableId, key -> new ArrayList<>());
+            rowList.add(row);
+            maxRowsPerTable = Math.max(maxRowsPerTable, rowList.size());
+            numBytes += estimateRowBytes(row);
+        }
+
+        // True if any table has at least chunkRows rows, or if all rows add up to at least chunkBytes bytes.
+        synchronized boolean isFull(int chunkRows, int chunkBytes) {
+            return !tableIdToRows.isEmpty() && (maxRowsPerTable >= chunkRows || numBytes >= chunkBytes);
+        }
+
+        // Returns all rows and empties the buffer.
+        synchronized Map<String, List<PartialRow>> drain() {
+            Map<String, List<PartialRow>> drainedRows = tableIdToRows;
+            tableIdToRows = new HashMap<>();
+            maxRowsPerTable = 0;
+            numBytes = 0;
+            return drainedRows;
+        }
+
+        // Rough size of the row, counting the column IDs and values. This is only used to decide when to flush, so it
+        // doesn't need to match Synapse's accounting exactly.
+        private static long estimateRowBytes(PartialRow row) {
+            long rowBytes = 0;
+            if (row.getValues() != null) {
+                for (Map.Entry<String, String> valueEntry : row.getValues().entrySet()) {
+                    rowBytes += valueEntry.getKey().length();
+                    if (valueEntry.getValue() != null) {
+                        rowBytes += valueEntry.getValue().length();
+                    }
+                }
             }
+            return rowBytes;
         }
     }
 }
@@ -0,0 +1,247 @@
+package org.sagebionetworks.bridge.exporter3;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import org.sagebionetworks.repo.model.table.PartialRow;
+import org.sagebionetworks.repo.model.table.PartialRowSet;
+import org.sagebionetworks.repo.model.table.RowReference;
+import org.sagebionetworks.repo.model.table.RowReferenceSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.exceptions.BridgeSynapseException;
+import org.sagebionetworks.bridge.synapse.SynapseHelper;
+import org.sagebionetworks.bridge.workerPlatform.metrics.WorkerMetrics;
+
+/**
+ * Coalesces small appends to the same Synapse table into a single append. Each append to Synapse is a separate async
+ * table transaction, so during surges, thousands of one-row appends swamp Synapse. Instead, rows for the same table are
+ * gathered for a short window, or until there are enough rows, and then appended as a single row set.
+ *
+ * Each caller gets a future for its own rows. The future completes with the row references for the caller's rows, or
+ * fails if the append failed, or if Synapse didn't return a row reference for every one of the caller's rows. Callers
+ * should wait on the future before acking their SQS message, so that failed rows are retried.
+ *
+ * If an append with rows from more than one caller fails, each caller's rows are appended again on their own. One bad
+ * row fails the whole append, and without this, every caller in the batch would fail and be retried together, until
+ * they all ended up in the dead letter queue.
+ */
+public class SynapseRowCoalescer {
+    private static final Logger LOG = LoggerFactory.getLogger(SynapseRowCoalescer.class);
+
+    // Package-scoped for unit tests.
+    static final String METRIC_APPEND_BATCH_SIZE = "worker.synapse.appendBatchSize";
+
+    private final Object lock = new Object();
+    private final Map<String, Batch> pendingBatchMap = new HashMap<>();
+
+    private long batchWindowMillis;
+    private int maxBatchRows;
+    private String metricService;
+    private ScheduledExecutorService scheduledExecutorService;
+    private ExecutorService synapseExecutorService;
+    private SynapseHelper synapseHelper;
+
+    /**
+     * How long to wait for more rows after the first row for a table, in milliseconds. If this is zero, every append
+     * goes straight to Synapse.
+     */
+    public final void setBatchWindowMillis(long batchWindowMillis) {
+        this.batchWindowMillis = batchWindowMillis;
+    }
+
+    /** Once a batch has at least this many rows, it's appended right away, without waiting for the window. */
+    public final void setMaxBatchRows(int maxBatchRows) {
+        this.maxBatchRows = maxBatchRows;
+    }
+
+    /** Service name to tag the batch size metric with. */
+    public final void setMetricService(String metricService) {
+        this.metricService = metricService;
+    }
+
+    /** Executor that ends each batch window. A single thread is plenty. */
+    public final void setScheduledExecutorService(ScheduledExecutorService scheduledExecutorService) {
+        this.scheduledExecutorService = scheduledExecutorService;
+    }
+
+    /** Executor that makes the calls to Synapse. This limits how many appends are in flight at once. */
+    public final void setSynapseExecutorService(ExecutorService synapseExecutorService) {
+        this.synapseExecutorService = synapseExecutorService;
+    }
+
+    /** Synapse helper. */
+    public final void setSynapseHelper(SynapseHelper synapseHelper) {
+        this.synapseHelper = synapseHelper;
+    }
+
+    /**
+     * Adds rows to the next append for the given table. The returned future completes with the row references for
+     * these rows, in the same order, once the batch has been appended.
+     */
+    public CompletableFuture<List<RowReference>> appendRows(String tableId, List<PartialRow> rowList) {
+        CompletableFuture<List<RowReference>> future = new CompletableFuture<>();
+        Batch batchToSend = null;
+        synchronized (lock) {
+            Batch batch = pendingBatchMap.get(tableId);
+            if (batch == null) {
+                batch = new Batch(tableId);
+                if (batchWindowMillis > 0) {
+                    pendingBatchMap.put(tableId, batch);
+                    Batch finalBatch = batch;
+                    batch.timerFuture = scheduledExecutorService.schedule(() -> endWindow(finalBatch),
+                            batchWindowMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            batch.add(rowList, future);
+
+            if (batchWindowMillis <= 0) {
+                // Batching is turned off.
+                batchToSend = batch;
+            } else if (batch.rowList.size() >= maxBatchRows) {
+                // Batch is full. Don't wait for the window.
+                pendingBatchMap.remove(tableId);
+                batch.timerFuture.cancel(false);
+                batchToSend = batch;
+            }
+        }
+
+        if (batchToSend != null) {
+            submit(batchToSend);
+        }
+        return future;
+    }
+
+    // Called by the timer at the end of the batch window.
+    private void endWindow(Batch batch) {
+        synchronized (lock) {
+            if (pendingBatchMap.get(batch.tableId) != batch) {
+                // This batch was already sent because it filled up.
+                return;
+            }
+            pendingBatchMap.remove(batch.tableId);
+        }
+        submit(batch);
+    }
+
+    private void submit(Batch batch) {
+        synapseExecutorService.submit(() -> send(batch));
+    }
+
+    // Package-scoped for unit tests.
+    void send(Batch batch) {
+        String tableId = batch.tableId;
+        int numRows = batch.rowList.size();
+        int numContributors = batch.contributorList.size();
+        WorkerMetrics.recordDistribution(METRIC_APPEND_BATCH_SIZE, metricService, numRows);
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        try {
+            List<RowReference> rowReferenceList = appendToTable(tableId, batch.rowList);
+
+            // Row references come back in the same order as the rows. Each caller gets the references for its own
+            // rows. If Synapse came back short, callers whose rows are missing fail, so that they're retried.
+            for (Contributor oneContributor : batch.contributorList) {
+                int endIndex = oneContributor.startIndex + oneContributor.numRows;
+                if (endIndex <= rowReferenceList.size()) {
+                    oneContributor.future.complete(rowReferenceList.subList(oneContributor.startIndex, endIndex));
+                } else {
+                    oneContributor.future.completeExceptionally(new BridgeSynapseException(
+                            "Missing row references for table " + tableId + ", expected " + numRows + ", got " +
+                                    rowReferenceList.size()));
+                }
+            }
+        } catch (Exception ex) {
+            if (numContributors > 1) {
+                // Find out whose rows are bad, so the other callers don't fail with them.
+                LOG.warn("Error appending " + numRows + " rows to table " + tableId + ", retrying each of " +
+                        numContributors + " requests on its own", ex);
+                for (Contributor oneContributor : batch.contributorList) {
+                    sendAlone(tableId, batch.rowList, oneContributor);
+                }
+            } else {
+                LOG.error("Error appending " + numRows + " rows to table " + tableId, ex);
+                batch.contributorList.get(0).future.completeExceptionally(ex);
+            }
+        } finally {
+            LOG.info("Appending " + numRows + " rows from " + numContributors + " requests to table " + tableId +
+                    " took " + stopwatch.elapsed(TimeUnit.MILLISECONDS) + "ms");
+        }
+    }
+
+    // Appends just this caller's rows, after the batch they were in failed.
+    private void sendAlone(String tableId, List<PartialRow> batchRowList, Contributor contributor) {
+        List<PartialRow> rowList = batchRowList.subList(contributor.startIndex, contributor.startIndex +
+                contributor.numRows);
+        try {
+            List<RowReference> rowReferenceList = appendToTable(tableId, rowList);
+            if (rowReferenceList.size() >= rowList.size()) {
+                contributor.future.complete(rowReferenceList.subList(0, rowList.size()));
+            } else {
+                contributor.future.completeExceptionally(new BridgeSynapseException(
+                        "Missing row references for table " + tableId + ", expected " + rowList.size() + ", got " +
+                                rowReferenceList.size()));
+            }
+        } catch (Exception ex) {
+            LOG.error("Error appending " + rowList.size() + " rows to table " + tableId, ex);
+            contributor.future.completeExceptionally(ex);
+        }
+    }
+
+    private List<RowReference> appendToTable(String tableId, List<PartialRow> rowList) throws Exception {
+        PartialRowSet rowSet = new PartialRowSet();
+        rowSet.setRows(rowList);
+        rowSet.setTableId(tableId);
+
+        List<RowReference> rowReferenceList;
+        try (WorkerMetrics.TimedCall call = WorkerMetrics.startSynapseCall("appendRowsToTable")) {
+            RowReferenceSet rowReferenceSet = call.success(synapseHelper.appendRowsToTable(rowSet, tableId));
+            rowReferenceList = rowReferenceSet.getRows() != null ? rowReferenceSet.getRows() : ImmutableList.of();
+        }
+        if (rowReferenceList.size() != rowList.size()) {
+            LOG.error("Expected to write " + rowList.size() + " rows to table " + tableId + ", instead wrote " +
+                    rowReferenceList.size());
+        }
+        return rowReferenceList;
+    }
+
+    /** Rows waiting to be appended to a single table. */
+    static class Batch {
+        private final String tableId;
+        private final List<PartialRow> rowList = new ArrayList<>();
+        private final List<Contributor> contributorList = new ArrayList<>();
+        private ScheduledFuture<?> timerFuture;
+
+        Batch(String tableId) {
+            this.tableId = tableId;
+        }
+
+        void add(List<PartialRow> rowsToAdd, CompletableFuture<List<RowReference>> future) {
+            contributorList.add(new Contributor(rowList.size(), rowsToAdd.size(), future));
+            rowList.addAll(rowsToAdd);
+        }
+    }
+
+    /** A caller's rows within a batch, and the future to complete when the batch is appended. */
+    private static class Contributor {
+        private final int startIndex;
+        private final int numRows;
+        private final CompletableFuture<List<RowReference>> future;
+
+        Contributor(int startIndex, int numRows, CompletableFuture<List<RowReference>> future) {
+            this.startIndex = startIndex;
+            this.numRows = numRows;
+            this.future = future;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package org.sagebionetworks.bridge.exporter3;
+
+/** File format for the per-assessment files in an Upload CSV zip. */
+public enum UploadCsvFormat {
+    /** CSV text, with every value as a string. */
+    CSV,
+
+    /** Snappy-compressed Parquet, with typed columns where the column types are known. */
+    PARQUET,
+}
@@ -16,7 +16,9 @@ public class UploadCsvRequest {
     private Set<String> assessmentGuids = new HashSet<>();
     private DateTime startTime;
     private DateTime endTime;
+    private UploadCsvFormat format = UploadCsvFormat.CSV;
     private boolean includeTestData;
+    private boolean incremental;
     private String zipFileSuffix;
 
     /** Unique GUID for this job, as generated by BridgeServer. */
@@ -79,6 +81,15 @@ public class UploadCsvRequest {
         this.endTime = endTime;
     }
 
+    /** File format to generate for each assessment. Defaults to CSV. This is never null. */
+    public UploadCsvFormat getFormat() {
+        return format;
+    }
+
+    public void setFormat(UploadCsvFormat format) {
+        this.format = format != null ? format : UploadCsvFormat.CSV;
+    }
+
     /** Whether to include test data in the CSVs. Defaults to false. */
     public boolean isIncludeTestData() {
         return includeTestData;
@@ -88,6 +99,20 @@ public class UploadCsvRequest {
         this.includeTestData = includeTestData;
     }
 
+    /**
+     * If true, only export rows that weren't exported by a previous incremental request for the same study, and
+     * publish the result as a delta file. Start and end time still apply, but the start time is moved forward to
+     * where the previous incremental export left off. If there is no end time, this exports up to a little before
+     * now, to give recent uploads time to land in the upload table. Defaults to false.
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
     /**
      * Until https://sagebionetworks.jira.com/browse/DHP-1026 is implemented, Integ Tests need a way to identify the
      * file in S3. This will only be used by Integ Tests. (Worker requests are never sent directly by the client.)
@@ -0,0 +1,59 @@
+package org.sagebionetworks.bridge.exporter3;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+
+/**
+ * High-water mark for incremental Upload CSVs. Tracks how far we've exported for a single assessment in a study, and
+ * the columns we've exported so far, so that each delta file has the same columns as the ones before it.
+ */
+public class UploadCsvWatermark {
+    private String assessmentGuid;
+    private DateTime exportedUntil;
+    private Set<String> metadataColumnSet = new HashSet<>();
+    private Set<String> dataColumnSet = new HashSet<>();
+
+    /**
+     * Assessment this watermark is for. {@link UploadCsvWorkerProcessor#STUDY_WATERMARK_KEY} is the watermark for
+     * scanning the whole study for assessments.
+     */
+    public String getAssessmentGuid() {
+        return assessmentGuid;
+    }
+
+    public void setAssessmentGuid(String assessmentGuid) {
+        this.assessmentGuid = assessmentGuid;
+    }
+
+    /**
+     * Rows created before this time have already been exported. The next incremental export starts at this time,
+     * inclusive.
+     */
+    public DateTime getExportedUntil() {
+        return exportedUntil;
+    }
+
+    public void setExportedUntil(DateTime exportedUntil) {
+        this.exportedUntil = exportedUntil;
+    }
+
+    /** Metadata columns exported so far. Never null. */
+    public Set<String> getMetadataColumnSet() {
+        return metadataColumnSet;
+    }
+
+    public void setMetadataColumnSet(Set<String> metadataColumnSet) {
+        this.metadataColumnSet = metadataColumnSet != null ? metadataColumnSet : new HashSet<>();
+    }
+
+    /** Data columns exported so far. Never null. */
+    public Set<String> getDataColumnSet() {
+        return dataColumnSet;
+    }
+
+    public void setDataColumnSet(Set<String> dataColumnSet) {
+        this.dataColumnSet = dataColumnSet != null ? dataColumnSet : new HashSet<>();
+    }
+}
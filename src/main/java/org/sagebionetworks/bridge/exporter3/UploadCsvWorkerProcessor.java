@@ -2,16 +2,30 @@ package org.sagebionetworks.bridge.exporter3;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.ZipOutputStream;
+
+import javax.annotation.Resource;
 
 import au.com.bytecode.opencsv.CSVWriter;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Stopwatch;
 import com.google.common.util.concurrent.RateLimiter;
@@ -21,16 +35,22 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import org.sagebionetworks.assessmentmodel.AnswerColumn;
+import org.sagebionetworks.assessmentmodel.survey.BaseType;
+
 import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter3.results.AssessmentResultSummarizer;
+import org.sagebionetworks.bridge.exporter3.results.AssessmentSummarizer;
+import org.sagebionetworks.bridge.exporter3.results.AssessmentSummarizerProvider;
 import org.sagebionetworks.bridge.file.FileHelper;
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.sagebionetworks.bridge.rest.model.Assessment;
+import org.sagebionetworks.bridge.rest.model.AssessmentConfig;
 import org.sagebionetworks.bridge.rest.model.Study;
 import org.sagebionetworks.bridge.rest.model.UploadTableJob;
 import org.sagebionetworks.bridge.rest.model.UploadTableJobStatus;
 import org.sagebionetworks.bridge.rest.model.UploadTableRow;
 import org.sagebionetworks.bridge.rest.model.UploadTableRowQuery;
-import org.sagebionetworks.bridge.s3.S3Helper;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerRetryableException;
 import org.sagebionetworks.bridge.udd.helper.ZipHelper;
@@ -38,6 +58,8 @@ import org.sagebionetworks.bridge.worker.ThrowingConsumer;
 import org.sagebionetworks.bridge.workerPlatform.bridge.BridgeHelper;
 import org.sagebionetworks.bridge.workerPlatform.bridge.BridgeUtils;
 import org.sagebionetworks.bridge.workerPlatform.dynamodb.DynamoHelper;
+import org.sagebionetworks.bridge.workerPlatform.s3.S3StreamHelper;
+import org.sagebionetworks.bridge.workerPlatform.s3.S3UploadOutputStream;
 import org.sagebionetworks.bridge.workerPlatform.util.Constants;
 
 /** Worker to generate the CSVs of all uploads for a given study. */
@@ -47,8 +69,11 @@ public class UploadCsvWorkerProcessor implements ThrowingConsumer<JsonNode> {
     private static final Logger LOG = LoggerFactory.getLogger(UploadCsvWorkerProcessor.class);
 
     // Package-scoped for unit tests.
+    static final String CONFIG_KEY_PREFETCH_PAGES = "upload.csv.prefetch.pages";
     static final String CONFIG_KEY_RAW_HEALTH_DATA_BUCKET = "health.data.bucket.raw";
+    static final String CONTENT_TYPE_ZIP = "application/zip";
     static final int DEFAULT_PAGE_SIZE = 100;
+    static final String STUDY_WATERMARK_KEY = "*";
     static final String WORKER_ID = "UploadCsvWorker";
 
     static final String[] COMMON_COLUMNS = {
@@ -70,24 +95,37 @@ public class UploadCsvWorkerProcessor implements ThrowingConsumer<JsonNode> {
     // so 200k is a reasonable upper bound.
     private static final int DEFAULT_MAX_PAGES = 2000;
 
+    // Number of pages to keep in flight while paging through rows. Overridden by config.
+    private static final int DEFAULT_PREFETCH_PAGES = 2;
+
+    // Rows can show up in the upload table a little after their createdOn. If an incremental export has no end time,
+    // it stops this far before now, so that the next export picks up the stragglers. Package-scoped for unit tests.
+    static final long INCREMENTAL_SETTLE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
     // Peak traffic is about 1400 per min, which is about 23 per second. We'll set the rate limiter to 25 per second.
+    // This is shared by all threads and all requests.
     private final RateLimiter bridgeRateLimiter = RateLimiter.create(25);
 
     private BridgeHelper bridgeHelper;
     private DynamoHelper dynamoHelper;
+    private ExecutorService uploadCsvExecutorService;
+    private ExecutorService uploadCsvPrefetchExecutorService;
     private FileHelper fileHelper;
     private int maxPages = DEFAULT_MAX_PAGES;
     private int pageSize = DEFAULT_PAGE_SIZE;
+    private int prefetchPages = DEFAULT_PREFETCH_PAGES;
     private String rawHealthDataBucket;
-    private S3Helper s3Helper;
+    private S3StreamHelper s3StreamHelper;
+    private AssessmentSummarizerProvider summarizerProvider;
     private ZipHelper zipHelper;
 
     @Autowired
     public final void setBridgeConfig(Config config) {
+        prefetchPages = config.getInt(CONFIG_KEY_PREFETCH_PAGES);
         rawHealthDataBucket = config.get(CONFIG_KEY_RAW_HEALTH_DATA_BUCKET);
     }
 
-    @Autowired
+    @Resource(name = "cachingBridgeHelper")
     public final void setBridgeHelper(BridgeHelper bridgeHelper) {
         this.bridgeHelper = bridgeHelper;
     }
@@ -113,8 +151,32 @@ public class UploadCsvWorkerProcessor implements ThrowingConsumer<JsonNode> {
     }
 
     @Autowired
-    public final void setS3Helper(S3Helper s3Helper) {
-        this.s3Helper = s3Helper;
+    public final void setS3StreamHelper(S3StreamHelper s3StreamHelper) {
+        this.s3StreamHelper = s3StreamHelper;
+    }
+
+    /** Used to get the survey column types for Parquet files. */
+    @Autowired
+    public final void setSummarizerProvider(AssessmentSummarizerProvider summarizerProvider) {
+        this.summarizerProvider = summarizerProvider;
+    }
+
+    /**
+     * Executor service (bounded thread pool) for generating CSVs for multiple assessments in parallel. This is shared
+     * by all in-flight requests. Calls to Bridge are still throttled by the shared rate limiter.
+     */
+    @Resource(name = "uploadCsvExecutorService")
+    public final void setUploadCsvExecutorService(ExecutorService uploadCsvExecutorService) {
+        this.uploadCsvExecutorService = uploadCsvExecutorService;
+    }
+
+    /**
+     * Executor service for fetching pages of upload table rows in the background. This is separate from the CSV
+     * executor, so that CSV tasks waiting on pages can never starve the page fetches.
+     */
+    @Resource(name = "uploadCsvPrefetchExecutorService")
+    public final void setUploadCsvPrefetchExecutorService(ExecutorService uploadCsvPrefetchExecutorService) {
+        this.uploadCsvPrefetchExecutorService = uploadCsvPrefetchExecutorService;
     }
 
     @Autowired
@@ -159,6 +221,12 @@ public class UploadCsvWorkerProcessor implements ThrowingConsumer<JsonNode> {
         // Create temp dir to store CSVs.
         File tmpDir = fileHelper.createTempDir();
 
+        // CSV tasks hold the read lock while they use the temp dir, so that we can wait for them before deleting it.
+        // Once we've stopped, tasks that haven't started yet don't touch the temp dir.
+        List<Future<AssessmentCsv>> futureList = new ArrayList<>();
+        ReadWriteLock tmpDirLock = new ReentrantReadWriteLock();
+        AtomicBoolean stopped = new AtomicBoolean(false);
+
         try {
             // Get the study.
             Study study = bridgeHelper.getStudy(request.getAppId(), request.getStudyId());
@@ -168,45 +236,136 @@ public class UploadCsvWorkerProcessor implements ThrowingConsumer<JsonNode> {
             LOG.info("Processing CSV request for appId=" + request.getAppId() + ", study=" + study.getIdentifier() +
                     "-" + study.getName() + ", assessmentGuids=" + assessmentGuidsAsString + " startTime=" +
                     request.getStartTime() + ", endTime=" + request.getEndTime() + " includeTestData=" +
-                    request.isIncludeTestData());
+                    request.isIncludeTestData() + ", incremental=" + request.isIncremental() + ", format=" +
+                    request.getFormat());
+
+            // Incremental exports pick up where the previous incremental export left off. scanRequest is the request
+            // with the time window for the study as a whole. Each assessment might have its own watermark.
+            Map<String, UploadCsvWatermark> watermarkMap = new HashMap<>();
+            UploadCsvRequest scanRequest = request;
+            if (request.isIncremental()) {
+                watermarkMap = dynamoHelper.getUploadCsvWatermarksForStudy(request.getAppId(), request.getStudyId());
+
+                DateTime endTime = request.getEndTime();
+                if (endTime == null) {
+                    endTime = DateTime.now().minus(INCREMENTAL_SETTLE_MILLIS);
+                }
+                DateTime startTime = getIncrementalStartTime(request, watermarkMap.get(STUDY_WATERMARK_KEY));
+                scanRequest = copyWithTimeWindow(request, startTime, endTime);
+            }
 
-            // Call service to get table rows.
-            Map<String, List<UploadTableRow>> rowsByAssessment;
+            // Phase 1: Make a light pass through the rows to find the columns for each assessment. Rows are discarded
+            // as soon as we've read their column names, so memory stays flat regardless of the size of the study.
+            // If the request lists assessments, each assessment does its own pass in parallel, in phase 2.
+            Map<String, CsvColumns> columnsByAssessment = new LinkedHashMap<>();
+            boolean scanTruncated = false;
             if (request.getAssessmentGuids().isEmpty()) {
-                rowsByAssessment = getRowsByAssessmentForStudy(request);
+                scanTruncated = scanColumnsByAssessmentForStudy(scanRequest, columnsByAssessment);
             } else {
-                rowsByAssessment = getRowsByAssessmentForAssessmentSet(request);
-            }
-
-            // Generate CSVs.
-            List<File> csvFileList = new ArrayList<>();
-            for (Map.Entry<String, List<UploadTableRow>> oneAssessmentEntry : rowsByAssessment.entrySet()) {
-                String assessmentGuid = oneAssessmentEntry.getKey();
-                List<UploadTableRow> rows = oneAssessmentEntry.getValue();
-                try {
-                    File csvFile = generateCsvForAssessment(tmpDir, request, study, assessmentGuid, rows);
-                    csvFileList.add(csvFile);
-                } catch (Exception ex) {
-                    // If we can't generate a CSV, log an error, but continue generating other CSVs.
-                    LOG.error("Error generating CSV for app " + request.getAppId() + " study " + request.getStudyId() +
-                            " assessment " + assessmentGuid, ex);
+                for (String assessmentGuid : request.getAssessmentGuids()) {
+                    columnsByAssessment.put(assessmentGuid, null);
                 }
             }
 
-            // Zip the CSVs. For uniqueness, the zip file should be named [studyId]-[studyName]-[suffix].zip.
-            // Suffix defaults to the current time in milliseconds, unless overridden by the requester.
+            // Zip file should be named [studyId]-[studyName]-[suffix].zip, or [studyId]-[studyName]-delta-[suffix].zip
+            // for incremental exports. For uniqueness, the suffix defaults to the current time in milliseconds, unless
+            // overridden by the requester.
             String zipFileSuffix = request.getZipFileSuffix();
             if (zipFileSuffix == null) {
                 // Use Joda time instead of System time so we can mock the timestamp.
                 zipFileSuffix = String.valueOf(DateTime.now().getMillis());
             }
             String zipFilename = request.getStudyId() + "-" + BridgeUtils.cleanupString(study.getName()) + "-" +
-                    zipFileSuffix + ".zip";
-            File zipFile = fileHelper.newFile(tmpDir, zipFilename);
-            zipHelper.zip(csvFileList, zipFile);
+                    (request.isIncremental() ? "delta-" : "") + zipFileSuffix + ".zip";
+
+            // Phase 2: Stream each assessment's rows into its CSV. Assessments are processed in parallel, and all
+            // assessments share the same Bridge rate limiter. Each CSV is added to the zip as soon as it's done, and
+            // the zip is streamed straight to S3, so the zip never touches local disk.
+            ExecutorCompletionService<AssessmentCsv> completionService = new ExecutorCompletionService<>(
+                    uploadCsvExecutorService);
+            for (Map.Entry<String, CsvColumns> oneAssessmentEntry : columnsByAssessment.entrySet()) {
+                String assessmentGuid = oneAssessmentEntry.getKey();
+                UploadCsvWatermark watermark = watermarkMap.get(assessmentGuid);
+
+                UploadCsvRequest assessmentRequest = scanRequest;
+                CsvColumns knownColumns = oneAssessmentEntry.getValue();
+                if (watermark != null) {
+                    // This assessment has already been exported up to its watermark.
+                    DateTime assessmentStartTime = getIncrementalStartTime(request, watermark);
+                    if (scanRequest.getStartTime() != null && assessmentStartTime.isBefore(
+                            scanRequest.getStartTime())) {
+                        // This assessment is further behind than the study scan, so the study scan might not have
+                        // seen all of its columns. Scan this assessment separately.
+                        knownColumns = null;
+                    }
+                    assessmentRequest = copyWithTimeWindow(request, assessmentStartTime, scanRequest.getEndTime());
+                }
+
+                UploadCsvRequest finalAssessmentRequest = assessmentRequest;
+                CsvColumns finalKnownColumns = knownColumns;
+                futureList.add(completionService.submit(() -> {
+                    tmpDirLock.readLock().lock();
+                    try {
+                        if (stopped.get()) {
+                            return null;
+                        }
+                        return generateCsvForAssessmentSafe(tmpDir, finalAssessmentRequest, study, assessmentGuid,
+                                finalKnownColumns, watermark);
+                    } finally {
+                        tmpDirLock.readLock().unlock();
+                    }
+                }));
+            }
 
-            // Upload the zip file to S3.
-            s3Helper.writeFileToS3(rawHealthDataBucket, zipFilename, zipFile);
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+            metadata.setContentType(CONTENT_TYPE_ZIP);
+            List<AssessmentCsv> zippedCsvList = new ArrayList<>();
+            try (S3UploadOutputStream s3OutputStream = s3StreamHelper.openUploadStream(rawHealthDataBucket,
+                    zipFilename, metadata);
+                    ZipOutputStream zipOutputStream = zipHelper.openZip(s3OutputStream)) {
+                for (int i = 0; i < futureList.size(); i++) {
+                    AssessmentCsv assessmentCsv;
+                    try {
+                        assessmentCsv = completionService.take().get();
+                    } catch (ExecutionException ex) {
+                        // generateCsvForAssessmentSafe() already logs exceptions, so this should never happen.
+                        LOG.error("Error generating CSV for app " + request.getAppId() + " study " +
+                                request.getStudyId(), ex);
+                        continue;
+                    }
+                    if (assessmentCsv == null) {
+                        // We failed to generate this CSV. The error was already logged.
+                        continue;
+                    }
+
+                    File csvFile = assessmentCsv.getCsvFile();
+                    try {
+                        zipHelper.addToZip(zipOutputStream, csvFile);
+                        zippedCsvList.add(assessmentCsv);
+                    } catch (IOException ex) {
+                        LOG.error("Error zipping CSV " + csvFile.getName() + " for app " + request.getAppId() +
+                                " study " + request.getStudyId(), ex);
+                    } finally {
+                        fileHelper.deleteFile(csvFile);
+                    }
+                }
+
+                // Finish the zip without closing the S3 stream, then complete the upload. If anything before this
+                // fails, closing the S3 stream aborts the upload, so we never leave a partial zip in S3.
+                zipOutputStream.finish();
+                s3OutputStream.complete();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new PollSqsWorkerRetryableException("Interrupted while generating CSVs for app " +
+                        request.getAppId() + " study " + request.getStudyId(), ex);
+            }
+
+            if (request.isIncremental()) {
+                // Only move the watermarks once the delta file is safely in S3.
+                writeWatermarks(request, watermarkMap, scanRequest.getEndTime(), zippedCsvList, futureList.size(),
+                        scanTruncated);
+            }
 
             if (job != null) {
                 // Update the job status with the status "succeeded" and the S3 key.
@@ -233,6 +392,16 @@ public class UploadCsvWorkerProcessor implements ThrowingConsumer<JsonNode> {
             }
             throw ex;
         } finally {
+            // If we exited early, stop any CSVs that are still being generated. This is a no-op for completed tasks.
+            // Cancelling doesn't wait for tasks that are already running, so wait for them to let go of the temp dir
+            // before we delete it.
+            stopped.set(true);
+            for (Future<AssessmentCsv> oneFuture : futureList) {
+                oneFuture.cancel(true);
+            }
+            tmpDirLock.writeLock().lock();
+            tmpDirLock.writeLock().unlock();
+
             try {
                 fileHelper.deleteDirRecursively(tmpDir);
             } catch (IOException ex) {
@@ -243,141 +412,302 @@ public class UploadCsvWorkerProcessor implements ThrowingConsumer<JsonNode> {
         }
     }
 
-    // This assumes that request.getAssessmentGuids() is null or empty.
-    private Map<String, List<UploadTableRow>> getRowsByAssessmentForStudy(UploadCsvRequest request)
-            throws PollSqsWorkerRetryableException {
-        // Get all rows for this study.
-        List<UploadTableRow> rows;
+    // Scans all rows for this study, and groups the columns by assessment. Returns true if the scan hit the max number
+    // of pages, so some assessments might be missing. This assumes that request.getAssessmentGuids() is null or empty.
+    private boolean scanColumnsByAssessmentForStudy(UploadCsvRequest request,
+            Map<String, CsvColumns> columnsByAssessment) throws PollSqsWorkerRetryableException {
         try {
-            rows = getAllRowsForAssessment(request, null);
+            return queryAllRowsForAssessment(request, null, page -> {
+                for (UploadTableRow oneRow : page) {
+                    columnsByAssessment.computeIfAbsent(oneRow.getAssessmentGuid(), k -> new CsvColumns())
+                            .addRow(oneRow);
+                }
+            });
         } catch (Exception ex) {
             // At this point, we might be in a bad state. We don't know if we've processed any assessments or not. So
             // just throw as a retryable exception.
             throw new PollSqsWorkerRetryableException("Error getting rows for app " + request.getAppId() + " study " +
                     request.getStudyId(), ex);
         }
+    }
 
-        // Group rows by assessment.
-        Map<String, List<UploadTableRow>> rowsByAssessment = new HashMap<>();
-        for (UploadTableRow oneRow : rows) {
-            String assessmentGuid = oneRow.getAssessmentGuid();
-            if (!rowsByAssessment.containsKey(assessmentGuid)) {
-                rowsByAssessment.put(assessmentGuid, new ArrayList<>());
-            }
-            rowsByAssessment.get(assessmentGuid).add(oneRow);
+    // Incremental exports start at the later of the requested start time and the watermark. If there's no watermark,
+    // this is just the requested start time.
+    private static DateTime getIncrementalStartTime(UploadCsvRequest request, UploadCsvWatermark watermark) {
+        if (watermark == null) {
+            return request.getStartTime();
         }
 
-        return rowsByAssessment;
+        DateTime exportedUntil = watermark.getExportedUntil();
+        if (request.getStartTime() != null && request.getStartTime().isAfter(exportedUntil)) {
+            return request.getStartTime();
+        }
+        return exportedUntil;
     }
 
-    // This assumes that request.getAssessmentGuids() is non-null and non-empty.
-    private Map<String, List<UploadTableRow>> getRowsByAssessmentForAssessmentSet(UploadCsvRequest request) {
-        // Loop through all assessments.
-        Map<String, List<UploadTableRow>> rowsByAssessment = new HashMap<>();
-        for (String assessmentGuid : request.getAssessmentGuids()) {
-            // Get all rows for this assessment.
-            List<UploadTableRow> rows;
-            try {
-                rows = getAllRowsForAssessment(request, assessmentGuid);
-            } catch (Exception ex) {
-                // Log an error, but continue so that we can still get other assessments.
-                LOG.error("Error getting rows for app " + request.getAppId() + " study " + request.getStudyId() +
-                        " assessment " + assessmentGuid, ex);
+    // Makes a copy of the request with a different time window.
+    private static UploadCsvRequest copyWithTimeWindow(UploadCsvRequest request, DateTime startTime,
+            DateTime endTime) {
+        UploadCsvRequest copy = new UploadCsvRequest();
+        copy.setJobGuid(request.getJobGuid());
+        copy.setAppId(request.getAppId());
+        copy.setStudyId(request.getStudyId());
+        copy.setAssessmentGuids(request.getAssessmentGuids());
+        copy.setStartTime(startTime);
+        copy.setEndTime(endTime);
+        copy.setFormat(request.getFormat());
+        copy.setIncludeTestData(request.isIncludeTestData());
+        copy.setIncremental(request.isIncremental());
+        copy.setZipFileSuffix(request.getZipFileSuffix());
+        return copy;
+    }
+
+    // Saves the watermarks after an incremental export. Assessments that failed or were truncated at the max number of
+    // pages keep their old watermark, so they're retried in the next export. Watermarks never move backwards, even if
+    // the request's end time is before them.
+    private void writeWatermarks(UploadCsvRequest request, Map<String, UploadCsvWatermark> oldWatermarkMap,
+            DateTime exportedUntil, List<AssessmentCsv> zippedCsvList, int numAssessments, boolean scanTruncated) {
+        int numFullyExported = 0;
+        for (AssessmentCsv oneCsv : zippedCsvList) {
+            if (oneCsv.isTruncated()) {
                 continue;
             }
+            numFullyExported++;
+
+            UploadCsvWatermark watermark = new UploadCsvWatermark();
+            watermark.setAssessmentGuid(oneCsv.getAssessmentGuid());
+            watermark.setExportedUntil(getLaterExportedUntil(oldWatermarkMap.get(oneCsv.getAssessmentGuid()),
+                    exportedUntil));
+            watermark.setMetadataColumnSet(oneCsv.getColumns().getMetadataColumnSet());
+            watermark.setDataColumnSet(oneCsv.getColumns().getDataColumnSet());
+            dynamoHelper.writeUploadCsvWatermark(request.getAppId(), request.getStudyId(), watermark);
+        }
 
-            // Add rows to map.
-            rowsByAssessment.put(assessmentGuid, rows);
+        // The study watermark is where the next export starts looking for assessments. Only move it if we scanned the
+        // whole study, and every assessment was fully exported. Otherwise, the next export needs to find the failed
+        // and truncated assessments again.
+        if (request.getAssessmentGuids().isEmpty() && !scanTruncated && numFullyExported == numAssessments) {
+            UploadCsvWatermark studyWatermark = new UploadCsvWatermark();
+            studyWatermark.setAssessmentGuid(STUDY_WATERMARK_KEY);
+            studyWatermark.setExportedUntil(getLaterExportedUntil(oldWatermarkMap.get(STUDY_WATERMARK_KEY),
+                    exportedUntil));
+            dynamoHelper.writeUploadCsvWatermark(request.getAppId(), request.getStudyId(), studyWatermark);
         }
+    }
 
-        return rowsByAssessment;
+    private static DateTime getLaterExportedUntil(UploadCsvWatermark oldWatermark, DateTime exportedUntil) {
+        if (oldWatermark != null && oldWatermark.getExportedUntil().isAfter(exportedUntil)) {
+            return oldWatermark.getExportedUntil();
+        }
+        return exportedUntil;
     }
 
-    // If assessmentGuid is null, it gets all rows for the requested study.
     // Package-scoped for unit tests.
-    List<UploadTableRow> getAllRowsForAssessment(UploadCsvRequest request, String assessmentGuid) throws IOException {
-        // Page through the results.
-        List<UploadTableRow> rows = new ArrayList<>();
-        int numPages = 0;
-        int currentStart = 0;
-        while (true) {
-            // Get the next page of results.
-            bridgeRateLimiter.acquire();
+    CsvColumns getColumnsForAssessment(UploadCsvRequest request, String assessmentGuid) throws IOException {
+        CsvColumns columns = new CsvColumns();
+        queryAllRowsForAssessment(request, assessmentGuid, page -> page.forEach(columns::addRow));
+        return columns;
+    }
 
-            UploadTableRowQuery query = new UploadTableRowQuery();
-            query.setAssessmentGuid(assessmentGuid);
-            query.setStartTime(request.getStartTime());
-            query.setEndTime(request.getEndTime());
-            query.setIncludeTestData(request.isIncludeTestData());
-            query.setStart(currentStart);
-            query.setPageSize(pageSize);
-
-            List<UploadTableRow> page = bridgeHelper.queryUploadTableRows(request.getAppId(), request.getStudyId(),
-                    query);
-            rows.addAll(page);
-
-            // If we get an empty page, we're done.
-            if (page.isEmpty()) {
-                break;
+    /**
+     * Pages through all rows for the given assessment, passing each page to the consumer as it arrives. The next few
+     * pages are fetched in the background while the consumer processes the current page, so only a few pages are held
+     * in memory at a time. If assessmentGuid is null, this gets all rows for the requested study. Returns true if
+     * paging stopped at the max number of pages, meaning some rows were never passed to the consumer.
+     */
+    // Package-scoped for unit tests.
+    boolean queryAllRowsForAssessment(UploadCsvRequest request, String assessmentGuid,
+            Consumer<List<UploadTableRow>> pageConsumer) throws IOException {
+        // Page through the results. The cursor acquires a permit from the shared rate limiter for each page.
+        try (UploadTableRowCursor cursor = new UploadTableRowCursor(uploadCsvPrefetchExecutorService,
+                bridgeRateLimiter, start -> queryPage(request, assessmentGuid, start), pageSize, maxPages,
+                prefetchPages)) {
+            List<UploadTableRow> page;
+            while ((page = cursor.nextPage()) != null) {
+                pageConsumer.accept(page);
             }
 
-            // If we've hit the max number of pages, log an error, and then short-circuit out of the loop.
-            numPages++;
-            if (numPages >= maxPages) {
+            // If we've hit the max number of pages, log an error. The cursor has already stopped paging.
+            if (cursor.isMaxPagesReached()) {
                 LOG.error("Hit max number of pages (" + maxPages + ") for app " + request.getAppId() + " study " +
                         request.getStudyId() + " assessment " + assessmentGuid);
-                break;
+                return true;
             }
-
-            // Otherwise, increment the start and keep going.
-            currentStart += pageSize;
+            return false;
         }
+    }
 
-        return rows;
+    private List<UploadTableRow> queryPage(UploadCsvRequest request, String assessmentGuid, int start)
+            throws IOException {
+        UploadTableRowQuery query = new UploadTableRowQuery();
+        query.setAssessmentGuid(assessmentGuid);
+        query.setStartTime(request.getStartTime());
+        query.setEndTime(request.getEndTime());
+        query.setIncludeTestData(request.isIncludeTestData());
+        query.setStart(start);
+        query.setPageSize(pageSize);
+        return bridgeHelper.queryUploadTableRows(request.getAppId(), request.getStudyId(), query);
     }
 
-    // Package-scoped for unit tests.
-    File generateCsvForAssessment(File tmpDir, UploadCsvRequest request, Study study, String assessmentGuid,
-            List<UploadTableRow> rows) throws IOException {
-        // Walk through the rows to get all the metadata and data columns.
-        Set<String> metadataColumnSet = new HashSet<>();
-        Set<String> dataColumnSet = new HashSet<>();
-        for (UploadTableRow oneRow : rows) {
-            metadataColumnSet.addAll(oneRow.getMetadata().keySet());
-            dataColumnSet.addAll(oneRow.getData().keySet());
+    // Generates the CSV for a single assessment. If knownColumns is null, this first scans the rows for the columns.
+    // For incremental exports, the watermark's columns are included too, so that the delta has the same columns as
+    // the previous exports. This is called from the Upload CSV executor. If there's an error, this logs it and returns
+    // null, so that we can continue generating other CSVs.
+    private AssessmentCsv generateCsvForAssessmentSafe(File tmpDir, UploadCsvRequest request, Study study,
+            String assessmentGuid, CsvColumns knownColumns, UploadCsvWatermark watermark) {
+        try {
+            CsvColumns columns = knownColumns;
+            if (columns == null) {
+                columns = getColumnsForAssessment(request, assessmentGuid);
+            }
+            if (watermark != null) {
+                columns.addColumns(watermark.getMetadataColumnSet(), watermark.getDataColumnSet());
+            }
+            return generateCsvForAssessment(tmpDir, request, study, assessmentGuid, columns);
+        } catch (Exception ex) {
+            LOG.error("Error generating CSV for app " + request.getAppId() + " study " + request.getStudyId() +
+                    " assessment " + assessmentGuid, ex);
+            return null;
         }
+    }
 
+    // Package-scoped for unit tests.
+    AssessmentCsv generateCsvForAssessment(File tmpDir, UploadCsvRequest request, Study study, String assessmentGuid,
+            CsvColumns columns) throws IOException {
         // TODO https://sagebionetworks.jira.com/browse/DHP-1075 Get the master list of columns and warn if we have
         // unexpected columns.
 
         // Order matters for generating the CSV, so convert the column sets to lists. Also, sort the lists, so that the
         // CSVs are deterministic. (Pass in null to use the "natural ordering", aka alphabetical order.)
-        List<String> metadataColumnList = new ArrayList<>(metadataColumnSet);
+        List<String> metadataColumnList = new ArrayList<>(columns.getMetadataColumnSet());
         metadataColumnList.sort(null);
-        List<String> dataColumnList = new ArrayList<>(dataColumnSet);
+        List<String> dataColumnList = new ArrayList<>(columns.getDataColumnSet());
         dataColumnList.sort(null);
 
-        // CSV name is in the form [studyId]-[studyName]-[assessmentGuid]-[assessmentTitle].csv.
+        // CSV name is in the form [studyId]-[studyName]-[assessmentGuid]-[assessmentTitle].csv. Parquet files have
+        // the same name, but end in .parquet.
         bridgeRateLimiter.acquire();
         Assessment assessment = bridgeHelper.getAssessmentByGuid(request.getAppId(), assessmentGuid);
+        boolean isParquet = request.getFormat() == UploadCsvFormat.PARQUET;
         String csvFilename = request.getStudyId() + "-" + BridgeUtils.cleanupString(study.getName()) + "-" +
-                assessmentGuid + "-" + BridgeUtils.cleanupString(assessment.getTitle()) + ".csv";
+                assessmentGuid + "-" + BridgeUtils.cleanupString(assessment.getTitle()) +
+                (isParquet ? ".parquet" : ".csv");
         File csvFile = fileHelper.newFile(tmpDir, csvFilename);
+        boolean truncated;
+        try {
+            if (isParquet) {
+                truncated = writeParquetFile(csvFile, request, study, assessment, metadataColumnList,
+                        dataColumnList);
+            } else {
+                truncated = writeCsvFile(csvFile, request, study, assessment, metadataColumnList, dataColumnList);
+            }
+        } catch (IOException | RuntimeException ex) {
+            // Don't leave a partial CSV behind.
+            if (fileHelper.fileExists(csvFile)) {
+                fileHelper.deleteFile(csvFile);
+            }
+            throw ex;
+        }
+
+        return new AssessmentCsv(assessmentGuid, csvFile, columns, truncated);
+    }
+
+    // Returns true if the CSV was truncated at the max number of pages.
+    private boolean writeCsvFile(File csvFile, UploadCsvRequest request, Study study, Assessment assessment,
+            List<String> metadataColumnList, List<String> dataColumnList) throws IOException {
         try (CSVWriter csvFileWriter = new CSVWriter(fileHelper.getWriter(csvFile))) {
             writeCsvHeaders(csvFileWriter, metadataColumnList, dataColumnList);
 
-            for (UploadTableRow oneRow : rows) {
-                try {
-                    writeCsvRow(csvFileWriter, study, assessment, metadataColumnList, dataColumnList, oneRow);
-                } catch (Exception ex) {
-                    // If we can't write a row, log an error, but continue writing the rest of the CSV.
-                    LOG.error("Error writing row for app " + request.getAppId() + " study " + request.getStudyId() +
-                            " assessment " + assessmentGuid + " recordId " + oneRow.getRecordId(), ex);
+            // Stream each page of rows straight into the CSV. Rows added after the first pass might have columns that
+            // aren't in the header. These are dropped, and will show up in the next export.
+            return queryAllRowsForAssessment(request, assessment.getGuid(), page -> {
+                for (UploadTableRow oneRow : page) {
+                    try {
+                        writeCsvRow(csvFileWriter, study, assessment, metadataColumnList, dataColumnList, oneRow);
+                    } catch (Exception ex) {
+                        // If we can't write a row, log an error, but continue writing the rest of the CSV.
+                        LOG.error("Error writing row for app " + request.getAppId() + " study " +
+                                request.getStudyId() + " assessment " + assessment.getGuid() + " recordId " +
+                                oneRow.getRecordId(), ex);
+                    }
+                }
+            });
+        }
+    }
+
+    // Returns true if the Parquet file was truncated at the max number of pages.
+    private boolean writeParquetFile(File parquetFile, UploadCsvRequest request, Study study, Assessment assessment,
+            List<String> metadataColumnList, List<String> dataColumnList) throws IOException {
+        Map<String, UploadTableParquetWriter.ColumnType> dataColumnTypeMap = getDataColumnTypes(request.getAppId(),
+                assessment);
+        try (UploadTableParquetWriter parquetWriter = new UploadTableParquetWriter(
+                fileHelper.getOutputStream(parquetFile), study, assessment, metadataColumnList, dataColumnList,
+                dataColumnTypeMap)) {
+            // Same as CSVs, rows are streamed in page by page. The writer flushes each row group as it fills up, so
+            // we only ever hold one row group in memory. Unlike CSVs, a write error means the file is broken, so we
+            // fail the whole file.
+            return queryAllRowsForAssessment(request, assessment.getGuid(), page -> {
+                for (UploadTableRow oneRow : page) {
+                    try {
+                        parquetWriter.writeRow(oneRow);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Gets the types of the data columns for the given assessment, from the assessment config. Columns that aren't in
+     * the map are written as strings. If we can't get the types, this logs a warning and returns an empty map, so
+     * that we can still write the file.
+     */
+    // Package-scoped for unit tests.
+    Map<String, UploadTableParquetWriter.ColumnType> getDataColumnTypes(String appId, Assessment assessment) {
+        Map<String, UploadTableParquetWriter.ColumnType> columnTypeMap = new HashMap<>();
+        try {
+            bridgeRateLimiter.acquire();
+            AssessmentConfig assessmentConfig = bridgeHelper.getAssessmentConfigByGuid(appId, assessment.getGuid());
+            AssessmentSummarizer summarizer = summarizerProvider.getSummarizer(assessment, assessmentConfig);
+            if (!(summarizer instanceof AssessmentResultSummarizer)) {
+                // Only surveys have column types.
+                return columnTypeMap;
+            }
+
+            for (AnswerColumn oneColumn : ((AssessmentResultSummarizer) summarizer).getSurveyColumns()) {
+                if (oneColumn.getAnswerType() == null) {
+                    continue;
+                }
+                UploadTableParquetWriter.ColumnType columnType = getColumnType(
+                        oneColumn.getAnswerType().getBaseType());
+                if (columnType != null) {
+                    columnTypeMap.put(oneColumn.getColumnName(), columnType);
                 }
             }
+        } catch (Exception ex) {
+            LOG.warn("Error getting column types for app " + appId + " assessment " + assessment.getGuid() +
+                    ", writing all data columns as strings", ex);
+            columnTypeMap.clear();
         }
+        return columnTypeMap;
+    }
 
-        return csvFile;
+    // Arrays and objects are serialized as JSON strings, the same as in the CSV.
+    private static UploadTableParquetWriter.ColumnType getColumnType(BaseType baseType) {
+        if (baseType == null) {
+            return null;
+        }
+        switch (baseType) {
+            case BOOLEAN:
+                return UploadTableParquetWriter.ColumnType.BOOLEAN;
+            case INTEGER:
+                return UploadTableParquetWriter.ColumnType.LONG;
+            case NUMBER:
+                return UploadTableParquetWriter.ColumnType.DOUBLE;
+            default:
+                return null;
+        }
     }
 
     private void writeCsvHeaders(CSVWriter csvWriter, List<String> metadataColumnList, List<String> dataColumnList) {
@@ -440,4 +770,64 @@ public class UploadCsvWorkerProcessor implements ThrowingConsumer<JsonNode> {
 
         csvWriter.writeNext(rowList.toArray(new String[0]));
     }
+
+    /** The metadata and data columns seen for a single assessment. */
+    static class CsvColumns {
+        private final Set<String> metadataColumnSet = new HashSet<>();
+        private final Set<String> dataColumnSet = new HashSet<>();
+
+        /** Adds the row's metadata and data columns. The row itself is not retained. */
+        void addRow(UploadTableRow row) {
+            metadataColumnSet.addAll(row.getMetadata().keySet());
+            dataColumnSet.addAll(row.getData().keySet());
+        }
+
+        Set<String> getMetadataColumnSet() {
+            return metadataColumnSet;
+        }
+
+        Set<String> getDataColumnSet() {
+            return dataColumnSet;
+        }
+
+        /** Adds columns that we've seen before, even if none of the current rows have them. */
+        void addColumns(Set<String> metadataColumns, Set<String> dataColumns) {
+            metadataColumnSet.addAll(metadataColumns);
+            dataColumnSet.addAll(dataColumns);
+        }
+    }
+
+    /**
+     * A generated CSV, and the assessment and columns it was generated for. Truncated means the CSV stopped at the max
+     * number of pages, so it's missing rows.
+     */
+    static class AssessmentCsv {
+        private final String assessmentGuid;
+        private final File csvFile;
+        private final CsvColumns columns;
+        private final boolean truncated;
+
+        AssessmentCsv(String assessmentGuid, File csvFile, CsvColumns columns, boolean truncated) {
+            this.assessmentGuid = assessmentGuid;
+            this.csvFile = csvFile;
+            this.columns = columns;
+            this.truncated = truncated;
+        }
+
+        String getAssessmentGuid() {
+            return assessmentGuid;
+        }
+
+        File getCsvFile() {
+            return csvFile;
+        }
+
+        CsvColumns getColumns() {
+            return columns;
+        }
+
+        boolean isTruncated() {
+            return truncated;
+        }
+    }
 }
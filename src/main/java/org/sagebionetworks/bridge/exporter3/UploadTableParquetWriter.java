@@ -0,0 +1,421 @@
+package org.sagebionetworks.bridge.exporter3;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.api.WriteSupport;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.io.OutputFile;
+import org.apache.parquet.io.PositionOutputStream;
+import org.apache.parquet.io.api.Binary;
+import org.apache.parquet.io.api.RecordConsumer;
+import org.apache.parquet.schema.LogicalTypeAnnotation;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName;
+import org.apache.parquet.schema.Types;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.rest.model.Assessment;
+import org.sagebionetworks.bridge.rest.model.Study;
+import org.sagebionetworks.bridge.rest.model.UploadTableRow;
+
+/**
+ * Writes upload table rows to a Parquet file, with the same columns as the Upload CSV. Common columns are always
+ * typed. Data columns are typed if we know their types, and are strings otherwise. Metadata columns are always
+ * strings.
+ *
+ * Rows are buffered in memory one row group at a time, and each row group is compressed and written to the output
+ * stream as soon as it fills up. Closing the writer writes the last row group and the Parquet footer, and closes the
+ * output stream.
+ */
+public class UploadTableParquetWriter implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(UploadTableParquetWriter.class);
+
+    /** Parquet type for a data column. */
+    public enum ColumnType {
+        BOOLEAN,
+        DOUBLE,
+        LONG,
+        STRING,
+    }
+
+    // We write several files in parallel, each with a row group in memory, so keep row groups small. Package-scoped
+    // for unit tests.
+    static final long ROW_GROUP_SIZE = 8L * 1024 * 1024;
+
+    private static final String SCHEMA_NAME = "UploadTableRow";
+
+    private final List<Column> metadataColumnList;
+    private final List<Column> dataColumnList;
+    private final ParquetWriter<UploadTableRow> parquetWriter;
+    private final MessageType schema;
+    private final String assessmentId;
+    private final Long assessmentRevision;
+    private final String assessmentTitle;
+    private final String studyId;
+    private final String studyName;
+
+    private int numBadValues = 0;
+
+    /**
+     * Opens a Parquet writer for a single assessment's rows.
+     *
+     * @param outputStream
+     *         stream to write the Parquet file to
+     * @param study
+     *         study the rows are from
+     * @param assessment
+     *         assessment the rows are from
+     * @param metadataColumnNameList
+     *         metadata columns, in order
+     * @param dataColumnNameList
+     *         data columns, in order
+     * @param dataColumnTypeMap
+     *         types of data columns, by column name; data columns that aren't in the map are strings
+     */
+    public UploadTableParquetWriter(OutputStream outputStream, Study study, Assessment assessment,
+            List<String> metadataColumnNameList, List<String> dataColumnNameList,
+            Map<String, ColumnType> dataColumnTypeMap) throws IOException {
+        this.studyId = study.getIdentifier();
+        this.studyName = study.getName();
+        this.assessmentId = assessment.getIdentifier();
+        this.assessmentRevision = assessment.getRevision();
+        this.assessmentTitle = assessment.getTitle();
+
+        // Parquet requires unique field names. Metadata and data columns can have the same names as each other or as
+        // the common columns, so prefix the duplicates.
+        Set<String> fieldNameSet = new HashSet<>(Arrays.asList(UploadCsvWorkerProcessor.COMMON_COLUMNS));
+        Types.MessageTypeBuilder schemaBuilder = Types.buildMessage();
+        addCommonFields(schemaBuilder);
+
+        int fieldIndex = UploadCsvWorkerProcessor.COMMON_COLUMNS.length;
+
+        metadataColumnList = new ArrayList<>();
+        for (String oneColumnName : metadataColumnNameList) {
+            String fieldName = makeUniqueFieldName(fieldNameSet, "metadata_", oneColumnName);
+            metadataColumnList.add(new Column(oneColumnName, fieldName, fieldIndex++, ColumnType.STRING));
+        }
+
+        dataColumnList = new ArrayList<>();
+        for (String oneColumnName : dataColumnNameList) {
+            String fieldName = makeUniqueFieldName(fieldNameSet, "data_", oneColumnName);
+            ColumnType columnType = dataColumnTypeMap.getOrDefault(oneColumnName, ColumnType.STRING);
+            dataColumnList.add(new Column(oneColumnName, fieldName, fieldIndex++, columnType));
+        }
+
+        for (Column oneColumn : metadataColumnList) {
+            addField(schemaBuilder, oneColumn);
+        }
+        for (Column oneColumn : dataColumnList) {
+            addField(schemaBuilder, oneColumn);
+        }
+        schema = schemaBuilder.named(SCHEMA_NAME);
+
+        // Don't load Hadoop's default config files. We don't need them, and they're slow to load.
+        parquetWriter = new Builder(new StreamOutputFile(outputStream), new RowWriteSupport())
+                .withCompressionCodec(CompressionCodecName.SNAPPY).withConf(new Configuration(false))
+                .withRowGroupSize(ROW_GROUP_SIZE).build();
+    }
+
+    // Package-scoped for unit tests.
+    MessageType getSchema() {
+        return schema;
+    }
+
+    /** Writes a single row. The row is buffered until its row group fills up or the writer is closed. */
+    public void writeRow(UploadTableRow row) throws IOException {
+        parquetWriter.write(row);
+    }
+
+    @Override
+    public void close() throws IOException {
+        parquetWriter.close();
+
+        if (numBadValues > 0) {
+            // Log once per file, instead of once per value.
+            LOG.warn("Wrote " + numBadValues + " values as null because they didn't match their column type, " +
+                    "for study " + studyId + " assessment " + assessmentId);
+        }
+    }
+
+    private static void addCommonFields(Types.MessageTypeBuilder schemaBuilder) {
+        // These are in the same order as UploadCsvWorkerProcessor.COMMON_COLUMNS. Like the data columns, these are
+        // all optional, so that a row with a missing value is written with a null instead of failing the whole file.
+        schemaBuilder.optional(PrimitiveTypeName.BINARY).as(LogicalTypeAnnotation.stringType()).named("recordId")
+                .optional(PrimitiveTypeName.BINARY).as(LogicalTypeAnnotation.stringType()).named("studyId")
+                .optional(PrimitiveTypeName.BINARY).as(LogicalTypeAnnotation.stringType()).named("studyName")
+                .optional(PrimitiveTypeName.BINARY).as(LogicalTypeAnnotation.stringType()).named("assessmentGuid")
+                .optional(PrimitiveTypeName.BINARY).as(LogicalTypeAnnotation.stringType()).named("assessmentId")
+                .optional(PrimitiveTypeName.INT64).named("assessmentRevision")
+                .optional(PrimitiveTypeName.BINARY).as(LogicalTypeAnnotation.stringType()).named("assessmentTitle")
+                .optional(PrimitiveTypeName.INT64)
+                .as(LogicalTypeAnnotation.timestampType(true, LogicalTypeAnnotation.TimeUnit.MILLIS))
+                .named("createdOn")
+                .optional(PrimitiveTypeName.BOOLEAN).named("isTestData")
+                .optional(PrimitiveTypeName.BINARY).as(LogicalTypeAnnotation.stringType()).named("healthCode")
+                .optional(PrimitiveTypeName.INT32).named("participantVersion");
+    }
+
+    private static void addField(Types.MessageTypeBuilder schemaBuilder, Column column) {
+        // Not every row has every column, so these are all optional.
+        switch (column.getType()) {
+            case BOOLEAN:
+                schemaBuilder.optional(PrimitiveTypeName.BOOLEAN).named(column.getFieldName());
+                break;
+            case DOUBLE:
+                schemaBuilder.optional(PrimitiveTypeName.DOUBLE).named(column.getFieldName());
+                break;
+            case LONG:
+                schemaBuilder.optional(PrimitiveTypeName.INT64).named(column.getFieldName());
+                break;
+            default:
+                schemaBuilder.optional(PrimitiveTypeName.BINARY).as(LogicalTypeAnnotation.stringType())
+                        .named(column.getFieldName());
+                break;
+        }
+    }
+
+    private static String makeUniqueFieldName(Set<String> fieldNameSet, String prefix, String columnName) {
+        String fieldName = columnName;
+        while (!fieldNameSet.add(fieldName)) {
+            fieldName = prefix + fieldName;
+        }
+        return fieldName;
+    }
+
+    /** Converts upload table rows to Parquet records. */
+    private class RowWriteSupport extends WriteSupport<UploadTableRow> {
+        private RecordConsumer recordConsumer;
+
+        @Override
+        public WriteContext init(Configuration configuration) {
+            return new WriteContext(schema, new HashMap<>());
+        }
+
+        @Override
+        public void prepareForWrite(RecordConsumer recordConsumer) {
+            this.recordConsumer = recordConsumer;
+        }
+
+        @Override
+        public void write(UploadTableRow row) {
+            recordConsumer.startMessage();
+
+            // Common columns.
+            writeString(0, "recordId", row.getRecordId());
+            writeString(1, "studyId", studyId);
+            writeString(2, "studyName", studyName);
+            writeString(3, "assessmentGuid", row.getAssessmentGuid());
+            writeString(4, "assessmentId", assessmentId);
+            if (assessmentRevision != null) {
+                writeLong(5, "assessmentRevision", assessmentRevision);
+            }
+            writeString(6, "assessmentTitle", assessmentTitle);
+            if (row.getCreatedOn() != null) {
+                writeLong(7, "createdOn", row.getCreatedOn().getMillis());
+            }
+            if (row.isTestData() != null) {
+                writeBoolean(8, "isTestData", row.isTestData());
+            }
+            writeString(9, "healthCode", row.getHealthCode());
+            if (row.getParticipantVersion() != null) {
+                recordConsumer.startField("participantVersion", 10);
+                recordConsumer.addInteger(row.getParticipantVersion());
+                recordConsumer.endField("participantVersion", 10);
+            }
+
+            // Metadata and data columns. Null values are skipped. None of this throws, because an exception in the
+            // middle of a record would leave the row group in a bad state.
+            Map<String, String> metadataMap = row.getMetadata();
+            for (Column oneColumn : metadataColumnList) {
+                writeColumn(oneColumn, metadataMap.get(oneColumn.getColumnName()));
+            }
+            Map<String, String> dataMap = row.getData();
+            for (Column oneColumn : dataColumnList) {
+                writeColumn(oneColumn, dataMap.get(oneColumn.getColumnName()));
+            }
+
+            recordConsumer.endMessage();
+        }
+
+        private void writeColumn(Column column, String value) {
+            if (value == null) {
+                return;
+            }
+
+            String fieldName = column.getFieldName();
+            int fieldIndex = column.getFieldIndex();
+            try {
+                switch (column.getType()) {
+                    case BOOLEAN:
+                        if ("true".equalsIgnoreCase(value)) {
+                            writeBoolean(fieldIndex, fieldName, true);
+                        } else if ("false".equalsIgnoreCase(value)) {
+                            writeBoolean(fieldIndex, fieldName, false);
+                        } else {
+                            numBadValues++;
+                        }
+                        break;
+                    case DOUBLE:
+                        // Parse before starting the field, so that a bad value doesn't leave the field half-written.
+                        double doubleValue = Double.parseDouble(value);
+                        recordConsumer.startField(fieldName, fieldIndex);
+                        recordConsumer.addDouble(doubleValue);
+                        recordConsumer.endField(fieldName, fieldIndex);
+                        break;
+                    case LONG:
+                        writeLong(fieldIndex, fieldName, Long.parseLong(value));
+                        break;
+                    default:
+                        writeString(fieldIndex, fieldName, value);
+                        break;
+                }
+            } catch (NumberFormatException ex) {
+                numBadValues++;
+            }
+        }
+
+        private void writeBoolean(int fieldIndex, String fieldName, boolean value) {
+            recordConsumer.startField(fieldName, fieldIndex);
+            recordConsumer.addBoolean(value);
+            recordConsumer.endField(fieldName, fieldIndex);
+        }
+
+        private void writeLong(int fieldIndex, String fieldName, long value) {
+            recordConsumer.startField(fieldName, fieldIndex);
+            recordConsumer.addLong(value);
+            recordConsumer.endField(fieldName, fieldIndex);
+        }
+
+        private void writeString(int fieldIndex, String fieldName, String value) {
+            if (value == null) {
+                return;
+            }
+            recordConsumer.startField(fieldName, fieldIndex);
+            recordConsumer.addBinary(Binary.fromString(value));
+            recordConsumer.endField(fieldName, fieldIndex);
+        }
+    }
+
+    /** A metadata or data column, and the Parquet field it's written to. */
+    private static class Column {
+        private final String columnName;
+        private final String fieldName;
+        private final int fieldIndex;
+        private final ColumnType type;
+
+        Column(String columnName, String fieldName, int fieldIndex, ColumnType type) {
+            this.columnName = columnName;
+            this.fieldName = fieldName;
+            this.fieldIndex = fieldIndex;
+            this.type = type;
+        }
+
+        String getColumnName() {
+            return columnName;
+        }
+
+        String getFieldName() {
+            return fieldName;
+        }
+
+        int getFieldIndex() {
+            return fieldIndex;
+        }
+
+        ColumnType getType() {
+            return type;
+        }
+    }
+
+    private static class Builder extends ParquetWriter.Builder<UploadTableRow, Builder> {
+        private final RowWriteSupport writeSupport;
+
+        Builder(OutputFile outputFile, RowWriteSupport writeSupport) {
+            super(outputFile);
+            this.writeSupport = writeSupport;
+        }
+
+        @Override
+        protected Builder self() {
+            return this;
+        }
+
+        @Override
+        protected WriteSupport<UploadTableRow> getWriteSupport(Configuration conf) {
+            return writeSupport;
+        }
+    }
+
+    /**
+     * Parquet output file on top of an output stream. Parquet only ever appends to the file, so it doesn't need a
+     * real file system, just the current position.
+     */
+    private static class StreamOutputFile implements OutputFile {
+        private final OutputStream outputStream;
+
+        StreamOutputFile(OutputStream outputStream) {
+            this.outputStream = outputStream;
+        }
+
+        @Override
+        public PositionOutputStream create(long blockSizeHint) {
+            return new PositionOutputStream() {
+                private long position = 0;
+
+                @Override
+                public long getPos() {
+                    return position;
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    outputStream.write(b);
+                    position++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    outputStream.write(b, off, len);
+                    position += len;
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    outputStream.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    outputStream.close();
+                }
+            };
+        }
+
+        @Override
+        public PositionOutputStream createOrOverwrite(long blockSizeHint) {
+            return create(blockSizeHint);
+        }
+
+        @Override
+        public boolean supportsBlockSize() {
+            return false;
+        }
+
+        @Override
+        public long defaultBlockSize() {
+            return 0;
+        }
+    }
+}
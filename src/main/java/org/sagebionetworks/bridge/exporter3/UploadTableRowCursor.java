@@ -0,0 +1,153 @@
+package org.sagebionetworks.bridge.exporter3;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import org.sagebionetworks.bridge.rest.model.UploadTableRow;
+
+/**
+ * Pages through upload table rows, keeping the next few pages in flight in the background while the caller processes
+ * the current page. Pages are returned in order. Paging stops at the first empty page, or after the max number of
+ * pages, whichever comes first.
+ *
+ * Each page request acquires a permit from the rate limiter, so prefetching never makes more calls per second than
+ * paging one page at a time. This class is not thread-safe. Close the cursor when done, so that pages still in flight
+ * are cancelled.
+ */
+@SuppressWarnings("UnstableApiUsage")
+public class UploadTableRowCursor implements Closeable {
+    /** Loads a single page of rows, starting at the given offset. */
+    @FunctionalInterface
+    public interface PageLoader {
+        List<UploadTableRow> loadPage(int start) throws IOException;
+    }
+
+    private final ExecutorService executorService;
+    private final Deque<Future<List<UploadTableRow>>> inFlightPageQueue = new ArrayDeque<>();
+    private final int maxPages;
+    private final PageLoader pageLoader;
+    private final int pageSize;
+    private final int prefetchPages;
+    private final RateLimiter rateLimiter;
+
+    private boolean done = false;
+    private int nextStart = 0;
+    private int numPagesRequested = 0;
+    private int numPagesReturned = 0;
+
+    /**
+     * Creates a cursor. No pages are requested until the first call to {@link #nextPage}.
+     *
+     * @param executorService
+     *         executor to load pages on
+     * @param rateLimiter
+     *         rate limiter to acquire a permit from before loading each page
+     * @param pageLoader
+     *         loads a single page
+     * @param pageSize
+     *         number of rows per page
+     * @param maxPages
+     *         max number of pages to load
+     * @param prefetchPages
+     *         max number of pages to have in flight at once, must be at least 1
+     */
+    public UploadTableRowCursor(ExecutorService executorService, RateLimiter rateLimiter, PageLoader pageLoader,
+            int pageSize, int maxPages, int prefetchPages) {
+        if (prefetchPages < 1) {
+            throw new IllegalArgumentException("prefetchPages must be at least 1");
+        }
+
+        this.executorService = executorService;
+        this.rateLimiter = rateLimiter;
+        this.pageLoader = pageLoader;
+        this.pageSize = pageSize;
+        this.maxPages = maxPages;
+        this.prefetchPages = prefetchPages;
+    }
+
+    /**
+     * Returns the next page of rows, or null if there are no more pages. If loading a page fails, this throws the
+     * error, and the cursor should be closed.
+     */
+    public List<UploadTableRow> nextPage() throws IOException {
+        if (done) {
+            return null;
+        }
+
+        requestPages();
+        Future<List<UploadTableRow>> pageFuture = inFlightPageQueue.poll();
+        if (pageFuture == null) {
+            // We've already returned max pages.
+            done = true;
+            return null;
+        }
+
+        List<UploadTableRow> page;
+        try {
+            page = pageFuture.get();
+        } catch (ExecutionException ex) {
+            done = true;
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        } catch (InterruptedException ex) {
+            done = true;
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for upload table rows");
+        }
+
+        if (page.isEmpty()) {
+            // No more rows. Anything still in flight is past the end, so don't wait for it.
+            close();
+            return null;
+        }
+
+        // Keep the pipeline full while the caller processes this page.
+        numPagesReturned++;
+        requestPages();
+        return page;
+    }
+
+    /** True if the cursor stopped because it hit the max number of pages, rather than running out of rows. */
+    public boolean isMaxPagesReached() {
+        return numPagesReturned >= maxPages;
+    }
+
+    /** Cancels any pages still in flight. */
+    @Override
+    public void close() {
+        done = true;
+        for (Future<List<UploadTableRow>> oneFuture : inFlightPageQueue) {
+            oneFuture.cancel(true);
+        }
+        inFlightPageQueue.clear();
+    }
+
+    private void requestPages() {
+        while (!done && inFlightPageQueue.size() < prefetchPages && numPagesRequested < maxPages) {
+            int start = nextStart;
+            inFlightPageQueue.add(executorService.submit(() -> {
+                rateLimiter.acquire();
+                return pageLoader.loadPage(start);
+            }));
+            nextStart += pageSize;
+            numPagesRequested++;
+        }
+    }
+}
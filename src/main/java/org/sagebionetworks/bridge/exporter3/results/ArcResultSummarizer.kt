@@ -14,6 +14,9 @@ class ArcResultSummarizer(val assessment: Assessment) : AssessmentSummarizer {
         assert(assessment.frameworkIdentifier == FRAMEWORK_IDENTIFIER)
     }
 
+    // Summarizers are cached and reused, so build the column set once.
+    private val columnNameSet: Set<String> by lazy { getColumnNames().toHashSet() }
+
     override val resultFilename: String
         get() = FILENAME_ARC_RESULT_JSON
 
@@ -33,9 +36,8 @@ class ArcResultSummarizer(val assessment: Assessment) : AssessmentSummarizer {
                     DIAN_APP_CONTAINER_ASSESSMENT_IDENTIFIER -> result.summarizeResultsForDianApp()
                     else -> mapOf()
                 } ?: mapOf()
-                val columnNames = getColumnNames()
                 for (column in resultSummary.keys) {
-                    if (!columnNames.contains(column)) {
+                    if (!columnNameSet.contains(column)) {
                         LOG.warn("Unexpected column: " + column + " when summarizing results for appId=" + appId +
                                 ", recordId=" + recordId + ", assessmentGuid=" + assessment.guid)
                     }
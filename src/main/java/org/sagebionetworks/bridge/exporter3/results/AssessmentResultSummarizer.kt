@@ -14,6 +14,11 @@ class AssessmentResultSummarizer(private val assessment: Assessment, private val
         assert(assessment.frameworkIdentifier == FRAMEWORK_IDENTIFIER)
     }
 
+    // Parsing the assessment config is expensive, and summarizers are cached and reused, so only do it once.
+    private val surveyColumns: List<AnswerColumn> by lazy { parseSurveyColumns() }
+    private val columnNameList: List<String> by lazy { surveyColumns.map { it.columnName } }
+    private val columnNameSet: Set<String> by lazy { columnNameList.toHashSet() }
+
     override val resultFilename: String
         get() = FILENAME_ASSESSMENT_RESULT_JSON
 
@@ -28,9 +33,8 @@ class AssessmentResultSummarizer(private val assessment: Assessment, private val
     override fun summarizeResults(appId: String, recordId: String, resultJson: String): Map<String, String> {
         val assessmentResult: AssessmentResult = Serialization.JsonCoder.default.decodeFromString(resultJson)
         val answers = assessmentResult.toFlatAnswers()
-        val columnNames = getColumnNames()
         for (column in answers.keys) {
-            if (!columnNames.contains(column)) {
+            if (!columnNameSet.contains(column)) {
                 LOG.warn("Unexpected column: " + column + " when summarizing results for appId=" + appId +
                         ", recordId=" + recordId + ", assessmentGuid=" + assessment.guid)
             }
@@ -41,7 +45,7 @@ class AssessmentResultSummarizer(private val assessment: Assessment, private val
 
     override fun getColumnNames(): List<String> {
         // Because of the assert in init, it's impossible for the assessment to have the wrong framework identifier.
-        return getSurveyColumns().map { it.columnName }
+        return columnNameList
     }
 
     /**
@@ -49,6 +53,10 @@ class AssessmentResultSummarizer(private val assessment: Assessment, private val
      * the result.
      */
     fun getSurveyColumns() : List<AnswerColumn> {
+        return surveyColumns
+    }
+
+    private fun parseSurveyColumns() : List<AnswerColumn> {
         return if (assessmentConfig.config != null && assessmentConfig.config is String) {
             val assessment: org.sagebionetworks.assessmentmodel.Assessment = Serialization.JsonCoder.default
                 .decodeFromString(assessmentConfig.config as String)
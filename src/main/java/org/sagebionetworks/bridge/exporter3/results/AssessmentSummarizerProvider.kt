@@ -1,17 +1,39 @@
 package org.sagebionetworks.bridge.exporter3.results
 
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
 import org.springframework.stereotype.Component
 import org.sagebionetworks.bridge.rest.model.Assessment
 import org.sagebionetworks.bridge.rest.model.AssessmentConfig
 
 @Component
 class AssessmentSummarizerProvider {
+    // Summarizers parse the assessment config the first time they need it, so we cache them by assessment GUID and
+    // revision. The config version is part of the key, since the config can be edited without a new revision.
+    private val summarizerCache: Cache<String, AssessmentSummarizer> = CacheBuilder.newBuilder()
+            .maximumSize(SUMMARIZER_CACHE_MAX_SIZE).build()
+
     fun getSummarizer(assessment: Assessment?, assessmentConfig: AssessmentConfig?) : AssessmentSummarizer? {
         if (assessment == null || assessmentConfig == null) return null
+        if (assessment.frameworkIdentifier != AssessmentResultSummarizer.FRAMEWORK_IDENTIFIER &&
+                assessment.frameworkIdentifier != ArcResultSummarizer.FRAMEWORK_IDENTIFIER) {
+            return null
+        }
+
+        // Without a GUID, we can't tell assessments apart, so don't cache.
+        val guid = assessment.guid ?: return makeSummarizer(assessment, assessmentConfig)
+        val cacheKey = "$guid:${assessment.revision}:${assessmentConfig.version}"
+        return summarizerCache.get(cacheKey) { makeSummarizer(assessment, assessmentConfig) }
+    }
+
+    private fun makeSummarizer(assessment: Assessment, assessmentConfig: AssessmentConfig) : AssessmentSummarizer {
         return when (assessment.frameworkIdentifier) {
-            AssessmentResultSummarizer.FRAMEWORK_IDENTIFIER -> AssessmentResultSummarizer(assessment, assessmentConfig)
             ArcResultSummarizer.FRAMEWORK_IDENTIFIER -> ArcResultSummarizer(assessment)
-            else -> null
+            else -> AssessmentResultSummarizer(assessment, assessmentConfig)
         }
     }
+
+    companion object {
+        const val SUMMARIZER_CACHE_MAX_SIZE = 1000L
+    }
 }
@@ -1,13 +1,16 @@
 package org.sagebionetworks.bridge.udd.helper;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -94,6 +97,51 @@ public class ZipHelper {
         return fileMap;
     }
 
+    /**
+     * Reads the given zip stream and returns the contents of the wanted entries, by name. Entries that aren't wanted
+     * are skipped, and nothing is written to disk. Wanted entries that aren't in the zip are absent from the map. The
+     * caller is responsible for closing the input stream.
+     *
+     * This method has the same zip bomb and duplicate filename protections as {@link #unzip}.
+     */
+    public Map<String, byte[]> extractEntries(InputStream inputStream, Set<String> wantedEntryNameSet)
+            throws IOException, PollSqsWorkerBadRequestException {
+        Map<String, byte[]> entryMap = new HashMap<>();
+        Set<String> seenEntryNameSet = new HashSet<>();
+        ZipInputStream zis = new ZipInputStream(inputStream);
+        ZipEntry zipEntry = zis.getNextEntry();
+        while (zipEntry != null) {
+            if (seenEntryNameSet.size() >= maxNumZipEntries) {
+                throw new PollSqsWorkerBadRequestException("The number of zip entries is over the max allowed");
+            }
+
+            String entryName = zipEntry.getName();
+            if (!seenEntryNameSet.add(entryName)) {
+                throw new PollSqsWorkerBadRequestException("Duplicate filename " + entryName);
+            }
+
+            if (wantedEntryNameSet.contains(entryName)) {
+                entryMap.put(entryName, readEntry(entryName, zipEntry.getSize(), zis));
+            }
+            zipEntry = zis.getNextEntry();
+        }
+        return entryMap;
+    }
+
+    private byte[] readEntry(String entryName, long entrySize, InputStream inputStream) throws IOException,
+            PollSqsWorkerBadRequestException {
+        if (entrySize > maxZipEntrySize) {
+            throw new PollSqsWorkerBadRequestException("Zip entry size is over the max allowed size. The entry " +
+                    entryName + " has size " + entrySize + ". The max allowed size is" + maxZipEntrySize + ".");
+        }
+
+        // The declared size can be missing or wrong, so copyByteStream() also counts the bytes as they're read.
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(entrySize > 0 ? (int) entrySize :
+                BUFFER_SIZE);
+        copyByteStream(entryName, inputStream, outputStream);
+        return outputStream.toByteArray();
+    }
+
     private void copyByteStream(String entryName, InputStream inputStream, OutputStream outputStream)
             throws IOException, PollSqsWorkerBadRequestException {
         // We want copy data from the stream to a byte array manually, so we can count the bytes and protect against
@@ -124,19 +172,59 @@ public class ZipHelper {
      *         if reading from input or writing to output fails
      */
     public void zip(List<File> fromList, File to) throws IOException {
-        try (BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(fileHelper.getOutputStream(to));
-                ZipOutputStream zipOutputStream = new ZipOutputStream(bufferedOutputStream, Charsets.UTF_8)) {
+        try (ZipOutputStream zipOutputStream = openZip(to)) {
             for (File oneFromFile : fromList) {
-                ZipEntry oneZipEntry = new ZipEntry(oneFromFile.getName());
-                zipOutputStream.putNextEntry(oneZipEntry);
+                addToZip(zipOutputStream, oneFromFile);
+            }
+        }
+    }
 
-                try (InputStream fromFileInputStream = fileHelper.getInputStream(oneFromFile)) {
-                    ByteStreams.copy(fromFileInputStream, zipOutputStream);
-                }
+    /**
+     * Opens the output file as a zip, so that files can be added one at a time with {@link #addToZip} as they become
+     * available. The caller is responsible for closing the returned stream, which finishes the zip file.
+     *
+     * @param to
+     *         output file to write the zip file to
+     * @return zip output stream, to be passed into {@link #addToZip}
+     * @throws IOException
+     *         if opening the output file fails
+     */
+    public ZipOutputStream openZip(File to) throws IOException {
+        return openZip(new BufferedOutputStream(fileHelper.getOutputStream(to)));
+    }
 
-                zipOutputStream.closeEntry();
-            }
+    /**
+     * Same as {@link #openZip(File)}, but writes the zip to the given output stream, for example to stream the zip
+     * straight to S3. Closing the returned stream also closes the given output stream. Callers that need to finish
+     * the zip without closing the underlying stream should call {@link ZipOutputStream#finish}.
+     *
+     * @param to
+     *         output stream to write the zip file to
+     * @return zip output stream, to be passed into {@link #addToZip}
+     */
+    public ZipOutputStream openZip(OutputStream to) {
+        return new ZipOutputStream(to, Charsets.UTF_8);
+    }
+
+    /**
+     * Adds the input file to the given zip as a single entry, named after the input file.
+     *
+     * @param zipOutputStream
+     *         zip output stream, from {@link #openZip}
+     * @param from
+     *         input file to add to the zip
+     * @throws IOException
+     *         if reading from input or writing to output fails
+     */
+    public void addToZip(ZipOutputStream zipOutputStream, File from) throws IOException {
+        ZipEntry zipEntry = new ZipEntry(from.getName());
+        zipOutputStream.putNextEntry(zipEntry);
+
+        try (InputStream fromFileInputStream = fileHelper.getInputStream(from)) {
+            ByteStreams.copy(fromFileInputStream, zipOutputStream);
         }
+
+        zipOutputStream.closeEntry();
     }
 
     /**
@@ -29,6 +29,7 @@ import org.sagebionetworks.bridge.workerPlatform.exceptions.AsyncTimeoutExceptio
 import org.sagebionetworks.bridge.workerPlatform.bridge.BridgeHelper;
 import org.sagebionetworks.bridge.workerPlatform.bridge.UploadStatusAndMessages;
 import org.sagebionetworks.bridge.workerPlatform.dynamodb.DynamoHelper;
+import org.sagebionetworks.bridge.workerPlatform.metrics.WorkerMetrics;
 import org.sagebionetworks.bridge.workerPlatform.util.JsonUtils;
 
 /** Worker used to redrive uploads. Takes in a list of upload IDs or a list of record IDs. */
@@ -177,6 +178,9 @@ public class UploadRedriveWorkerProcessor implements ThrowingConsumer<JsonNode>
                 " seconds");
 
         logMetrics(metrics);
+        for (Multiset.Entry<String> metricEntry : metrics.entrySet()) {
+            WorkerMetrics.incrementCount(WORKER_ID, metricEntry.getElement(), metricEntry.getCount());
+        }
     }
 
     // Helper method to process a single upload. Package-scoped to facilitate unit tests.
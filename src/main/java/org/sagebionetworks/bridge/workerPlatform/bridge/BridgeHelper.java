@@ -23,6 +23,7 @@ import org.sagebionetworks.bridge.rest.model.Study;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Component;
 
 import org.sagebionetworks.bridge.reporter.worker.Report;
@@ -41,6 +42,7 @@ import org.sagebionetworks.bridge.rest.model.UploadTableJob;
 import org.sagebionetworks.bridge.rest.model.UploadTableRow;
 import org.sagebionetworks.bridge.rest.model.UploadTableRowQuery;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
+import org.sagebionetworks.bridge.workerPlatform.metrics.WorkerMetrics;
 import org.sagebionetworks.bridge.workerPlatform.util.Constants;
 import org.sagebionetworks.bridge.rest.ClientManager;
 import org.sagebionetworks.bridge.rest.api.AppsApi;
@@ -51,8 +53,12 @@ import org.sagebionetworks.bridge.rest.model.UploadStatus;
 import org.sagebionetworks.bridge.rest.model.UploadValidationStatus;
 import org.sagebionetworks.bridge.workerPlatform.exceptions.AsyncTimeoutException;
 
-/** Abstracts away calls to Bridge. */
+/**
+ * Abstracts away calls to Bridge. This is the primary BridgeHelper. Workers that want cached metadata (apps, studies,
+ * assessments) inject CachingBridgeHelper by name instead.
+ */
 @Component("BridgeHelper")
+@Primary
 @SuppressWarnings({ "DataFlowIssue", "DefaultAnnotationParam" })
 public class BridgeHelper {
     private static final Logger LOG = LoggerFactory.getLogger(BridgeHelper.class);
@@ -125,11 +131,12 @@ public class BridgeHelper {
         // shared assessments, and the worker has no way of knowing which one to use. In the short term, we use this
         // hack. First try the local assessment API. If that throws a 404, try the shared assessment API.
         ForWorkersApi forWorkersApi = clientManager.getClient(ForWorkersApi.class);
-        try {
-            return forWorkersApi.getAssessmentByGuidForWorker(appId, guid).execute()
-                    .body();
-        } catch (EntityNotFoundException ex) {
-            return forWorkersApi.getSharedAssessmentByGUID(guid).execute().body();
+        try (WorkerMetrics.TimedCall call = startCall("getAssessmentByGuid")) {
+            try {
+                return call.success(forWorkersApi.getAssessmentByGuidForWorker(appId, guid).execute().body());
+            } catch (EntityNotFoundException ex) {
+                return call.success(forWorkersApi.getSharedAssessmentByGUID(guid).execute().body());
+            }
         }
     }
 
@@ -141,10 +148,12 @@ public class BridgeHelper {
         // shared assessments, and the worker has no way of knowing which one to use. In the short term, we use this
         // hack. First try the local assessment API. If that throws a 404, try the shared assessment API.
         ForWorkersApi forWorkersApi = clientManager.getClient(ForWorkersApi.class);
-        try {
-            return forWorkersApi.getAssessmentConfigForWorker(appId, guid).execute().body();
-        } catch (EntityNotFoundException ex) {
-            return forWorkersApi.getSharedAssessmentConfig(guid).execute().body();
+        try (WorkerMetrics.TimedCall call = startCall("getAssessmentConfigByGuid")) {
+            try {
+                return call.success(forWorkersApi.getAssessmentConfigForWorker(appId, guid).execute().body());
+            } catch (EntityNotFoundException ex) {
+                return call.success(forWorkersApi.getSharedAssessmentConfig(guid).execute().body());
+            }
         }
     }
 
@@ -153,7 +162,10 @@ public class BridgeHelper {
      * subscribers for both the app-wide Synapse project and all study-specific Synapse projects that the record was
      * exported to. */
     public void sendExportNotifications(ExportToAppNotification notification) throws IOException {
-        clientManager.getClient(ForWorkersApi.class).sendExportNotifications(notification).execute();
+        try (WorkerMetrics.TimedCall call = startCall("sendExportNotifications")) {
+            clientManager.getClient(ForWorkersApi.class).sendExportNotifications(notification).execute();
+            call.success();
+        }
     }
 
     /** Returns the FitBitUser for a single user. */
@@ -171,12 +183,18 @@ public class BridgeHelper {
     /** Create or update health data record for Exporter 3.0. Returns the created or updated record. */
     public HealthDataRecordEx3 createOrUpdateHealthDataRecordForExporter3(String appId, HealthDataRecordEx3 record)
             throws IOException {
-        return clientManager.getClient(ForWorkersApi.class).createOrUpdateRecordEx3(appId, record).execute().body();
+        try (WorkerMetrics.TimedCall call = startCall("createOrUpdateHealthDataRecordForExporter3")) {
+            return call.success(clientManager.getClient(ForWorkersApi.class).createOrUpdateRecordEx3(appId, record)
+                    .execute().body());
+        }
     }
 
     /** Retrieves the record for the given ID for Exporter 3.0. */
     public HealthDataRecordEx3 getHealthDataRecordForExporter3(String appId, String recordId) throws IOException {
-        return clientManager.getClient(ForWorkersApi.class).getRecordEx3(appId, recordId).execute().body();
+        try (WorkerMetrics.TimedCall call = startCall("getHealthDataRecordForExporter3")) {
+            return call.success(clientManager.getClient(ForWorkersApi.class).getRecordEx3(appId, recordId).execute()
+                    .body());
+        }
     }
 
     /** Gets a participant for the given user in the given app. */
@@ -190,8 +208,10 @@ public class BridgeHelper {
             types = { BridgeSDKException.class, IOException.class }, randomize = false)
     public StudyParticipant getParticipantByHealthCode(String appId, String healthCode, boolean withConsents)
             throws IOException {
-        return clientManager.getClient(ForWorkersApi.class).getParticipantByHealthCodeForApp(appId, healthCode,
-                withConsents).execute().body();
+        try (WorkerMetrics.TimedCall call = startCall("getParticipantByHealthCode")) {
+            return call.success(clientManager.getClient(ForWorkersApi.class).getParticipantByHealthCodeForApp(appId,
+                    healthCode, withConsents).execute().body());
+        }
     }
 
     public List<StudyParticipant> getParticipantsForApp(String appId, DateTime startDateTime, DateTime endDateTime)
@@ -227,14 +247,19 @@ public class BridgeHelper {
 
     /** Backfills the participant version for a user in a given app. */
     public void backfillParticipantVersion(String appId, String userId) throws IOException {
-        clientManager.getClient(ForWorkersApi.class).backfillParticipantVersion(appId, userId).execute();
+        try (WorkerMetrics.TimedCall call = startCall("backfillParticipantVersion")) {
+            clientManager.getClient(ForWorkersApi.class).backfillParticipantVersion(appId, userId).execute();
+            call.success();
+        }
     }
 
     /** Gets all participant versions for the app and user ID. */
     public List<ParticipantVersion> getAllParticipantVersionsForUser(String appId, String userId) throws IOException {
-        //noinspection ConstantConditions
-        return clientManager.getClient(ForWorkersApi.class).getAllParticipantVersionsForUser(appId, userId).execute()
-                .body().getItems();
+        try (WorkerMetrics.TimedCall call = startCall("getAllParticipantVersionsForUser")) {
+            //noinspection ConstantConditions
+            return call.success(clientManager.getClient(ForWorkersApi.class).getAllParticipantVersionsForUser(appId,
+                    userId).execute().body().getItems());
+        }
     }
 
     /** Gets the latest participant version for the app and user ID. */
@@ -250,8 +275,10 @@ public class BridgeHelper {
             types = { BridgeSDKException.class, IOException.class }, randomize = false)
     public ParticipantVersion getParticipantVersion(String appId, String userId, int participantVersion)
             throws IOException {
-        return clientManager.getClient(ForWorkersApi.class).getParticipantVersion(appId, userId, participantVersion)
-                .execute().body();
+        try (WorkerMetrics.TimedCall call = startCall("getParticipantVersion")) {
+            return call.success(clientManager.getClient(ForWorkersApi.class).getParticipantVersion(appId, userId,
+                    participantVersion).execute().body());
+        }
     }
 
     /**
@@ -283,20 +310,27 @@ public class BridgeHelper {
 
     /** Gets the app for the given ID. */
     public App getApp(String appId) throws IOException {
-        return clientManager.getClient(ForWorkersApi.class).getApp(appId).execute().body();
+        try (WorkerMetrics.TimedCall call = startCall("getApp")) {
+            return call.success(clientManager.getClient(ForWorkersApi.class).getApp(appId).execute().body());
+        }
     }
 
     /** Gets the study for the given app and study IDs. */
     @RetryOnFailure(attempts = 2, delay = 100, unit = TimeUnit.MILLISECONDS,
             types = { BridgeSDKException.class, IOException.class }, randomize = false)
     public Study getStudy(String appId, String studyId) throws IOException {
-        return clientManager.getClient(ForWorkersApi.class).getStudyForWorker(appId, studyId).execute().body();
+        try (WorkerMetrics.TimedCall call = startCall("getStudy")) {
+            return call.success(clientManager.getClient(ForWorkersApi.class).getStudyForWorker(appId, studyId)
+                    .execute().body());
+        }
     }
 
     /** Returns a list of all study IDs in the given app that use the given schedule. */
     public List<String> getStudyIdsUsingSchedule(String appId, String scheduleGuid) throws IOException {
-        return clientManager.getClient(ForWorkersApi.class).getStudyIdsUsingSchedule(appId, scheduleGuid).execute()
-                .body().getItems();
+        try (WorkerMetrics.TimedCall call = startCall("getStudyIdsUsingSchedule")) {
+            return call.success(clientManager.getClient(ForWorkersApi.class).getStudyIdsUsingSchedule(appId,
+                    scheduleGuid).execute().body().getItems());
+        }
     }
 
     /**
@@ -398,7 +432,10 @@ public class BridgeHelper {
 
     /** Gets an upload by upload ID. */
     public Upload getUploadByUploadId(String uploadId) throws IOException {
-        return clientManager.getClient(ForWorkersApi.class).getUploadById(uploadId).execute().body();
+        try (WorkerMetrics.TimedCall call = startCall("getUploadByUploadId")) {
+            return call.success(clientManager.getClient(ForWorkersApi.class).getUploadById(uploadId).execute()
+                    .body());
+        }
     }
 
     /** Gets an upload by record ID. */
@@ -410,8 +447,10 @@ public class BridgeHelper {
     @RetryOnFailure(attempts = 2, delay = 100, unit = TimeUnit.MILLISECONDS,
             types = { BridgeSDKException.class, IOException.class }, randomize = false)
     public UploadTableJob getUploadTableJob(String appId, String studyId, String jobGuid) throws IOException {
-        return clientManager.getClient(ForWorkersApi.class).getUploadTableJobForWorker(appId, studyId, jobGuid)
-                .execute().body();
+        try (WorkerMetrics.TimedCall call = startCall("getUploadTableJob")) {
+            return call.success(clientManager.getClient(ForWorkersApi.class).getUploadTableJobForWorker(appId,
+                    studyId, jobGuid).execute().body());
+        }
     }
 
     /** Update the upload table job. */
@@ -419,8 +458,11 @@ public class BridgeHelper {
             types = { BridgeSDKException.class, IOException.class }, randomize = false)
     public void updateUploadTableJob(String appId, String studyId, String jobGuid, UploadTableJob job)
             throws IOException {
-        clientManager.getClient(ForWorkersApi.class).updateUploadTableJobForWorker(appId, studyId, jobGuid, job)
-                .execute();
+        try (WorkerMetrics.TimedCall call = startCall("updateUploadTableJob")) {
+            clientManager.getClient(ForWorkersApi.class).updateUploadTableJobForWorker(appId, studyId, jobGuid, job)
+                    .execute();
+            call.success();
+        }
     }
 
     /** Query table rows for uploads. */
@@ -428,8 +470,10 @@ public class BridgeHelper {
             types = { BridgeSDKException.class, IOException.class }, randomize = false)
     public List<UploadTableRow> queryUploadTableRows(String appId, String studyId, UploadTableRowQuery query)
             throws IOException {
-        return clientManager.getClient(ForWorkersApi.class).queryUploadTableRowsForWorker(appId, studyId, query)
-                .execute().body().getItems();
+        try (WorkerMetrics.TimedCall call = startCall("queryUploadTableRows")) {
+            return call.success(clientManager.getClient(ForWorkersApi.class).queryUploadTableRowsForWorker(appId,
+                    studyId, query).execute().body().getItems());
+        }
     }
 
     /** Get account summaries by caller's appId and enrollment in a study. */
@@ -461,7 +505,11 @@ public class BridgeHelper {
     @RetryOnFailure(attempts = 2, delay = 100, unit = TimeUnit.MILLISECONDS,
             types = { BridgeSDKException.class, IOException.class }, randomize = false)
     public void saveUploadTableRow(String appId, String studyId, UploadTableRow tableRow) throws IOException {
-        clientManager.getClient(ForWorkersApi.class).saveUploadTableRowForWorker(appId, studyId, tableRow).execute();
+        try (WorkerMetrics.TimedCall call = startCall("saveUploadTableRow")) {
+            clientManager.getClient(ForWorkersApi.class).saveUploadTableRowForWorker(appId, studyId, tableRow)
+                    .execute();
+            call.success();
+        }
     }
 
     private List<StudyParticipant> getStudyParticipantsFromAccountSummaries(List<AccountSummary> accountSummaries) throws IOException, InterruptedException {
@@ -476,6 +524,11 @@ public class BridgeHelper {
         return participants;
     }
 
+    // Helper method to time a call to Bridge.
+    private static WorkerMetrics.TimedCall startCall(String operation) {
+        return WorkerMetrics.startCall(WorkerMetrics.DEPENDENCY_BRIDGE, operation);
+    }
+
     private void doSleep() {
         // sleep a second
         try {
@@ -0,0 +1,157 @@
+package org.sagebionetworks.bridge.workerPlatform.bridge;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.rest.model.App;
+import org.sagebionetworks.bridge.rest.model.Assessment;
+import org.sagebionetworks.bridge.rest.model.AssessmentConfig;
+import org.sagebionetworks.bridge.rest.model.Study;
+
+/**
+ * BridgeHelper that caches apps, studies, schedule-to-study mappings, assessments, and assessment configs. These
+ * rarely change, but the Exporter 3 workers fetch them for every record. Everything else goes straight to Bridge.
+ *
+ * Each type has its own TTL and max size. Concurrent calls for the same key wait for a single call to Bridge. Errors
+ * and nulls are not cached. Cached objects are shared between callers, so callers must not modify them.
+ *
+ * Apps that don't have Exporter 3 enabled and studies that aren't configured for Exporter 3 aren't cached either. The
+ * workers skip exporting for them, so if one was cached, records would be silently skipped for up to the TTL after it
+ * was set up. Apps are cached as soon as Exporter 3 is enabled, since many apps are only configured at the study level,
+ * and those are the apps that send the most records. If an app-level config needs to be picked up before the TTL, call
+ * {@link #invalidateApp}.
+ */
+@Component("cachingBridgeHelper")
+public class CachingBridgeHelper extends BridgeHelper {
+    // Apps and studies hold the Exporter 3 config. Keep this short, so that config changes are picked up quickly.
+    static final long APP_STUDY_TTL_MINUTES = 5;
+    // Assessments and configs are effectively immutable once published.
+    static final long ASSESSMENT_TTL_MINUTES = 60;
+    static final long SCHEDULE_TTL_MINUTES = 5;
+
+    static final long APP_CACHE_MAX_SIZE = 100;
+    static final long ASSESSMENT_CACHE_MAX_SIZE = 1000;
+    static final long SCHEDULE_CACHE_MAX_SIZE = 1000;
+    static final long STUDY_CACHE_MAX_SIZE = 1000;
+
+    private final Cache<String, App> appCache = CacheBuilder.newBuilder().maximumSize(APP_CACHE_MAX_SIZE)
+            .expireAfterWrite(APP_STUDY_TTL_MINUTES, TimeUnit.MINUTES).build();
+    private final Cache<String, Assessment> assessmentCache = CacheBuilder.newBuilder()
+            .maximumSize(ASSESSMENT_CACHE_MAX_SIZE).expireAfterWrite(ASSESSMENT_TTL_MINUTES, TimeUnit.MINUTES)
+            .build();
+    private final Cache<String, AssessmentConfig> assessmentConfigCache = CacheBuilder.newBuilder()
+            .maximumSize(ASSESSMENT_CACHE_MAX_SIZE).expireAfterWrite(ASSESSMENT_TTL_MINUTES, TimeUnit.MINUTES)
+            .build();
+    private final Cache<String, List<String>> scheduleStudyIdCache = CacheBuilder.newBuilder()
+            .maximumSize(SCHEDULE_CACHE_MAX_SIZE).expireAfterWrite(SCHEDULE_TTL_MINUTES, TimeUnit.MINUTES).build();
+    private final Cache<String, Study> studyCache = CacheBuilder.newBuilder().maximumSize(STUDY_CACHE_MAX_SIZE)
+            .expireAfterWrite(APP_STUDY_TTL_MINUTES, TimeUnit.MINUTES).build();
+
+    /** {@inheritDoc} */
+    @Override
+    public App getApp(String appId) throws IOException {
+        return getCached(appCache, appId, () -> super.getApp(appId), CachingBridgeHelper::isExporter3Enabled);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Assessment getAssessmentByGuid(String appId, String guid) throws IOException {
+        return getCached(assessmentCache, makeKey(appId, guid), () -> super.getAssessmentByGuid(appId, guid));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public AssessmentConfig getAssessmentConfigByGuid(String appId, String guid) throws IOException {
+        return getCached(assessmentConfigCache, makeKey(appId, guid), () -> super.getAssessmentConfigByGuid(appId,
+                guid));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Study getStudy(String appId, String studyId) throws IOException {
+        return getCached(studyCache, makeKey(appId, studyId), () -> super.getStudy(appId, studyId),
+                BridgeUtils::isExporter3Configured);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public List<String> getStudyIdsUsingSchedule(String appId, String scheduleGuid) throws IOException {
+        // Make the list immutable, since it's shared.
+        return getCached(scheduleStudyIdCache, makeKey(appId, scheduleGuid), () -> {
+            List<String> studyIdList = super.getStudyIdsUsingSchedule(appId, scheduleGuid);
+            return studyIdList != null ? ImmutableList.copyOf(studyIdList) : null;
+        });
+    }
+
+    /** Removes the given app from the cache, so that the next call gets it from Bridge. */
+    public void invalidateApp(String appId) {
+        appCache.invalidate(appId);
+    }
+
+    /** Removes the given study from the cache, so that the next call gets it from Bridge. */
+    public void invalidateStudy(String appId, String studyId) {
+        studyCache.invalidate(makeKey(appId, studyId));
+    }
+
+    /** Clears all caches. */
+    public void invalidateAll() {
+        appCache.invalidateAll();
+        assessmentCache.invalidateAll();
+        assessmentConfigCache.invalidateAll();
+        scheduleStudyIdCache.invalidateAll();
+        studyCache.invalidateAll();
+    }
+
+    private static boolean isExporter3Enabled(App app) {
+        return app.isExporter3Enabled() != null && app.isExporter3Enabled();
+    }
+
+    private static String makeKey(String appId, String id) {
+        return appId + ':' + id;
+    }
+
+    // Gets the value from the cache, loading it if needed, and unwraps any exceptions thrown by the loader.
+    private static <V> V getCached(Cache<String, V> cache, String key, Callable<V> loader) throws IOException {
+        return getCached(cache, key, loader, value -> true);
+    }
+
+    // Same as above, but values that don't pass shouldCache are evicted right after they're loaded, so the next call
+    // gets them from Bridge again. Concurrent calls still share the load.
+    private static <V> V getCached(Cache<String, V> cache, String key, Callable<V> loader, Predicate<V> shouldCache)
+            throws IOException {
+        try {
+            V value = cache.get(key, loader);
+            if (!shouldCache.test(value)) {
+                cache.invalidate(key);
+            }
+            return value;
+        } catch (CacheLoader.InvalidCacheLoadException ex) {
+            // Bridge returned null. Guava doesn't cache nulls, so the next call will try again.
+            return null;
+        } catch (ExecutionException ex) {
+            // The loader only throws IOException as a checked exception.
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (UncheckedExecutionException ex) {
+            // This includes BridgeSDKExceptions, such as EntityNotFoundException.
+            throw (RuntimeException) ex.getCause();
+        } catch (ExecutionError ex) {
+            throw (Error) ex.getCause();
+        }
+    }
+}
@@ -4,10 +4,12 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import javax.annotation.PostConstruct;
 
@@ -31,7 +33,11 @@ import com.amazonaws.services.sqs.AmazonSQSClient;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.LoadingCache;
-import org.apache.commons.codec.digest.DigestUtils;
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.logging.LoggingMeterRegistry;
+import io.micrometer.core.instrument.logging.LoggingRegistryConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.sagebionetworks.client.SynapseAdminClientImpl;
 import org.sagebionetworks.client.SynapseClient;
 import org.slf4j.Logger;
@@ -47,6 +53,7 @@ import org.sagebionetworks.bridge.crypto.CmsEncryptor;
 import org.sagebionetworks.bridge.crypto.CmsEncryptorCacheLoader;
 import org.sagebionetworks.bridge.dynamodb.DynamoNamingHelper;
 import org.sagebionetworks.bridge.dynamodb.DynamoQueryHelper;
+import org.sagebionetworks.bridge.exporter3.SynapseRowCoalescer;
 import org.sagebionetworks.bridge.file.FileHelper;
 import org.sagebionetworks.bridge.heartbeat.HeartbeatLogger;
 import org.sagebionetworks.bridge.reporter.worker.BridgeReporterProcessor;
@@ -60,7 +67,10 @@ import org.sagebionetworks.bridge.synapse.SynapseHelper;
 import org.sagebionetworks.bridge.udd.worker.BridgeUddProcessor;
 import org.sagebionetworks.bridge.uploadcomplete.S3EventNotificationCallback;
 import org.sagebionetworks.bridge.worker.ThrowingConsumer;
+import org.sagebionetworks.bridge.workerPlatform.multiplexer.BatchSqsWorker;
 import org.sagebionetworks.bridge.workerPlatform.multiplexer.BridgeWorkerPlatformSqsCallback;
+import org.sagebionetworks.bridge.workerPlatform.multiplexer.LeasingSqsHelper;
+import org.sagebionetworks.bridge.workerPlatform.multiplexer.VisibilityTimeoutExtender;
 import org.sagebionetworks.bridge.workerPlatform.util.Constants;
 
 // These configs get credentials from the default credential chain. For developer desktops, this is ~/.aws/credentials.
@@ -158,6 +168,12 @@ public class SpringConfig {
         return ddbClient().getTable(fullyQualifiedTableName);
     }
 
+    @Bean(name = "ddbUploadCsvWatermarkTable")
+    public Table ddbUploadCsvWatermarkTable() {
+        String fullyQualifiedTableName = dynamoNamingHelper().getFullyQualifiedTableName("UploadCsvWatermark");
+        return ddbClient().getTable(fullyQualifiedTableName);
+    }
+
     @Bean(name = "ddbUploadSchemaTable")
     public Table ddbUploadSchemaTable(Config config) {
         String fullyQualifiedTableName = dynamoNamingHelper().getFullyQualifiedTableName(
@@ -170,6 +186,12 @@ public class SpringConfig {
         return ddbUploadSchemaTable(bridgeConfig()).getIndex("studyId-index");
     }
 
+    @Bean(name = "ddbWorkerCheckpointTable")
+    public Table ddbWorkerCheckpointTable() {
+        String fullyQualifiedTableName = dynamoNamingHelper().getFullyQualifiedTableName("WorkerCheckpoint");
+        return ddbClient().getTable(fullyQualifiedTableName);
+    }
+
     @Bean(name = "ddbWorkerLogTable")
     public Table ddbWorkerLogTable() {
         String fullyQualifiedTableName = dynamoNamingHelper().getFullyQualifiedTableName("WorkerLog");
@@ -181,11 +203,94 @@ public class SpringConfig {
         return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.general.count"));
     }
 
+    // Runs the callbacks for generalSqsWorker. Each callback blocks its thread until the request is done, so there is
+    // one thread for every request the per-service executors can admit. Otherwise long-running services could take
+    // every thread and starve the rest.
+    @Bean(name = "generalDispatchExecutorService")
+    @Autowired
+    public ExecutorService generalDispatchExecutorService(BridgeWorkerPlatformSqsCallback callback) {
+        return Executors.newFixedThreadPool(callback.getMaxAdmittedRequests());
+    }
+
+    // Runs the app-wide and per-study export stages for Exporter 3.0. Shared across all in-flight export requests.
+    @Bean(name = "exporter3ExecutorService")
+    public ExecutorService exporter3ExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.exporter3.count"));
+    }
+
+    // Generates per-assessment CSVs for the Upload CSV worker. Shared across all in-flight CSV requests.
+    @Bean(name = "uploadCsvExecutorService")
+    public ExecutorService uploadCsvExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.uploadcsv.count"));
+    }
+
+    // Prefetches pages of upload table rows for the Upload CSV worker. Each CSV keeps a few pages in flight, so this is
+    // bigger than the CSV pool.
+    @Bean(name = "uploadCsvPrefetchExecutorService")
+    public ExecutorService uploadCsvPrefetchExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.uploadcsv.prefetch.count"));
+    }
+
+    // Backfills health codes for the Backfill Participant Versions worker. Shared across all in-flight backfills.
+    @Bean(name = "backfillExecutorService")
+    public ExecutorService backfillExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.backfill.count"));
+    }
+
+    // Fetches participant versions for the Redrive Participant Versions worker. Shared across all in-flight redrives.
+    @Bean(name = "redriveExecutorService")
+    public ExecutorService redriveExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.redrive.count"));
+    }
+
     @Bean(name = "synapseExecutorService")
     public ExecutorService synapseExecutorService() {
         return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.synapse.count"));
     }
 
+    // Participant version rows are gathered for a short window and appended to Synapse in one call. Windows are
+    // short and rare, so one thread handles all tables.
+    @Bean(name = "participantVersionBatchExecutorService")
+    public ScheduledExecutorService participantVersionBatchExecutorService() {
+        return Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @Bean(name = "participantVersionRowCoalescer")
+    public SynapseRowCoalescer participantVersionRowCoalescer() {
+        Config config = bridgeConfig();
+        SynapseRowCoalescer coalescer = new SynapseRowCoalescer();
+        // Without batch receive, requests arrive one poll at a time, so there's nothing to coalesce, and the window
+        // only adds latency.
+        boolean batchReceiveEnabled = Boolean.parseBoolean(config.get("workerPlatform.request.sqs.batch.enabled"));
+        coalescer.setBatchWindowMillis(batchReceiveEnabled ?
+                config.getInt("exporter3.participantversion.batch.window.millis") : 0);
+        coalescer.setMaxBatchRows(config.getInt("exporter3.participantversion.batch.max.rows"));
+        coalescer.setMetricService("Ex3ParticipantVersionWorker");
+        coalescer.setScheduledExecutorService(participantVersionBatchExecutorService());
+        coalescer.setSynapseExecutorService(synapseExecutorService());
+        coalescer.setSynapseHelper(synapseHelper());
+        return coalescer;
+    }
+
+    // Cumulative metrics, served by the workermetrics actuator endpoint. Code records metrics through the global
+    // registry (see WorkerMetrics), so we attach our registries to it here.
+    @Bean(name = "workerMeterRegistry")
+    public SimpleMeterRegistry workerMeterRegistry() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Metrics.addRegistry(registry);
+        return registry;
+    }
+
+    // Periodically dumps metrics to the log.
+    @Bean(name = "loggingMeterRegistry")
+    public LoggingMeterRegistry loggingMeterRegistry() {
+        String step = Duration.ofMinutes(bridgeConfig().getInt("metrics.log.interval.minutes")).toString();
+        LoggingRegistryConfig loggingConfig = key -> "logging.step".equals(key) ? step : null;
+        LoggingMeterRegistry registry = new LoggingMeterRegistry(loggingConfig, Clock.SYSTEM);
+        Metrics.addRegistry(registry);
+        return registry;
+    }
+
     @Bean
     public FileHelper fileHelper() {
         return new FileHelper();
@@ -198,15 +303,15 @@ public class SpringConfig {
         return heartbeatLogger;
     }
 
-    @Bean(name = "md5DigestUtils")
-    public DigestUtils md5DigestUtils() {
-        return new DigestUtils(DigestUtils.getMd5Digest());
+    @Bean
+    public AmazonS3Client s3Client() {
+        return new AmazonS3Client();
     }
 
     @Bean
     public S3Helper s3Helper() {
         S3Helper s3Helper = new S3Helper();
-        s3Helper.setS3Client(new AmazonS3Client());
+        s3Helper.setS3Client(s3Client());
         return s3Helper;
     }
 
@@ -220,10 +325,15 @@ public class SpringConfig {
         return new AmazonSNSClient();
     }
 
+    @Bean
+    public AmazonSQSClient sqsClient() {
+        return new AmazonSQSClient();
+    }
+
     @Bean
     public SqsHelper sqsHelper() {
         SqsHelper sqsHelper = new SqsHelper();
-        sqsHelper.setSqsClient(new AmazonSQSClient());
+        sqsHelper.setSqsClient(sqsClient());
         return sqsHelper;
     }
 
@@ -232,15 +342,57 @@ public class SpringConfig {
     public PollSqsWorker generalSqsWorker(BridgeWorkerPlatformSqsCallback callback) {
         Config config = bridgeConfig();
 
+        // Keeps requests invisible while they're processed.
+        LeasingSqsHelper leasingSqsHelper = new LeasingSqsHelper();
+        leasingSqsHelper.setSqsClient(sqsClient());
+        leasingSqsHelper.setVisibilityTimeoutExtender(visibilityTimeoutExtender());
+
         PollSqsWorker sqsWorker = new PollSqsWorker();
-        sqsWorker.setCallback(callback);
-        sqsWorker.setExecutorService(generalExecutorService());
+        sqsWorker.setCallback(leasingSqsHelper.wrapCallback(callback));
+        sqsWorker.setExecutorService(generalDispatchExecutorService(callback));
         sqsWorker.setQueueUrl(config.get("workerPlatform.request.sqs.queue.url"));
         sqsWorker.setSleepTimeMillis(config.getInt("workerPlatform.request.sqs.sleep.time.millis"));
-        sqsWorker.setSqsHelper(sqsHelper());
+        sqsWorker.setSqsHelper(leasingSqsHelper);
+        return sqsWorker;
+    }
+
+    // Batch receive alternative to generalSqsWorker. WorkerLauncher decides which one to start, based on
+    // workerPlatform.request.sqs.batch.enabled.
+    @Bean(name = "generalBatchSqsWorker")
+    @Autowired
+    public BatchSqsWorker generalBatchSqsWorker(BridgeWorkerPlatformSqsCallback callback) {
+        Config config = bridgeConfig();
+
+        BatchSqsWorker sqsWorker = new BatchSqsWorker();
+        sqsWorker.setCallback(callback);
+        // No point receiving more messages than the services can admit. They'd just be rejected.
+        sqsWorker.setMaxInFlight(Math.min(config.getInt("workerPlatform.request.sqs.batch.max.in.flight"),
+                callback.getMaxAdmittedRequests()));
+        sqsWorker.setMaxSleepTimeMillis(config.getInt("workerPlatform.request.sqs.batch.max.sleep.time.millis"));
+        sqsWorker.setQueueUrl(config.get("workerPlatform.request.sqs.queue.url"));
+        sqsWorker.setRetryDelaySeconds(config.getInt("workerPlatform.request.sqs.batch.retry.delay.seconds"));
+        sqsWorker.setSqsClient(sqsClient());
+        sqsWorker.setVisibilityTimeoutExtender(visibilityTimeoutExtender());
+        sqsWorker.setWaitTimeSeconds(config.getInt("workerPlatform.request.sqs.batch.wait.time.seconds"));
         return sqsWorker;
     }
 
+    // Heartbeats are tiny and infrequent, so one thread handles all in-flight messages.
+    @Bean(name = "visibilityHeartbeatExecutorService")
+    public ScheduledExecutorService visibilityHeartbeatExecutorService() {
+        return Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @Bean
+    public VisibilityTimeoutExtender visibilityTimeoutExtender() {
+        VisibilityTimeoutExtender extender = new VisibilityTimeoutExtender();
+        extender.setScheduledExecutorService(visibilityHeartbeatExecutorService());
+        extender.setSqsClient(sqsClient());
+        extender.setVisibilityTimeoutSeconds(bridgeConfig().getInt(
+                "workerPlatform.request.sqs.visibility.timeout.seconds"));
+        return extender;
+    }
+
     @Bean(name = "s3NotificationSqsWorker")
     @Autowired
     public PollSqsWorker s3NotificationSqsWorker(S3EventNotificationCallback s3NotificationCallback) {
@@ -315,6 +467,10 @@ public class SpringConfig {
                 "userId", ScalarAttributeType.S, "notificationTime", ScalarAttributeType.N);
         createTable(ddbClient, namingHelper, "SynapseSurveyTables",
                 "studyId", ScalarAttributeType.S, null, null);
+        createTable(ddbClient, namingHelper, "UploadCsvWatermark",
+                "appStudy", ScalarAttributeType.S, "assessmentGuid", ScalarAttributeType.S);
+        createTable(ddbClient, namingHelper, "WorkerCheckpoint",
+                "workerId", ScalarAttributeType.S, "checkpointKey", ScalarAttributeType.S);
         createTable(ddbClient, namingHelper, "WorkerLog",
                 "workerId", ScalarAttributeType.S, "finishTime", ScalarAttributeType.N);
 
@@ -323,6 +479,8 @@ public class SpringConfig {
         waitForTable(ddbClient, namingHelper, "NotificationConfig");
         waitForTable(ddbClient, namingHelper, "NotificationLog");
         waitForTable(ddbClient, namingHelper, "SynapseSurveyTables");
+        waitForTable(ddbClient, namingHelper, "UploadCsvWatermark");
+        waitForTable(ddbClient, namingHelper, "WorkerCheckpoint");
         waitForTable(ddbClient, namingHelper, "WorkerLog");
 
         LOG.info("Finished initializing DynamoDB tables...");
@@ -2,8 +2,12 @@ package org.sagebionetworks.bridge.workerPlatform.config;
 
 import java.util.Map;
 
+import javax.annotation.Resource;
+
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.heartbeat.HeartbeatLogger;
 import org.sagebionetworks.bridge.sqs.PollSqsWorker;
+import org.sagebionetworks.bridge.workerPlatform.multiplexer.BatchSqsWorker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -18,9 +22,24 @@ import org.springframework.stereotype.Component;
 public class WorkerLauncher implements CommandLineRunner {
     private static final Logger LOG = LoggerFactory.getLogger(WorkerLauncher.class);
 
+    static final String CONFIG_KEY_BATCH_ENABLED = "workerPlatform.request.sqs.batch.enabled";
+    static final String GENERAL_SQS_WORKER_NAME = "generalSqsWorker";
+
+    private boolean batchEnabled;
+    private BatchSqsWorker generalBatchSqsWorker;
     private HeartbeatLogger heartbeatLogger;
     private Map<String, PollSqsWorker> pollSqsWorkers;
 
+    @Autowired
+    public final void setConfig(Config config) {
+        this.batchEnabled = Boolean.parseBoolean(config.get(CONFIG_KEY_BATCH_ENABLED));
+    }
+
+    @Resource(name = "generalBatchSqsWorker")
+    public final void setGeneralBatchSqsWorker(BatchSqsWorker generalBatchSqsWorker) {
+        this.generalBatchSqsWorker = generalBatchSqsWorker;
+    }
+
     @Autowired
     public final void setHeartbeatLogger(HeartbeatLogger heartbeatLogger) {
         this.heartbeatLogger = heartbeatLogger;
@@ -43,8 +62,17 @@ public class WorkerLauncher implements CommandLineRunner {
         new Thread(heartbeatLogger).start();
 
         for (Map.Entry<String, PollSqsWorker> entry : pollSqsWorkers.entrySet()) {
+            if (batchEnabled && GENERAL_SQS_WORKER_NAME.equals(entry.getKey())) {
+                // The batch worker polls the same queue. Don't start both.
+                continue;
+            }
             LOG.info("Worker Platform Starting " + entry.getKey() + "...");
             new Thread(entry.getValue()).start();
         }
+
+        if (batchEnabled) {
+            LOG.info("Worker Platform Starting generalBatchSqsWorker...");
+            new Thread(generalBatchSqsWorker).start();
+        }
     }
 }
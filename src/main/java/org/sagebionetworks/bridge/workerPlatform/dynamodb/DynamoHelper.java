@@ -3,6 +3,7 @@ package org.sagebionetworks.bridge.workerPlatform.dynamodb;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -26,6 +27,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import org.sagebionetworks.bridge.dynamodb.DynamoQueryHelper;
+import org.sagebionetworks.bridge.exporter3.UploadCsvWatermark;
 import org.sagebionetworks.bridge.notification.worker.NotificationType;
 import org.sagebionetworks.bridge.notification.worker.UserNotification;
 import org.sagebionetworks.bridge.notification.worker.WorkerConfig;
@@ -40,15 +42,22 @@ public class DynamoHelper {
     static final String ATTR_TABLE_ID = "tableId";
     static final String ATTR_TABLE_ID_SET = "tableIdSet";
     static final String ATTR_TABLE_NAME = "tableName";
+    static final String KEY_APP_STUDY = "appStudy";
+    static final String KEY_ASSESSMENT_GUID = "assessmentGuid";
+    static final String KEY_DATA_COLUMNS = "dataColumns";
+    static final String KEY_EXPORTED_UNTIL = "exportedUntil";
+    static final String KEY_METADATA_COLUMNS = "metadataColumns";
     static final String KEY_APP_URL = "appUrl";
     static final String KEY_BURST_DURATION_DAYS = "burstDurationDays";
     static final String KEY_BURST_EVENT_ID_SET = "burstStartEventIdSet";
     static final String KEY_BURST_TASK_ID = "burstTaskId";
+    static final String KEY_CHECKPOINT_KEY = "checkpointKey";
     static final String KEY_DEFAULT_PREBURST_MESSAGE = "defaultPreburstMessage";
     static final String KEY_EARLY_LATE_CUTOFF_DAYS = "earlyLateCutoffDays";
     static final String KEY_ENGAGEMENT_SURVEY_GUID = "engagementSurveyGuid";
     static final String KEY_EXCLUDED_DATA_GROUP_SET = "excludedDataGroupSet";
     static final String KEY_FINISH_TIME = "finishTime";
+    static final String KEY_LINE_OFFSET = "lineOffset";
     static final String KEY_MESSAGE = "message";
     static final String KEY_MISSED_CUMULATIVE_MESSAGES = "missedCumulativeActivitiesMessagesList";
     static final String KEY_MISSED_EARLY_MESSAGES = "missedEarlyActivitiesMessagesList";
@@ -63,6 +72,7 @@ public class DynamoHelper {
     static final String KEY_PREBURST_MESSAGES = "preburstMessagesByDataGroup";
     static final String KEY_APP_ID = "studyId";
     static final String KEY_TAG = "tag";
+    static final String KEY_UPDATED_ON = "updatedOn";
     static final String KEY_USER_ID = "userId";
     static final String KEY_WORKER_ID = "workerId";
     static final String SUFFIX_DEFAULT = "-default";
@@ -73,8 +83,10 @@ public class DynamoHelper {
     private Table ddbSynapseMapTable;
     private Table ddbSynapseMetaTable;
     private Table ddbSynapseSurveyTablesTable;
+    private Table ddbUploadCsvWatermarkTable;
     private Table ddbUploadSchemaTable;
     private Index ddbUploadSchemaAppIndex;
+    private Table ddbWorkerCheckpointTable;
     private Table ddbWorkerLogTable;
     private DynamoQueryHelper dynamoQueryHelper;
 
@@ -118,6 +130,12 @@ public class DynamoHelper {
         this.ddbSynapseSurveyTablesTable = ddbSynapseSurveyTablesTable;
     }
 
+    /** DDB table for Upload CSV watermarks, used for incremental Upload CSVs. */
+    @Resource(name = "ddbUploadCsvWatermarkTable")
+    public final void setDdbUploadCsvWatermarkTable(Table ddbUploadCsvWatermarkTable) {
+        this.ddbUploadCsvWatermarkTable = ddbUploadCsvWatermarkTable;
+    }
+
     /** Upload schema table. */
     @Resource(name = "ddbUploadSchemaTable")
     public final void setDdbUploadSchemaTable(Table ddbUploadSchemaTable) {
@@ -131,6 +149,15 @@ public class DynamoHelper {
         this.ddbUploadSchemaAppIndex = ddbUploadSchemaAppIndex;
     }
 
+    /**
+     * DDB table for worker checkpoints. Long-running workers record how far they've gotten, so that a re-sent request
+     * can pick up where the last one left off.
+     */
+    @Resource(name = "ddbWorkerCheckpointTable")
+    public final void setDdbWorkerCheckpointTable(Table ddbWorkerCheckpointTable) {
+        this.ddbWorkerCheckpointTable = ddbWorkerCheckpointTable;
+    }
+
     /**
      * DDB table for the worker log. Used to track worker runs and to signal to integration tests when the worker has
      * finished running.
@@ -372,6 +399,77 @@ public class DynamoHelper {
         ddbSynapseMapTable.deleteItem("schemaKey", schemaKey.toString());
     }
 
+    /**
+     * Gets all Upload CSV watermarks for the given study, keyed by assessment GUID. Returns an empty map if we've
+     * never done an incremental export for this study.
+     */
+    public Map<String, UploadCsvWatermark> getUploadCsvWatermarksForStudy(String appId, String studyId) {
+        QuerySpec query = new QuerySpec().withHashKey(KEY_APP_STUDY, makeAppStudyKey(appId, studyId));
+        Map<String, UploadCsvWatermark> watermarkMap = new HashMap<>();
+        for (Item item : dynamoQueryHelper.query(ddbUploadCsvWatermarkTable, query)) {
+            UploadCsvWatermark watermark = new UploadCsvWatermark();
+            watermark.setAssessmentGuid(item.getString(KEY_ASSESSMENT_GUID));
+            watermark.setExportedUntil(new DateTime(item.getLong(KEY_EXPORTED_UNTIL)));
+
+            // Column lists may be missing or empty.
+            List<String> metadataColumnList = item.getList(KEY_METADATA_COLUMNS);
+            if (metadataColumnList != null) {
+                watermark.setMetadataColumnSet(new HashSet<>(metadataColumnList));
+            }
+            List<String> dataColumnList = item.getList(KEY_DATA_COLUMNS);
+            if (dataColumnList != null) {
+                watermark.setDataColumnSet(new HashSet<>(dataColumnList));
+            }
+
+            watermarkMap.put(watermark.getAssessmentGuid(), watermark);
+        }
+        return watermarkMap;
+    }
+
+    /** Saves the Upload CSV watermark for the given study, overwriting the previous watermark for that assessment. */
+    public void writeUploadCsvWatermark(String appId, String studyId, UploadCsvWatermark watermark) {
+        // DDB doesn't allow empty sets, so store the columns as lists. Sort them so they're easier to read.
+        List<String> metadataColumnList = new ArrayList<>(watermark.getMetadataColumnSet());
+        metadataColumnList.sort(null);
+        List<String> dataColumnList = new ArrayList<>(watermark.getDataColumnSet());
+        dataColumnList.sort(null);
+
+        Item item = new Item().withPrimaryKey(KEY_APP_STUDY, makeAppStudyKey(appId, studyId),
+                KEY_ASSESSMENT_GUID, watermark.getAssessmentGuid())
+                .withLong(KEY_EXPORTED_UNTIL, watermark.getExportedUntil().getMillis())
+                .withList(KEY_METADATA_COLUMNS, metadataColumnList)
+                .withList(KEY_DATA_COLUMNS, dataColumnList);
+        ddbUploadCsvWatermarkTable.putItem(item);
+    }
+
+    private static String makeAppStudyKey(String appId, String studyId) {
+        return appId + ":" + studyId;
+    }
+
+    /**
+     * Gets the number of lines of its input file the given worker has already finished for the given checkpoint key.
+     * Returns 0 if there's no checkpoint.
+     */
+    public int getWorkerCheckpoint(String workerId, String checkpointKey) {
+        Item item = ddbWorkerCheckpointTable.getItem(KEY_WORKER_ID, workerId, KEY_CHECKPOINT_KEY, checkpointKey);
+        if (item == null) {
+            return 0;
+        }
+        return item.getInt(KEY_LINE_OFFSET);
+    }
+
+    /** Saves the worker checkpoint, overwriting the previous checkpoint. */
+    public void writeWorkerCheckpoint(String workerId, String checkpointKey, int lineOffset) {
+        Item item = new Item().withPrimaryKey(KEY_WORKER_ID, workerId, KEY_CHECKPOINT_KEY, checkpointKey)
+                .withInt(KEY_LINE_OFFSET, lineOffset).withLong(KEY_UPDATED_ON, DateTime.now().getMillis());
+        ddbWorkerCheckpointTable.putItem(item);
+    }
+
+    /** Deletes the worker checkpoint. Called when the worker finishes, so that the next run starts from the top. */
+    public void deleteWorkerCheckpoint(String workerId, String checkpointKey) {
+        ddbWorkerCheckpointTable.deleteItem(KEY_WORKER_ID, workerId, KEY_CHECKPOINT_KEY, checkpointKey);
+    }
+
     /** Writes the worker run to the worker log, with the current timestamp and the given tag. */
     public void writeWorkerLog(String workerId, String tag) {
         Item item = new Item().withPrimaryKey(KEY_WORKER_ID, workerId, KEY_FINISH_TIME,
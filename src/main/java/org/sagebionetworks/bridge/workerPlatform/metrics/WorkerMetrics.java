@@ -0,0 +1,124 @@
+package org.sagebionetworks.bridge.workerPlatform.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Metric names, tags, and helpers for the Worker Platform. All metrics go to the Micrometer global registry. Spring
+ * config adds the real registries at startup. In unit tests, the global registry has no registries attached, so
+ * recording is a no-op unless the test attaches one.
+ */
+public class WorkerMetrics {
+    // Metric names.
+    public static final String METRIC_CALL = "worker.call";
+    public static final String METRIC_COUNT = "worker.count";
+    public static final String METRIC_REQUEST = "worker.request";
+    public static final String METRIC_REQUEST_QUEUE_WAIT = "worker.request.queueWait";
+    public static final String METRIC_REQUEST_REJECTED = "worker.request.rejected";
+    public static final String METRIC_SQS_BATCH_SIZE = "worker.sqs.batchSize";
+
+    // Tag names.
+    public static final String TAG_APP = "app";
+    public static final String TAG_DEPENDENCY = "dependency";
+    public static final String TAG_NAME = "name";
+    public static final String TAG_OPERATION = "operation";
+    public static final String TAG_OUTCOME = "outcome";
+    public static final String TAG_SERVICE = "service";
+
+    // Tag values.
+    public static final String DEPENDENCY_BRIDGE = "bridge";
+    public static final String DEPENDENCY_SYNAPSE = "synapse";
+    public static final String OUTCOME_ERROR = "error";
+    public static final String OUTCOME_SUCCESS = "success";
+    public static final String UNKNOWN = "unknown";
+
+    // Percentiles we publish for timers and histograms.
+    private static final double[] PERCENTILES = { 0.5, 0.95, 0.99 };
+
+    /**
+     * Starts timing a call to an external dependency (Bridge, Synapse). Use with try-with-resources, and mark the call
+     * with {@link TimedCall#success} at the end of the try block (or return through it), so that calls that throw are
+     * tagged as errors.
+     */
+    public static TimedCall startCall(String dependency, String operation) {
+        return new TimedCall(dependency, operation);
+    }
+
+    /** Starts timing a call to Synapse. */
+    public static TimedCall startSynapseCall(String operation) {
+        return startCall(DEPENDENCY_SYNAPSE, operation);
+    }
+
+    /** Records a call to an external dependency. */
+    public static void recordCall(String dependency, String operation, String outcome, long nanos) {
+        Timer.builder(METRIC_CALL).tag(TAG_DEPENDENCY, dependency).tag(TAG_OPERATION, operation)
+                .tag(TAG_OUTCOME, outcome).publishPercentiles(PERCENTILES).register(Metrics.globalRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Records a worker request, tagged by service, app, and outcome. */
+    public static void recordRequest(String service, String appId, String outcome, long nanos) {
+        Timer.builder(METRIC_REQUEST).tag(TAG_SERVICE, service).tag(TAG_APP, valueOrUnknown(appId))
+                .tag(TAG_OUTCOME, outcome).publishPercentiles(PERCENTILES).register(Metrics.globalRegistry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Records how long a request waited for a thread in its service's executor. */
+    public static void recordQueueWait(String service, long nanos) {
+        Timer.builder(METRIC_REQUEST_QUEUE_WAIT).tag(TAG_SERVICE, service).publishPercentiles(PERCENTILES)
+                .register(Metrics.globalRegistry).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Counts a request that was rejected because its service was at capacity. */
+    public static void incrementRejected(String service) {
+        Metrics.counter(METRIC_REQUEST_REJECTED, TAG_SERVICE, service).increment();
+    }
+
+    /** Generic counter, for worker-specific counts (eg upload redrive statuses). */
+    public static void incrementCount(String service, String name, long amount) {
+        Metrics.counter(METRIC_COUNT, TAG_SERVICE, service, TAG_NAME, name).increment(amount);
+    }
+
+    /** Records a value in a histogram. */
+    public static void recordDistribution(String metricName, String service, double value) {
+        DistributionSummary.builder(metricName).tag(TAG_SERVICE, service).publishPercentiles(PERCENTILES)
+                .register(Metrics.globalRegistry).record(value);
+    }
+
+    private static String valueOrUnknown(String value) {
+        return value != null ? value : UNKNOWN;
+    }
+
+    /** Times a single call to an external dependency. */
+    public static class TimedCall implements AutoCloseable {
+        private final String dependency;
+        private final String operation;
+        private final long startNanos = System.nanoTime();
+        private boolean success = false;
+
+        private TimedCall(String dependency, String operation) {
+            this.dependency = dependency;
+            this.operation = operation;
+        }
+
+        /** Marks the call as successful. Calls that are closed without this are recorded as errors. */
+        public void success() {
+            this.success = true;
+        }
+
+        /** Marks the call as successful and passes through the result, so it can be used in a return statement. */
+        public <T> T success(T result) {
+            this.success = true;
+            return result;
+        }
+
+        @Override
+        public void close() {
+            recordCall(dependency, operation, success ? OUTCOME_SUCCESS : OUTCOME_ERROR,
+                    System.nanoTime() - startNanos);
+        }
+    }
+}
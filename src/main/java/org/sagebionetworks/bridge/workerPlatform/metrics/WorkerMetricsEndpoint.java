@@ -0,0 +1,64 @@
+package org.sagebionetworks.bridge.workerPlatform.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.annotation.Resource;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Measurement;
+import io.micrometer.core.instrument.Tag;
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+import org.springframework.stereotype.Component;
+
+/**
+ * Actuator endpoint that dumps all worker metrics as JSON, at /workermetrics. Each metric name maps to a list of
+ * entries, one per tag combination, with the tags and the current measurements (count, total time, max,
+ * percentiles).
+ */
+@Component
+public class WorkerMetricsEndpoint extends AbstractEndpoint<Map<String, List<Map<String, Object>>>> {
+    static final String ENDPOINT_ID = "workermetrics";
+    static final String KEY_MEASUREMENTS = "measurements";
+    static final String KEY_TAGS = "tags";
+
+    private MeterRegistry meterRegistry;
+
+    public WorkerMetricsEndpoint() {
+        // Not sensitive. These are counts and timings, tagged by service and app ID.
+        super(ENDPOINT_ID, false);
+    }
+
+    /** Cumulative registry that backs this endpoint. */
+    @Resource(name = "workerMeterRegistry")
+    public final void setMeterRegistry(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public Map<String, List<Map<String, Object>>> invoke() {
+        // Sort by name, so the output is stable and easy to read.
+        Map<String, List<Map<String, Object>>> metricsByName = new TreeMap<>();
+        for (Meter meter : meterRegistry.getMeters()) {
+            Map<String, String> tagMap = new TreeMap<>();
+            for (Tag tag : meter.getId().getTags()) {
+                tagMap.put(tag.getKey(), tag.getValue());
+            }
+
+            Map<String, Object> measurementMap = new LinkedHashMap<>();
+            for (Measurement measurement : meter.measure()) {
+                measurementMap.put(measurement.getStatistic().getTagValueRepresentation(), measurement.getValue());
+            }
+
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put(KEY_TAGS, tagMap);
+            entry.put(KEY_MEASUREMENTS, measurementMap);
+            metricsByName.computeIfAbsent(meter.getId().getName(), name -> new ArrayList<>()).add(entry);
+        }
+        return metricsByName;
+    }
+}
@@ -0,0 +1,316 @@
+package org.sagebionetworks.bridge.workerPlatform.multiplexer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import org.joda.time.DateTimeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerRetryableException;
+import org.sagebionetworks.bridge.workerPlatform.metrics.WorkerMetrics;
+
+/**
+ * Alternative to PollSqsWorker that long-polls for up to 10 messages at a time and hands them to the callback's
+ * per-service executors without waiting on them, so no thread is tied up while a request runs. Each message is acked
+ * when its request completes. Messages that succeed (or are bad requests and will never succeed) are deleted in
+ * batches. Messages that are rejected as retryable (including a service being at capacity) are made visible again
+ * after a short retry delay. Messages that fail for any other reason are left on the queue and will be redelivered
+ * after the visibility timeout.
+ *
+ * The poll interval adapts to how full the last receive was. A full batch means the queue is backed up, so we poll
+ * again immediately. A partial or empty batch means the queue is (nearly) drained, so we back off up to the max sleep
+ * time.
+ */
+public class BatchSqsWorker implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(BatchSqsWorker.class);
+
+    // SQS limits.
+    static final int MAX_MESSAGES_PER_RECEIVE = 10;
+    static final int MAX_ENTRIES_PER_DELETE_BATCH = 10;
+
+    // Used to tag batch size metrics.
+    static final String METRICS_SERVICE_NAME = "BatchSqsWorker";
+
+    // If all in-flight slots are busy, wait this long before checking again.
+    static final long FULL_WAIT_MILLIS = 100;
+
+    private BridgeWorkerPlatformSqsCallback callback;
+    private int maxInFlight = MAX_MESSAGES_PER_RECEIVE;
+    private long maxSleepTimeMillis;
+    private String queueUrl;
+    private int retryDelaySeconds;
+    private AmazonSQS sqsClient;
+    private VisibilityTimeoutExtender visibilityTimeoutExtender;
+    private int waitTimeSeconds = 20;
+
+    private final Queue<String> pendingDeleteReceiptHandles = new ConcurrentLinkedQueue<>();
+    private Semaphore inFlightPermits = new Semaphore(maxInFlight);
+    private volatile boolean shouldStop = false;
+
+    /** Callback that processes each message. */
+    public final void setCallback(BridgeWorkerPlatformSqsCallback callback) {
+        this.callback = callback;
+    }
+
+    /** Max number of messages being processed at once. We never receive more messages than we have room for. */
+    public final void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        this.inFlightPermits = new Semaphore(maxInFlight);
+    }
+
+    /** Max time to sleep between polls, used when the queue is empty. */
+    public final void setMaxSleepTimeMillis(long maxSleepTimeMillis) {
+        this.maxSleepTimeMillis = maxSleepTimeMillis;
+    }
+
+    /** SQS queue URL to poll. */
+    public final void setQueueUrl(String queueUrl) {
+        this.queueUrl = queueUrl;
+    }
+
+    /**
+     * How long a message rejected as retryable stays invisible before it's redelivered, in seconds. 0 makes it
+     * visible right away.
+     */
+    public final void setRetryDelaySeconds(int retryDelaySeconds) {
+        this.retryDelaySeconds = retryDelaySeconds;
+    }
+
+    /** SQS client. */
+    public final void setSqsClient(AmazonSQS sqsClient) {
+        this.sqsClient = sqsClient;
+    }
+
+    /**
+     * Optional. If set, each message's visibility timeout is extended for as long as the callback is running, so
+     * long-running requests aren't redelivered to another worker.
+     */
+    public final void setVisibilityTimeoutExtender(VisibilityTimeoutExtender visibilityTimeoutExtender) {
+        this.visibilityTimeoutExtender = visibilityTimeoutExtender;
+    }
+
+    /** Long poll wait time. Max 20 seconds. */
+    public final void setWaitTimeSeconds(int waitTimeSeconds) {
+        this.waitTimeSeconds = waitTimeSeconds;
+    }
+
+    /** Signals the worker to stop after the current poll. */
+    public void stop() {
+        shouldStop = true;
+    }
+
+    @Override
+    public void run() {
+        LOG.info("Starting batch SQS worker for queue " + queueUrl + " with maxInFlight=" + maxInFlight);
+        while (!shouldStop) {
+            try {
+                long sleepMillis = pollOnce();
+                if (sleepMillis > 0) {
+                    Thread.sleep(sleepMillis);
+                }
+            } catch (InterruptedException ex) {
+                LOG.warn("Batch SQS worker interrupted, stopping");
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException ex) {
+                // Don't let a transient SQS error kill the worker thread.
+                LOG.error("Error polling SQS queue " + queueUrl + ": " + ex.getMessage(), ex);
+                try {
+                    Thread.sleep(maxSleepTimeMillis);
+                } catch (InterruptedException iex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        flushDeletes();
+    }
+
+    /**
+     * Receives one batch of messages, dispatches them, and flushes any completed deletes. Returns the number of
+     * milliseconds to sleep before the next poll. Package-scoped for unit tests.
+     */
+    long pollOnce() {
+        // Delete anything that finished since the last poll.
+        flushDeletes();
+
+        // Only receive as many messages as we have free slots for, so messages don't sit received-but-unprocessed
+        // and burn their visibility timeout.
+        int freeSlots = Math.min(MAX_MESSAGES_PER_RECEIVE, inFlightPermits.availablePermits());
+        if (freeSlots <= 0) {
+            return FULL_WAIT_MILLIS;
+        }
+        if (!inFlightPermits.tryAcquire(freeSlots)) {
+            return FULL_WAIT_MILLIS;
+        }
+
+        List<Message> messageList;
+        long receivedMillis = DateTimeUtils.currentTimeMillis();
+        try {
+            ReceiveMessageRequest receiveRequest = new ReceiveMessageRequest().withQueueUrl(queueUrl)
+                    .withMaxNumberOfMessages(freeSlots).withWaitTimeSeconds(waitTimeSeconds);
+            if (visibilityTimeoutExtender != null) {
+                // Use the same timeout as the heartbeat, so the first heartbeat lands well before it expires.
+                receiveRequest.setVisibilityTimeout(visibilityTimeoutExtender.getVisibilityTimeoutSeconds());
+            }
+            ReceiveMessageResult receiveResult = sqsClient.receiveMessage(receiveRequest);
+            messageList = receiveResult.getMessages();
+        } catch (RuntimeException ex) {
+            inFlightPermits.release(freeSlots);
+            throw ex;
+        }
+
+        // Give back the slots we didn't use.
+        int numMessages = messageList != null ? messageList.size() : 0;
+        if (numMessages < freeSlots) {
+            inFlightPermits.release(freeSlots - numMessages);
+        }
+
+        WorkerMetrics.recordDistribution(WorkerMetrics.METRIC_SQS_BATCH_SIZE, METRICS_SERVICE_NAME, numMessages);
+        if (numMessages > 0) {
+            for (Message message : messageList) {
+                processMessage(message, receivedMillis);
+            }
+        }
+
+        return computeSleepMillis(numMessages, freeSlots);
+    }
+
+    // Package-scoped for unit tests.
+    long computeSleepMillis(int numReceived, int numRequested) {
+        if (numReceived >= numRequested) {
+            // Queue is backed up. Poll again right away.
+            return 0;
+        }
+        // Scale the sleep by how empty the batch was.
+        return maxSleepTimeMillis * (numRequested - numReceived) / numRequested;
+    }
+
+    /**
+     * Hands the message to the callback. The in-flight slot is released, and the message acked, once the request
+     * completes. receivedMillis is when the receive call was made. Package-scoped for unit tests.
+     */
+    void processMessage(Message message, long receivedMillis) {
+        String messageId = message.getMessageId();
+        VisibilityTimeoutExtender.Lease lease = null;
+        if (visibilityTimeoutExtender != null) {
+            lease = visibilityTimeoutExtender.startLease(queueUrl, messageId, message.getReceiptHandle(),
+                    receivedMillis);
+        }
+
+        CompletableFuture<Void> future;
+        try {
+            future = callback.callbackAsync(message.getBody());
+        } catch (RuntimeException ex) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(ex);
+        }
+
+        VisibilityTimeoutExtender.Lease finalLease = lease;
+        future.whenComplete((result, throwable) -> {
+            try {
+                // Stop the heartbeat first, so it doesn't undo a retry delay.
+                if (finalLease != null) {
+                    finalLease.close();
+                }
+                onComplete(message, throwable);
+            } finally {
+                inFlightPermits.release();
+            }
+        });
+    }
+
+    private void onComplete(Message message, Throwable throwable) {
+        String messageId = message.getMessageId();
+        if (throwable instanceof CompletionException && throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+
+        if (throwable == null) {
+            pendingDeleteReceiptHandles.add(message.getReceiptHandle());
+        } else if (throwable instanceof PollSqsWorkerBadRequestException) {
+            // This will never succeed. Delete it so it doesn't keep getting redelivered.
+            LOG.error("Bad request for SQS message " + messageId + ": " + throwable.getMessage(), throwable);
+            pendingDeleteReceiptHandles.add(message.getReceiptHandle());
+        } else if (throwable instanceof PollSqsWorkerRetryableException) {
+            // Don't make the message wait out the whole visibility timeout. It's usually a capacity rejection, which
+            // clears up as soon as a request finishes.
+            LOG.warn("Retryable error for SQS message " + messageId + ": " + throwable.getMessage());
+            changeVisibility(message, retryDelaySeconds);
+        } else {
+            LOG.error("Error processing SQS message " + messageId + ": " + throwable.getMessage(), throwable);
+        }
+    }
+
+    private void changeVisibility(Message message, int visibilityTimeoutSeconds) {
+        try {
+            sqsClient.changeMessageVisibility(new ChangeMessageVisibilityRequest().withQueueUrl(queueUrl)
+                    .withReceiptHandle(message.getReceiptHandle()).withVisibilityTimeout(visibilityTimeoutSeconds));
+        } catch (AmazonClientException ex) {
+            // The message will still be redelivered, just after the full visibility timeout.
+            LOG.error("Error changing visibility for SQS message " + message.getMessageId() + ": " +
+                    ex.getMessage(), ex);
+        }
+    }
+
+    /** Deletes all completed messages, in batches of up to 10. Package-scoped for unit tests. */
+    void flushDeletes() {
+        List<String> receiptHandleList = new ArrayList<>();
+        String receiptHandle;
+        while ((receiptHandle = pendingDeleteReceiptHandles.poll()) != null) {
+            receiptHandleList.add(receiptHandle);
+            if (receiptHandleList.size() >= MAX_ENTRIES_PER_DELETE_BATCH) {
+                deleteBatch(receiptHandleList);
+                receiptHandleList = new ArrayList<>();
+            }
+        }
+        if (!receiptHandleList.isEmpty()) {
+            deleteBatch(receiptHandleList);
+        }
+    }
+
+    private void deleteBatch(List<String> receiptHandleList) {
+        List<DeleteMessageBatchRequestEntry> entryList = new ArrayList<>();
+        for (int i = 0; i < receiptHandleList.size(); i++) {
+            // Entry IDs only need to be unique within the batch.
+            entryList.add(new DeleteMessageBatchRequestEntry(String.valueOf(i), receiptHandleList.get(i)));
+        }
+
+        try {
+            DeleteMessageBatchResult result = sqsClient.deleteMessageBatch(new DeleteMessageBatchRequest()
+                    .withQueueUrl(queueUrl).withEntries(entryList));
+            if (result.getFailed() != null) {
+                for (BatchResultErrorEntry errorEntry : result.getFailed()) {
+                    LOG.error("Failed to delete SQS message from queue " + queueUrl + ": " + errorEntry.getCode() +
+                            " " + errorEntry.getMessage());
+                }
+            }
+        } catch (AmazonClientException ex) {
+            // If the delete fails, the messages will be redelivered. This is the same as if the worker had crashed.
+            LOG.error("Error deleting " + entryList.size() + " SQS messages from queue " + queueUrl + ": " +
+                    ex.getMessage(), ex);
+        }
+    }
+
+    // Package-scoped for unit tests.
+    int getAvailableSlots() {
+        return inFlightPermits.availablePermits();
+    }
+}
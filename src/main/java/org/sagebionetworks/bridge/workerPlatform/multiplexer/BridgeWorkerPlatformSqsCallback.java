@@ -2,21 +2,41 @@ package org.sagebionetworks.bridge.workerPlatform.multiplexer;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Joiner;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.sagebionetworks.bridge.sqs.PollSqsCallback;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerRetryableException;
 import org.sagebionetworks.bridge.worker.ThrowingConsumer;
+import org.sagebionetworks.bridge.workerPlatform.metrics.WorkerMetrics;
 
 /**
  * SQS callback. Called by the PollSqsWorker. This handles a reporting request.
+ *
+ * Each service gets its own bounded executor, so that a burst of long-running requests for one service (eg UDD or
+ * FitBit) can't take every thread and starve the others. If a service's executor and queue are both full, the request
+ * is rejected with a retryable exception, so the message goes back to SQS instead of blocking the poller.
+ *
+ * The batch SQS worker uses {@link #callbackAsync}, which never blocks. The PollSqsWorker uses {@link #callback}, which
+ * blocks until the request is done, so its dispatch pool is sized by {@link #getMaxAdmittedRequests}.
  */
 @Component
 public class BridgeWorkerPlatformSqsCallback implements PollSqsCallback {
@@ -24,22 +44,88 @@ public class BridgeWorkerPlatformSqsCallback implements PollSqsCallback {
 
     private static final Joiner COMMA_SPACE_JOINER = Joiner.on(", ").useForNull("");
 
+    // Per-service limits are configured as workerPlatform.service.[serviceName].max.concurrent and
+    // workerPlatform.service.[serviceName].queue.depth. Services without their own settings fall back to the defaults.
+    static final String CONFIG_KEY_PREFIX = "workerPlatform.service.";
+    static final String CONFIG_KEY_SUFFIX_MAX_CONCURRENT = ".max.concurrent";
+    static final String CONFIG_KEY_SUFFIX_QUEUE_DEPTH = ".queue.depth";
+    static final String CONFIG_SERVICE_DEFAULT = "default";
+    static final int DEFAULT_MAX_CONCURRENT = 4;
+    static final int DEFAULT_QUEUE_DEPTH = 0;
+
+    // Most requests have an appId at the top level of the body. We use this to tag metrics.
+    static final String KEY_APP_ID = "appId";
+
+    private final Map<String, ThreadPoolExecutor> executorsByServiceName = new ConcurrentHashMap<>();
+    private Config config;
     private Map<String, ThrowingConsumer<JsonNode>> workersByServiceName;
 
+    @Autowired
+    public final void setConfig(Config config) {
+        this.config = config;
+    }
+
     @Autowired
     public final void setWorkersByServiceName(Map<String, ThrowingConsumer<JsonNode>> workersByServiceName) {
         LOG.info("Workers: " + COMMA_SPACE_JOINER.join(workersByServiceName.keySet()));
         this.workersByServiceName = workersByServiceName;
     }
 
-    /** Parses the SQS message. */
+    /**
+     * The most requests that can be admitted at once, across all services: each service's max concurrent plus its
+     * queue depth. {@link #callback} blocks its calling thread for as long as the request is admitted, so the pool
+     * that calls it needs at least this many threads, or long-running services can take every thread and starve the
+     * others.
+     */
+    public int getMaxAdmittedRequests() {
+        int total = 0;
+        for (String service : workersByServiceName.keySet()) {
+            total += getMaxConcurrent(service) + getQueueDepth(service);
+        }
+        return total;
+    }
+
+    /**
+     * Runs the request and waits for it to finish. Used by the PollSqsWorker, which needs the outcome before it
+     * deletes the message. Exceptions are the same ones the worker threw.
+     */
     @Override
     public void callback(String messageBody) throws Exception {
+        CompletableFuture<Void> future = callbackAsync(messageBody);
+        try {
+            future.get();
+        } catch (ExecutionException ex) {
+            // Unwrap, so the PollSqsWorker sees the same exception the worker threw.
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw ex;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new PollSqsWorkerRetryableException("Interrupted waiting for request");
+        }
+    }
+
+    /**
+     * Parses the SQS message and hands it to its service's executor, without waiting for it to run. The returned
+     * future completes when the request is done. It fails with PollSqsWorkerBadRequestException if the message is
+     * invalid, PollSqsWorkerRetryableException if the service is at capacity, or whatever the worker threw.
+     */
+    public CompletableFuture<Void> callbackAsync(String messageBody) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+
         BridgeWorkerPlatformRequest request;
         try {
             request = DefaultObjectMapper.INSTANCE.readValue(messageBody, BridgeWorkerPlatformRequest.class);
         } catch (IOException ex) {
-            throw new PollSqsWorkerBadRequestException("Error parsing request: " + ex.getMessage(), ex);
+            future.completeExceptionally(new PollSqsWorkerBadRequestException("Error parsing request: " +
+                    ex.getMessage(), ex));
+            return future;
         }
 
         String service = request.getService();
@@ -48,9 +134,87 @@ public class BridgeWorkerPlatformSqsCallback implements PollSqsCallback {
         ThrowingConsumer<JsonNode> worker = workersByServiceName.get(service);
         if (worker != null) {
             LOG.info("Received request for service=" + service);
-            worker.accept(body);
+            runOnServiceExecutor(service, worker, body, future);
         } else {
-            throw new PollSqsWorkerBadRequestException("Invalid service " + service);
+            future.completeExceptionally(new PollSqsWorkerBadRequestException("Invalid service " + service));
+        }
+        return future;
+    }
+
+    private void runOnServiceExecutor(String service, ThrowingConsumer<JsonNode> worker, JsonNode body,
+            CompletableFuture<Void> future) {
+        ThreadPoolExecutor executor = executorsByServiceName.computeIfAbsent(service, this::createExecutor);
+
+        String appId = body != null && body.hasNonNull(KEY_APP_ID) ? body.get(KEY_APP_ID).asText() : null;
+        long admittedNanos = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                long startNanos = System.nanoTime();
+                long queueWaitNanos = startNanos - admittedNanos;
+                WorkerMetrics.recordQueueWait(service, queueWaitNanos);
+
+                boolean success = false;
+                try {
+                    worker.accept(body);
+                    success = true;
+                    future.complete(null);
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                } finally {
+                    long runNanos = System.nanoTime() - startNanos;
+                    WorkerMetrics.recordRequest(service, appId, success ? WorkerMetrics.OUTCOME_SUCCESS :
+                            WorkerMetrics.OUTCOME_ERROR, runNanos);
+                    LOG.info("Service=" + service + " queueWaitMillis=" +
+                            TimeUnit.NANOSECONDS.toMillis(queueWaitNanos) + " runMillis=" +
+                            TimeUnit.NANOSECONDS.toMillis(runNanos) + " success=" + success);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            WorkerMetrics.incrementRejected(service);
+            LOG.warn("Service=" + service + " is at capacity, returning request to queue");
+            future.completeExceptionally(new PollSqsWorkerRetryableException("Service " + service +
+                    " is at capacity"));
+        }
+    }
+
+    private ThreadPoolExecutor createExecutor(String service) {
+        int maxConcurrent = getMaxConcurrent(service);
+        int queueDepth = getQueueDepth(service);
+        LOG.info("Creating executor for service=" + service + " maxConcurrent=" + maxConcurrent + " queueDepth=" +
+                queueDepth);
+
+        // A queue depth of 0 means no queueing. Requests are only admitted if a thread is free.
+        BlockingQueue<Runnable> queue = queueDepth > 0 ? new ArrayBlockingQueue<>(queueDepth) :
+                new SynchronousQueue<>();
+        return new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 0L, TimeUnit.MILLISECONDS, queue,
+                new ThreadFactoryBuilder().setNameFormat("worker-" + service + "-%d").build(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    private int getMaxConcurrent(String service) {
+        return Math.max(1, getServiceConfigInt(service, CONFIG_KEY_SUFFIX_MAX_CONCURRENT, DEFAULT_MAX_CONCURRENT));
+    }
+
+    private int getQueueDepth(String service) {
+        return Math.max(0, getServiceConfigInt(service, CONFIG_KEY_SUFFIX_QUEUE_DEPTH, DEFAULT_QUEUE_DEPTH));
+    }
+
+    private int getServiceConfigInt(String service, String suffix, int defaultValue) {
+        if (config == null) {
+            return defaultValue;
+        }
+        String value = config.get(CONFIG_KEY_PREFIX + service + suffix);
+        if (value == null) {
+            value = config.get(CONFIG_KEY_PREFIX + CONFIG_SERVICE_DEFAULT + suffix);
+        }
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException ex) {
+            LOG.error("Invalid config value " + value + " for service=" + service + suffix);
+            return defaultValue;
         }
     }
 }
@@ -0,0 +1,85 @@
+package org.sagebionetworks.bridge.workerPlatform.multiplexer;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.amazonaws.services.sqs.model.Message;
+import org.joda.time.DateTimeUtils;
+
+import org.sagebionetworks.bridge.sqs.PollSqsCallback;
+import org.sagebionetworks.bridge.sqs.SqsHelper;
+
+/**
+ * SqsHelper for a PollSqsWorker, which keeps each message it receives invisible while the message is processed, the
+ * same way BatchSqsWorker does. PollSqsWorker only passes the message body to its callback, so the callback must be
+ * wrapped with {@link #wrapCallback}, which finds the message's lease by its body and closes it once the callback
+ * returns or throws.
+ */
+public class LeasingSqsHelper extends SqsHelper {
+    // Messages with the same body are the same request, so it doesn't matter which of their leases we close.
+    private final Map<String, Deque<VisibilityTimeoutExtender.Lease>> leasesByBody = new HashMap<>();
+    private VisibilityTimeoutExtender visibilityTimeoutExtender;
+
+    /** Extends the visibility of messages while they're being processed. */
+    public final void setVisibilityTimeoutExtender(VisibilityTimeoutExtender visibilityTimeoutExtender) {
+        this.visibilityTimeoutExtender = visibilityTimeoutExtender;
+    }
+
+    /** Receives a message and starts extending its visibility. */
+    @Override
+    public Message poll(String sqsQueueUrl) {
+        long receivedMillis = DateTimeUtils.currentTimeMillis();
+        Message message = super.poll(sqsQueueUrl);
+        if (message != null) {
+            VisibilityTimeoutExtender.Lease lease = visibilityTimeoutExtender.startLease(sqsQueueUrl,
+                    message.getMessageId(), message.getReceiptHandle(), receivedMillis);
+
+            // We don't control the visibility timeout of the receive, and the queue's might be shorter than the
+            // heartbeat period. Extend right away.
+            lease.extend();
+            addLease(message.getBody(), lease);
+        }
+        return message;
+    }
+
+    /** Wraps the callback so that each message's lease is closed when its callback finishes. */
+    public PollSqsCallback wrapCallback(PollSqsCallback callback) {
+        return messageBody -> {
+            try {
+                callback.callback(messageBody);
+            } finally {
+                VisibilityTimeoutExtender.Lease lease = removeLease(messageBody);
+                if (lease != null) {
+                    lease.close();
+                }
+            }
+        };
+    }
+
+    private synchronized void addLease(String messageBody, VisibilityTimeoutExtender.Lease lease) {
+        leasesByBody.computeIfAbsent(messageBody, key -> new ArrayDeque<>()).add(lease);
+    }
+
+    private synchronized VisibilityTimeoutExtender.Lease removeLease(String messageBody) {
+        Deque<VisibilityTimeoutExtender.Lease> leaseDeque = leasesByBody.get(messageBody);
+        if (leaseDeque == null) {
+            return null;
+        }
+        VisibilityTimeoutExtender.Lease lease = leaseDeque.poll();
+        if (leaseDeque.isEmpty()) {
+            leasesByBody.remove(messageBody);
+        }
+        return lease;
+    }
+
+    // Package-scoped for unit tests.
+    synchronized int getNumOpenLeases() {
+        int numLeases = 0;
+        for (Deque<VisibilityTimeoutExtender.Lease> leaseDeque : leasesByBody.values()) {
+            numLeases += leaseDeque.size();
+        }
+        return numLeases;
+    }
+}
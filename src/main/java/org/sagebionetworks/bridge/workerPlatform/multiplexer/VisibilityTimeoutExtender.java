@@ -0,0 +1,142 @@
+package org.sagebionetworks.bridge.workerPlatform.multiplexer;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import org.joda.time.DateTimeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps an in-flight SQS message invisible while it's still being processed. Long-running requests (UDD, Upload CSV,
+ * FitBit) can outlast the queue's visibility timeout, at which point SQS redelivers the message and another node
+ * starts the same job. While a lease is open, we periodically push the message's visibility timeout out again. Closing
+ * the lease stops the heartbeat.
+ *
+ * SQS caps the total visibility of a message at 12 hours from when it was first received, so we stop extending once
+ * we hit that.
+ */
+public class VisibilityTimeoutExtender {
+    private static final Logger LOG = LoggerFactory.getLogger(VisibilityTimeoutExtender.class);
+
+    // SQS max visibility timeout, measured from the original receive.
+    static final long MAX_VISIBILITY_MILLIS = TimeUnit.HOURS.toMillis(12);
+
+    // Don't heartbeat more often than this, even with a very short visibility timeout.
+    static final long MIN_PERIOD_MILLIS = 1000;
+
+    private ScheduledExecutorService scheduledExecutorService;
+    private AmazonSQS sqsClient;
+    private int visibilityTimeoutSeconds;
+
+    /** Executor that runs the heartbeats. A single thread is plenty. */
+    public final void setScheduledExecutorService(ScheduledExecutorService scheduledExecutorService) {
+        this.scheduledExecutorService = scheduledExecutorService;
+    }
+
+    /** SQS client. */
+    public final void setSqsClient(AmazonSQS sqsClient) {
+        this.sqsClient = sqsClient;
+    }
+
+    /**
+     * Visibility timeout, in seconds. Each heartbeat sets the message's visibility to this value, and heartbeats run
+     * at half this interval, so the message never becomes visible while the lease is open.
+     */
+    public final void setVisibilityTimeoutSeconds(int visibilityTimeoutSeconds) {
+        this.visibilityTimeoutSeconds = visibilityTimeoutSeconds;
+    }
+
+    /** Visibility timeout, in seconds. */
+    public int getVisibilityTimeoutSeconds() {
+        return visibilityTimeoutSeconds;
+    }
+
+    /**
+     * Starts extending visibility for the given message. receivedMillis is when the message was received, which is
+     * what SQS measures its 12 hour cap from. The caller must close the returned lease when processing is done,
+     * whether or not it succeeded.
+     */
+    public Lease startLease(String queueUrl, String messageId, String receiptHandle, long receivedMillis) {
+        long periodMillis = Math.max(MIN_PERIOD_MILLIS, TimeUnit.SECONDS.toMillis(visibilityTimeoutSeconds) / 2);
+        Lease lease = new Lease(queueUrl, messageId, receiptHandle, receivedMillis);
+        lease.future = scheduledExecutorService.scheduleAtFixedRate(lease::extend, periodMillis, periodMillis,
+                TimeUnit.MILLISECONDS);
+        return lease;
+    }
+
+    /** An open lease on an in-flight message. Closing it stops the heartbeat. */
+    public class Lease implements AutoCloseable {
+        private final String queueUrl;
+        private final String messageId;
+        private final String receiptHandle;
+        private final long startMillis;
+        private volatile ScheduledFuture<?> future;
+        private volatile boolean closed = false;
+        private final AtomicInteger numExtensions = new AtomicInteger();
+
+        private Lease(String queueUrl, String messageId, String receiptHandle, long startMillis) {
+            this.queueUrl = queueUrl;
+            this.messageId = messageId;
+            this.receiptHandle = receiptHandle;
+            this.startMillis = startMillis;
+        }
+
+        // Package-scoped for unit tests.
+        void extend() {
+            if (closed) {
+                return;
+            }
+
+            // Don't ask for more than SQS will give us. If we're near the limit, give up and let the message be
+            // redelivered.
+            long elapsedMillis = DateTimeUtils.currentTimeMillis() - startMillis;
+            long remainingMillis = MAX_VISIBILITY_MILLIS - elapsedMillis;
+            int timeoutSeconds = (int) Math.min(visibilityTimeoutSeconds,
+                    TimeUnit.MILLISECONDS.toSeconds(remainingMillis));
+            if (timeoutSeconds <= 0) {
+                LOG.warn("SQS message " + messageId + " has reached the max visibility timeout, no longer extending");
+                cancel();
+                return;
+            }
+
+            try {
+                sqsClient.changeMessageVisibility(new ChangeMessageVisibilityRequest().withQueueUrl(queueUrl)
+                        .withReceiptHandle(receiptHandle).withVisibilityTimeout(timeoutSeconds));
+                numExtensions.incrementAndGet();
+            } catch (AmazonClientException ex) {
+                // This can happen if the message was deleted between the close check and the call. Either way, the
+                // next heartbeat will try again.
+                LOG.warn("Error extending visibility for SQS message " + messageId + ": " + ex.getMessage(), ex);
+            }
+        }
+
+        /** Number of times the lease has been successfully extended. */
+        public int getNumExtensions() {
+            return numExtensions.get();
+        }
+
+        private void cancel() {
+            ScheduledFuture<?> scheduledFuture = future;
+            if (scheduledFuture != null) {
+                scheduledFuture.cancel(false);
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            cancel();
+            int extensions = numExtensions.get();
+            if (extensions > 0) {
+                LOG.info("Extended visibility for SQS message " + messageId + " " + extensions + " times over " +
+                        TimeUnit.MILLISECONDS.toSeconds(DateTimeUtils.currentTimeMillis() - startMillis) + " seconds");
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.sagebionetworks.bridge.workerPlatform.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.io.ByteStreams;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Streaming reads and writes to S3, for files that we don't want to write to local disk. S3Helper only deals in files
+ * and strings, so this fills in the gap.
+ */
+@Component
+public class S3StreamHelper {
+    // S3 requires at least 5 MB for every part except the last. Each upload buffers one part in memory.
+    static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+
+    private int partSize = DEFAULT_PART_SIZE;
+    private AmazonS3 s3Client;
+
+    // Part size for multipart uploads. Package-scoped for unit tests.
+    void setPartSize(int partSize) {
+        this.partSize = partSize;
+    }
+
+    /** S3 client. */
+    @Autowired
+    public final void setS3Client(AmazonS3 s3Client) {
+        this.s3Client = s3Client;
+    }
+
+    /**
+     * Opens a stream to the content of the given S3 object. The caller must close the stream, which releases the
+     * underlying HTTP connection.
+     */
+    public InputStream getObjectStream(String bucket, String key) {
+        return s3Client.getObject(bucket, key).getObjectContent();
+    }
+
+    /**
+     * Uploads the contents of the input stream to S3, reading one part at a time. If the stream fits in a single
+     * part, this is a regular put. Otherwise, this is a multipart upload, which is aborted if anything goes wrong, so
+     * we never leave a partial object behind. This method does not close the input stream.
+     */
+    public void uploadStream(String bucket, String key, ObjectMetadata metadata, InputStream inputStream)
+            throws IOException {
+        try (S3UploadOutputStream uploadOutputStream = openUploadStream(bucket, key, metadata)) {
+            ByteStreams.copy(inputStream, uploadOutputStream);
+            uploadOutputStream.complete();
+        }
+    }
+
+    /**
+     * Opens an output stream that uploads to S3 one part at a time, as the caller writes to it. This is for callers
+     * that produce data rather than read it from somewhere, such as zip files. The caller must call
+     * {@link S3UploadOutputStream#complete} to finish the upload. Closing the stream without completing it aborts the
+     * upload.
+     */
+    public S3UploadOutputStream openUploadStream(String bucket, String key, ObjectMetadata metadata) {
+        return new S3UploadOutputStream(s3Client, bucket, key, metadata, partSize);
+    }
+}
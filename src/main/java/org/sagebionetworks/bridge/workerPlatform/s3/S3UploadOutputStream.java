@@ -0,0 +1,149 @@
+package org.sagebionetworks.bridge.workerPlatform.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Output stream that uploads to S3 as it's written to. Bytes are buffered one part at a time, and each part is
+ * uploaded as soon as the buffer fills up. If everything fits in a single part, this is a regular put.
+ *
+ * Call {@link #complete} when done writing to finish the upload. Closing the stream without calling complete() aborts
+ * the upload, so that errors partway through never leave a partial object in S3. This means it's safe to use this in
+ * a try-with-resources block. This class is not thread-safe.
+ */
+public class S3UploadOutputStream extends OutputStream {
+    private static final Logger LOG = LoggerFactory.getLogger(S3UploadOutputStream.class);
+
+    private final String bucket;
+    private final byte[] buffer;
+    private final String key;
+    private final ObjectMetadata metadata;
+    private final List<PartETag> partETagList = new ArrayList<>();
+    private final AmazonS3 s3Client;
+
+    private int bufferCount = 0;
+    private boolean closed = false;
+    private String uploadId;
+
+    // Use S3StreamHelper.openUploadStream() to create one of these.
+    S3UploadOutputStream(AmazonS3 s3Client, String bucket, String key, ObjectMetadata metadata, int partSize) {
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+        this.metadata = metadata;
+        this.buffer = new byte[partSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        buffer[bufferCount++] = (byte) b;
+        if (bufferCount == buffer.length) {
+            uploadPart();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int numBytesToCopy = Math.min(len, buffer.length - bufferCount);
+            System.arraycopy(b, off, buffer, bufferCount, numBytesToCopy);
+            bufferCount += numBytesToCopy;
+            off += numBytesToCopy;
+            len -= numBytesToCopy;
+
+            if (bufferCount == buffer.length) {
+                uploadPart();
+            }
+        }
+    }
+
+    /**
+     * Uploads whatever is left in the buffer and finishes the upload. The object is visible in S3 once this returns.
+     * If this fails, the upload is aborted. The stream is closed afterwards either way.
+     */
+    public void complete() throws IOException {
+        ensureOpen();
+        closed = true;
+
+        if (uploadId == null) {
+            // Small file. Skip the multipart overhead.
+            ObjectMetadata putMetadata = metadata.clone();
+            putMetadata.setContentLength(bufferCount);
+            s3Client.putObject(new PutObjectRequest(bucket, key, new ByteArrayInputStream(buffer, 0, bufferCount),
+                    putMetadata));
+            return;
+        }
+
+        try {
+            if (bufferCount > 0) {
+                uploadPart();
+            }
+            s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId,
+                    partETagList));
+        } catch (RuntimeException ex) {
+            abort();
+            throw ex;
+        }
+    }
+
+    /** Aborts the upload, unless {@link #complete} was already called. */
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            abort();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed for bucket=" + bucket + ", key=" + key);
+        }
+    }
+
+    private void uploadPart() {
+        if (uploadId == null) {
+            uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key, metadata))
+                    .getUploadId();
+        }
+
+        // Part numbers start at 1.
+        int partNumber = partETagList.size() + 1;
+        UploadPartRequest uploadPartRequest = new UploadPartRequest().withBucketName(bucket).withKey(key)
+                .withUploadId(uploadId).withPartNumber(partNumber)
+                .withInputStream(new ByteArrayInputStream(buffer, 0, bufferCount)).withPartSize(bufferCount);
+        partETagList.add(s3Client.uploadPart(uploadPartRequest).getPartETag());
+        bufferCount = 0;
+    }
+
+    private void abort() {
+        if (uploadId == null) {
+            // Nothing was uploaded, so there's nothing to abort.
+            return;
+        }
+
+        try {
+            s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        } catch (AmazonClientException ex) {
+            LOG.error("Error aborting multipart upload for bucket=" + bucket + ", key=" + key + ": " +
+                    ex.getMessage(), ex);
+        }
+    }
+}
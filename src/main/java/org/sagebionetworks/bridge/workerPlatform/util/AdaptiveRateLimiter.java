@@ -0,0 +1,76 @@
+package org.sagebionetworks.bridge.workerPlatform.util;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.joda.time.DateTimeUtils;
+
+/**
+ * Rate limiter that adjusts its own rate based on how the downstream service is doing. Each healthy call (one that
+ * returns within the target latency) raises the rate by 1/rate, which works out to about 1 more call per second for
+ * every second of healthy calls. A throttled call halves the rate. The rate always stays between the min and max.
+ *
+ * When several calls are in flight, one overload usually throttles all of them at once. Counting each of those would
+ * cut the rate by far more than half, so throttles within THROTTLE_COOLDOWN_MILLIS of the last cut are ignored.
+ *
+ * This is safe to share across threads.
+ */
+public class AdaptiveRateLimiter {
+    // Package-scoped for unit tests.
+    static final double BACKOFF_FACTOR = 0.5;
+    static final long THROTTLE_COOLDOWN_MILLIS = 1000;
+
+    private final double minRate;
+    private final double maxRate;
+    private final long targetLatencyMillis;
+    private final RateLimiter rateLimiter;
+    private long lastCutMillis = Long.MIN_VALUE;
+
+    /**
+     * Creates an adaptive rate limiter. Rates are in permits per second. Calls that take longer than the target latency
+     * don't raise the rate.
+     */
+    public AdaptiveRateLimiter(double initialRate, double minRate, double maxRate, long targetLatencyMillis) {
+        if (minRate <= 0.0 || minRate > maxRate) {
+            throw new IllegalArgumentException("minRate must be positive and no more than maxRate");
+        }
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.targetLatencyMillis = targetLatencyMillis;
+        this.rateLimiter = RateLimiter.create(clamp(initialRate));
+    }
+
+    /** Blocks until a permit is available. */
+    public void acquire() {
+        rateLimiter.acquire();
+    }
+
+    /** The current rate, in permits per second. */
+    public double getRate() {
+        return rateLimiter.getRate();
+    }
+
+    /** Call this when a call succeeds. If the call was fast enough, the rate goes up. */
+    public synchronized void onSuccess(long latencyMillis) {
+        if (latencyMillis <= targetLatencyMillis) {
+            double rate = rateLimiter.getRate();
+            rateLimiter.setRate(clamp(rate + 1.0 / rate));
+        }
+    }
+
+    /**
+     * Call this when the downstream service throttles a call. The rate is cut in half, unless it was already cut
+     * within the cooldown. Returns true if the rate was cut.
+     */
+    public synchronized boolean onThrottle() {
+        long nowMillis = DateTimeUtils.currentTimeMillis();
+        if (lastCutMillis != Long.MIN_VALUE && nowMillis - lastCutMillis < THROTTLE_COOLDOWN_MILLIS) {
+            return false;
+        }
+        lastCutMillis = nowMillis;
+        rateLimiter.setRate(clamp(rateLimiter.getRate() * BACKOFF_FACTOR));
+        return true;
+    }
+
+    private double clamp(double rate) {
+        return Math.max(minRate, Math.min(maxRate, rate));
+    }
+}
@@ -1,32 +1,48 @@
 package org.sagebionetworks.bridge.exporter3;
 
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.notNull;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 import com.fasterxml.jackson.databind.JsonNode;
-import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.sagebionetworks.client.exceptions.SynapseServiceUnavailable;
+import org.sagebionetworks.client.exceptions.SynapseTooManyRequestsException;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.sagebionetworks.bridge.rest.exceptions.BridgeSDKException;
-import org.sagebionetworks.bridge.s3.S3Helper;
 import org.sagebionetworks.bridge.workerPlatform.bridge.BridgeHelper;
 import org.sagebionetworks.bridge.workerPlatform.dynamodb.DynamoHelper;
+import org.sagebionetworks.bridge.workerPlatform.s3.S3StreamHelper;
 
 public class BackfillParticipantVersionsWorkerProcessorTest {
     private static final String APP_ID = "test-app";
     private static final String BACKFILL_BUCKET = "my-backfill-bucket";
+    private static final String CHECKPOINT_KEY = "test-app:my-healthcode-list";
     private static final String HEALTH_CODE_ERROR = "health-code-with-error";
     private static final String HEALTH_CODE_SUCCESS = "health-code-that-succeeds";
+    private static final String HEALTH_CODE_THROTTLED = "health-code-that-gets-throttled";
     private static final String S3KEY = "my-healthcode-list";
 
     @Mock
@@ -36,7 +52,7 @@ public class BackfillParticipantVersionsWorkerProcessorTest {
     private DynamoHelper mockDynamoHelper;
 
     @Mock
-    private S3Helper mockS3Helper;
+    private S3StreamHelper mockS3StreamHelper;
 
     @InjectMocks
     private BackfillParticipantVersionsWorkerProcessor processor;
@@ -45,32 +61,155 @@ public class BackfillParticipantVersionsWorkerProcessorTest {
     public void beforeMethod() throws Exception {
         MockitoAnnotations.initMocks(this);
 
-        // Mock config.
+        // Mock config. Rate is high so tests don't wait on the rate limiter.
         Config mockConfig = mock(Config.class);
         when(mockConfig.get(BackfillParticipantVersionsWorkerProcessor.CONFIG_KEY_BACKFILL_BUCKET)).thenReturn(
                 BACKFILL_BUCKET);
+        when(mockConfig.getInt(BackfillParticipantVersionsWorkerProcessor.CONFIG_KEY_CHECKPOINT_INTERVAL))
+                .thenReturn(2);
+        when(mockConfig.getInt(BackfillParticipantVersionsWorkerProcessor.CONFIG_KEY_MAX_CONCURRENT)).thenReturn(2);
+        when(mockConfig.getInt(BackfillParticipantVersionsWorkerProcessor.CONFIG_KEY_RATE_INITIAL)).thenReturn(1000);
+        when(mockConfig.getInt(BackfillParticipantVersionsWorkerProcessor.CONFIG_KEY_RATE_MAX)).thenReturn(1000);
+        when(mockConfig.getInt(BackfillParticipantVersionsWorkerProcessor.CONFIG_KEY_RATE_MIN)).thenReturn(100);
+        when(mockConfig.getInt(BackfillParticipantVersionsWorkerProcessor.CONFIG_KEY_TARGET_LATENCY_MILLIS))
+                .thenReturn(1000);
         processor.setConfig(mockConfig);
+
+        // Health codes are backfilled on the calling thread.
+        processor.setBackfillExecutorService(MoreExecutors.newDirectExecutorService());
     }
 
     @Test
     public void test() throws Exception {
         // Set up mocks.
-        when(mockS3Helper.readS3FileAsLines(BACKFILL_BUCKET, S3KEY)).thenReturn(ImmutableList.of(HEALTH_CODE_ERROR,
-                HEALTH_CODE_SUCCESS));
+        mockHealthCodes(HEALTH_CODE_ERROR, HEALTH_CODE_SUCCESS);
         doThrow(BridgeSDKException.class).when(mockBridgeHelper).backfillParticipantVersion(APP_ID,
                 "healthcode:" + HEALTH_CODE_ERROR);
 
-        // Set up input.
-        BackfillParticipantVersionsRequest request = new BackfillParticipantVersionsRequest();
-        request.setAppId(APP_ID);
-        request.setS3Key(S3KEY);
-        JsonNode requestNode = DefaultObjectMapper.INSTANCE.convertValue(request, JsonNode.class);
-
         // Execute and verify.
-        processor.accept(requestNode);
+        processor.accept(makeRequestNode());
         verify(mockBridgeHelper).backfillParticipantVersion(APP_ID, "healthcode:" + HEALTH_CODE_ERROR);
         verify(mockBridgeHelper).backfillParticipantVersion(APP_ID, "healthcode:" + HEALTH_CODE_SUCCESS);
-        verify(mockDynamoHelper).writeWorkerLog(eq(BackfillParticipantVersionsWorkerProcessor.WORKER_ID),
+
+        // We checkpoint every 2 health codes, and delete the checkpoint when we're done.
+        InOrder inOrder = inOrder(mockDynamoHelper);
+        inOrder.verify(mockDynamoHelper).writeWorkerCheckpoint(BackfillParticipantVersionsWorkerProcessor.WORKER_ID,
+                CHECKPOINT_KEY, 2);
+        inOrder.verify(mockDynamoHelper).deleteWorkerCheckpoint(BackfillParticipantVersionsWorkerProcessor.WORKER_ID,
+                CHECKPOINT_KEY);
+        inOrder.verify(mockDynamoHelper).writeWorkerLog(eq(BackfillParticipantVersionsWorkerProcessor.WORKER_ID),
                 notNull(String.class));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void blankLinesAreSkipped() throws Exception {
+        mockHealthCodes("", HEALTH_CODE_SUCCESS, "");
+
+        processor.accept(makeRequestNode());
+        verify(mockBridgeHelper, times(1)).backfillParticipantVersion(anyString(), anyString());
+        verify(mockBridgeHelper).backfillParticipantVersion(APP_ID, "healthcode:" + HEALTH_CODE_SUCCESS);
+    }
+
+    @Test
+    public void resumeFromCheckpoint() throws Exception {
+        // Set up mocks. A previous attempt got through the first health code.
+        mockHealthCodes(HEALTH_CODE_ERROR, HEALTH_CODE_SUCCESS);
+        when(mockDynamoHelper.getWorkerCheckpoint(BackfillParticipantVersionsWorkerProcessor.WORKER_ID,
+                CHECKPOINT_KEY)).thenReturn(1);
+
+        // Execute and verify. We only backfill the second health code.
+        processor.accept(makeRequestNode());
+        verify(mockBridgeHelper, never()).backfillParticipantVersion(APP_ID, "healthcode:" + HEALTH_CODE_ERROR);
+        verify(mockBridgeHelper).backfillParticipantVersion(APP_ID, "healthcode:" + HEALTH_CODE_SUCCESS);
+        verify(mockDynamoHelper).writeWorkerCheckpoint(BackfillParticipantVersionsWorkerProcessor.WORKER_ID,
+                CHECKPOINT_KEY, 2);
+        verify(mockDynamoHelper).deleteWorkerCheckpoint(BackfillParticipantVersionsWorkerProcessor.WORKER_ID,
+                CHECKPOINT_KEY);
+    }
+
+    @Test
+    public void throttledHealthCodeIsRetried() throws Exception {
+        // Throttled once, then succeeds.
+        mockHealthCodes(HEALTH_CODE_THROTTLED);
+        doThrow(new BridgeSDKException("throttled", 429)).doNothing().when(mockBridgeHelper)
+                .backfillParticipantVersion(APP_ID, "healthcode:" + HEALTH_CODE_THROTTLED);
+
+        processor.accept(makeRequestNode());
+        verify(mockBridgeHelper, times(2)).backfillParticipantVersion(APP_ID,
+                "healthcode:" + HEALTH_CODE_THROTTLED);
+    }
+
+    @Test
+    public void throttledHealthCodeGivesUpEventually() throws Exception {
+        // Always unavailable. We try once, plus the retries, then move on to the next health code.
+        mockHealthCodes(HEALTH_CODE_THROTTLED, HEALTH_CODE_SUCCESS);
+        doThrow(new BridgeSDKException("unavailable", 503)).when(mockBridgeHelper).backfillParticipantVersion(
+                APP_ID, "healthcode:" + HEALTH_CODE_THROTTLED);
+
+        processor.accept(makeRequestNode());
+        verify(mockBridgeHelper, times(BackfillParticipantVersionsWorkerProcessor.MAX_THROTTLE_RETRIES + 1))
+                .backfillParticipantVersion(APP_ID, "healthcode:" + HEALTH_CODE_THROTTLED);
+        verify(mockBridgeHelper).backfillParticipantVersion(APP_ID, "healthcode:" + HEALTH_CODE_SUCCESS);
+    }
+
+    @Test
+    public void synapseThrottleIsRetried() throws Exception {
+        // Synapse throttled Bridge once, then succeeds.
+        mockHealthCodes(HEALTH_CODE_THROTTLED);
+        doThrow(new BridgeSDKException("Synapse error: 429 Too Many Requests", 500)).doNothing()
+                .when(mockBridgeHelper).backfillParticipantVersion(APP_ID, "healthcode:" + HEALTH_CODE_THROTTLED);
+
+        processor.accept(makeRequestNode());
+        verify(mockBridgeHelper, times(2)).backfillParticipantVersion(APP_ID,
+                "healthcode:" + HEALTH_CODE_THROTTLED);
+    }
+
+    @Test
+    public void isThrottled() {
+        // Bridge throttles.
+        assertTrue(BackfillParticipantVersionsWorkerProcessor.isThrottled(new BridgeSDKException("throttled",
+                429)));
+        assertTrue(BackfillParticipantVersionsWorkerProcessor.isThrottled(new BridgeSDKException("unavailable",
+                503)));
+
+        // Synapse throttles.
+        assertTrue(BackfillParticipantVersionsWorkerProcessor.isThrottled(new BridgeSDKException(
+                "Synapse error: 429 Too Many Requests", 500)));
+        assertTrue(BackfillParticipantVersionsWorkerProcessor.isThrottled(new IOException(
+                new SynapseTooManyRequestsException("test exception"))));
+        assertTrue(BackfillParticipantVersionsWorkerProcessor.isThrottled(new RuntimeException(
+                new SynapseServiceUnavailable("test exception"))));
+
+        // Other errors.
+        assertFalse(BackfillParticipantVersionsWorkerProcessor.isThrottled(new BridgeSDKException("bad request",
+                400)));
+        assertFalse(BackfillParticipantVersionsWorkerProcessor.isThrottled(new BridgeSDKException(
+                "Too Many Requests", 400)));
+        assertFalse(BackfillParticipantVersionsWorkerProcessor.isThrottled(new BridgeSDKException(null, 500)));
+        assertFalse(BackfillParticipantVersionsWorkerProcessor.isThrottled(new IOException("test exception")));
+    }
+
+    @Test
+    public void otherErrorsAreNotRetried() throws Exception {
+        mockHealthCodes(HEALTH_CODE_ERROR);
+        doThrow(new BridgeSDKException("bad request", 400)).when(mockBridgeHelper).backfillParticipantVersion(
+                APP_ID, "healthcode:" + HEALTH_CODE_ERROR);
+
+        processor.accept(makeRequestNode());
+        verify(mockBridgeHelper, times(1)).backfillParticipantVersion(APP_ID, "healthcode:" + HEALTH_CODE_ERROR);
+        verify(mockDynamoHelper, never()).writeWorkerCheckpoint(anyString(), anyString(), anyInt());
+    }
+
+    private void mockHealthCodes(String... healthCodes) {
+        byte[] content = String.join("\n", healthCodes).getBytes(StandardCharsets.UTF_8);
+        when(mockS3StreamHelper.getObjectStream(BACKFILL_BUCKET, S3KEY)).thenReturn(new ByteArrayInputStream(
+                content));
+    }
+
+    private static JsonNode makeRequestNode() {
+        BackfillParticipantVersionsRequest request = new BackfillParticipantVersionsRequest();
+        request.setAppId(APP_ID);
+        request.setS3Key(S3KEY);
+        return DefaultObjectMapper.INSTANCE.convertValue(request, JsonNode.class);
+    }
+}
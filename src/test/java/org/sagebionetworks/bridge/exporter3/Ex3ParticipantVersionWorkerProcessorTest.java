@@ -14,8 +14,11 @@ import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -35,6 +38,7 @@ import org.sagebionetworks.repo.model.table.RowReferenceSet;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import org.sagebionetworks.bridge.exceptions.BridgeSynapseException;
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.sagebionetworks.bridge.rest.model.App;
 import org.sagebionetworks.bridge.rest.model.ParticipantVersion;
@@ -83,6 +87,14 @@ public class Ex3ParticipantVersionWorkerProcessorTest {
 
         processor.setSynapseExecutorService(EXECUTOR_SERVICE);
 
+        // Use a real coalescer with batching turned off, so each participant version is its own append. Batching is
+        // tested in SynapseRowCoalescerTest.
+        SynapseRowCoalescer coalescer = new SynapseRowCoalescer();
+        coalescer.setBatchWindowMillis(0);
+        coalescer.setSynapseExecutorService(EXECUTOR_SERVICE);
+        coalescer.setSynapseHelper(mockSynapseHelper);
+        processor.setSynapseRowCoalescer(coalescer);
+
         // Mock shared dependencies.
         app = Exporter3TestUtil.makeAppWithEx3Config();
         app.getExporter3Configuration().setParticipantVersionTableId(PARTICIPANT_VERSION_TABLE_ID_FOR_APP);
@@ -190,6 +202,31 @@ public class Ex3ParticipantVersionWorkerProcessorTest {
         assertNotNull(emptyRowReferenceSet.getRows());
     }
 
+    @Test
+    public void processParticipantVersionRowNotWritten() throws Exception {
+        Study study = new Study();
+        study.setExporter3Enabled(false);
+        when(mockBridgeHelper.getStudy(any(), any())).thenReturn(study);
+        RowReferenceSet emptyRowReferenceSet = new RowReferenceSet();
+        emptyRowReferenceSet.setRows(ImmutableList.of());
+        when(mockSynapseHelper.appendRowsToTable(any(), eq(PARTICIPANT_VERSION_TABLE_ID_FOR_APP)))
+                .thenReturn(emptyRowReferenceSet);
+        when(mockSynapseHelper.appendRowsToTable(any(), eq(PARTICIPANT_VERSION_DEMOGRAPHICS_TABLE_ID_FOR_APP)))
+                .thenReturn(rowReferenceSet);
+
+        // The request fails, so that it's retried.
+        try {
+            processor.process(makeRequest());
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof BridgeSynapseException);
+        }
+
+        // The helper decides whether the error means the table's columns changed.
+        verify(mockParticipantVersionHelper).invalidateColumnsOnSchemaChangeError(
+                eq(PARTICIPANT_VERSION_TABLE_ID_FOR_APP), any());
+    }
+
     @Test
     public void processDemographicsEmptyRows() throws Exception {
         when(mockSynapseHelper.appendRowsToTable(any(), any())).thenReturn(rowReferenceSet);
@@ -3,6 +3,7 @@ package org.sagebionetworks.bridge.exporter3;
 import static org.junit.Assert.assertFalse;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
 import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
@@ -19,15 +20,19 @@ import static org.sagebionetworks.bridge.exporter3.Exporter3WorkerProcessor.META
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 import java.io.ByteArrayInputStream;
-import java.io.File;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -36,7 +41,9 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.shiro.codec.Hex;
 import org.joda.time.DateTime;
@@ -46,6 +53,8 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
+import org.sagebionetworks.client.exceptions.SynapseClientException;
+import org.sagebionetworks.client.exceptions.SynapseConflictingUpdateException;
 import org.sagebionetworks.repo.model.FileEntity;
 import org.sagebionetworks.repo.model.annotation.v2.AnnotationsValue;
 import org.sagebionetworks.repo.model.annotation.v2.AnnotationsValueType;
@@ -62,7 +71,6 @@ import org.sagebionetworks.bridge.exporter3.results.ArcResultSummarizer;
 import org.sagebionetworks.bridge.exporter3.results.AssessmentResultSummarizer;
 import org.sagebionetworks.bridge.exporter3.results.AssessmentSummarizerProvider;
 import org.sagebionetworks.bridge.exporter3.results.TestJsonKt;
-import org.sagebionetworks.bridge.file.InMemoryFileHelper;
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.sagebionetworks.bridge.rest.exceptions.EntityNotFoundException;
 import org.sagebionetworks.bridge.rest.model.App;
@@ -84,6 +92,7 @@ import org.sagebionetworks.bridge.synapse.SynapseHelper;
 import org.sagebionetworks.bridge.udd.helper.ZipHelper;
 import org.sagebionetworks.bridge.workerPlatform.bridge.BridgeHelper;
 import org.sagebionetworks.bridge.workerPlatform.exceptions.WorkerException;
+import org.sagebionetworks.bridge.workerPlatform.s3.S3StreamHelper;
 
 @SuppressWarnings({ "rawtypes", "unchecked" })
 public class Exporter3WorkerProcessorTest {
@@ -103,6 +112,7 @@ public class Exporter3WorkerProcessorTest {
             .getBytes(StandardCharsets.UTF_8);
     private static final byte[] DUMMY_UNENCRYPTED_FILE_BYTES = "dummy unencrypted file content"
             .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DUMMY_UNENCRYPTED_FILE_MD5_BYTES = DigestUtils.md5(DUMMY_UNENCRYPTED_FILE_BYTES);
     private static final String EXPORTED_FILE_ENTITY_ID = "syn2222";
     private static final String EXPORTED_FILE_HANDLE_ID = "3333";
     private static final String FILENAME = "filename.txt";
@@ -138,6 +148,8 @@ public class Exporter3WorkerProcessorTest {
 
     private static final String FULL_FILENAME = RECORD_ID + '-' + FILENAME;
     private static final String EXPECTED_S3_KEY = Exporter3TestUtil.APP_ID + '/' + TODAYS_DATE_STRING + '/' + FULL_FILENAME;
+    private static final Set<String> EXPECTED_WANTED_ENTRY_NAME_SET = ImmutableSet.of(
+            Exporter3WorkerProcessor.FILENAME_METADATA_JSON, AssessmentResultSummarizer.FILENAME_ASSESSMENT_RESULT_JSON);
     private static final String EXPECTED_S3_KEY_FOR_STUDY = Exporter3TestUtil.APP_ID + '/' + Exporter3TestUtil.STUDY_ID + '/' + TODAYS_DATE_STRING + '/' +
             FULL_FILENAME;
 
@@ -253,17 +265,16 @@ public class Exporter3WorkerProcessorTest {
         }
     }
 
-    private InMemoryFileHelper inMemoryFileHelper;
     private byte[] writtenToS3;
 
     @Mock
     private BridgeHelper mockBridgeHelper;
 
     @Mock
-    private DigestUtils mockDigestUtils;
+    private S3Helper mockS3Helper;
 
     @Mock
-    private S3Helper mockS3Helper;
+    private S3StreamHelper mockS3StreamHelper;
 
     @Mock
     private SynapseHelper mockSynapseHelper;
@@ -287,9 +298,8 @@ public class Exporter3WorkerProcessorTest {
         // Use the real assessment summarizer provider.
         processor.setSummarizerProvider(new AssessmentSummarizerProvider());
 
-        // Use InMemoryFileHelper for FileHelper.
-        inMemoryFileHelper = new InMemoryFileHelper();
-        processor.setFileHelper(inMemoryFileHelper);
+        // Direct executor, so the export stages run synchronously in the test.
+        processor.setExporter3ExecutorService(MoreExecutors.newDirectExecutorService());
 
         // Mock config.
         Config mockConfig = mock(Config.class);
@@ -467,11 +477,8 @@ public class Exporter3WorkerProcessorTest {
         Upload mockUpload = mockUpload(true);
         when(mockBridgeHelper.getUploadByUploadId(RECORD_ID)).thenReturn(mockUpload);
 
-        doAnswer(invocation -> {
-            File file = invocation.getArgumentAt(2, File.class);
-            inMemoryFileHelper.writeBytes(file, DUMMY_ENCRYPTED_FILE_BYTES);
-            return null;
-        }).when(mockS3Helper).downloadS3File(eq(UPLOAD_BUCKET), eq(RECORD_ID), any());
+        when(mockS3StreamHelper.getObjectStream(UPLOAD_BUCKET, RECORD_ID)).thenReturn(new ByteArrayInputStream(
+                DUMMY_ENCRYPTED_FILE_BYTES));
 
         CmsEncryptor mockEncryptor = mock(CmsEncryptor.class);
         when(mockEncryptor.decrypt(any(InputStream.class))).thenThrow(WrongEncryptionKeyException.class);
@@ -493,16 +500,12 @@ public class Exporter3WorkerProcessorTest {
         StudyParticipant mockParticipant = mockParticipant();
         when(mockBridgeHelper.getParticipantByHealthCode(Exporter3TestUtil.APP_ID, HEALTH_CODE, false))
                 .thenReturn(mockParticipant);
-        when(mockDigestUtils.digest(any(File.class))).thenReturn(DUMMY_MD5_BYTES);
 
         Upload mockUpload = mockUpload(true);
         when(mockBridgeHelper.getUploadByUploadId(RECORD_ID)).thenReturn(mockUpload);
 
-        doAnswer(invocation -> {
-            File file = invocation.getArgumentAt(2, File.class);
-            inMemoryFileHelper.writeBytes(file, DUMMY_ENCRYPTED_FILE_BYTES);
-            return null;
-        }).when(mockS3Helper).downloadS3File(eq(UPLOAD_BUCKET), eq(RECORD_ID), any());
+        when(mockS3StreamHelper.getObjectStream(UPLOAD_BUCKET, RECORD_ID)).thenReturn(new ByteArrayInputStream(
+                DUMMY_ENCRYPTED_FILE_BYTES));
 
         CmsEncryptor mockEncryptor = mock(CmsEncryptor.class);
         when(mockEncryptor.decrypt(any(InputStream.class))).thenReturn(new ByteArrayInputStream(
@@ -514,10 +517,9 @@ public class Exporter3WorkerProcessorTest {
                 .getBufferedInputStream(any());
 
         doAnswer(invocation -> {
-            File file = invocation.getArgumentAt(2, File.class);
-            writtenToS3 = inMemoryFileHelper.getBytes(file);
+            writtenToS3 = ByteStreams.toByteArray(invocation.getArgumentAt(3, InputStream.class));
             return null;
-        }).when(mockS3Helper).writeFileToS3(eq(RAW_DATA_BUCKET), eq(EXPECTED_S3_KEY), any(), any());
+        }).when(mockS3StreamHelper).uploadStream(eq(RAW_DATA_BUCKET), eq(EXPECTED_S3_KEY), any(), any());
 
         mockSynapseHelper();
 
@@ -525,7 +527,7 @@ public class Exporter3WorkerProcessorTest {
         processor.process(makeRequest());
 
         // Verify services.
-        verify(mockS3Helper).downloadS3File(eq(UPLOAD_BUCKET), eq(RECORD_ID), any());
+        verify(mockS3StreamHelper).getObjectStream(UPLOAD_BUCKET, RECORD_ID);
         
         // This isn't called because there's no instanceGuid in the user's metadata map
         verify(mockBridgeHelper, never()).getTimelineMetadata(any(), any());
@@ -536,12 +538,12 @@ public class Exporter3WorkerProcessorTest {
         assertEquals(ByteStreams.toByteArray(encryptedInputStream), DUMMY_ENCRYPTED_FILE_BYTES);
 
         ArgumentCaptor<ObjectMetadata> s3MetadataCaptor = ArgumentCaptor.forClass(ObjectMetadata.class);
-        verify(mockS3Helper).writeFileToS3(eq(RAW_DATA_BUCKET), eq(EXPECTED_S3_KEY), any(),
-                s3MetadataCaptor.capture());
+        verify(mockS3StreamHelper).uploadStream(eq(RAW_DATA_BUCKET), eq(EXPECTED_S3_KEY),
+                s3MetadataCaptor.capture(), any());
         assertEquals(writtenToS3, DUMMY_UNENCRYPTED_FILE_BYTES);
         verifyS3Metadata(s3MetadataCaptor.getValue());
 
-        verifySynapseExport(EXPECTED_S3_KEY);
+        verifySynapseExport(EXPECTED_S3_KEY, DUMMY_UNENCRYPTED_FILE_MD5_BYTES);
         verifyUpdatedRecordForApp();
         verifyExportNotificationForApp();
     }
@@ -593,6 +595,9 @@ public class Exporter3WorkerProcessorTest {
         createdFileHandle.setId(EXPORTED_FILE_HANDLE_ID);
         when(mockSynapseHelper.createS3FileHandleWithRetry(any())).thenReturn(createdFileHandle);
 
+        // Creating the entity conflicts with the existing one.
+        when(mockSynapseHelper.createEntityWithRetry(any(FileEntity.class))).thenThrow(
+                new SynapseConflictingUpdateException("test exception"));
         when(mockSynapseHelper.lookupChildWithRetry(TODAYS_FOLDER_ID, FULL_FILENAME))
                 .thenReturn(EXPORTED_FILE_ENTITY_ID);
 
@@ -616,6 +621,41 @@ public class Exporter3WorkerProcessorTest {
         assertEquals(fileEntity.getDataFileHandleId(), EXPORTED_FILE_HANDLE_ID);
         assertEquals(fileEntity.getName(), FULL_FILENAME);
         assertEquals(fileEntity.getParentId(), TODAYS_FOLDER_ID);
+
+        verify(mockSynapseHelper).addAnnotationsToEntity(eq(EXPORTED_FILE_ENTITY_ID), any());
+    }
+
+    @Test
+    public void createEntityConflictWithNoExistingFile() throws Exception {
+        // Mock services.
+        when(mockBridgeHelper.getApp(Exporter3TestUtil.APP_ID)).thenReturn(Exporter3TestUtil.makeAppWithEx3Config());
+        when(mockBridgeHelper.getHealthDataRecordForExporter3(Exporter3TestUtil.APP_ID, RECORD_ID)).thenReturn(makeRecord());
+        StudyParticipant mockParticipant = mockParticipant();
+        when(mockBridgeHelper.getParticipantByHealthCode(Exporter3TestUtil.APP_ID, HEALTH_CODE, false))
+                .thenReturn(mockParticipant);
+
+        Upload mockUpload = mockUpload(false);
+        when(mockBridgeHelper.getUploadByUploadId(RECORD_ID)).thenReturn(mockUpload);
+
+        mockSynapseHelper();
+
+        // Creating the entity conflicts, but there's no file with that name.
+        SynapseConflictingUpdateException conflictException = new SynapseConflictingUpdateException(
+                "test exception");
+        when(mockSynapseHelper.createEntityWithRetry(any(FileEntity.class))).thenThrow(conflictException);
+
+        // Execute.
+        try {
+            processor.process(makeRequest());
+            fail("expected exception");
+        } catch (SynapseConflictingUpdateException ex) {
+            assertSame(ex, conflictException);
+        }
+
+        verify(mockSynapseHelper).lookupChildWithRetry(TODAYS_FOLDER_ID, FULL_FILENAME);
+        verify(mockSynapseHelper, never()).updateEntityWithRetry(any());
+        verify(mockSynapseHelper, never()).addAnnotationsToEntity(any(), any());
+        verify(mockBridgeHelper, never()).createOrUpdateHealthDataRecordForExporter3(any(), any());
     }
 
     @Test
@@ -633,16 +673,12 @@ public class Exporter3WorkerProcessorTest {
         StudyParticipant mockParticipant = mockParticipant();
         when(mockBridgeHelper.getParticipantByHealthCode(Exporter3TestUtil.APP_ID, HEALTH_CODE, false))
                 .thenReturn(mockParticipant);
-        when(mockDigestUtils.digest(any(File.class))).thenReturn(DUMMY_MD5_BYTES);
 
         Upload mockUpload = mockUpload(true);
         when(mockBridgeHelper.getUploadByUploadId(RECORD_ID)).thenReturn(mockUpload);
 
-        doAnswer(invocation -> {
-            File file = invocation.getArgumentAt(2, File.class);
-            inMemoryFileHelper.writeBytes(file, DUMMY_ENCRYPTED_FILE_BYTES);
-            return null;
-        }).when(mockS3Helper).downloadS3File(eq(UPLOAD_BUCKET), eq(RECORD_ID), any());
+        when(mockS3StreamHelper.getObjectStream(UPLOAD_BUCKET, RECORD_ID)).thenReturn(new ByteArrayInputStream(
+                DUMMY_ENCRYPTED_FILE_BYTES));
 
         CmsEncryptor mockEncryptor = mock(CmsEncryptor.class);
         when(mockEncryptor.decrypt(any(InputStream.class))).thenReturn(new ByteArrayInputStream(
@@ -654,10 +690,9 @@ public class Exporter3WorkerProcessorTest {
                 .getBufferedInputStream(any());
 
         doAnswer(invocation -> {
-            File file = invocation.getArgumentAt(2, File.class);
-            writtenToS3 = inMemoryFileHelper.getBytes(file);
+            writtenToS3 = ByteStreams.toByteArray(invocation.getArgumentAt(3, InputStream.class));
             return null;
-        }).when(mockS3Helper).writeFileToS3(eq(RAW_DATA_BUCKET), eq(EXPECTED_S3_KEY), any(), any());
+        }).when(mockS3StreamHelper).uploadStream(eq(RAW_DATA_BUCKET), eq(EXPECTED_S3_KEY), any(), any());
 
         mockSynapseHelper();
 
@@ -665,8 +700,8 @@ public class Exporter3WorkerProcessorTest {
         processor.process(makeRequest());
         
         ArgumentCaptor<ObjectMetadata> s3MetadataCaptor = ArgumentCaptor.forClass(ObjectMetadata.class);
-        verify(mockS3Helper).writeFileToS3(eq(RAW_DATA_BUCKET), eq(EXPECTED_S3_KEY), any(),
-                s3MetadataCaptor.capture());
+        verify(mockS3StreamHelper).uploadStream(eq(RAW_DATA_BUCKET), eq(EXPECTED_S3_KEY),
+                s3MetadataCaptor.capture(), any());
         
         Map<String, String> userMetadataMap = s3MetadataCaptor.getValue().getUserMetadata();
         assertEquals(userMetadataMap.get("assessmentInstanceGuid"), ASSESSMENT_INSTANCE_GUID);
@@ -689,16 +724,12 @@ public class Exporter3WorkerProcessorTest {
 
         when(mockBridgeHelper.getStudy(Exporter3TestUtil.APP_ID, Exporter3TestUtil.STUDY_ID)).thenReturn(Exporter3TestUtil.makeStudyWithEx3Config());
         when(mockBridgeHelper.getHealthDataRecordForExporter3(Exporter3TestUtil.APP_ID, RECORD_ID)).thenReturn(makeRecord());
-        when(mockDigestUtils.digest(any(File.class))).thenReturn(DUMMY_MD5_BYTES);
 
         Upload mockUpload = mockUpload(true);
         when(mockBridgeHelper.getUploadByUploadId(RECORD_ID)).thenReturn(mockUpload);
 
-        doAnswer(invocation -> {
-            File file = invocation.getArgumentAt(2, File.class);
-            inMemoryFileHelper.writeBytes(file, DUMMY_ENCRYPTED_FILE_BYTES);
-            return null;
-        }).when(mockS3Helper).downloadS3File(eq(UPLOAD_BUCKET), eq(RECORD_ID), any());
+        when(mockS3StreamHelper.getObjectStream(UPLOAD_BUCKET, RECORD_ID)).thenReturn(new ByteArrayInputStream(
+                DUMMY_ENCRYPTED_FILE_BYTES));
 
         CmsEncryptor mockEncryptor = mock(CmsEncryptor.class);
         when(mockEncryptor.decrypt(any(InputStream.class))).thenReturn(new ByteArrayInputStream(
@@ -710,10 +741,9 @@ public class Exporter3WorkerProcessorTest {
                 .getBufferedInputStream(any());
 
         doAnswer(invocation -> {
-            File file = invocation.getArgumentAt(2, File.class);
-            writtenToS3 = inMemoryFileHelper.getBytes(file);
+            writtenToS3 = ByteStreams.toByteArray(invocation.getArgumentAt(3, InputStream.class));
             return null;
-        }).when(mockS3Helper).writeFileToS3(eq(RAW_DATA_BUCKET), eq(EXPECTED_S3_KEY_FOR_STUDY), any(), any());
+        }).when(mockS3StreamHelper).uploadStream(eq(RAW_DATA_BUCKET), eq(EXPECTED_S3_KEY_FOR_STUDY), any(), any());
 
         mockSynapseHelper();
 
@@ -721,7 +751,7 @@ public class Exporter3WorkerProcessorTest {
         processor.process(makeRequest());
 
         // Verify services.
-        verify(mockS3Helper).downloadS3File(eq(UPLOAD_BUCKET), eq(RECORD_ID), any());
+        verify(mockS3StreamHelper).getObjectStream(UPLOAD_BUCKET, RECORD_ID);
 
         // This isn't called because there's no instanceGuid in the user's metadata map
         verify(mockBridgeHelper, never()).getTimelineMetadata(any(), any());
@@ -732,16 +762,77 @@ public class Exporter3WorkerProcessorTest {
         assertEquals(ByteStreams.toByteArray(encryptedInputStream), DUMMY_ENCRYPTED_FILE_BYTES);
 
         ArgumentCaptor<ObjectMetadata> s3MetadataCaptor = ArgumentCaptor.forClass(ObjectMetadata.class);
-        verify(mockS3Helper).writeFileToS3(eq(RAW_DATA_BUCKET), eq(EXPECTED_S3_KEY_FOR_STUDY), any(),
-                s3MetadataCaptor.capture());
+        verify(mockS3StreamHelper).uploadStream(eq(RAW_DATA_BUCKET), eq(EXPECTED_S3_KEY_FOR_STUDY),
+                s3MetadataCaptor.capture(), any());
         assertEquals(writtenToS3, DUMMY_UNENCRYPTED_FILE_BYTES);
         verifyS3Metadata(s3MetadataCaptor.getValue());
 
-        verifySynapseExport(EXPECTED_S3_KEY_FOR_STUDY);
+        verifySynapseExport(EXPECTED_S3_KEY_FOR_STUDY, DUMMY_UNENCRYPTED_FILE_MD5_BYTES);
         verifyUpdatedRecordForStudy();
         verifyExportNotificationForStudy();
     }
 
+    @Test
+    public void encryptedUploadForAppAndStudy() throws Exception {
+        // Mock services.
+        when(mockBridgeHelper.getApp(Exporter3TestUtil.APP_ID)).thenReturn(Exporter3TestUtil.makeAppWithEx3Config());
+
+        StudyParticipant mockParticipant = mockParticipant();
+        when(mockParticipant.getStudyIds()).thenReturn(ImmutableList.of(Exporter3TestUtil.STUDY_ID));
+        when(mockBridgeHelper.getParticipantByHealthCode(Exporter3TestUtil.APP_ID, HEALTH_CODE, false))
+                .thenReturn(mockParticipant);
+
+        when(mockBridgeHelper.getStudy(Exporter3TestUtil.APP_ID, Exporter3TestUtil.STUDY_ID)).thenReturn(
+                Exporter3TestUtil.makeStudyWithEx3Config());
+        when(mockBridgeHelper.getHealthDataRecordForExporter3(Exporter3TestUtil.APP_ID, RECORD_ID)).thenReturn(
+                makeRecord());
+
+        Upload mockUpload = mockUpload(true);
+        when(mockBridgeHelper.getUploadByUploadId(RECORD_ID)).thenReturn(mockUpload);
+
+        when(mockS3StreamHelper.getObjectStream(UPLOAD_BUCKET, RECORD_ID)).thenReturn(new ByteArrayInputStream(
+                DUMMY_ENCRYPTED_FILE_BYTES));
+
+        CmsEncryptor mockEncryptor = mock(CmsEncryptor.class);
+        when(mockEncryptor.decrypt(any(InputStream.class))).thenReturn(new ByteArrayInputStream(
+                DUMMY_UNENCRYPTED_FILE_BYTES));
+        processor.setCmsEncryptorCache(SingletonCacheLoader.makeLoadingCache(mockEncryptor));
+
+        // Don't actually buffer the input stream, as this breaks the test.
+        doAnswer(invocation -> invocation.getArgumentAt(0, InputStream.class)).when(processor)
+                .getBufferedInputStream(any());
+
+        doAnswer(invocation -> {
+            writtenToS3 = ByteStreams.toByteArray(invocation.getArgumentAt(3, InputStream.class));
+            return null;
+        }).when(mockS3StreamHelper).uploadStream(eq(RAW_DATA_BUCKET), eq(EXPECTED_S3_KEY), any(), any());
+
+        mockSynapseHelper();
+
+        // Execute.
+        processor.process(makeRequest());
+
+        // We decrypt and upload once, to the app-wide location.
+        verify(mockS3StreamHelper).getObjectStream(UPLOAD_BUCKET, RECORD_ID);
+        verify(mockEncryptor).decrypt(any(InputStream.class));
+        verify(mockS3StreamHelper).uploadStream(eq(RAW_DATA_BUCKET), eq(EXPECTED_S3_KEY), any(), any());
+        assertEquals(writtenToS3, DUMMY_UNENCRYPTED_FILE_BYTES);
+
+        // The study gets a server-side copy.
+        ArgumentCaptor<ObjectMetadata> s3MetadataCaptor = ArgumentCaptor.forClass(ObjectMetadata.class);
+        verify(mockS3Helper).copyS3File(eq(RAW_DATA_BUCKET), eq(EXPECTED_S3_KEY), eq(RAW_DATA_BUCKET),
+                eq(EXPECTED_S3_KEY_FOR_STUDY), s3MetadataCaptor.capture());
+        verifyS3Metadata(s3MetadataCaptor.getValue());
+        verifyNoMoreInteractions(mockS3Helper);
+
+        // Both Synapse exports use the MD5 of the decrypted file.
+        ArgumentCaptor<S3FileHandle> fileHandleCaptor = ArgumentCaptor.forClass(S3FileHandle.class);
+        verify(mockSynapseHelper, times(2)).createS3FileHandleWithRetry(fileHandleCaptor.capture());
+        for (S3FileHandle fileHandle : fileHandleCaptor.getAllValues()) {
+            assertEquals(Hex.decode(fileHandle.getContentMd5()), DUMMY_UNENCRYPTED_FILE_MD5_BYTES);
+        }
+    }
+
     @Test
     public void nonEncryptedUploadForStudy() throws Exception {
         // Mock services.
@@ -828,6 +919,176 @@ public class Exporter3WorkerProcessorTest {
         assertEquals(fileHandle.getKey(), EXPECTED_S3_KEY_FOR_STUDY);
     }
 
+    @Test
+    public void appAndMultipleStudiesExportConcurrently() throws Exception {
+        // Use a real thread pool, so that the export stages actually run concurrently.
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        processor.setExporter3ExecutorService(executorService);
+
+        // Mock services.
+        when(mockBridgeHelper.getApp(Exporter3TestUtil.APP_ID)).thenReturn(Exporter3TestUtil.makeAppWithEx3Config());
+
+        StudyParticipant mockParticipant = mockParticipant();
+        when(mockParticipant.getStudyIds()).thenReturn(ImmutableList.of(Exporter3TestUtil.STUDY_ID,
+                STUDY_ID_2));
+        when(mockBridgeHelper.getParticipantByHealthCode(Exporter3TestUtil.APP_ID, HEALTH_CODE, false))
+                .thenReturn(mockParticipant);
+
+        Study secondStudy = Exporter3TestUtil.makeStudyWithEx3Config();
+        secondStudy.setIdentifier(STUDY_ID_2);
+        when(mockBridgeHelper.getStudy(Exporter3TestUtil.APP_ID, Exporter3TestUtil.STUDY_ID)).thenReturn(
+                Exporter3TestUtil.makeStudyWithEx3Config());
+        when(mockBridgeHelper.getStudy(Exporter3TestUtil.APP_ID, STUDY_ID_2)).thenReturn(secondStudy);
+        when(mockBridgeHelper.getHealthDataRecordForExporter3(Exporter3TestUtil.APP_ID, RECORD_ID)).thenReturn(
+                makeRecord());
+
+        Upload mockUpload = mockUpload(false);
+        when(mockBridgeHelper.getUploadByUploadId(RECORD_ID)).thenReturn(mockUpload);
+
+        mockSynapseHelper();
+
+        // Execute.
+        try {
+            processor.process(makeRequest());
+        } finally {
+            executorService.shutdown();
+        }
+
+        // One export for the app and one for each study.
+        verify(mockSynapseHelper, times(3)).createEntityWithRetry(any(FileEntity.class));
+
+        // All three exports go to the same date folder, so we only create it once.
+        verify(mockSynapseHelper, times(1)).createFolderIfNotExists(Exporter3TestUtil.RAW_FOLDER_ID,
+                TODAYS_DATE_STRING);
+
+        // The record and the notification are finalized once, with all three exports.
+        ArgumentCaptor<HealthDataRecordEx3> recordCaptor = ArgumentCaptor.forClass(HealthDataRecordEx3.class);
+        verify(mockBridgeHelper).createOrUpdateHealthDataRecordForExporter3(eq(Exporter3TestUtil.APP_ID),
+                recordCaptor.capture());
+        HealthDataRecordEx3 record = recordCaptor.getValue();
+        assertTrue(record.isExported());
+        verifyNotificationRecordInfo(record.getExportedRecord(), EXPECTED_S3_KEY);
+        assertEquals(record.getExportedStudyRecords().size(), 2);
+        verifyNotificationRecordInfo(record.getExportedStudyRecords().get(Exporter3TestUtil.STUDY_ID),
+                EXPECTED_S3_KEY_FOR_STUDY);
+
+        ArgumentCaptor<ExportToAppNotification> notificationCaptor = ArgumentCaptor.forClass(
+                ExportToAppNotification.class);
+        verify(mockBridgeHelper).sendExportNotifications(notificationCaptor.capture());
+        ExportToAppNotification notification = notificationCaptor.getValue();
+        verifyNotificationRecordInfo(notification.getRecord(), EXPECTED_S3_KEY);
+        assertEquals(notification.getStudyRecords().size(), 2);
+        assertEquals(notification.getStudyRecords().get(STUDY_ID_2).getS3Key(), Exporter3TestUtil.APP_ID +
+                '/' + STUDY_ID_2 + '/' + TODAYS_DATE_STRING + '/' + FULL_FILENAME);
+    }
+
+    @Test
+    public void studyExportFails_RecordNotFinalized() throws Exception {
+        // Mock services.
+        when(mockBridgeHelper.getApp(Exporter3TestUtil.APP_ID)).thenReturn(Exporter3TestUtil.makeAppWithEx3Config());
+
+        StudyParticipant mockParticipant = mockParticipant();
+        when(mockParticipant.getStudyIds()).thenReturn(ImmutableList.of(Exporter3TestUtil.STUDY_ID));
+        when(mockBridgeHelper.getParticipantByHealthCode(Exporter3TestUtil.APP_ID, HEALTH_CODE, false))
+                .thenReturn(mockParticipant);
+
+        when(mockBridgeHelper.getStudy(Exporter3TestUtil.APP_ID, Exporter3TestUtil.STUDY_ID)).thenReturn(
+                Exporter3TestUtil.makeStudyWithEx3Config());
+        when(mockBridgeHelper.getHealthDataRecordForExporter3(Exporter3TestUtil.APP_ID, RECORD_ID)).thenReturn(
+                makeRecord());
+
+        Upload mockUpload = mockUpload(false);
+        when(mockBridgeHelper.getUploadByUploadId(RECORD_ID)).thenReturn(mockUpload);
+
+        mockSynapseHelper();
+
+        // Creating the file handle fails for the study, but not for the app.
+        S3FileHandle createdFileHandle = new S3FileHandle();
+        createdFileHandle.setId(EXPORTED_FILE_HANDLE_ID);
+        when(mockSynapseHelper.createS3FileHandleWithRetry(any())).thenAnswer(invocation -> {
+            S3FileHandle fileHandle = invocation.getArgumentAt(0, S3FileHandle.class);
+            if (EXPECTED_S3_KEY_FOR_STUDY.equals(fileHandle.getKey())) {
+                throw new SynapseClientException("test exception");
+            }
+            return createdFileHandle;
+        });
+
+        // Execute.
+        try {
+            processor.process(makeRequest());
+            fail("expected exception");
+        } catch (SynapseClientException ex) {
+            // expected exception
+        }
+
+        // The app-wide export still finished.
+        verify(mockSynapseHelper).createEntityWithRetry(any(FileEntity.class));
+
+        // But the record is not marked as exported, and no notification is sent.
+        verify(mockBridgeHelper, never()).createOrUpdateHealthDataRecordForExporter3(any(), any());
+        verify(mockBridgeHelper, never()).sendExportNotifications(any());
+    }
+
+    @Test
+    public void dateFolderIsCached() throws Exception {
+        // Mock services.
+        when(mockBridgeHelper.getApp(Exporter3TestUtil.APP_ID)).thenReturn(Exporter3TestUtil.makeAppWithEx3Config());
+        when(mockBridgeHelper.getHealthDataRecordForExporter3(Exporter3TestUtil.APP_ID, RECORD_ID)).thenAnswer(
+                invocation -> makeRecord());
+        StudyParticipant mockParticipant = mockParticipant();
+        when(mockBridgeHelper.getParticipantByHealthCode(Exporter3TestUtil.APP_ID, HEALTH_CODE, false))
+                .thenReturn(mockParticipant);
+
+        Upload mockUpload = mockUpload(false);
+        when(mockBridgeHelper.getUploadByUploadId(RECORD_ID)).thenReturn(mockUpload);
+
+        mockSynapseHelper();
+
+        // Execute twice.
+        processor.process(makeRequest());
+        processor.process(makeRequest());
+
+        // We export twice, but only create the date folder once.
+        verify(mockSynapseHelper, times(2)).createEntityWithRetry(any(FileEntity.class));
+        verify(mockSynapseHelper, times(1)).createFolderIfNotExists(Exporter3TestUtil.RAW_FOLDER_ID,
+                TODAYS_DATE_STRING);
+    }
+
+    @Test
+    public void dateFolderErrorIsNotCached() throws Exception {
+        // Mock services.
+        when(mockBridgeHelper.getApp(Exporter3TestUtil.APP_ID)).thenReturn(Exporter3TestUtil.makeAppWithEx3Config());
+        when(mockBridgeHelper.getHealthDataRecordForExporter3(Exporter3TestUtil.APP_ID, RECORD_ID)).thenAnswer(
+                invocation -> makeRecord());
+        StudyParticipant mockParticipant = mockParticipant();
+        when(mockBridgeHelper.getParticipantByHealthCode(Exporter3TestUtil.APP_ID, HEALTH_CODE, false))
+                .thenReturn(mockParticipant);
+
+        Upload mockUpload = mockUpload(false);
+        when(mockBridgeHelper.getUploadByUploadId(RECORD_ID)).thenReturn(mockUpload);
+
+        mockSynapseHelper();
+
+        // Creating the folder fails the first time.
+        when(mockSynapseHelper.createFolderIfNotExists(Exporter3TestUtil.RAW_FOLDER_ID, TODAYS_DATE_STRING))
+                .thenThrow(new SynapseClientException("test exception")).thenReturn(TODAYS_FOLDER_ID);
+
+        // Execute. The first time throws.
+        try {
+            processor.process(makeRequest());
+            fail("expected exception");
+        } catch (SynapseClientException ex) {
+            // expected exception
+        }
+        verify(mockSynapseHelper, never()).createEntityWithRetry(any(FileEntity.class));
+
+        // The second time calls Synapse again and succeeds.
+        processor.process(makeRequest());
+        verify(mockSynapseHelper).createEntityWithRetry(any(FileEntity.class));
+        verify(mockSynapseHelper, times(2)).createFolderIfNotExists(Exporter3TestUtil.RAW_FOLDER_ID,
+                TODAYS_DATE_STRING);
+    }
+
     @Test
     public void uploadTableEnabled() throws Exception {
         // Mock services.
@@ -907,13 +1168,9 @@ public class Exporter3WorkerProcessorTest {
         // The details of the back-end calls are tested elsewhere. Just verify that we called Synapse.
         verify(mockSynapseHelper, atLeastOnce()).createEntityWithRetry(any());
 
-        // Verify that we download and unzip the file.
-        ArgumentCaptor<File> downloadedZipFileCaptor = ArgumentCaptor.forClass(File.class);
-        verify(mockS3Helper).downloadS3File(eq(RAW_DATA_BUCKET), eq(EXPECTED_S3_KEY),
-                downloadedZipFileCaptor.capture());
-        File downloadedZipFile = downloadedZipFileCaptor.getValue();
-
-        verify(mockZipHelper).unzip(same(downloadedZipFile), any());
+        // Verify that we stream and unzip the file.
+        verify(mockS3StreamHelper).getObjectStream(RAW_DATA_BUCKET, EXPECTED_S3_KEY);
+        verify(mockZipHelper).extractEntries(any(InputStream.class), eq(EXPECTED_WANTED_ENTRY_NAME_SET));
 
         // Verify upload table rows.
         ArgumentCaptor<UploadTableRow> tableRowCaptor = ArgumentCaptor.forClass(UploadTableRow.class);
@@ -932,9 +1189,6 @@ public class Exporter3WorkerProcessorTest {
         verify(mockBridgeHelper).saveUploadTableRow(eq(Exporter3TestUtil.APP_ID), eq(STUDY_ID_4),
                 tableRowCaptor.capture());
         verifyUploadTableRow(tableRowCaptor.getValue(), null);
-
-        // Verify we delete our files when we're done.
-        assertTrue(inMemoryFileHelper.isEmpty());
     }
 
     // branch coverage
@@ -966,7 +1220,7 @@ public class Exporter3WorkerProcessorTest {
 
         // getUploadTableRow() throws.
         doThrow(PollSqsWorkerBadRequestException.class).when(processor).getUploadTableRow(any(), any(), any(), any(),
-                any());
+                any(), any());
 
         // Execute.
         processor.process(makeRequest());
@@ -996,7 +1250,8 @@ public class Exporter3WorkerProcessorTest {
         mockSynapseHelper();
 
         // Spy getUploadTableRow() to return an empty row.
-        doReturn(new UploadTableRow()).when(processor).getUploadTableRow(any(), any(), any(), any(), any());
+        doReturn(new UploadTableRow()).when(processor).getUploadTableRow(any(), any(), any(), any(), any(),
+                any());
 
         // Make study enabled for EX3.0 and upload table.
         Study study = Exporter3TestUtil.makeStudyWithEx3Config().identifier(Exporter3TestUtil.STUDY_ID);
@@ -1020,6 +1275,161 @@ public class Exporter3WorkerProcessorTest {
                 any());
     }
 
+    @Test
+    public void encryptedUploadTableEnabled_PassesDecryptedPayload() throws Exception {
+        // Mock services.
+        App app = Exporter3TestUtil.makeAppWithEx3Config();
+        app.getExporter3Configuration().uploadTableEnabled(true);
+        when(mockBridgeHelper.getApp(Exporter3TestUtil.APP_ID)).thenReturn(app);
+
+        // Upload is for an assessment.
+        Map<String, String> timelineMetadataMap = new HashMap<>();
+        timelineMetadataMap.put(Exporter3WorkerProcessor.METADATA_KEY_ASSESSMENT_GUID, ASSESSMENT_GUID);
+        TimelineMetadata meta = mock(TimelineMetadata.class);
+        when(meta.getMetadata()).thenReturn(timelineMetadataMap);
+        when(mockBridgeHelper.getTimelineMetadata(Exporter3TestUtil.APP_ID, INSTANCE_GUID)).thenReturn(meta);
+
+        HealthDataRecordEx3 record = makeRecord();
+        record.putMetadataItem(METADATA_KEY_INSTANCE_GUID, INSTANCE_GUID);
+        when(mockBridgeHelper.getHealthDataRecordForExporter3(Exporter3TestUtil.APP_ID, RECORD_ID)).thenReturn(
+                record);
+        StudyParticipant mockParticipant = mockParticipant();
+        when(mockBridgeHelper.getParticipantByHealthCode(Exporter3TestUtil.APP_ID, HEALTH_CODE, false))
+                .thenReturn(mockParticipant);
+
+        Upload mockUpload = mockUpload(true);
+        when(mockBridgeHelper.getUploadByUploadId(RECORD_ID)).thenReturn(mockUpload);
+
+        when(mockS3StreamHelper.getObjectStream(UPLOAD_BUCKET, RECORD_ID)).thenReturn(new ByteArrayInputStream(
+                DUMMY_ENCRYPTED_FILE_BYTES));
+
+        CmsEncryptor mockEncryptor = mock(CmsEncryptor.class);
+        when(mockEncryptor.decrypt(any(InputStream.class))).thenReturn(new ByteArrayInputStream(
+                DUMMY_UNENCRYPTED_FILE_BYTES));
+        processor.setCmsEncryptorCache(SingletonCacheLoader.makeLoadingCache(mockEncryptor));
+
+        // Don't actually buffer the input stream, as this breaks the test.
+        doAnswer(invocation -> invocation.getArgumentAt(0, InputStream.class)).when(processor)
+                .getBufferedInputStream(any());
+
+        doAnswer(invocation -> {
+            writtenToS3 = ByteStreams.toByteArray(invocation.getArgumentAt(3, InputStream.class));
+            return null;
+        }).when(mockS3StreamHelper).uploadStream(eq(RAW_DATA_BUCKET), eq(EXPECTED_S3_KEY), any(), any());
+
+        mockSynapseHelper();
+
+        // Spy getUploadTableRow(). We just want to see what it gets.
+        doReturn(null).when(processor).getUploadTableRow(any(), any(), any(), any(), any(), any());
+
+        // Execute.
+        processor.process(makeRequest());
+
+        // The decrypted file we uploaded is passed to getUploadTableRow().
+        assertEquals(writtenToS3, DUMMY_UNENCRYPTED_FILE_BYTES);
+        ArgumentCaptor<byte[]> payloadCaptor = ArgumentCaptor.forClass(byte[].class);
+        verify(processor).getUploadTableRow(same(mockUpload), any(), same(mockParticipant), eq(RECORD_ID), any(),
+                payloadCaptor.capture());
+        assertEquals(payloadCaptor.getValue(), DUMMY_UNENCRYPTED_FILE_BYTES);
+    }
+
+    @Test
+    public void encryptedUploadTableEnabled_NoAssessment_DoesNotCopyPayload() throws Exception {
+        // Mock services.
+        App app = Exporter3TestUtil.makeAppWithEx3Config();
+        app.getExporter3Configuration().uploadTableEnabled(true);
+        when(mockBridgeHelper.getApp(Exporter3TestUtil.APP_ID)).thenReturn(app);
+        when(mockBridgeHelper.getHealthDataRecordForExporter3(Exporter3TestUtil.APP_ID, RECORD_ID)).thenReturn(
+                makeRecord());
+        StudyParticipant mockParticipant = mockParticipant();
+        when(mockBridgeHelper.getParticipantByHealthCode(Exporter3TestUtil.APP_ID, HEALTH_CODE, false))
+                .thenReturn(mockParticipant);
+
+        Upload mockUpload = mockUpload(true);
+        when(mockBridgeHelper.getUploadByUploadId(RECORD_ID)).thenReturn(mockUpload);
+
+        when(mockS3StreamHelper.getObjectStream(UPLOAD_BUCKET, RECORD_ID)).thenReturn(new ByteArrayInputStream(
+                DUMMY_ENCRYPTED_FILE_BYTES));
+
+        CmsEncryptor mockEncryptor = mock(CmsEncryptor.class);
+        when(mockEncryptor.decrypt(any(InputStream.class))).thenReturn(new ByteArrayInputStream(
+                DUMMY_UNENCRYPTED_FILE_BYTES));
+        processor.setCmsEncryptorCache(SingletonCacheLoader.makeLoadingCache(mockEncryptor));
+
+        // Don't actually buffer the input stream, as this breaks the test.
+        doAnswer(invocation -> invocation.getArgumentAt(0, InputStream.class)).when(processor)
+                .getBufferedInputStream(any());
+
+        doAnswer(invocation -> {
+            writtenToS3 = ByteStreams.toByteArray(invocation.getArgumentAt(3, InputStream.class));
+            return null;
+        }).when(mockS3StreamHelper).uploadStream(eq(RAW_DATA_BUCKET), eq(EXPECTED_S3_KEY), any(), any());
+
+        mockSynapseHelper();
+
+        // Spy getUploadTableRow(). We just want to see what it gets.
+        doReturn(null).when(processor).getUploadTableRow(any(), any(), any(), any(), any(), any());
+
+        // Execute.
+        processor.process(makeRequest());
+
+        // Upload isn't for an assessment, so it won't get a table row, and we don't keep a copy of the file.
+        assertEquals(writtenToS3, DUMMY_UNENCRYPTED_FILE_BYTES);
+        verify(processor).getUploadTableRow(same(mockUpload), any(), same(mockParticipant), eq(RECORD_ID), any(),
+                isNull(byte[].class));
+    }
+
+    @Test
+    public void getUploadTableRow_UsesDecryptedPayload() throws Exception {
+        // Make inputs.
+        Upload mockUpload = mockUpload(true);
+        HealthDataRecordEx3 record = makeRecord();
+        StudyParticipant mockParticipant = mockParticipant();
+
+        Map<String, String> metadataMap = new HashMap<>();
+        metadataMap.put(Exporter3WorkerProcessor.METADATA_KEY_ASSESSMENT_GUID, ASSESSMENT_GUID);
+
+        Assessment assessment = new Assessment().guid(ASSESSMENT_GUID).identifier(ASSESSMENT_ID).title(ASSESSMENT_ID)
+                .frameworkIdentifier(AssessmentResultSummarizer.FRAMEWORK_IDENTIFIER);
+        when(mockBridgeHelper.getAssessmentByGuid(Exporter3TestUtil.APP_ID, ASSESSMENT_GUID)).thenReturn(assessment);
+
+        AssessmentConfig assessmentConfig = new AssessmentConfig().config(ASSESSMENT_CONFIG);
+        when(mockBridgeHelper.getAssessmentConfigByGuid(Exporter3TestUtil.APP_ID, ASSESSMENT_GUID)).thenReturn(
+                assessmentConfig);
+
+        // Mock zip helper. Capture the bytes we're asked to unzip.
+        byte[][] unzippedBytesHolder = new byte[1][];
+        when(mockZipHelper.extractEntries(any(InputStream.class), any())).thenAnswer(invocation -> {
+            unzippedBytesHolder[0] = ByteStreams.toByteArray(invocation.getArgumentAt(0, InputStream.class));
+            return ImmutableMap.of();
+        });
+
+        // Execute.
+        processor.getUploadTableRow(mockUpload, record, mockParticipant, RECORD_ID, metadataMap,
+                DUMMY_UNENCRYPTED_FILE_BYTES);
+
+        // We unzip the payload we were given, without downloading from S3.
+        assertEquals(unzippedBytesHolder[0], DUMMY_UNENCRYPTED_FILE_BYTES);
+        verify(mockS3StreamHelper, never()).getObjectStream(eq(RAW_DATA_BUCKET), any());
+    }
+
+    @Test
+    public void boundedByteArrayOutputStream() throws Exception {
+        Exporter3WorkerProcessor.BoundedByteArrayOutputStream outputStream =
+                new Exporter3WorkerProcessor.BoundedByteArrayOutputStream(4);
+        outputStream.write('a');
+        outputStream.write(new byte[] { 'b', 'c', 'd' }, 0, 3);
+        assertEquals(outputStream.toByteArrayOrNull(), new byte[] { 'a', 'b', 'c', 'd' });
+
+        // Going over the limit drops everything.
+        outputStream.write('e');
+        assertNull(outputStream.toByteArrayOrNull());
+
+        // And it stays dropped.
+        outputStream.write(new byte[0], 0, 0);
+        assertNull(outputStream.toByteArrayOrNull());
+    }
+
     @Test
     public void getUploadTableRow_NoAssessmentGuid() throws Exception {
         // Make inputs.
@@ -1029,7 +1439,8 @@ public class Exporter3WorkerProcessorTest {
         Map<String, String> metadataMap = ImmutableMap.of();
 
         // Execute.
-        UploadTableRow row = processor.getUploadTableRow(mockUpload, record, mockParticipant, RECORD_ID, metadataMap);
+        UploadTableRow row = processor.getUploadTableRow(mockUpload, record, mockParticipant, RECORD_ID, metadataMap,
+                null);
         assertNull(row);
     }
 
@@ -1058,7 +1469,8 @@ public class Exporter3WorkerProcessorTest {
                 AssessmentResultSummarizer.FILENAME_ASSESSMENT_RESULT_JSON, EMPTY_ASSESSMENT_RESULTS));
 
         // Execute.
-        UploadTableRow row = processor.getUploadTableRow(mockUpload, record, mockParticipant, RECORD_ID, metadataMap);
+        UploadTableRow row = processor.getUploadTableRow(mockUpload, record, mockParticipant, RECORD_ID, metadataMap,
+                null);
 
         // The code path that we're specifically interested in exercising is that the common metadata rows are still
         // created, but with blank values.
@@ -1073,13 +1485,9 @@ public class Exporter3WorkerProcessorTest {
         // branch coverage: isTestData
         assertFalse(row.isTestData());
 
-        // Verify that we download and unzip the file.
-        ArgumentCaptor<File> downloadedZipFileCaptor = ArgumentCaptor.forClass(File.class);
-        verify(mockS3Helper).downloadS3File(eq(RAW_DATA_BUCKET), eq(EXPECTED_S3_KEY),
-                downloadedZipFileCaptor.capture());
-        File downloadedZipFile = downloadedZipFileCaptor.getValue();
-
-        verify(mockZipHelper).unzip(same(downloadedZipFile), any());
+        // Verify that we stream and unzip the file.
+        verify(mockS3StreamHelper).getObjectStream(RAW_DATA_BUCKET, EXPECTED_S3_KEY);
+        verify(mockZipHelper).extractEntries(any(InputStream.class), eq(EXPECTED_WANTED_ENTRY_NAME_SET));
     }
 
     @Test
@@ -1109,7 +1517,8 @@ public class Exporter3WorkerProcessorTest {
                 ArcResultSummarizer.FILENAME_ARC_RESULT_JSON, TestJsonKt.testArcDataJson_100534_85));
 
         // Execute.
-        UploadTableRow row = processor.getUploadTableRow(mockUpload, record, mockParticipant, RECORD_ID, metadataMap);
+        UploadTableRow row = processor.getUploadTableRow(mockUpload, record, mockParticipant, RECORD_ID, metadataMap,
+                null);
 
         // Verify we got the expected amount of data back
         Map<String, String> rowDataMap = row.getData();
@@ -1143,7 +1552,8 @@ public class Exporter3WorkerProcessorTest {
                 ArcResultSummarizer.FILENAME_ARC_RESULT_JSON, TestJsonKt.testArcDataJson_100534_85));
 
         // Execute.
-        UploadTableRow row = processor.getUploadTableRow(mockUpload, record, mockParticipant, RECORD_ID, metadataMap);
+        UploadTableRow row = processor.getUploadTableRow(mockUpload, record, mockParticipant, RECORD_ID, metadataMap,
+                null);
 
         // Verify we got the expected amount of data back
         Map<String, String> rowDataMap = row.getData();
@@ -1173,19 +1583,16 @@ public class Exporter3WorkerProcessorTest {
                 assessmentConfig);
 
         // Mock zip helper. In this test, the zip file is empty.
-        when(mockZipHelper.unzip(any(), any())).thenReturn(ImmutableMap.of());
+        when(mockZipHelper.extractEntries(any(InputStream.class), any())).thenReturn(ImmutableMap.of());
 
         // Execute.
-        UploadTableRow row = processor.getUploadTableRow(mockUpload, record, mockParticipant, RECORD_ID, metadataMap);
+        UploadTableRow row = processor.getUploadTableRow(mockUpload, record, mockParticipant, RECORD_ID, metadataMap,
+                null);
         assertNotNull(row);
 
-        // We still download and unzip the file.
-        ArgumentCaptor<File> downloadedZipFileCaptor = ArgumentCaptor.forClass(File.class);
-        verify(mockS3Helper).downloadS3File(eq(RAW_DATA_BUCKET), eq(EXPECTED_S3_KEY),
-                downloadedZipFileCaptor.capture());
-        File downloadedZipFile = downloadedZipFileCaptor.getValue();
-
-        verify(mockZipHelper).unzip(same(downloadedZipFile), any());
+        // We still stream and unzip the file.
+        verify(mockS3StreamHelper).getObjectStream(RAW_DATA_BUCKET, EXPECTED_S3_KEY);
+        verify(mockZipHelper).extractEntries(any(InputStream.class), eq(EXPECTED_WANTED_ENTRY_NAME_SET));
     }
 
     // branch coverage
@@ -1204,12 +1611,13 @@ public class Exporter3WorkerProcessorTest {
         when(mockBridgeHelper.getAssessmentConfigByGuid(any(), any())).thenThrow(EntityNotFoundException.class);
 
         // Execute.
-        UploadTableRow row = processor.getUploadTableRow(mockUpload, record, mockParticipant, RECORD_ID, metadataMap);
+        UploadTableRow row = processor.getUploadTableRow(mockUpload, record, mockParticipant, RECORD_ID, metadataMap,
+                null);
         assertNotNull(row);
 
         // Now, we don't download or unzip the file.
-        verify(mockS3Helper, never()).downloadS3File(any(), any(), any());
-        verify(mockZipHelper, never()).unzip(any(), any());
+        verify(mockS3StreamHelper, never()).getObjectStream(eq(RAW_DATA_BUCKET), any());
+        verify(mockZipHelper, never()).extractEntries(any(InputStream.class), any());
     }
 
     // branch coverage
@@ -1233,12 +1641,13 @@ public class Exporter3WorkerProcessorTest {
                 assessmentConfig);
 
         // Execute.
-        UploadTableRow row = processor.getUploadTableRow(mockUpload, record, mockParticipant, RECORD_ID, metadataMap);
+        UploadTableRow row = processor.getUploadTableRow(mockUpload, record, mockParticipant, RECORD_ID, metadataMap,
+                null);
         assertNotNull(row);
 
         // Now, we don't download or unzip the file.
-        verify(mockS3Helper, never()).downloadS3File(any(), any(), any());
-        verify(mockZipHelper, never()).unzip(any(), any());
+        verify(mockS3StreamHelper, never()).getObjectStream(eq(RAW_DATA_BUCKET), any());
+        verify(mockZipHelper, never()).extractEntries(any(InputStream.class), any());
     }
 
     @Test
@@ -1316,20 +1725,11 @@ public class Exporter3WorkerProcessorTest {
     }
 
     private void mockZipHelper(Map<String, String> fileContentMap) throws Exception {
-        when(mockZipHelper.unzip(any(), any())).thenAnswer(invocation -> {
-            File destDir = invocation.getArgumentAt(1, File.class);
-            Map<String, File> fileMap = new HashMap<>();
-            for (Map.Entry<String, String> oneFileEntry : fileContentMap.entrySet()) {
-                String filename = oneFileEntry.getKey();
-                String fileContent = oneFileEntry.getValue();
-
-                File file = inMemoryFileHelper.newFile(destDir, filename);
-                inMemoryFileHelper.writeBytes(file, fileContent.getBytes(StandardCharsets.UTF_8));
-                fileMap.put(filename, file);
-            }
-
-            return fileMap;
-        });
+        Map<String, byte[]> entryMap = new HashMap<>();
+        for (Map.Entry<String, String> oneFileEntry : fileContentMap.entrySet()) {
+            entryMap.put(oneFileEntry.getKey(), oneFileEntry.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+        when(mockZipHelper.extractEntries(any(InputStream.class), any())).thenReturn(entryMap);
     }
 
     private void verifyS3Metadata(ObjectMetadata s3Metadata) {
@@ -1353,6 +1753,10 @@ public class Exporter3WorkerProcessorTest {
     }
 
     private void verifySynapseExport(String expectedS3Key) throws Exception {
+        verifySynapseExport(expectedS3Key, DUMMY_MD5_BYTES);
+    }
+
+    private void verifySynapseExport(String expectedS3Key, byte[] expectedMd5) throws Exception {
         // Verify create file handle.
         ArgumentCaptor<S3FileHandle> fileHandleCaptor = ArgumentCaptor.forClass(S3FileHandle.class);
         verify(mockSynapseHelper).createS3FileHandleWithRetry(fileHandleCaptor.capture());
@@ -1363,12 +1767,15 @@ public class Exporter3WorkerProcessorTest {
         assertEquals(fileHandle.getFileName(), FULL_FILENAME);
         assertEquals(fileHandle.getKey(), expectedS3Key);
         assertEquals(fileHandle.getStorageLocationId().longValue(), Exporter3TestUtil.STORAGE_LOCATION_ID);
-        assertEquals(Hex.decode(fileHandle.getContentMd5()), DUMMY_MD5_BYTES);
+        assertEquals(Hex.decode(fileHandle.getContentMd5()), expectedMd5);
 
         // Verify create file entity.
         ArgumentCaptor<FileEntity> fileEntityCaptor = ArgumentCaptor.forClass(FileEntity.class);
         verify(mockSynapseHelper).createEntityWithRetry(fileEntityCaptor.capture());
 
+        // New files don't need a lookup.
+        verify(mockSynapseHelper, never()).lookupChildWithRetry(any(), any());
+
         FileEntity fileEntity = fileEntityCaptor.getValue();
         assertEquals(fileEntity.getDataFileHandleId(), EXPORTED_FILE_HANDLE_ID);
         assertEquals(fileEntity.getName(), FULL_FILENAME);
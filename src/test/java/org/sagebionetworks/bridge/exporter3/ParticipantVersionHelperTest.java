@@ -2,6 +2,8 @@ package org.sagebionetworks.bridge.exporter3;
 
 import static org.mockito.AdditionalMatchers.or;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
@@ -12,6 +14,7 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionException;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.ImmutableList;
@@ -31,7 +34,9 @@ import org.sagebionetworks.bridge.rest.model.DemographicValueResponse;
 import org.sagebionetworks.bridge.rest.model.ParticipantVersion;
 import org.sagebionetworks.bridge.rest.model.SharingScope;
 import org.sagebionetworks.bridge.synapse.SynapseHelper;
+import org.sagebionetworks.client.exceptions.SynapseBadRequestException;
 import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.client.exceptions.SynapseServiceUnavailable;
 
 public class ParticipantVersionHelperTest {
     private static final List<String> DATA_GROUPS = ImmutableList.of("bbb-group", "aaa-group");
@@ -504,6 +509,99 @@ public class ParticipantVersionHelperTest {
         assertFalse(rowValueMap.containsKey(PARTICIPANT_VERSION_COLUMN_ID_STUDY_MEMBERSHIPS));
     }
 
+    @Test
+    public void columnIdsAreCached() throws Exception {
+        participantVersionHelper.makeRowForParticipantVersion(null, PARTICIPANT_VERSION_TABLE_ID_FOR_APP,
+                makeParticipantVersion());
+        participantVersionHelper.makeRowForParticipantVersion(null, PARTICIPANT_VERSION_TABLE_ID_FOR_APP,
+                makeParticipantVersion());
+        participantVersionHelper.makeRowForParticipantVersion("studyA", PARTICIPANT_VERSION_TABLE_ID_FOR_STUDY,
+                makeParticipantVersion());
+
+        // Each table's columns are fetched once.
+        verify(mockSynapseHelper, times(1)).getColumnModelsForTableWithRetry(PARTICIPANT_VERSION_TABLE_ID_FOR_APP);
+        verify(mockSynapseHelper, times(1)).getColumnModelsForTableWithRetry(
+                PARTICIPANT_VERSION_TABLE_ID_FOR_STUDY);
+    }
+
+    @Test
+    public void schemaChangeErrorInvalidatesColumnIds() throws Exception {
+        participantVersionHelper.makeRowForParticipantVersion(null, PARTICIPANT_VERSION_TABLE_ID_FOR_APP,
+                makeParticipantVersion());
+
+        // Errors from the coalescer come wrapped in a CompletionException.
+        participantVersionHelper.invalidateColumnsOnSchemaChangeError(PARTICIPANT_VERSION_TABLE_ID_FOR_APP,
+                new CompletionException(new SynapseBadRequestException("column does not exist")));
+
+        // The next row fetches the columns again.
+        participantVersionHelper.makeRowForParticipantVersion(null, PARTICIPANT_VERSION_TABLE_ID_FOR_APP,
+                makeParticipantVersion());
+        verify(mockSynapseHelper, times(2)).getColumnModelsForTableWithRetry(PARTICIPANT_VERSION_TABLE_ID_FOR_APP);
+    }
+
+    @Test
+    public void demographicsRowTemplateIsCached() throws Exception {
+        participantVersionHelper.makeRowsForParticipantVersionDemographics(null,
+                PARTICIPANT_VERSION_DEMOGRAPHICS_TABLE_ID_FOR_APP, makeParticipantVersion());
+        participantVersionHelper.makeRowsForParticipantVersionDemographics(null,
+                PARTICIPANT_VERSION_DEMOGRAPHICS_TABLE_ID_FOR_APP, makeParticipantVersion());
+        verify(mockSynapseHelper, times(1)).getColumnModelsForTableWithRetry(
+                PARTICIPANT_VERSION_DEMOGRAPHICS_TABLE_ID_FOR_APP);
+
+        // A schema change throws out the template too.
+        participantVersionHelper.invalidateColumnsOnSchemaChangeError(PARTICIPANT_VERSION_DEMOGRAPHICS_TABLE_ID_FOR_APP,
+                new SynapseBadRequestException("column does not exist"));
+        participantVersionHelper.makeRowsForParticipantVersionDemographics(null,
+                PARTICIPANT_VERSION_DEMOGRAPHICS_TABLE_ID_FOR_APP, makeParticipantVersion());
+        verify(mockSynapseHelper, times(2)).getColumnModelsForTableWithRetry(
+                PARTICIPANT_VERSION_DEMOGRAPHICS_TABLE_ID_FOR_APP);
+    }
+
+    @Test
+    public void demographicsRowTemplateSkipsNullOptionalColumns() {
+        ParticipantVersionHelper.DemographicsRowTemplate template = new ParticipantVersionHelper
+                .DemographicsRowTemplate(ImmutableMap.<String, String>builder()
+                .put(ParticipantVersionHelper.COLUMN_NAME_HEALTH_CODE, "hc-col")
+                .put(ParticipantVersionHelper.COLUMN_NAME_PARTICIPANT_VERSION, "pv-col")
+                .put(ParticipantVersionHelper.COLUMN_NAME_STUDY_ID, "study-col")
+                .put(ParticipantVersionHelper.COLUMN_NAME_DEMOGRAPHIC_CATEGORY_NAME, "category-col")
+                .put(ParticipantVersionHelper.COLUMN_NAME_DEMOGRAPHIC_VALUE, "value-col")
+                .put(ParticipantVersionHelper.COLUMN_NAME_DEMOGRAPHIC_UNITS, "units-col")
+                .put(ParticipantVersionHelper.COLUMN_NAME_DEMOGRAPHIC_INVALIDITY, "invalidity-col").build());
+
+        String[] values = { HEALTH_CODE, "42", null, "category", null, null, null };
+        Map<String, String> rowMap = template.makeRow(values).getValues();
+
+        // Required columns are always written, even if null. Optional columns are only written if present.
+        assertEquals(rowMap.size(), 5);
+        assertEquals(rowMap.get("hc-col"), HEALTH_CODE);
+        assertEquals(rowMap.get("pv-col"), "42");
+        assertTrue(rowMap.containsKey("study-col"));
+        assertEquals(rowMap.get("category-col"), "category");
+        assertTrue(rowMap.containsKey("value-col"));
+        assertFalse(rowMap.containsKey("units-col"));
+        assertFalse(rowMap.containsKey("invalidity-col"));
+
+        // Reusing the values array doesn't change rows that were already made.
+        values[ParticipantVersionHelper.DemographicsRowTemplate.INDEX_UNITS] = "units";
+        Map<String, String> secondRowMap = template.makeRow(values).getValues();
+        assertEquals(secondRowMap.get("units-col"), "units");
+        assertFalse(rowMap.containsKey("units-col"));
+    }
+
+    @Test
+    public void otherErrorsDontInvalidateColumnIds() throws Exception {
+        participantVersionHelper.makeRowForParticipantVersion(null, PARTICIPANT_VERSION_TABLE_ID_FOR_APP,
+                makeParticipantVersion());
+
+        participantVersionHelper.invalidateColumnsOnSchemaChangeError(PARTICIPANT_VERSION_TABLE_ID_FOR_APP,
+                new SynapseServiceUnavailable("unavailable"));
+
+        participantVersionHelper.makeRowForParticipantVersion(null, PARTICIPANT_VERSION_TABLE_ID_FOR_APP,
+                makeParticipantVersion());
+        verify(mockSynapseHelper, times(1)).getColumnModelsForTableWithRetry(PARTICIPANT_VERSION_TABLE_ID_FOR_APP);
+    }
+
     private static ParticipantVersion makeParticipantVersion() {
         ParticipantVersion participantVersion = new ParticipantVersion();
         participantVersion.setAppId(Exporter3TestUtil.APP_ID);
@@ -1,9 +1,11 @@
 package org.sagebionetworks.bridge.exporter3;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.notNull;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -15,11 +17,14 @@ import static org.testng.Assert.assertSame;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -46,6 +51,8 @@ import org.sagebionetworks.bridge.workerPlatform.dynamodb.DynamoHelper;
 @SuppressWarnings("unchecked")
 public class RedriveParticipantVersionsWorkerProcessorTest {
     private static final String BACKFILL_BUCKET = "my-backfill-bucket";
+    private static final String CHECKPOINT_KEY = Exporter3TestUtil.APP_ID + ":my-healthcode-list";
+    private static final int CHUNK_ROWS = 5;
     private static final String EXT_ID_A = "ext-id-A";
     private static final String EXT_ID_B = "ext-id-B";
     private static final String HEALTH_CODE_1 = "healthCode1";
@@ -85,8 +92,16 @@ public class RedriveParticipantVersionsWorkerProcessorTest {
         Config mockConfig = mock(Config.class);
         when(mockConfig.get(RedriveParticipantVersionsWorkerProcessor.CONFIG_KEY_BACKFILL_BUCKET)).thenReturn(
                 BACKFILL_BUCKET);
+        when(mockConfig.getInt(RedriveParticipantVersionsWorkerProcessor.CONFIG_KEY_CHUNK_BYTES)).thenReturn(
+                Integer.MAX_VALUE);
+        when(mockConfig.getInt(RedriveParticipantVersionsWorkerProcessor.CONFIG_KEY_CHUNK_ROWS)).thenReturn(
+                CHUNK_ROWS);
+        when(mockConfig.getInt(RedriveParticipantVersionsWorkerProcessor.CONFIG_KEY_MAX_CONCURRENT)).thenReturn(2);
         processor.setConfig(mockConfig);
 
+        // Process health codes on the test thread, so that tests are deterministic.
+        processor.setRedriveExecutorService(MoreExecutors.newDirectExecutorService());
+
         app = Exporter3TestUtil.makeAppWithEx3Config();
         app.getExporter3Configuration().setParticipantVersionTableId(PARTICIPANT_VERSION_TABLE_ID_FOR_APP);
         when(mockBridgeHelper.getApp(Exporter3TestUtil.APP_ID)).thenReturn(app);
@@ -383,6 +398,129 @@ public class RedriveParticipantVersionsWorkerProcessorTest {
         verify(mockSynapseHelper, never()).appendRowsToTable(any(), any());
     }
 
+    @Test
+    public void rowsAppendedInChunks() throws Exception {
+        // 12 health codes, each with 1 version, in the app only. With chunks of 5, we append 5 rows as soon as the
+        // chunk fills up, then 5 more, then the last 2 at the end.
+        List<PartialRow> expectedRowList = mockHealthCodesWithOneRowEach(12, ImmutableMap.of());
+        List<List<PartialRow>> appendedRowListList = captureAppendedRows();
+
+        // Execute.
+        processor.process(makeRequest());
+
+        // Validate.
+        assertEquals(appendedRowListList.size(), 3);
+        assertEquals(appendedRowListList.get(0), expectedRowList.subList(0, 5));
+        assertEquals(appendedRowListList.get(1), expectedRowList.subList(5, 10));
+        assertEquals(appendedRowListList.get(2), expectedRowList.subList(10, 12));
+
+        // We checkpoint after each chunk, and delete the checkpoint when we're done.
+        InOrder inOrder = inOrder(mockDynamoHelper);
+        inOrder.verify(mockDynamoHelper).getWorkerCheckpoint(RedriveParticipantVersionsWorkerProcessor.WORKER_ID,
+                CHECKPOINT_KEY);
+        inOrder.verify(mockDynamoHelper).writeWorkerCheckpoint(RedriveParticipantVersionsWorkerProcessor.WORKER_ID,
+                CHECKPOINT_KEY, 5);
+        inOrder.verify(mockDynamoHelper).writeWorkerCheckpoint(RedriveParticipantVersionsWorkerProcessor.WORKER_ID,
+                CHECKPOINT_KEY, 10);
+        inOrder.verify(mockDynamoHelper).deleteWorkerCheckpoint(RedriveParticipantVersionsWorkerProcessor.WORKER_ID,
+                CHECKPOINT_KEY);
+        inOrder.verify(mockDynamoHelper).writeWorkerLog(eq(RedriveParticipantVersionsWorkerProcessor.WORKER_ID),
+                notNull(String.class));
+    }
+
+    @Test
+    public void resumeFromCheckpoint() throws Exception {
+        // 12 health codes. A previous attempt got through the first 10.
+        List<PartialRow> expectedRowList = mockHealthCodesWithOneRowEach(12, ImmutableMap.of());
+        List<List<PartialRow>> appendedRowListList = captureAppendedRows();
+        when(mockDynamoHelper.getWorkerCheckpoint(RedriveParticipantVersionsWorkerProcessor.WORKER_ID,
+                CHECKPOINT_KEY)).thenReturn(10);
+
+        // Execute.
+        processor.process(makeRequest());
+
+        // Validate. We only redrive the last 2 health codes.
+        assertEquals(appendedRowListList.size(), 1);
+        assertEquals(appendedRowListList.get(0), expectedRowList.subList(10, 12));
+        verify(mockBridgeHelper, never()).getAllParticipantVersionsForUser(Exporter3TestUtil.APP_ID,
+                "healthcode:healthCode0");
+
+        verify(mockDynamoHelper, never()).writeWorkerCheckpoint(any(), any(), anyInt());
+        verify(mockDynamoHelper).deleteWorkerCheckpoint(RedriveParticipantVersionsWorkerProcessor.WORKER_ID,
+                CHECKPOINT_KEY);
+    }
+
+    @Test
+    public void rowsAppendedWhenChunkBytesReached() throws Exception {
+        // Each row is about 20 bytes. With a limit of 50 bytes, we append every 3 rows.
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get(RedriveParticipantVersionsWorkerProcessor.CONFIG_KEY_BACKFILL_BUCKET)).thenReturn(
+                BACKFILL_BUCKET);
+        when(mockConfig.getInt(RedriveParticipantVersionsWorkerProcessor.CONFIG_KEY_CHUNK_BYTES)).thenReturn(50);
+        when(mockConfig.getInt(RedriveParticipantVersionsWorkerProcessor.CONFIG_KEY_CHUNK_ROWS)).thenReturn(
+                CHUNK_ROWS);
+        when(mockConfig.getInt(RedriveParticipantVersionsWorkerProcessor.CONFIG_KEY_MAX_CONCURRENT)).thenReturn(2);
+        processor.setConfig(mockConfig);
+
+        List<PartialRow> expectedRowList = mockHealthCodesWithOneRowEach(4, ImmutableMap.of("column-id",
+                "dummy-value"));
+        List<List<PartialRow>> appendedRowListList = captureAppendedRows();
+
+        // Execute.
+        processor.process(makeRequest());
+
+        // Validate.
+        assertEquals(appendedRowListList.size(), 2);
+        assertEquals(appendedRowListList.get(0), expectedRowList.subList(0, 3));
+        assertEquals(appendedRowListList.get(1), expectedRowList.subList(3, 4));
+        verify(mockDynamoHelper).writeWorkerCheckpoint(RedriveParticipantVersionsWorkerProcessor.WORKER_ID,
+                CHECKPOINT_KEY, 3);
+    }
+
+    // Mocks numHealthCodes health codes, each with 1 version in the app only. Returns the rows, in order.
+    private List<PartialRow> mockHealthCodesWithOneRowEach(int numHealthCodes, Map<String, String> rowValues)
+            throws Exception {
+        List<String> healthCodeList = new ArrayList<>();
+        List<PartialRow> rowList = new ArrayList<>();
+        for (int i = 0; i < numHealthCodes; i++) {
+            String healthCode = "healthCode" + i;
+            healthCodeList.add(healthCode);
+
+            ParticipantVersion participantVersion = new ParticipantVersion();
+            participantVersion.setHealthCode(healthCode);
+            participantVersion.setParticipantVersion(1);
+            when(mockBridgeHelper.getAllParticipantVersionsForUser(Exporter3TestUtil.APP_ID,
+                    "healthcode:" + healthCode)).thenReturn(ImmutableList.of(participantVersion));
+
+            PartialRow row = new PartialRow();
+            row.setValues(rowValues);
+            when(mockParticipantVersionHelper.makeRowForParticipantVersion(null,
+                    PARTICIPANT_VERSION_TABLE_ID_FOR_APP, participantVersion)).thenReturn(row);
+            rowList.add(row);
+        }
+        when(mockS3Helper.readS3FileAsLines(BACKFILL_BUCKET, S3KEY)).thenReturn(healthCodeList);
+        return rowList;
+    }
+
+    // Captures the rows on each call to append rows to the app's participant version table.
+    private List<List<PartialRow>> captureAppendedRows() throws Exception {
+        List<List<PartialRow>> appendedRowListList = new ArrayList<>();
+        when(mockSynapseHelper.appendRowsToTable(any(), eq(PARTICIPANT_VERSION_TABLE_ID_FOR_APP))).thenAnswer(
+                invocation -> {
+                    PartialRowSet partialRowSet = invocation.getArgumentAt(0, PartialRowSet.class);
+                    appendedRowListList.add(ImmutableList.copyOf(partialRowSet.getRows()));
+
+                    List<RowReference> rowReferenceList = new ArrayList<>();
+                    for (int i = 0; i < partialRowSet.getRows().size(); i++) {
+                        rowReferenceList.add(new RowReference());
+                    }
+                    RowReferenceSet rowReferenceSet = new RowReferenceSet();
+                    rowReferenceSet.setRows(rowReferenceList);
+                    return rowReferenceSet;
+                });
+        return appendedRowListList;
+    }
+
     private static BackfillParticipantVersionsRequest makeRequest() {
         BackfillParticipantVersionsRequest request = new BackfillParticipantVersionsRequest();
         request.setAppId(Exporter3TestUtil.APP_ID);
@@ -0,0 +1,301 @@
+package org.sagebionetworks.bridge.exporter3;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.sagebionetworks.repo.model.table.AppendableRowSet;
+import org.sagebionetworks.repo.model.table.PartialRow;
+import org.sagebionetworks.repo.model.table.PartialRowSet;
+import org.sagebionetworks.repo.model.table.RowReference;
+import org.sagebionetworks.repo.model.table.RowReferenceSet;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.exceptions.BridgeSynapseException;
+import org.sagebionetworks.bridge.synapse.SynapseHelper;
+
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class SynapseRowCoalescerTest {
+    private static final long BATCH_WINDOW_MILLIS = 250;
+    private static final int MAX_BATCH_ROWS = 3;
+    private static final String TABLE_ID = "syn11111";
+    private static final String OTHER_TABLE_ID = "syn22222";
+
+    private static final PartialRow ROW_A = new PartialRow();
+    private static final PartialRow ROW_B = new PartialRow();
+    private static final PartialRow ROW_C = new PartialRow();
+
+    @Mock
+    private ScheduledExecutorService mockScheduledExecutorService;
+
+    @Mock
+    private ScheduledFuture mockScheduledFuture;
+
+    @Mock
+    private SynapseHelper mockSynapseHelper;
+
+    private SynapseRowCoalescer coalescer;
+
+    @BeforeMethod
+    public void before() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        // The timer is a mock, so tests decide when the window ends. Appends run on the calling thread.
+        when(mockScheduledExecutorService.schedule(any(Runnable.class), anyLong(), any())).thenReturn(
+                mockScheduledFuture);
+
+        // By default, Synapse returns a row reference for every row.
+        when(mockSynapseHelper.appendRowsToTable(any(), any())).thenAnswer(invocation -> {
+            PartialRowSet rowSet = invocation.getArgumentAt(0, PartialRowSet.class);
+            return makeRowReferenceSet(rowSet.getRows().size());
+        });
+
+        coalescer = new SynapseRowCoalescer();
+        coalescer.setBatchWindowMillis(BATCH_WINDOW_MILLIS);
+        coalescer.setMaxBatchRows(MAX_BATCH_ROWS);
+        coalescer.setMetricService("test-service");
+        coalescer.setScheduledExecutorService(mockScheduledExecutorService);
+        coalescer.setSynapseExecutorService(MoreExecutors.newDirectExecutorService());
+        coalescer.setSynapseHelper(mockSynapseHelper);
+    }
+
+    @Test
+    public void batchingOff() throws Exception {
+        coalescer.setBatchWindowMillis(0);
+
+        // Each append goes straight to Synapse.
+        CompletableFuture<List<RowReference>> futureA = coalescer.appendRows(TABLE_ID, ImmutableList.of(ROW_A));
+        CompletableFuture<List<RowReference>> futureB = coalescer.appendRows(TABLE_ID, ImmutableList.of(ROW_B));
+        assertEquals(futureA.get().size(), 1);
+        assertEquals(futureB.get().size(), 1);
+
+        verify(mockSynapseHelper, times(2)).appendRowsToTable(any(), eq(TABLE_ID));
+        verifyZeroInteractions(mockScheduledExecutorService);
+    }
+
+    @Test
+    public void rowsWithinWindowAreCoalesced() throws Exception {
+        // Rows for the same table go in the same batch. Rows for other tables go in their own batch.
+        CompletableFuture<List<RowReference>> futureA = coalescer.appendRows(TABLE_ID, ImmutableList.of(ROW_A));
+        CompletableFuture<List<RowReference>> futureB = coalescer.appendRows(TABLE_ID, ImmutableList.of(ROW_B));
+        CompletableFuture<List<RowReference>> futureC = coalescer.appendRows(OTHER_TABLE_ID,
+                ImmutableList.of(ROW_C));
+
+        // Nothing is sent until the window ends.
+        verify(mockSynapseHelper, never()).appendRowsToTable(any(), any());
+        assertFalse(futureA.isDone());
+        assertFalse(futureB.isDone());
+
+        ArgumentCaptor<Runnable> timerCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(mockScheduledExecutorService, times(2)).schedule(timerCaptor.capture(), eq(BATCH_WINDOW_MILLIS),
+                eq(TimeUnit.MILLISECONDS));
+
+        // End the window for the first table.
+        timerCaptor.getAllValues().get(0).run();
+
+        ArgumentCaptor<AppendableRowSet> rowSetCaptor = ArgumentCaptor.forClass(AppendableRowSet.class);
+        verify(mockSynapseHelper).appendRowsToTable(rowSetCaptor.capture(), eq(TABLE_ID));
+        PartialRowSet rowSet = (PartialRowSet) rowSetCaptor.getValue();
+        assertEquals(rowSet.getTableId(), TABLE_ID);
+        assertEquals(rowSet.getRows().size(), 2);
+        assertSame(rowSet.getRows().get(0), ROW_A);
+        assertSame(rowSet.getRows().get(1), ROW_B);
+
+        // Each caller gets the row reference for its own row.
+        assertEquals(futureA.get().get(0).getRowId().longValue(), 0L);
+        assertEquals(futureB.get().get(0).getRowId().longValue(), 1L);
+
+        // The other table is still waiting.
+        verify(mockSynapseHelper, never()).appendRowsToTable(any(), eq(OTHER_TABLE_ID));
+        assertFalse(futureC.isDone());
+
+        timerCaptor.getAllValues().get(1).run();
+        verify(mockSynapseHelper).appendRowsToTable(any(), eq(OTHER_TABLE_ID));
+        assertEquals(futureC.get().size(), 1);
+
+        // The next row for the first table starts a new batch.
+        coalescer.appendRows(TABLE_ID, ImmutableList.of(ROW_C));
+        verify(mockScheduledExecutorService, times(3)).schedule(any(Runnable.class), anyLong(), any());
+    }
+
+    @Test
+    public void fullBatchIsSentRightAway() throws Exception {
+        CompletableFuture<List<RowReference>> futureA = coalescer.appendRows(TABLE_ID, ImmutableList.of(ROW_A));
+        CompletableFuture<List<RowReference>> futureBC = coalescer.appendRows(TABLE_ID, ImmutableList.of(ROW_B,
+                ROW_C));
+
+        // Batch hit max rows, so it was sent without waiting for the window.
+        ArgumentCaptor<AppendableRowSet> rowSetCaptor = ArgumentCaptor.forClass(AppendableRowSet.class);
+        verify(mockSynapseHelper).appendRowsToTable(rowSetCaptor.capture(), eq(TABLE_ID));
+        assertEquals(rowSetCaptor.getValue().getRows().size(), 3);
+        verify(mockScheduledFuture).cancel(false);
+
+        assertEquals(futureA.get().size(), 1);
+        List<RowReference> rowReferenceListBC = futureBC.get();
+        assertEquals(rowReferenceListBC.size(), 2);
+        assertEquals(rowReferenceListBC.get(0).getRowId().longValue(), 1L);
+        assertEquals(rowReferenceListBC.get(1).getRowId().longValue(), 2L);
+
+        // If the timer fires anyway, it doesn't send the batch again.
+        ArgumentCaptor<Runnable> timerCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(mockScheduledExecutorService).schedule(timerCaptor.capture(), anyLong(), any());
+        timerCaptor.getValue().run();
+        verify(mockSynapseHelper, times(1)).appendRowsToTable(any(), any());
+    }
+
+    @Test
+    public void missingRowReferencesFailOnlyMissingCallers() throws Exception {
+        // Synapse only returns 1 row reference for 2 rows.
+        doReturn(makeRowReferenceSet(1)).when(mockSynapseHelper).appendRowsToTable(any(), any());
+
+        CompletableFuture<List<RowReference>> futureA = coalescer.appendRows(TABLE_ID, ImmutableList.of(ROW_A));
+        CompletableFuture<List<RowReference>> futureB = coalescer.appendRows(TABLE_ID, ImmutableList.of(ROW_B));
+        endWindow();
+
+        assertEquals(futureA.get().size(), 1);
+        try {
+            futureB.get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof BridgeSynapseException);
+        }
+    }
+
+    @Test
+    public void nullRowReferences() throws Exception {
+        RowReferenceSet rowReferenceSet = new RowReferenceSet();
+        rowReferenceSet.setRows(null);
+        doReturn(rowReferenceSet).when(mockSynapseHelper).appendRowsToTable(any(), any());
+
+        CompletableFuture<List<RowReference>> futureA = coalescer.appendRows(TABLE_ID, ImmutableList.of(ROW_A));
+        endWindow();
+
+        try {
+            futureA.get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof BridgeSynapseException);
+        }
+    }
+
+    @Test
+    public void appendErrorFailsSingleCaller() throws Exception {
+        BridgeSynapseException synapseException = new BridgeSynapseException("test exception");
+        doThrow(synapseException).when(mockSynapseHelper).appendRowsToTable(any(), any());
+
+        CompletableFuture<List<RowReference>> futureA = coalescer.appendRows(TABLE_ID, ImmutableList.of(ROW_A));
+        endWindow();
+
+        // Only one caller, so there's nothing to retry.
+        verify(mockSynapseHelper, times(1)).appendRowsToTable(any(), any());
+        try {
+            futureA.get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertSame(ex.getCause(), synapseException);
+        }
+    }
+
+    @Test
+    public void appendErrorRetriesEachCallerAlone() throws Exception {
+        // The batch fails because of row B. On their own, row A succeeds and row B fails again.
+        BridgeSynapseException synapseException = new BridgeSynapseException("test exception");
+        doAnswer(invocation -> {
+            PartialRowSet rowSet = invocation.getArgumentAt(0, PartialRowSet.class);
+            if (rowSet.getRows().contains(ROW_B)) {
+                throw synapseException;
+            }
+            return makeRowReferenceSet(rowSet.getRows().size());
+        }).when(mockSynapseHelper).appendRowsToTable(any(), any());
+
+        CompletableFuture<List<RowReference>> futureA = coalescer.appendRows(TABLE_ID, ImmutableList.of(ROW_A));
+        CompletableFuture<List<RowReference>> futureB = coalescer.appendRows(TABLE_ID, ImmutableList.of(ROW_B));
+        endWindow();
+
+        // One call for the batch, then one call for each caller.
+        ArgumentCaptor<AppendableRowSet> rowSetCaptor = ArgumentCaptor.forClass(AppendableRowSet.class);
+        verify(mockSynapseHelper, times(3)).appendRowsToTable(rowSetCaptor.capture(), eq(TABLE_ID));
+        List<AppendableRowSet> rowSetList = rowSetCaptor.getAllValues();
+        assertEquals(((PartialRowSet) rowSetList.get(0)).getRows().size(), 2);
+        assertEquals(((PartialRowSet) rowSetList.get(1)).getRows(), ImmutableList.of(ROW_A));
+        assertEquals(((PartialRowSet) rowSetList.get(2)).getRows(), ImmutableList.of(ROW_B));
+
+        // Only the caller with the bad row fails.
+        assertEquals(futureA.get().size(), 1);
+        try {
+            futureB.get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertSame(ex.getCause(), synapseException);
+        }
+    }
+
+    @Test
+    public void retriedCallerWithMissingRowReferencesFails() throws Exception {
+        // The batch fails. On its own, Synapse returns no row references.
+        RowReferenceSet emptyRowReferenceSet = new RowReferenceSet();
+        emptyRowReferenceSet.setRows(ImmutableList.of());
+        doThrow(new BridgeSynapseException("test exception")).doReturn(makeRowReferenceSet(1))
+                .doReturn(emptyRowReferenceSet).when(mockSynapseHelper).appendRowsToTable(any(), any());
+
+        CompletableFuture<List<RowReference>> futureA = coalescer.appendRows(TABLE_ID, ImmutableList.of(ROW_A));
+        CompletableFuture<List<RowReference>> futureB = coalescer.appendRows(TABLE_ID, ImmutableList.of(ROW_B));
+        endWindow();
+
+        assertEquals(futureA.get().size(), 1);
+        try {
+            futureB.get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof BridgeSynapseException);
+            assertTrue(ex.getCause().getMessage().startsWith("Missing row references"));
+        }
+    }
+
+    // Runs the timer for the only batch.
+    private void endWindow() {
+        ArgumentCaptor<Runnable> timerCaptor = ArgumentCaptor.forClass(Runnable.class);
+        verify(mockScheduledExecutorService).schedule(timerCaptor.capture(), anyLong(), any());
+        timerCaptor.getValue().run();
+    }
+
+    // Row IDs are 0 through numRows-1, so tests can tell which row reference went to which caller.
+    private static RowReferenceSet makeRowReferenceSet(int numRows) {
+        ImmutableList.Builder<RowReference> rowReferenceListBuilder = ImmutableList.builder();
+        for (long i = 0; i < numRows; i++) {
+            RowReference rowReference = new RowReference();
+            rowReference.setRowId(i);
+            rowReferenceListBuilder.add(rowReference);
+        }
+
+        RowReferenceSet rowReferenceSet = new RowReferenceSet();
+        rowReferenceSet.setRows(rowReferenceListBuilder.build());
+        return rowReferenceSet;
+    }
+}
@@ -36,6 +36,21 @@ public class UploadCsvRequestTest {
         assertTrue(request.getAssessmentGuids().isEmpty());
     }
 
+    @Test
+    public void formatNeverNull() {
+        // Defaults to CSV.
+        UploadCsvRequest request = new UploadCsvRequest();
+        assertEquals(request.getFormat(), UploadCsvFormat.CSV);
+
+        // Set a non-default value.
+        request.setFormat(UploadCsvFormat.PARQUET);
+        assertEquals(request.getFormat(), UploadCsvFormat.PARQUET);
+
+        // Set to null. It's CSV again.
+        request.setFormat(null);
+        assertEquals(request.getFormat(), UploadCsvFormat.CSV);
+    }
+
     @Test
     public void deserialize() throws JsonProcessingException {
         // We only ever de-serialize this, so start with JSON.
@@ -46,7 +61,9 @@ public class UploadCsvRequestTest {
                 "   \"assessmentGuids\":[\"" + ASSESSMENT_GUID + "\"],\n" +
                 "   \"startTime\":\"" + START_TIME_STR + "\",\n" +
                 "   \"endTime\":\"" + END_TIME_STR + "\",\n" +
+                "   \"format\":\"PARQUET\",\n" +
                 "   \"includeTestData\":true,\n" +
+                "   \"incremental\":true,\n" +
                 "   \"zipFileSuffix\":\"" + ZIP_FILE_SUFFIX + "\"\n" +
                 "}";
 
@@ -58,7 +75,9 @@ public class UploadCsvRequestTest {
         assertEquals(request.getAssessmentGuids(), ASSESSMENT_GUIDS);
         assertEquals(request.getStartTime().toString(), START_TIME_STR);
         assertEquals(request.getEndTime().toString(), END_TIME_STR);
+        assertEquals(request.getFormat(), UploadCsvFormat.PARQUET);
         assertTrue(request.isIncludeTestData());
+        assertTrue(request.isIncremental());
         assertEquals(request.getZipFileSuffix(), ZIP_FILE_SUFFIX);
     }
 }
@@ -8,11 +8,15 @@ import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
@@ -21,20 +25,36 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipOutputStream;
 
 import au.com.bytecode.opencsv.CSVReader;
 import au.com.bytecode.opencsv.CSVWriter;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.parquet.example.data.Group;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeUtils;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
@@ -45,19 +65,23 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter3.results.AssessmentResultSummarizer;
+import org.sagebionetworks.bridge.exporter3.results.AssessmentSummarizerProvider;
 import org.sagebionetworks.bridge.file.InMemoryFileHelper;
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.sagebionetworks.bridge.rest.model.Assessment;
+import org.sagebionetworks.bridge.rest.model.AssessmentConfig;
 import org.sagebionetworks.bridge.rest.model.Study;
 import org.sagebionetworks.bridge.rest.model.UploadTableJob;
 import org.sagebionetworks.bridge.rest.model.UploadTableJobStatus;
 import org.sagebionetworks.bridge.rest.model.UploadTableRow;
 import org.sagebionetworks.bridge.rest.model.UploadTableRowQuery;
-import org.sagebionetworks.bridge.s3.S3Helper;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerRetryableException;
 import org.sagebionetworks.bridge.udd.helper.ZipHelper;
 import org.sagebionetworks.bridge.workerPlatform.bridge.BridgeHelper;
 import org.sagebionetworks.bridge.workerPlatform.dynamodb.DynamoHelper;
+import org.sagebionetworks.bridge.workerPlatform.s3.S3StreamHelper;
+import org.sagebionetworks.bridge.workerPlatform.s3.S3UploadOutputStream;
 
 @SuppressWarnings("unchecked")
 public class UploadCsvWorkerProcessorTest {
@@ -91,6 +115,8 @@ public class UploadCsvWorkerProcessorTest {
     private static final Study STUDY = new Study().identifier(STUDY_ID).name(STUDY_NAME);
 
     private static final String ZIP_FILENAME = STUDY_ID + "-" + STUDY_NAME_TRIMMED + "-" + MOCK_NOW_MILLIS + ".zip";
+    private static final String ZIP_FILENAME_DELTA = STUDY_ID + "-" + STUDY_NAME_TRIMMED + "-delta-" +
+            MOCK_NOW_MILLIS + ".zip";
     private static final String ZIP_FILENAME_WITH_SUFFIX = STUDY_ID + "-" + STUDY_NAME_TRIMMED + "-" +
             ZIP_FILE_SUFFIX + ".zip";
 
@@ -98,6 +124,8 @@ public class UploadCsvWorkerProcessorTest {
     private static final String ASSESSMENT_A_TITLE_TRIMMED = "AssessmentAFirstAssessment";
     private static final String ASSESSMENT_A_CSV_FILENAME = STUDY_ID + "-" + STUDY_NAME_TRIMMED + "-" +
             ASSESSMENT_GUID_A + "-" + ASSESSMENT_A_TITLE_TRIMMED + ".csv";
+    private static final String ASSESSMENT_A_PARQUET_FILENAME = STUDY_ID + "-" + STUDY_NAME_TRIMMED + "-" +
+            ASSESSMENT_GUID_A + "-" + ASSESSMENT_A_TITLE_TRIMMED + ".parquet";
     private static final Assessment ASSESSMENT_A = new Assessment().guid(ASSESSMENT_GUID_A).identifier(ASSESSMENT_ID_A)
             .title(ASSESSMENT_A_TITLE).revision(1L);
 
@@ -108,6 +136,29 @@ public class UploadCsvWorkerProcessorTest {
     private static final Assessment ASSESSMENT_B = new Assessment().guid(ASSESSMENT_GUID_B).identifier(ASSESSMENT_ID_B)
             .title(ASSESSMENT_B_TITLE).revision(2L);
 
+    // Simplified survey config with only the relevant fields.
+    private static final String SURVEY_CONFIG = "{\n" +
+            "   \"type\":\"assessment\",\n" +
+            "   \"identifier\":\"survey\",\n" +
+            "   \"steps\":[\n" +
+            "      {\n" +
+            "         \"type\":\"choiceQuestion\",\n" +
+            "         \"identifier\":\"choiceQ1\",\n" +
+            "         \"baseType\":\"integer\",\n" +
+            "         \"singleChoice\":true,\n" +
+            "         \"choices\":[\n" +
+            "            { \"value\":1, \"text\":\"One\" },\n" +
+            "            { \"value\":2, \"text\":\"Two\" }\n" +
+            "         ]\n" +
+            "      },\n" +
+            "      {\n" +
+            "         \"type\":\"simpleQuestion\",\n" +
+            "         \"identifier\":\"simpleQ1\",\n" +
+            "         \"inputItem\":{ \"type\":\"string\" }\n" +
+            "      }\n" +
+            "   ]\n" +
+            "}";
+
     private static final int NUM_COMMON_COLUMNS = UploadCsvWorkerProcessor.COMMON_COLUMNS.length;
 
     // Test rows, one for each of [assessment A, assessment B] x [user 1, user 2].
@@ -150,7 +201,10 @@ public class UploadCsvWorkerProcessorTest {
             RECORD_ID_1B, EXPECTED_RESULT_1B, RECORD_ID_2B, EXPECTED_RESULT_2B);
 
     private Map<String, byte[]> csvContentByFilename;
+    private ExecutorService executorService;
     private InMemoryFileHelper inMemoryFileHelper;
+    private S3UploadOutputStream mockS3OutputStream;
+    private ZipOutputStream mockZipOutputStream;
 
     @Mock
     private BridgeHelper mockBridgeHelper;
@@ -159,7 +213,7 @@ public class UploadCsvWorkerProcessorTest {
     private DynamoHelper mockDynamoHelper;
 
     @Mock
-    private S3Helper mockS3Helper;
+    private S3StreamHelper mockS3StreamHelper;
 
     @Mock
     private ZipHelper mockZipHelper;
@@ -181,28 +235,42 @@ public class UploadCsvWorkerProcessorTest {
         inMemoryFileHelper = new InMemoryFileHelper();
         processor.setFileHelper(inMemoryFileHelper);
 
-        // Mock config.
+        // Run CSV generation and page fetches on the test thread, so that tests are deterministic.
+        executorService = spy(MoreExecutors.newDirectExecutorService());
+        processor.setUploadCsvExecutorService(executorService);
+        processor.setUploadCsvPrefetchExecutorService(MoreExecutors.newDirectExecutorService());
+
+        // Mock config. Prefetch one page at a time, so that we make the same calls as paging one page at a time.
+        // Prefetching is tested in UploadTableRowCursorTest.
         Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(UploadCsvWorkerProcessor.CONFIG_KEY_PREFETCH_PAGES)).thenReturn(1);
         when(mockConfig.get(UploadCsvWorkerProcessor.CONFIG_KEY_RAW_HEALTH_DATA_BUCKET)).thenReturn(RAW_DATA_BUCKET);
         processor.setBridgeConfig(mockConfig);
 
+        // Summarizer provider is a simple cache, so use a real one.
+        processor.setSummarizerProvider(new AssessmentSummarizerProvider());
+
         // Mock Bridge.
         when(mockBridgeHelper.getStudy(APP_ID, STUDY_ID)).thenReturn(STUDY);
         when(mockBridgeHelper.getAssessmentByGuid(APP_ID, ASSESSMENT_GUID_A)).thenReturn(ASSESSMENT_A);
         when(mockBridgeHelper.getAssessmentByGuid(APP_ID, ASSESSMENT_GUID_B)).thenReturn(ASSESSMENT_B);
 
+        // Mock S3 upload stream.
+        mockS3OutputStream = mock(S3UploadOutputStream.class);
+        when(mockS3StreamHelper.openUploadStream(eq(RAW_DATA_BUCKET), any(), any())).thenReturn(mockS3OutputStream);
+
         // Mock zip helper. Clear the file map.
         csvContentByFilename = new HashMap<>();
+        mockZipOutputStream = mock(ZipOutputStream.class);
+        when(mockZipHelper.openZip(same(mockS3OutputStream))).thenReturn(mockZipOutputStream);
         doAnswer(invocation -> {
-            // Save the unzipped files to memory before they're deleted.
-            List<File> csvFileList = invocation.getArgumentAt(0, List.class);
-            for (File oneCsvFile : csvFileList) {
-                csvContentByFilename.put(oneCsvFile.getName(), inMemoryFileHelper.getBytes(oneCsvFile));
-            }
+            // Save the CSV to memory before it's deleted.
+            File csvFile = invocation.getArgumentAt(1, File.class);
+            csvContentByFilename.put(csvFile.getName(), inMemoryFileHelper.getBytes(csvFile));
 
             // Return is required.
             return null;
-        }).when(mockZipHelper).zip(any(), any());
+        }).when(mockZipHelper).addToZip(same(mockZipOutputStream), any());
     }
 
     @AfterClass
@@ -233,8 +301,7 @@ public class UploadCsvWorkerProcessorTest {
     @Test
     public void allAssessments() throws Exception {
         // Mock Bridge.
-        when(mockBridgeHelper.queryUploadTableRows(eq(APP_ID), eq(STUDY_ID), any()))
-                .thenReturn(ImmutableList.of(ROW_1A, ROW_1B, ROW_2A, ROW_2B)).thenReturn(ImmutableList.of());
+        mockQueryUploadTableRows();
 
         UploadTableJob job = new UploadTableJob();
         when(mockBridgeHelper.getUploadTableJob(APP_ID, STUDY_ID, JOB_GUID)).thenReturn(job);
@@ -257,29 +324,38 @@ public class UploadCsvWorkerProcessorTest {
         byte[] assessmentBCsvContent = csvContentByFilename.get(ASSESSMENT_B_CSV_FILENAME);
         assertCsvContent(assessmentBCsvContent, ADDITIONAL_HEADERS, EXPECTED_RESULTS_BY_RECORD_ID_B);
 
-        // Verify back-end calls.
+        // Verify back-end calls. The first pass gets all rows for the study, to find the assessments and columns.
         ArgumentCaptor<UploadTableRowQuery> queryCaptor = ArgumentCaptor.forClass(UploadTableRowQuery.class);
-        verify(mockBridgeHelper, times(2)).queryUploadTableRows(eq(APP_ID), eq(STUDY_ID),
+        verify(mockBridgeHelper, times(6)).queryUploadTableRows(eq(APP_ID), eq(STUDY_ID),
                 queryCaptor.capture());
 
         List<UploadTableRowQuery> queryList = queryCaptor.getAllValues();
-        assertEquals(queryList.size(), 2);
-
-        UploadTableRowQuery query1 = queryList.get(0);
-        assertNull(query1.getAssessmentGuid());
-        assertEquals(query1.getStart().intValue(), 0);
-        assertEquals(query1.getPageSize().intValue(), UploadCsvWorkerProcessor.DEFAULT_PAGE_SIZE);
-
-        UploadTableRowQuery query2 = queryList.get(1);
-        assertNull(query2.getAssessmentGuid());
-        assertEquals(query2.getStart().intValue(), UploadCsvWorkerProcessor.DEFAULT_PAGE_SIZE);
-        assertEquals(query2.getPageSize().intValue(), UploadCsvWorkerProcessor.DEFAULT_PAGE_SIZE);
+        assertEquals(queryList.size(), 6);
+        assertQuery(queryList.get(0), null, 0);
+        assertQuery(queryList.get(1), null, UploadCsvWorkerProcessor.DEFAULT_PAGE_SIZE);
+
+        // The second pass streams the rows for each assessment. Order of assessments is not guaranteed.
+        Set<String> secondPassAssessmentGuidSet = new HashSet<>();
+        for (int i = 2; i < 6; i += 2) {
+            String assessmentGuid = queryList.get(i).getAssessmentGuid();
+            secondPassAssessmentGuidSet.add(assessmentGuid);
+            assertQuery(queryList.get(i), assessmentGuid, 0);
+            assertQuery(queryList.get(i + 1), assessmentGuid, UploadCsvWorkerProcessor.DEFAULT_PAGE_SIZE);
+        }
+        assertEquals(secondPassAssessmentGuidSet, ImmutableSet.of(ASSESSMENT_GUID_A, ASSESSMENT_GUID_B));
 
-        ArgumentCaptor<File> zipFileCaptor = ArgumentCaptor.forClass(File.class);
-        verify(mockZipHelper).zip(any(), zipFileCaptor.capture());
-        File zipFile = zipFileCaptor.getValue();
+        ArgumentCaptor<ObjectMetadata> metadataCaptor = ArgumentCaptor.forClass(ObjectMetadata.class);
+        verify(mockS3StreamHelper).openUploadStream(eq(RAW_DATA_BUCKET), eq(ZIP_FILENAME), metadataCaptor.capture());
+        ObjectMetadata metadata = metadataCaptor.getValue();
+        assertEquals(metadata.getSSEAlgorithm(), ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+        assertEquals(metadata.getContentType(), UploadCsvWorkerProcessor.CONTENT_TYPE_ZIP);
 
-        verify(mockS3Helper).writeFileToS3(eq(RAW_DATA_BUCKET), eq(ZIP_FILENAME), same(zipFile));
+        // The zip is finished before the upload is completed.
+        InOrder inOrder = inOrder(mockZipOutputStream, mockS3OutputStream);
+        inOrder.verify(mockZipOutputStream).finish();
+        inOrder.verify(mockS3OutputStream).complete();
+        verify(mockZipOutputStream).close();
+        verify(mockS3OutputStream).close();
 
         ArgumentCaptor<UploadTableJob> updatedJobCaptor = ArgumentCaptor.forClass(UploadTableJob.class);
         verify(mockBridgeHelper).updateUploadTableJob(eq(APP_ID), eq(STUDY_ID), eq(JOB_GUID),
@@ -297,25 +373,7 @@ public class UploadCsvWorkerProcessorTest {
     @Test
     public void assessmentList() throws Exception {
         // Mock Bridge query for rows.
-        when(mockBridgeHelper.queryUploadTableRows(eq(APP_ID), eq(STUDY_ID), any())).thenAnswer(invocation -> {
-            UploadTableRowQuery query = invocation.getArgumentAt(2, UploadTableRowQuery.class);
-
-            // This test only returns the first page of results.
-            if (query.getStart() > 0) {
-                return ImmutableList.of();
-            }
-
-            // In this test, we specify the assessment GUID.
-            assertNotNull(query.getAssessmentGuid());
-            if (query.getAssessmentGuid().equals(ASSESSMENT_GUID_A)) {
-                return ImmutableList.of(ROW_1A, ROW_2A);
-            } else if (query.getAssessmentGuid().equals(ASSESSMENT_GUID_B)) {
-                return ImmutableList.of(ROW_1B, ROW_2B);
-            } else {
-                fail("Unexpected assessment GUID " + query.getAssessmentGuid());
-                return null;
-            }
-        });
+        mockQueryUploadTableRows();
 
         // Execute. Use an immutable sorted set to ensure order.
         Set<String> assessmentGuidSet = ImmutableSortedSet.of(ASSESSMENT_GUID_A, ASSESSMENT_GUID_B);
@@ -337,46 +395,115 @@ public class UploadCsvWorkerProcessorTest {
         byte[] assessmentBCsvContent = csvContentByFilename.get(ASSESSMENT_B_CSV_FILENAME);
         assertCsvContent(assessmentBCsvContent, ADDITIONAL_HEADERS, EXPECTED_RESULTS_BY_RECORD_ID_B);
 
-        // Verify back-end calls.
+        // Verify back-end calls. For each assessment, the first pass finds the columns, and the second pass writes
+        // the CSV. (In this test, assessments run one after another on the test thread.)
         ArgumentCaptor<UploadTableRowQuery> queryCaptor = ArgumentCaptor.forClass(UploadTableRowQuery.class);
-        verify(mockBridgeHelper, times(4)).queryUploadTableRows(eq(APP_ID), eq(STUDY_ID),
+        verify(mockBridgeHelper, times(8)).queryUploadTableRows(eq(APP_ID), eq(STUDY_ID),
                 queryCaptor.capture());
 
         List<UploadTableRowQuery> queryList = queryCaptor.getAllValues();
-        assertEquals(queryList.size(), 4);
+        assertEquals(queryList.size(), 8);
+        for (int pass = 0; pass < 2; pass++) {
+            assertQuery(queryList.get(pass * 2), ASSESSMENT_GUID_A, 0);
+            assertQuery(queryList.get(pass * 2 + 1), ASSESSMENT_GUID_A, UploadCsvWorkerProcessor.DEFAULT_PAGE_SIZE);
+            assertQuery(queryList.get(pass * 2 + 4), ASSESSMENT_GUID_B, 0);
+            assertQuery(queryList.get(pass * 2 + 5), ASSESSMENT_GUID_B, UploadCsvWorkerProcessor.DEFAULT_PAGE_SIZE);
+        }
 
-        UploadTableRowQuery query1 = queryList.get(0);
-        assertEquals(query1.getAssessmentGuid(), ASSESSMENT_GUID_A);
-        assertEquals(query1.getStart().intValue(), 0);
-        assertEquals(query1.getPageSize().intValue(), UploadCsvWorkerProcessor.DEFAULT_PAGE_SIZE);
+        // Each assessment is a separate task on the executor.
+        verify(executorService, times(2)).execute(any(Runnable.class));
 
-        UploadTableRowQuery query2 = queryList.get(1);
-        assertEquals(query2.getAssessmentGuid(), ASSESSMENT_GUID_A);
-        assertEquals(query2.getStart().intValue(), UploadCsvWorkerProcessor.DEFAULT_PAGE_SIZE);
-        assertEquals(query2.getPageSize().intValue(), UploadCsvWorkerProcessor.DEFAULT_PAGE_SIZE);
+        verify(mockS3StreamHelper).openUploadStream(eq(RAW_DATA_BUCKET), eq(ZIP_FILENAME), any());
+        verify(mockS3OutputStream).complete();
 
-        UploadTableRowQuery query3 = queryList.get(2);
-        assertEquals(query3.getAssessmentGuid(), ASSESSMENT_GUID_B);
-        assertEquals(query3.getStart().intValue(), 0);
-        assertEquals(query3.getPageSize().intValue(), UploadCsvWorkerProcessor.DEFAULT_PAGE_SIZE);
+        verify(mockDynamoHelper).writeWorkerLog(eq(UploadCsvWorkerProcessor.WORKER_ID), notNull(String.class));
 
-        UploadTableRowQuery query4 = queryList.get(3);
-        assertEquals(query4.getAssessmentGuid(), ASSESSMENT_GUID_B);
-        assertEquals(query4.getStart().intValue(), UploadCsvWorkerProcessor.DEFAULT_PAGE_SIZE);
-        assertEquals(query4.getPageSize().intValue(), UploadCsvWorkerProcessor.DEFAULT_PAGE_SIZE);
+        // Verify that we clean up after the file system.
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void parquetFormat() throws Exception {
+        // Mock Bridge query for rows.
+        mockQueryUploadTableRows();
+
+        // Execute.
+        UploadCsvRequest request = makeRequest();
+        request.setAssessmentGuids(ImmutableSet.of(ASSESSMENT_GUID_A));
+        request.setFormat(UploadCsvFormat.PARQUET);
+        processor.process(request);
 
-        ArgumentCaptor<File> zipFileCaptor = ArgumentCaptor.forClass(File.class);
-        verify(mockZipHelper).zip(any(), zipFileCaptor.capture());
-        File zipFile = zipFileCaptor.getValue();
+        // Validate Parquet file. Assessment A isn't a survey, so everything is a string. Column types are tested in
+        // UploadTableParquetWriterTest.
+        assertEquals(csvContentByFilename.size(), 1);
+        assertTrue(csvContentByFilename.containsKey(ASSESSMENT_A_PARQUET_FILENAME),
+                "Missing file: " + ASSESSMENT_A_PARQUET_FILENAME);
 
-        verify(mockS3Helper).writeFileToS3(eq(RAW_DATA_BUCKET), eq(ZIP_FILENAME), same(zipFile));
+        List<Group> groupList = UploadTableParquetWriterTest.readParquet(csvContentByFilename.get(
+                ASSESSMENT_A_PARQUET_FILENAME));
+        assertEquals(groupList.size(), 2);
 
-        verify(mockDynamoHelper).writeWorkerLog(eq(UploadCsvWorkerProcessor.WORKER_ID), notNull(String.class));
+        Map<String, Group> groupsByRecordId = new HashMap<>();
+        for (Group oneGroup : groupList) {
+            groupsByRecordId.put(oneGroup.getString("recordId", 0), oneGroup);
+        }
+        assertEquals(groupsByRecordId.keySet(), ImmutableSet.of(RECORD_ID_1A, RECORD_ID_2A));
+
+        Group group1a = groupsByRecordId.get(RECORD_ID_1A);
+        assertEquals(group1a.getLong("createdOn", 0), CREATED_ON_1A.getMillis());
+        assertEquals(group1a.getString("healthCode", 0), HEALTH_CODE_1);
+        assertEquals(group1a.getString("foo", 0), "metadata1a");
+        assertEquals(group1a.getString("bar", 0), "data1a");
+
+        Group group2a = groupsByRecordId.get(RECORD_ID_2A);
+        assertEquals(group2a.getLong("createdOn", 0), CREATED_ON_2A.getMillis());
+        assertEquals(group2a.getString("healthCode", 0), HEALTH_CODE_2);
+        assertEquals(group2a.getString("foo", 0), "metadata2a");
+        assertEquals(group2a.getString("bar", 0), "data2a");
+
+        verify(mockS3StreamHelper).openUploadStream(eq(RAW_DATA_BUCKET), eq(ZIP_FILENAME), any());
+        verify(mockS3OutputStream).complete();
 
         // Verify that we clean up after the file system.
         assertTrue(inMemoryFileHelper.isEmpty());
     }
 
+    @Test
+    public void getDataColumnTypes_Survey() throws Exception {
+        Assessment surveyAssessment = new Assessment().guid(ASSESSMENT_GUID_A)
+                .frameworkIdentifier(AssessmentResultSummarizer.FRAMEWORK_IDENTIFIER).revision(1L);
+        when(mockBridgeHelper.getAssessmentConfigByGuid(APP_ID, ASSESSMENT_GUID_A)).thenReturn(
+                new AssessmentConfig().config(SURVEY_CONFIG));
+
+        // Execute and validate. Strings aren't in the map, since that's the default.
+        Map<String, UploadTableParquetWriter.ColumnType> columnTypeMap = processor.getDataColumnTypes(APP_ID,
+                surveyAssessment);
+        assertEquals(columnTypeMap, ImmutableMap.of("choiceQ1", UploadTableParquetWriter.ColumnType.LONG));
+    }
+
+    @Test
+    public void getDataColumnTypes_NotSurvey() throws Exception {
+        when(mockBridgeHelper.getAssessmentConfigByGuid(APP_ID, ASSESSMENT_GUID_A)).thenReturn(
+                new AssessmentConfig().config(SURVEY_CONFIG));
+
+        // Execute and validate.
+        Map<String, UploadTableParquetWriter.ColumnType> columnTypeMap = processor.getDataColumnTypes(APP_ID,
+                ASSESSMENT_A);
+        assertTrue(columnTypeMap.isEmpty());
+    }
+
+    @Test
+    public void getDataColumnTypes_Error() throws Exception {
+        Assessment surveyAssessment = new Assessment().guid(ASSESSMENT_GUID_A)
+                .frameworkIdentifier(AssessmentResultSummarizer.FRAMEWORK_IDENTIFIER).revision(1L);
+        when(mockBridgeHelper.getAssessmentConfigByGuid(APP_ID, ASSESSMENT_GUID_A)).thenThrow(IOException.class);
+
+        // Execute and validate. We fall back to strings.
+        Map<String, UploadTableParquetWriter.ColumnType> columnTypeMap = processor.getDataColumnTypes(APP_ID,
+                surveyAssessment);
+        assertTrue(columnTypeMap.isEmpty());
+    }
+
     // Branch coverage: This branch is only really used in integ tests anyway.
     @Test
     public void withZipFileSuffix() throws Exception {
@@ -390,7 +517,7 @@ public class UploadCsvWorkerProcessorTest {
         processor.process(request);
 
         // The actual CSVs are validated elswhere. This test just validates the zip filename.
-        verify(mockS3Helper).writeFileToS3(eq(RAW_DATA_BUCKET), eq(ZIP_FILENAME_WITH_SUFFIX), any());
+        verify(mockS3StreamHelper).openUploadStream(eq(RAW_DATA_BUCKET), eq(ZIP_FILENAME_WITH_SUFFIX), any());
     }
 
     @Test(expectedExceptions = PollSqsWorkerRetryableException.class)
@@ -445,8 +572,7 @@ public class UploadCsvWorkerProcessorTest {
     @Test
     public void getAssessmentThrows() throws Exception {
         // Mock Bridge query for rows.
-        when(mockBridgeHelper.queryUploadTableRows(eq(APP_ID), eq(STUDY_ID), any()))
-                .thenReturn(ImmutableList.of(ROW_1A, ROW_1B, ROW_2A, ROW_2B)).thenReturn(ImmutableList.of());
+        mockQueryUploadTableRows();
 
         // Get assessment throws. We should still process the other assessment.
         when(mockBridgeHelper.getAssessmentByGuid(APP_ID, ASSESSMENT_GUID_A)).thenThrow(RuntimeException.class);
@@ -463,6 +589,353 @@ public class UploadCsvWorkerProcessorTest {
         assertCsvContent(assessmentBCsvContent, ADDITIONAL_HEADERS, EXPECTED_RESULTS_BY_RECORD_ID_B);
     }
 
+    @Test
+    public void secondPassQueryThrows() throws Exception {
+        // The first pass for assessment A succeeds, but the second pass throws. We should still process the other
+        // assessment, and the partial CSV for assessment A shouldn't be zipped.
+        AtomicInteger numAssessmentAFirstPageQueries = new AtomicInteger();
+        when(mockBridgeHelper.queryUploadTableRows(eq(APP_ID), eq(STUDY_ID), any())).thenAnswer(invocation -> {
+            UploadTableRowQuery query = invocation.getArgumentAt(2, UploadTableRowQuery.class);
+            if (query.getStart() > 0) {
+                return ImmutableList.of();
+            }
+            if (query.getAssessmentGuid().equals(ASSESSMENT_GUID_A)) {
+                if (numAssessmentAFirstPageQueries.getAndIncrement() > 0) {
+                    throw new RuntimeException();
+                }
+                return ImmutableList.of(ROW_1A, ROW_2A);
+            }
+            return ImmutableList.of(ROW_1B, ROW_2B);
+        });
+
+        // Execute.
+        UploadCsvRequest request = makeRequest();
+        request.setAssessmentGuids(ImmutableSortedSet.of(ASSESSMENT_GUID_A, ASSESSMENT_GUID_B));
+        processor.process(request);
+
+        // Validate CSVs.
+        assertEquals(csvContentByFilename.size(), 1);
+        byte[] assessmentBCsvContent = csvContentByFilename.get(ASSESSMENT_B_CSV_FILENAME);
+        assertCsvContent(assessmentBCsvContent, ADDITIONAL_HEADERS, EXPECTED_RESULTS_BY_RECORD_ID_B);
+
+        // Verify that we clean up after the file system.
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void zipErrorDoesNotCompleteUpload() throws Exception {
+        // Mock Bridge query for rows.
+        mockQueryUploadTableRows();
+
+        // Mock Bridge with a table job.
+        UploadTableJob job = new UploadTableJob();
+        when(mockBridgeHelper.getUploadTableJob(APP_ID, STUDY_ID, JOB_GUID)).thenReturn(job);
+
+        // Finishing the zip throws.
+        doThrow(IOException.class).when(mockZipOutputStream).finish();
+
+        // Execute - throws exception.
+        UploadCsvRequest request = makeRequest();
+        request.setJobGuid(JOB_GUID);
+        try {
+            processor.process(request);
+            fail("expected exception");
+        } catch (IOException ex) {
+            // expected exception
+        }
+
+        // The upload is never completed. Closing the stream aborts it.
+        verify(mockS3OutputStream, never()).complete();
+        verify(mockS3OutputStream).close();
+
+        ArgumentCaptor<UploadTableJob> updatedJobCaptor = ArgumentCaptor.forClass(UploadTableJob.class);
+        verify(mockBridgeHelper).updateUploadTableJob(eq(APP_ID), eq(STUDY_ID), eq(JOB_GUID),
+                updatedJobCaptor.capture());
+        assertEquals(updatedJobCaptor.getValue().getStatus(), UploadTableJobStatus.FAILED);
+
+        // Verify that we clean up after the file system.
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void earlyExitWaitsForRunningCsvs() throws Exception {
+        // Generate CSVs on a real thread pool, so that a CSV can still be running when we exit.
+        ExecutorService csvExecutorService = Executors.newFixedThreadPool(2);
+        processor.setUploadCsvExecutorService(csvExecutorService);
+        mockQueryUploadTableRows();
+
+        // Assessment A's CSV is slow, and keeps going even when it's cancelled.
+        CountDownLatch csvStartedLatch = new CountDownLatch(1);
+        AtomicBoolean csvFinished = new AtomicBoolean(false);
+        when(mockBridgeHelper.getAssessmentByGuid(APP_ID, ASSESSMENT_GUID_A)).thenAnswer(invocation -> {
+            csvStartedLatch.countDown();
+            Uninterruptibles.sleepUninterruptibly(200, TimeUnit.MILLISECONDS);
+            csvFinished.set(true);
+            return ASSESSMENT_A;
+        });
+
+        // Opening the S3 stream fails once assessment A's CSV has started.
+        doAnswer(invocation -> {
+            csvStartedLatch.await(5, TimeUnit.SECONDS);
+            throw new RuntimeException("test exception");
+        }).when(mockS3StreamHelper).openUploadStream(eq(RAW_DATA_BUCKET), any(), any());
+
+        // Execute - throws exception.
+        try {
+            processor.process(makeRequest());
+            fail("expected exception");
+        } catch (RuntimeException ex) {
+            // expected exception
+        } finally {
+            csvExecutorService.shutdown();
+        }
+
+        // We waited for assessment A's CSV before deleting the temp dir, so nothing is left behind.
+        assertTrue(csvFinished.get());
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
+    @Test
+    public void incremental_FirstExport() throws Exception {
+        // Mock Bridge query for rows. There are no watermarks yet.
+        mockQueryUploadTableRows();
+        when(mockDynamoHelper.getUploadCsvWatermarksForStudy(APP_ID, STUDY_ID)).thenReturn(ImmutableMap.of());
+
+        // Execute.
+        UploadCsvRequest request = makeRequest();
+        request.setIncremental(true);
+        processor.process(request);
+
+        // Validate CSVs. This is the same as a full export.
+        assertEquals(csvContentByFilename.size(), 2);
+        assertCsvContent(csvContentByFilename.get(ASSESSMENT_A_CSV_FILENAME), ADDITIONAL_HEADERS,
+                EXPECTED_RESULTS_BY_RECORD_ID_A);
+        assertCsvContent(csvContentByFilename.get(ASSESSMENT_B_CSV_FILENAME), ADDITIONAL_HEADERS,
+                EXPECTED_RESULTS_BY_RECORD_ID_B);
+
+        // All queries go from the beginning of time up to a little before now.
+        DateTime expectedEndTime = new DateTime(MOCK_NOW_MILLIS - UploadCsvWorkerProcessor.INCREMENTAL_SETTLE_MILLIS);
+        ArgumentCaptor<UploadTableRowQuery> queryCaptor = ArgumentCaptor.forClass(UploadTableRowQuery.class);
+        verify(mockBridgeHelper, times(6)).queryUploadTableRows(eq(APP_ID), eq(STUDY_ID),
+                queryCaptor.capture());
+        for (UploadTableRowQuery oneQuery : queryCaptor.getAllValues()) {
+            assertNull(oneQuery.getStartTime());
+            assertEquals(oneQuery.getEndTime(), expectedEndTime);
+        }
+
+        // Incremental exports are delta files.
+        verify(mockS3StreamHelper).openUploadStream(eq(RAW_DATA_BUCKET), eq(ZIP_FILENAME_DELTA), any());
+
+        // Verify watermarks.
+        Map<String, UploadCsvWatermark> watermarkMap = captureWatermarks(3);
+        assertWatermark(watermarkMap.get(ASSESSMENT_GUID_A), expectedEndTime, ImmutableSet.of("foo"),
+                ImmutableSet.of("bar"));
+        assertWatermark(watermarkMap.get(ASSESSMENT_GUID_B), expectedEndTime, ImmutableSet.of("foo"),
+                ImmutableSet.of("bar"));
+        assertWatermark(watermarkMap.get(UploadCsvWorkerProcessor.STUDY_WATERMARK_KEY), expectedEndTime,
+                ImmutableSet.of(), ImmutableSet.of());
+    }
+
+    @Test
+    public void incremental_FromWatermarks() throws Exception {
+        // Mock Bridge query for rows.
+        mockQueryUploadTableRows();
+
+        // Assessment A and the study have watermarks. Assessment A has an old column that isn't in the new rows.
+        // Assessment B is new.
+        UploadCsvWatermark studyWatermark = makeWatermark(UploadCsvWorkerProcessor.STUDY_WATERMARK_KEY, START_TIME,
+                ImmutableSet.of(), ImmutableSet.of());
+        UploadCsvWatermark assessmentAWatermark = makeWatermark(ASSESSMENT_GUID_A, START_TIME,
+                ImmutableSet.of("foo", "old"), ImmutableSet.of("bar"));
+        when(mockDynamoHelper.getUploadCsvWatermarksForStudy(APP_ID, STUDY_ID)).thenReturn(ImmutableMap.of(
+                UploadCsvWorkerProcessor.STUDY_WATERMARK_KEY, studyWatermark, ASSESSMENT_GUID_A,
+                assessmentAWatermark));
+
+        // Execute.
+        UploadCsvRequest request = makeRequest();
+        request.setEndTime(END_TIME);
+        request.setIncremental(true);
+        processor.process(request);
+
+        // Validate CSVs. Assessment A keeps its old column, so that the delta matches the previous exports.
+        assertEquals(csvContentByFilename.size(), 2);
+        assertCsvContent(csvContentByFilename.get(ASSESSMENT_A_CSV_FILENAME), new String[] { "foo", "old", "bar" },
+                ImmutableMap.of(RECORD_ID_1A, insertEmptyColumn(EXPECTED_RESULT_1A),
+                        RECORD_ID_2A, insertEmptyColumn(EXPECTED_RESULT_2A)));
+        assertCsvContent(csvContentByFilename.get(ASSESSMENT_B_CSV_FILENAME), ADDITIONAL_HEADERS,
+                EXPECTED_RESULTS_BY_RECORD_ID_B);
+
+        // All queries start at the watermark. Assessment A is caught up with the study, so it doesn't need its own
+        // column scan.
+        ArgumentCaptor<UploadTableRowQuery> queryCaptor = ArgumentCaptor.forClass(UploadTableRowQuery.class);
+        verify(mockBridgeHelper, times(6)).queryUploadTableRows(eq(APP_ID), eq(STUDY_ID),
+                queryCaptor.capture());
+        for (UploadTableRowQuery oneQuery : queryCaptor.getAllValues()) {
+            assertEquals(oneQuery.getStartTime(), START_TIME);
+            assertEquals(oneQuery.getEndTime(), END_TIME);
+        }
+
+        // Verify watermarks.
+        Map<String, UploadCsvWatermark> watermarkMap = captureWatermarks(3);
+        assertWatermark(watermarkMap.get(ASSESSMENT_GUID_A), END_TIME, ImmutableSet.of("foo", "old"),
+                ImmutableSet.of("bar"));
+        assertWatermark(watermarkMap.get(ASSESSMENT_GUID_B), END_TIME, ImmutableSet.of("foo"),
+                ImmutableSet.of("bar"));
+        assertWatermark(watermarkMap.get(UploadCsvWorkerProcessor.STUDY_WATERMARK_KEY), END_TIME,
+                ImmutableSet.of(), ImmutableSet.of());
+    }
+
+    @Test
+    public void incremental_FailedAssessmentKeepsWatermark() throws Exception {
+        // Mock Bridge query for rows. Get assessment A throws.
+        mockQueryUploadTableRows();
+        when(mockBridgeHelper.getAssessmentByGuid(APP_ID, ASSESSMENT_GUID_A)).thenThrow(RuntimeException.class);
+
+        UploadCsvWatermark studyWatermark = makeWatermark(UploadCsvWorkerProcessor.STUDY_WATERMARK_KEY, START_TIME,
+                ImmutableSet.of(), ImmutableSet.of());
+        when(mockDynamoHelper.getUploadCsvWatermarksForStudy(APP_ID, STUDY_ID)).thenReturn(ImmutableMap.of(
+                UploadCsvWorkerProcessor.STUDY_WATERMARK_KEY, studyWatermark));
+
+        // Execute.
+        UploadCsvRequest request = makeRequest();
+        request.setEndTime(END_TIME);
+        request.setIncremental(true);
+        processor.process(request);
+
+        // Only assessment B's watermark moves. The study watermark stays put, so that the next export finds
+        // assessment A again.
+        Map<String, UploadCsvWatermark> watermarkMap = captureWatermarks(1);
+        assertWatermark(watermarkMap.get(ASSESSMENT_GUID_B), END_TIME, ImmutableSet.of("foo"),
+                ImmutableSet.of("bar"));
+    }
+
+    @Test
+    public void incremental_TruncatedAssessmentKeepsWatermark() throws Exception {
+        // Assessment A has more rows than fit in the max number of pages. The study scan and assessment B fit.
+        processor.setMaxPages(2);
+        when(mockBridgeHelper.queryUploadTableRows(eq(APP_ID), eq(STUDY_ID), any())).thenAnswer(invocation -> {
+            UploadTableRowQuery query = invocation.getArgumentAt(2, UploadTableRowQuery.class);
+            if (ASSESSMENT_GUID_A.equals(query.getAssessmentGuid())) {
+                return ImmutableList.of(ROW_1A, ROW_2A);
+            } else if (query.getStart() > 0) {
+                return ImmutableList.of();
+            } else if (query.getAssessmentGuid() == null) {
+                return ImmutableList.of(ROW_1A, ROW_1B, ROW_2A, ROW_2B);
+            } else {
+                return ImmutableList.of(ROW_1B, ROW_2B);
+            }
+        });
+
+        UploadCsvWatermark studyWatermark = makeWatermark(UploadCsvWorkerProcessor.STUDY_WATERMARK_KEY, START_TIME,
+                ImmutableSet.of(), ImmutableSet.of());
+        when(mockDynamoHelper.getUploadCsvWatermarksForStudy(APP_ID, STUDY_ID)).thenReturn(ImmutableMap.of(
+                UploadCsvWorkerProcessor.STUDY_WATERMARK_KEY, studyWatermark));
+
+        // Execute.
+        UploadCsvRequest request = makeRequest();
+        request.setEndTime(END_TIME);
+        request.setIncremental(true);
+        processor.process(request);
+
+        // The truncated CSV is still in the zip, but only assessment B's watermark moves. The study watermark stays
+        // put, so that the next export picks up the rest of assessment A.
+        assertEquals(csvContentByFilename.size(), 2);
+        Map<String, UploadCsvWatermark> watermarkMap = captureWatermarks(1);
+        assertWatermark(watermarkMap.get(ASSESSMENT_GUID_B), END_TIME, ImmutableSet.of("foo"),
+                ImmutableSet.of("bar"));
+    }
+
+    @Test
+    public void incremental_TruncatedStudyScanKeepsStudyWatermark() throws Exception {
+        // The study scan has more rows than fit in the max number of pages. Each assessment fits.
+        processor.setMaxPages(2);
+        when(mockBridgeHelper.queryUploadTableRows(eq(APP_ID), eq(STUDY_ID), any())).thenAnswer(invocation -> {
+            UploadTableRowQuery query = invocation.getArgumentAt(2, UploadTableRowQuery.class);
+            if (query.getAssessmentGuid() == null) {
+                return ImmutableList.of(ROW_1A, ROW_1B, ROW_2A, ROW_2B);
+            } else if (query.getStart() > 0) {
+                return ImmutableList.of();
+            } else if (query.getAssessmentGuid().equals(ASSESSMENT_GUID_A)) {
+                return ImmutableList.of(ROW_1A, ROW_2A);
+            } else {
+                return ImmutableList.of(ROW_1B, ROW_2B);
+            }
+        });
+
+        UploadCsvWatermark studyWatermark = makeWatermark(UploadCsvWorkerProcessor.STUDY_WATERMARK_KEY, START_TIME,
+                ImmutableSet.of(), ImmutableSet.of());
+        when(mockDynamoHelper.getUploadCsvWatermarksForStudy(APP_ID, STUDY_ID)).thenReturn(ImmutableMap.of(
+                UploadCsvWorkerProcessor.STUDY_WATERMARK_KEY, studyWatermark));
+
+        // Execute.
+        UploadCsvRequest request = makeRequest();
+        request.setEndTime(END_TIME);
+        request.setIncremental(true);
+        processor.process(request);
+
+        // The assessments we found are fully exported, so their watermarks move. The study scan might have missed
+        // assessments, so the study watermark stays put.
+        Map<String, UploadCsvWatermark> watermarkMap = captureWatermarks(2);
+        assertEquals(watermarkMap.get(ASSESSMENT_GUID_A).getExportedUntil(), END_TIME);
+        assertEquals(watermarkMap.get(ASSESSMENT_GUID_B).getExportedUntil(), END_TIME);
+    }
+
+    @Test
+    public void incremental_AssessmentList() throws Exception {
+        // Mock Bridge query for rows.
+        mockQueryUploadTableRows();
+
+        // Assessment A is further behind than the study, and assessment B is already past the requested end time.
+        DateTime assessmentBExportedUntil = END_TIME.plusDays(1);
+        UploadCsvWatermark studyWatermark = makeWatermark(UploadCsvWorkerProcessor.STUDY_WATERMARK_KEY, END_TIME,
+                ImmutableSet.of(), ImmutableSet.of());
+        UploadCsvWatermark assessmentAWatermark = makeWatermark(ASSESSMENT_GUID_A, START_TIME, ImmutableSet.of(),
+                ImmutableSet.of());
+        UploadCsvWatermark assessmentBWatermark = makeWatermark(ASSESSMENT_GUID_B, assessmentBExportedUntil,
+                ImmutableSet.of(), ImmutableSet.of());
+        when(mockDynamoHelper.getUploadCsvWatermarksForStudy(APP_ID, STUDY_ID)).thenReturn(ImmutableMap.of(
+                UploadCsvWorkerProcessor.STUDY_WATERMARK_KEY, studyWatermark, ASSESSMENT_GUID_A,
+                assessmentAWatermark, ASSESSMENT_GUID_B, assessmentBWatermark));
+
+        // Execute.
+        UploadCsvRequest request = makeRequest();
+        request.setAssessmentGuids(ImmutableSortedSet.of(ASSESSMENT_GUID_A, ASSESSMENT_GUID_B));
+        request.setEndTime(END_TIME);
+        request.setIncremental(true);
+        processor.process(request);
+
+        // Each assessment queries from its own watermark.
+        ArgumentCaptor<UploadTableRowQuery> queryCaptor = ArgumentCaptor.forClass(UploadTableRowQuery.class);
+        verify(mockBridgeHelper, times(8)).queryUploadTableRows(eq(APP_ID), eq(STUDY_ID),
+                queryCaptor.capture());
+        for (UploadTableRowQuery oneQuery : queryCaptor.getAllValues()) {
+            if (ASSESSMENT_GUID_A.equals(oneQuery.getAssessmentGuid())) {
+                assertEquals(oneQuery.getStartTime(), START_TIME);
+            } else {
+                assertEquals(oneQuery.getStartTime(), assessmentBExportedUntil);
+            }
+            assertEquals(oneQuery.getEndTime(), END_TIME);
+        }
+
+        // Watermarks never move backwards. The study watermark only moves when we scan the whole study.
+        Map<String, UploadCsvWatermark> watermarkMap = captureWatermarks(2);
+        assertEquals(watermarkMap.get(ASSESSMENT_GUID_A).getExportedUntil(), END_TIME);
+        assertEquals(watermarkMap.get(ASSESSMENT_GUID_B).getExportedUntil(), assessmentBExportedUntil);
+    }
+
+    @Test
+    public void notIncremental_NoWatermarks() throws Exception {
+        // Mock Bridge query for rows.
+        mockQueryUploadTableRows();
+
+        // Execute.
+        processor.process(makeRequest());
+
+        // Full exports don't read or write watermarks.
+        verify(mockDynamoHelper, never()).getUploadCsvWatermarksForStudy(any(), any());
+        verify(mockDynamoHelper, never()).writeUploadCsvWatermark(any(), any(), any());
+    }
+
     @Test
     public void setJobStatusFailed() throws Exception {
         // Mock Bridge with a table job.
@@ -491,7 +964,7 @@ public class UploadCsvWorkerProcessorTest {
     }
 
     @Test
-    public void getAllRowsForAssessment_AllQueryParameters() throws IOException {
+    public void queryAllRowsForAssessment_AllQueryParameters() throws IOException {
         // Mock Bridge query for rows.
         when(mockBridgeHelper.queryUploadTableRows(eq(APP_ID), eq(STUDY_ID), any()))
                 .thenReturn(ImmutableList.of(ROW_1A, ROW_2A)).thenReturn(ImmutableList.of());
@@ -502,7 +975,8 @@ public class UploadCsvWorkerProcessorTest {
         request.setEndTime(END_TIME);
         request.setIncludeTestData(true);
 
-        List<UploadTableRow> results = processor.getAllRowsForAssessment(request, ASSESSMENT_GUID_A);
+        List<UploadTableRow> results = new ArrayList<>();
+        processor.queryAllRowsForAssessment(request, ASSESSMENT_GUID_A, results::addAll);
         assertEquals(results, ImmutableList.of(ROW_1A, ROW_2A));
 
         // Verify query.
@@ -531,7 +1005,7 @@ public class UploadCsvWorkerProcessorTest {
     }
 
     @Test
-    public void getAllRowsForAssessment_TestPagination() throws IOException {
+    public void queryAllRowsForAssessment_TestPagination() throws IOException {
         // Override page size.
         processor.setPageSize(2);
 
@@ -545,9 +1019,11 @@ public class UploadCsvWorkerProcessorTest {
                 .thenReturn(ImmutableList.of(row1, row2)).thenReturn(ImmutableList.of(row3, row4))
                 .thenReturn(ImmutableList.of(row5)).thenReturn(ImmutableList.of());
 
-        // Execute.
-        List<UploadTableRow> results = processor.getAllRowsForAssessment(makeRequest(), null);
-        assertEquals(results, ImmutableList.of(row1, row2, row3, row4, row5));
+        // Execute. Each page is passed to the consumer separately.
+        List<List<UploadTableRow>> pageList = new ArrayList<>();
+        assertFalse(processor.queryAllRowsForAssessment(makeRequest(), null, pageList::add));
+        assertEquals(pageList, ImmutableList.of(ImmutableList.of(row1, row2), ImmutableList.of(row3, row4),
+                ImmutableList.of(row5)));
 
         // Verify query.
         ArgumentCaptor<UploadTableRowQuery> queryCaptor = ArgumentCaptor.forClass(UploadTableRowQuery.class);
@@ -575,7 +1051,7 @@ public class UploadCsvWorkerProcessorTest {
     }
 
     @Test
-    public void getAllRowsForAssessment_MaxPages() throws IOException {
+    public void queryAllRowsForAssessment_MaxPages() throws IOException {
         // Override page size and max pages
         processor.setPageSize(1);
         processor.setMaxPages(10);
@@ -585,8 +1061,9 @@ public class UploadCsvWorkerProcessorTest {
         when(mockBridgeHelper.queryUploadTableRows(eq(APP_ID), eq(STUDY_ID), any()))
                 .thenReturn(ImmutableList.of(new UploadTableRow()));
 
-        // Execute. This doesn't throw, but it does short circuit after 10 rows.
-        List<UploadTableRow> results = processor.getAllRowsForAssessment(makeRequest(), null);
+        // Execute. This doesn't throw, but it does short circuit after 10 rows, and tells us the rows were truncated.
+        List<UploadTableRow> results = new ArrayList<>();
+        assertTrue(processor.queryAllRowsForAssessment(makeRequest(), null, results::addAll));
         assertEquals(results.size(), 10);
 
         // Verify we make 10 queries. The actual query params are tested elsewhere.
@@ -606,13 +1083,17 @@ public class UploadCsvWorkerProcessorTest {
                 .putMetadataItem("A", "A-2a").putMetadataItem("C", "C-2a")
                 .putDataItem("X", "X-2a").putDataItem("Z", "Z-2a");
 
+        // Mock Bridge query for rows.
+        when(mockBridgeHelper.queryUploadTableRows(eq(APP_ID), eq(STUDY_ID), any()))
+                .thenReturn(ImmutableList.of(row1, row2)).thenReturn(ImmutableList.of());
+
         // Set up other inputs.
         File tempDir = inMemoryFileHelper.createTempDir();
         UploadCsvRequest request = makeRequest();
 
         // Execute.
         File csvFile = processor.generateCsvForAssessment(tempDir, request, STUDY, ASSESSMENT_GUID_A,
-                ImmutableList.of(row1, row2));
+                makeColumns(row1, row2)).getCsvFile();
         byte[] csvContent = inMemoryFileHelper.getBytes(csvFile);
 
         String[] additionalHeaders = new String[] { "A", "B", "C", "X", "Y", "Z" };
@@ -633,19 +1114,63 @@ public class UploadCsvWorkerProcessorTest {
         doThrow(RuntimeException.class).doCallRealMethod().when(processor).writeCsvRow(any(), any(), any(), any(),
                 any(), any());
 
+        when(mockBridgeHelper.queryUploadTableRows(eq(APP_ID), eq(STUDY_ID), any()))
+                .thenReturn(ImmutableList.of(ROW_1A, ROW_2A)).thenReturn(ImmutableList.of());
+
         // Set up other inputs.
         File tempDir = inMemoryFileHelper.createTempDir();
         UploadCsvRequest request = makeRequest();
 
         // Execute.
         File csvFile = processor.generateCsvForAssessment(tempDir, request, STUDY, ASSESSMENT_GUID_A,
-                ImmutableList.of(ROW_1A, ROW_2A));
+                makeColumns(ROW_1A, ROW_2A)).getCsvFile();
         byte[] csvContent = inMemoryFileHelper.getBytes(csvFile);
 
         Map<String, String[]> expectedRowsByRecordIdA = ImmutableMap.of(RECORD_ID_2A, EXPECTED_RESULT_2A);
         assertCsvContent(csvContent, ADDITIONAL_HEADERS, expectedRowsByRecordIdA);
     }
 
+    @Test
+    public void generateCsvForAssessment_StreamsPages() throws IOException {
+        // Rows come back over multiple pages. All pages are written to the same CSV.
+        processor.setPageSize(1);
+        when(mockBridgeHelper.queryUploadTableRows(eq(APP_ID), eq(STUDY_ID), any()))
+                .thenReturn(ImmutableList.of(ROW_1A)).thenReturn(ImmutableList.of(ROW_2A))
+                .thenReturn(ImmutableList.of());
+
+        // Execute.
+        File tempDir = inMemoryFileHelper.createTempDir();
+        UploadCsvWorkerProcessor.AssessmentCsv assessmentCsv = processor.generateCsvForAssessment(tempDir,
+                makeRequest(), STUDY, ASSESSMENT_GUID_A, makeColumns(ROW_1A, ROW_2A));
+        assertFalse(assessmentCsv.isTruncated());
+        byte[] csvContent = inMemoryFileHelper.getBytes(assessmentCsv.getCsvFile());
+        assertCsvContent(csvContent, ADDITIONAL_HEADERS, EXPECTED_RESULTS_BY_RECORD_ID_A);
+
+        verify(mockBridgeHelper, times(3)).queryUploadTableRows(eq(APP_ID), eq(STUDY_ID), any());
+    }
+
+    @Test
+    public void generateCsvForAssessment_QueryThrows() throws IOException {
+        // First page succeeds, second page throws.
+        processor.setPageSize(1);
+        when(mockBridgeHelper.queryUploadTableRows(eq(APP_ID), eq(STUDY_ID), any()))
+                .thenReturn(ImmutableList.of(ROW_1A)).thenThrow(RuntimeException.class);
+
+        // Execute - throws.
+        File tempDir = inMemoryFileHelper.createTempDir();
+        try {
+            processor.generateCsvForAssessment(tempDir, makeRequest(), STUDY, ASSESSMENT_GUID_A,
+                    makeColumns(ROW_1A, ROW_2A));
+            fail("expected exception");
+        } catch (RuntimeException ex) {
+            // expected exception
+        }
+
+        // The partial CSV is deleted.
+        inMemoryFileHelper.deleteDir(tempDir);
+        assertTrue(inMemoryFileHelper.isEmpty());
+    }
+
     @Test
     public void writeCsvRow_nullValues() {
         // Participant version, metadata, and data can be null. This test makes sure they are handled correctly.
@@ -672,6 +1197,81 @@ public class UploadCsvWorkerProcessorTest {
                 "A-1a", "B-1a", "", "X-1a", "Y-1a", "");
     }
 
+    // Mocks the query for rows. Returns rows for the requested assessment, or all rows if no assessment is specified.
+    // This only returns the first page of results.
+    private void mockQueryUploadTableRows() throws IOException {
+        when(mockBridgeHelper.queryUploadTableRows(eq(APP_ID), eq(STUDY_ID), any())).thenAnswer(invocation -> {
+            UploadTableRowQuery query = invocation.getArgumentAt(2, UploadTableRowQuery.class);
+            if (query.getStart() > 0) {
+                return ImmutableList.of();
+            }
+
+            if (query.getAssessmentGuid() == null) {
+                return ImmutableList.of(ROW_1A, ROW_1B, ROW_2A, ROW_2B);
+            } else if (query.getAssessmentGuid().equals(ASSESSMENT_GUID_A)) {
+                return ImmutableList.of(ROW_1A, ROW_2A);
+            } else if (query.getAssessmentGuid().equals(ASSESSMENT_GUID_B)) {
+                return ImmutableList.of(ROW_1B, ROW_2B);
+            } else {
+                fail("Unexpected assessment GUID " + query.getAssessmentGuid());
+                return null;
+            }
+        });
+    }
+
+    // Captures the watermarks written to DDB, keyed by assessment GUID.
+    private Map<String, UploadCsvWatermark> captureWatermarks(int expectedCount) {
+        ArgumentCaptor<UploadCsvWatermark> watermarkCaptor = ArgumentCaptor.forClass(UploadCsvWatermark.class);
+        verify(mockDynamoHelper, times(expectedCount)).writeUploadCsvWatermark(eq(APP_ID), eq(STUDY_ID),
+                watermarkCaptor.capture());
+
+        Map<String, UploadCsvWatermark> watermarkMap = new HashMap<>();
+        for (UploadCsvWatermark oneWatermark : watermarkCaptor.getAllValues()) {
+            watermarkMap.put(oneWatermark.getAssessmentGuid(), oneWatermark);
+        }
+        assertEquals(watermarkMap.size(), expectedCount);
+        return watermarkMap;
+    }
+
+    private static UploadCsvWatermark makeWatermark(String assessmentGuid, DateTime exportedUntil,
+            Set<String> metadataColumnSet, Set<String> dataColumnSet) {
+        UploadCsvWatermark watermark = new UploadCsvWatermark();
+        watermark.setAssessmentGuid(assessmentGuid);
+        watermark.setExportedUntil(exportedUntil);
+        watermark.setMetadataColumnSet(metadataColumnSet);
+        watermark.setDataColumnSet(dataColumnSet);
+        return watermark;
+    }
+
+    private static void assertWatermark(UploadCsvWatermark watermark, DateTime expectedExportedUntil,
+            Set<String> expectedMetadataColumnSet, Set<String> expectedDataColumnSet) {
+        assertNotNull(watermark);
+        assertEquals(watermark.getExportedUntil(), expectedExportedUntil);
+        assertEquals(watermark.getMetadataColumnSet(), expectedMetadataColumnSet);
+        assertEquals(watermark.getDataColumnSet(), expectedDataColumnSet);
+    }
+
+    // Inserts an empty value after the first metadata column (foo), for an extra metadata column that sorts after it.
+    private static String[] insertEmptyColumn(String[] expectedRow) {
+        List<String> rowList = new ArrayList<>(Arrays.asList(expectedRow));
+        rowList.add(NUM_COMMON_COLUMNS + 1, "");
+        return rowList.toArray(new String[0]);
+    }
+
+    private static UploadCsvWorkerProcessor.CsvColumns makeColumns(UploadTableRow... rows) {
+        UploadCsvWorkerProcessor.CsvColumns columns = new UploadCsvWorkerProcessor.CsvColumns();
+        for (UploadTableRow oneRow : rows) {
+            columns.addRow(oneRow);
+        }
+        return columns;
+    }
+
+    private static void assertQuery(UploadTableRowQuery query, String expectedAssessmentGuid, int expectedStart) {
+        assertEquals(query.getAssessmentGuid(), expectedAssessmentGuid);
+        assertEquals(query.getStart().intValue(), expectedStart);
+        assertEquals(query.getPageSize().intValue(), UploadCsvWorkerProcessor.DEFAULT_PAGE_SIZE);
+    }
+
     private static UploadCsvRequest makeRequest() {
         UploadCsvRequest request = new UploadCsvRequest();
         request.setAppId(APP_ID);
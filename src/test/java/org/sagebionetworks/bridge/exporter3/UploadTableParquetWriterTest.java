@@ -0,0 +1,259 @@
+package org.sagebionetworks.bridge.exporter3;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.apache.parquet.column.page.PageReadStore;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.example.data.simple.convert.GroupRecordConverter;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.io.ColumnIOFactory;
+import org.apache.parquet.io.DelegatingSeekableInputStream;
+import org.apache.parquet.io.InputFile;
+import org.apache.parquet.io.RecordReader;
+import org.apache.parquet.io.SeekableInputStream;
+import org.apache.parquet.schema.LogicalTypeAnnotation;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.PrimitiveType;
+import org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName;
+import org.joda.time.DateTime;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.rest.model.Assessment;
+import org.sagebionetworks.bridge.rest.model.Study;
+import org.sagebionetworks.bridge.rest.model.UploadTableRow;
+
+public class UploadTableParquetWriterTest {
+    private static final String ASSESSMENT_GUID = "test-assessment-guid";
+    private static final String ASSESSMENT_ID = "test-assessment-id";
+    private static final String ASSESSMENT_TITLE = "Test Assessment";
+    private static final DateTime CREATED_ON_1 = DateTime.parse("2017-05-10T06:47:33.701Z");
+    private static final DateTime CREATED_ON_2 = DateTime.parse("2017-05-12T16:40:05.089Z");
+    private static final String HEALTH_CODE_1 = "health-code-1";
+    private static final String HEALTH_CODE_2 = "health-code-2";
+    private static final String RECORD_ID_1 = "record-id-1";
+    private static final String RECORD_ID_2 = "record-id-2";
+    private static final String STUDY_ID = "test-study";
+    private static final String STUDY_NAME = "Test Study";
+
+    private static final Assessment ASSESSMENT = new Assessment().guid(ASSESSMENT_GUID).identifier(ASSESSMENT_ID)
+            .title(ASSESSMENT_TITLE).revision(3L);
+    private static final Study STUDY = new Study().identifier(STUDY_ID).name(STUDY_NAME);
+
+    private static final List<String> METADATA_COLUMN_LIST = ImmutableList.of("foo");
+    private static final List<String> DATA_COLUMN_LIST = ImmutableList.of("boolQ", "intQ", "numQ", "textQ");
+    private static final Map<String, UploadTableParquetWriter.ColumnType> DATA_COLUMN_TYPE_MAP = ImmutableMap.of(
+            "boolQ", UploadTableParquetWriter.ColumnType.BOOLEAN,
+            "intQ", UploadTableParquetWriter.ColumnType.LONG,
+            "numQ", UploadTableParquetWriter.ColumnType.DOUBLE);
+
+    @Test
+    public void schema() throws IOException {
+        MessageType schema;
+        try (UploadTableParquetWriter writer = new UploadTableParquetWriter(new ByteArrayOutputStream(), STUDY,
+                ASSESSMENT, METADATA_COLUMN_LIST, DATA_COLUMN_LIST, DATA_COLUMN_TYPE_MAP)) {
+            schema = writer.getSchema();
+        }
+
+        // Common columns come first, in the same order as the CSV.
+        assertEquals(schema.getFieldCount(), UploadCsvWorkerProcessor.COMMON_COLUMNS.length + 5);
+        for (int i = 0; i < UploadCsvWorkerProcessor.COMMON_COLUMNS.length; i++) {
+            assertEquals(schema.getFieldName(i), UploadCsvWorkerProcessor.COMMON_COLUMNS[i]);
+        }
+        assertPrimitiveType(schema, "assessmentRevision", PrimitiveTypeName.INT64);
+        assertPrimitiveType(schema, "createdOn", PrimitiveTypeName.INT64);
+        assertEquals(schema.getType("createdOn").getLogicalTypeAnnotation(),
+                LogicalTypeAnnotation.timestampType(true, LogicalTypeAnnotation.TimeUnit.MILLIS));
+        assertPrimitiveType(schema, "isTestData", PrimitiveTypeName.BOOLEAN);
+        assertPrimitiveType(schema, "participantVersion", PrimitiveTypeName.INT32);
+
+        // Metadata is always a string. Data columns are typed, and default to string.
+        assertStringType(schema, "foo");
+        assertPrimitiveType(schema, "boolQ", PrimitiveTypeName.BOOLEAN);
+        assertPrimitiveType(schema, "intQ", PrimitiveTypeName.INT64);
+        assertPrimitiveType(schema, "numQ", PrimitiveTypeName.DOUBLE);
+        assertStringType(schema, "textQ");
+    }
+
+    @Test
+    public void writeRows() throws IOException {
+        UploadTableRow row1 = new UploadTableRow().recordId(RECORD_ID_1).assessmentGuid(ASSESSMENT_GUID)
+                .createdOn(CREATED_ON_1).testData(false).healthCode(HEALTH_CODE_1).participantVersion(1)
+                .putMetadataItem("foo", "foo-value").putDataItem("boolQ", "true").putDataItem("intQ", "42")
+                .putDataItem("numQ", "3.5").putDataItem("textQ", "some text");
+
+        // Participant version, metadata, and data can be null.
+        UploadTableRow row2 = new UploadTableRow().recordId(RECORD_ID_2).assessmentGuid(ASSESSMENT_GUID)
+                .createdOn(CREATED_ON_2).testData(true).healthCode(HEALTH_CODE_2).participantVersion(null)
+                .putDataItem("boolQ", "FALSE");
+
+        // Execute.
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (UploadTableParquetWriter writer = new UploadTableParquetWriter(outputStream, STUDY, ASSESSMENT,
+                METADATA_COLUMN_LIST, DATA_COLUMN_LIST, DATA_COLUMN_TYPE_MAP)) {
+            writer.writeRow(row1);
+            writer.writeRow(row2);
+        }
+
+        // Validate.
+        List<Group> groupList = readParquet(outputStream.toByteArray());
+        assertEquals(groupList.size(), 2);
+
+        Group group1 = groupList.get(0);
+        assertEquals(group1.getString("recordId", 0), RECORD_ID_1);
+        assertEquals(group1.getString("studyId", 0), STUDY_ID);
+        assertEquals(group1.getString("studyName", 0), STUDY_NAME);
+        assertEquals(group1.getString("assessmentGuid", 0), ASSESSMENT_GUID);
+        assertEquals(group1.getString("assessmentId", 0), ASSESSMENT_ID);
+        assertEquals(group1.getLong("assessmentRevision", 0), 3L);
+        assertEquals(group1.getString("assessmentTitle", 0), ASSESSMENT_TITLE);
+        assertEquals(group1.getLong("createdOn", 0), CREATED_ON_1.getMillis());
+        assertFalse(group1.getBoolean("isTestData", 0));
+        assertEquals(group1.getString("healthCode", 0), HEALTH_CODE_1);
+        assertEquals(group1.getInteger("participantVersion", 0), 1);
+        assertEquals(group1.getString("foo", 0), "foo-value");
+        assertTrue(group1.getBoolean("boolQ", 0));
+        assertEquals(group1.getLong("intQ", 0), 42L);
+        assertEquals(group1.getDouble("numQ", 0), 3.5, 0.001);
+        assertEquals(group1.getString("textQ", 0), "some text");
+
+        Group group2 = groupList.get(1);
+        assertEquals(group2.getString("recordId", 0), RECORD_ID_2);
+        assertEquals(group2.getLong("createdOn", 0), CREATED_ON_2.getMillis());
+        assertTrue(group2.getBoolean("isTestData", 0));
+        assertEquals(group2.getString("healthCode", 0), HEALTH_CODE_2);
+        assertEquals(group2.getFieldRepetitionCount("participantVersion"), 0);
+        assertEquals(group2.getFieldRepetitionCount("foo"), 0);
+        assertFalse(group2.getBoolean("boolQ", 0));
+        assertEquals(group2.getFieldRepetitionCount("intQ"), 0);
+        assertEquals(group2.getFieldRepetitionCount("numQ"), 0);
+        assertEquals(group2.getFieldRepetitionCount("textQ"), 0);
+    }
+
+    @Test
+    public void badValuesWrittenAsNull() throws IOException {
+        UploadTableRow row = new UploadTableRow().recordId(RECORD_ID_1).assessmentGuid(ASSESSMENT_GUID)
+                .createdOn(CREATED_ON_1).testData(false).healthCode(HEALTH_CODE_1).participantVersion(1)
+                .putDataItem("boolQ", "maybe").putDataItem("intQ", "4.2").putDataItem("numQ", "not a number")
+                .putDataItem("textQ", "still text");
+
+        // Execute.
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (UploadTableParquetWriter writer = new UploadTableParquetWriter(outputStream, STUDY, ASSESSMENT,
+                METADATA_COLUMN_LIST, DATA_COLUMN_LIST, DATA_COLUMN_TYPE_MAP)) {
+            writer.writeRow(row);
+        }
+
+        // Bad values are null. The rest of the row is still written.
+        List<Group> groupList = readParquet(outputStream.toByteArray());
+        assertEquals(groupList.size(), 1);
+
+        Group group = groupList.get(0);
+        assertEquals(group.getString("recordId", 0), RECORD_ID_1);
+        assertEquals(group.getFieldRepetitionCount("boolQ"), 0);
+        assertEquals(group.getFieldRepetitionCount("intQ"), 0);
+        assertEquals(group.getFieldRepetitionCount("numQ"), 0);
+        assertEquals(group.getString("textQ", 0), "still text");
+    }
+
+    @Test
+    public void duplicateColumnNames() throws IOException {
+        // Metadata column has the same name as a common column, and a data column has the same name as a metadata
+        // column.
+        UploadTableRow row = new UploadTableRow().recordId(RECORD_ID_1).assessmentGuid(ASSESSMENT_GUID)
+                .createdOn(CREATED_ON_1).testData(false).healthCode(HEALTH_CODE_1).participantVersion(1)
+                .putMetadataItem("recordId", "metadata-record-id").putMetadataItem("foo", "metadata-foo")
+                .putDataItem("foo", "data-foo");
+
+        // Execute.
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (UploadTableParquetWriter writer = new UploadTableParquetWriter(outputStream, STUDY, ASSESSMENT,
+                ImmutableList.of("foo", "recordId"), ImmutableList.of("foo"), ImmutableMap.of())) {
+            writer.writeRow(row);
+        }
+
+        // Validate.
+        List<Group> groupList = readParquet(outputStream.toByteArray());
+        assertEquals(groupList.size(), 1);
+
+        Group group = groupList.get(0);
+        assertEquals(group.getString("recordId", 0), RECORD_ID_1);
+        assertEquals(group.getString("metadata_recordId", 0), "metadata-record-id");
+        assertEquals(group.getString("foo", 0), "metadata-foo");
+        assertEquals(group.getString("data_foo", 0), "data-foo");
+    }
+
+    // Test helper to read a Parquet file into memory.
+    public static List<Group> readParquet(byte[] parquetBytes) throws IOException {
+        InputFile inputFile = new InputFile() {
+            @Override
+            public long getLength() {
+                return parquetBytes.length;
+            }
+
+            @Override
+            public SeekableInputStream newStream() {
+                SeekableByteArrayInputStream byteArrayInputStream = new SeekableByteArrayInputStream(parquetBytes);
+                return new DelegatingSeekableInputStream(byteArrayInputStream) {
+                    @Override
+                    public long getPos() {
+                        return byteArrayInputStream.getPos();
+                    }
+
+                    @Override
+                    public void seek(long newPos) {
+                        byteArrayInputStream.seek(newPos);
+                    }
+                };
+            }
+        };
+
+        List<Group> groupList = new ArrayList<>();
+        try (ParquetFileReader reader = ParquetFileReader.open(inputFile)) {
+            MessageType schema = reader.getFooter().getFileMetaData().getSchema();
+            PageReadStore rowGroup;
+            while ((rowGroup = reader.readNextRowGroup()) != null) {
+                RecordReader<Group> recordReader = new ColumnIOFactory().getColumnIO(schema).getRecordReader(
+                        rowGroup, new GroupRecordConverter(schema));
+                for (long i = 0; i < rowGroup.getRowCount(); i++) {
+                    groupList.add(recordReader.read());
+                }
+            }
+        }
+        return groupList;
+    }
+
+    private static void assertPrimitiveType(MessageType schema, String fieldName, PrimitiveTypeName expectedType) {
+        PrimitiveType type = schema.getType(fieldName).asPrimitiveType();
+        assertEquals(type.getPrimitiveTypeName(), expectedType);
+    }
+
+    private static void assertStringType(MessageType schema, String fieldName) {
+        assertPrimitiveType(schema, fieldName, PrimitiveTypeName.BINARY);
+        assertEquals(schema.getType(fieldName).getLogicalTypeAnnotation(), LogicalTypeAnnotation.stringType());
+    }
+
+    private static class SeekableByteArrayInputStream extends ByteArrayInputStream {
+        SeekableByteArrayInputStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        long getPos() {
+            return pos;
+        }
+
+        void seek(long newPos) {
+            pos = (int) newPos;
+        }
+    }
+}
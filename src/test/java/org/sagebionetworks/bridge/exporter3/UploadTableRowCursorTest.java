@@ -0,0 +1,205 @@
+package org.sagebionetworks.bridge.exporter3;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.SettableFuture;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.rest.model.UploadTableRow;
+
+@SuppressWarnings("UnstableApiUsage")
+public class UploadTableRowCursorTest {
+    private static final int PAGE_SIZE = 2;
+
+    private static final List<UploadTableRow> PAGE_0 = ImmutableList.of(new UploadTableRow().recordId("row0"),
+            new UploadTableRow().recordId("row1"));
+    private static final List<UploadTableRow> PAGE_1 = ImmutableList.of(new UploadTableRow().recordId("row2"),
+            new UploadTableRow().recordId("row3"));
+    private static final List<UploadTableRow> PAGE_2 = ImmutableList.of(new UploadTableRow().recordId("row4"));
+
+    private ExecutorService executorService;
+    private RateLimiter mockRateLimiter;
+    private List<Integer> requestedStartList;
+
+    @BeforeMethod
+    public void before() {
+        // Load pages on the test thread, so that tests are deterministic.
+        executorService = MoreExecutors.newDirectExecutorService();
+        mockRateLimiter = mock(RateLimiter.class);
+        requestedStartList = new ArrayList<>();
+    }
+
+    @Test
+    public void pagesInOrder() throws IOException {
+        List<List<UploadTableRow>> pageList = new ArrayList<>();
+        try (UploadTableRowCursor cursor = new UploadTableRowCursor(executorService, mockRateLimiter,
+                this::loadThreePages, PAGE_SIZE, 100, 3)) {
+            List<UploadTableRow> page;
+            while ((page = cursor.nextPage()) != null) {
+                pageList.add(page);
+            }
+            assertFalse(cursor.isMaxPagesReached());
+
+            // Calling nextPage() again still returns null.
+            assertNull(cursor.nextPage());
+        }
+        assertEquals(pageList, ImmutableList.of(PAGE_0, PAGE_1, PAGE_2));
+
+        // We stop requesting pages once we see the empty page. With 3 pages in flight, we requested 2 pages past the
+        // end.
+        assertEquals(requestedStartList, ImmutableList.of(0, 2, 4, 6, 8, 10));
+        verify(mockRateLimiter, times(6)).acquire();
+    }
+
+    @Test
+    public void prefetchesWhileCallerHoldsPage() throws IOException {
+        try (UploadTableRowCursor cursor = new UploadTableRowCursor(executorService, mockRateLimiter,
+                this::loadThreePages, PAGE_SIZE, 100, 2)) {
+            // The first call requests the first page plus 2 more.
+            assertEquals(cursor.nextPage(), PAGE_0);
+            assertEquals(requestedStartList, ImmutableList.of(0, 2, 4));
+
+            // Each page returned requests one more page.
+            assertEquals(cursor.nextPage(), PAGE_1);
+            assertEquals(requestedStartList, ImmutableList.of(0, 2, 4, 6));
+        }
+    }
+
+    @Test
+    public void onePageInFlight() throws IOException {
+        // With prefetch 1, this makes the same calls as paging one page at a time.
+        List<List<UploadTableRow>> pageList = new ArrayList<>();
+        try (UploadTableRowCursor cursor = new UploadTableRowCursor(executorService, mockRateLimiter,
+                this::loadThreePages, PAGE_SIZE, 100, 1)) {
+            List<UploadTableRow> page;
+            while ((page = cursor.nextPage()) != null) {
+                pageList.add(page);
+            }
+        }
+        assertEquals(pageList, ImmutableList.of(PAGE_0, PAGE_1, PAGE_2));
+        assertEquals(requestedStartList, ImmutableList.of(0, 2, 4, 6));
+    }
+
+    @Test
+    public void maxPages() throws IOException {
+        // Loader never runs out of rows.
+        UploadTableRowCursor.PageLoader loader = start -> {
+            requestedStartList.add(start);
+            return PAGE_0;
+        };
+
+        int numPages = 0;
+        try (UploadTableRowCursor cursor = new UploadTableRowCursor(executorService, mockRateLimiter, loader,
+                PAGE_SIZE, 5, 3)) {
+            while (cursor.nextPage() != null) {
+                numPages++;
+            }
+            assertTrue(cursor.isMaxPagesReached());
+        }
+
+        // We never request more than max pages, even with pages in flight.
+        assertEquals(numPages, 5);
+        assertEquals(requestedStartList, ImmutableList.of(0, 2, 4, 6, 8));
+        verify(mockRateLimiter, times(5)).acquire();
+    }
+
+    @Test
+    public void emptyPageCancelsPagesInFlight() throws IOException {
+        // Mock executor. The first 2 pages load right away (page 0 and an empty page 1). Later pages stay in flight.
+        List<SettableFuture<List<UploadTableRow>>> pendingFutureList = new ArrayList<>();
+        ExecutorService mockExecutorService = mock(ExecutorService.class);
+        when(mockExecutorService.submit(any(Callable.class))).thenAnswer(invocation -> {
+            SettableFuture<List<UploadTableRow>> future = SettableFuture.create();
+            if (requestedStartList.size() < 2) {
+                Callable<List<UploadTableRow>> callable = invocation.getArgumentAt(0, Callable.class);
+                future.set(callable.call());
+            } else {
+                requestedStartList.add(-1);
+                pendingFutureList.add(future);
+            }
+            return future;
+        });
+
+        UploadTableRowCursor.PageLoader loader = start -> {
+            requestedStartList.add(start);
+            return start == 0 ? PAGE_0 : ImmutableList.of();
+        };
+
+        try (UploadTableRowCursor cursor = new UploadTableRowCursor(mockExecutorService, mockRateLimiter, loader,
+                PAGE_SIZE, 100, 3)) {
+            assertEquals(cursor.nextPage(), PAGE_0);
+            assertNull(cursor.nextPage());
+        }
+
+        // Pages past the end were cancelled.
+        assertEquals(pendingFutureList.size(), 2);
+        for (SettableFuture<List<UploadTableRow>> onePendingFuture : pendingFutureList) {
+            assertTrue(onePendingFuture.isCancelled());
+        }
+    }
+
+    @Test
+    public void loaderThrows() throws IOException {
+        IOException loaderException = new IOException("test exception");
+        UploadTableRowCursor.PageLoader loader = start -> {
+            if (start == 0) {
+                return PAGE_0;
+            }
+            throw loaderException;
+        };
+
+        try (UploadTableRowCursor cursor = new UploadTableRowCursor(executorService, mockRateLimiter, loader,
+                PAGE_SIZE, 100, 2)) {
+            assertEquals(cursor.nextPage(), PAGE_0);
+            try {
+                cursor.nextPage();
+                fail("expected exception");
+            } catch (IOException ex) {
+                assertSame(ex, loaderException);
+            }
+
+            // The cursor is done after an error.
+            assertNull(cursor.nextPage());
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void prefetchPagesMustBePositive() {
+        new UploadTableRowCursor(executorService, mockRateLimiter, this::loadThreePages, PAGE_SIZE, 100, 0);
+    }
+
+    // Returns 3 pages of rows, then empty pages.
+    private List<UploadTableRow> loadThreePages(int start) {
+        requestedStartList.add(start);
+        switch (start) {
+            case 0:
+                return PAGE_0;
+            case PAGE_SIZE:
+                return PAGE_1;
+            case 2 * PAGE_SIZE:
+                return PAGE_2;
+            default:
+                return ImmutableList.of();
+        }
+    }
+}
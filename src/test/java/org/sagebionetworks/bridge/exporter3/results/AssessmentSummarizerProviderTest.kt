@@ -1,6 +1,8 @@
 package org.sagebionetworks.bridge.exporter3.results
 
+import org.testng.Assert.assertNotSame
 import org.testng.Assert.assertNull
+import org.testng.Assert.assertSame
 import org.testng.annotations.Test
 import org.sagebionetworks.bridge.rest.model.Assessment
 import org.sagebionetworks.bridge.rest.model.AssessmentConfig
@@ -35,4 +37,36 @@ class AssessmentSummarizerProviderTest {
         summarizer = provider.getSummarizer(OTHER_ASSESSMENT, ASSESSMENT_CONFIG)
         assertNull(summarizer)
     }
+
+    @Test
+    fun cachedByGuidAndRevision() {
+        val provider = AssessmentSummarizerProvider()
+        val assessment = Assessment().guid("test-guid").revision(1L)
+                .frameworkIdentifier(AssessmentResultSummarizer.FRAMEWORK_IDENTIFIER)
+
+        // Same GUID and revision returns the same summarizer.
+        val summarizer = provider.getSummarizer(assessment, ASSESSMENT_CONFIG)
+        assertSame(provider.getSummarizer(assessment, ASSESSMENT_CONFIG), summarizer)
+
+        // Same GUID in a separate object, eg from another request, also returns the same summarizer.
+        val sameAssessment = Assessment().guid("test-guid").revision(1L)
+                .frameworkIdentifier(AssessmentResultSummarizer.FRAMEWORK_IDENTIFIER)
+        assertSame(provider.getSummarizer(sameAssessment, ASSESSMENT_CONFIG), summarizer)
+
+        // New revision returns a new summarizer.
+        val newRevision = Assessment().guid("test-guid").revision(2L)
+                .frameworkIdentifier(AssessmentResultSummarizer.FRAMEWORK_IDENTIFIER)
+        assertNotSame(provider.getSummarizer(newRevision, ASSESSMENT_CONFIG), summarizer)
+
+        // Edited config returns a new summarizer.
+        val editedConfig = AssessmentConfig().version(2L)
+        assertNotSame(provider.getSummarizer(assessment, editedConfig), summarizer)
+    }
+
+    @Test
+    fun noGuidNotCached() {
+        val provider = AssessmentSummarizerProvider()
+        val summarizer = provider.getSummarizer(SURVEY_ASSESSMENT, ASSESSMENT_CONFIG)
+        assertNotSame(provider.getSummarizer(SURVEY_ASSESSMENT, ASSESSMENT_CONFIG), summarizer)
+    }
 }
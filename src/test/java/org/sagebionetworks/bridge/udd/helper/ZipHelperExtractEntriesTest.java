@@ -0,0 +1,110 @@
+package org.sagebionetworks.bridge.udd.helper;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
+
+public class ZipHelperExtractEntriesTest {
+    private static final byte[] FOO_CONTENT = "foo data".getBytes(Charsets.UTF_8);
+    private static final String FOO_FILENAME = "foo.txt";
+    private static final byte[] BAR_CONTENT = "bar data".getBytes(Charsets.UTF_8);
+    private static final String BAR_FILENAME = "bar.txt";
+    private static final byte[] BAZ_CONTENT = "baz data".getBytes(Charsets.UTF_8);
+    private static final String BAZ_FILENAME = "baz.txt";
+    private static final Set<String> WANTED_ENTRY_NAME_SET = ImmutableSet.of(FOO_FILENAME, BAZ_FILENAME,
+            "missing.txt");
+
+    private byte[] zipBytes;
+    private ZipHelper zipHelper;
+
+    @BeforeMethod
+    public void before() throws IOException {
+        zipHelper = new ZipHelper();
+
+        // Zip some data, so our tests have something to work with.
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(byteArrayOutputStream)) {
+            writeEntry(zipOutputStream, FOO_FILENAME, FOO_CONTENT);
+            writeEntry(zipOutputStream, BAR_FILENAME, BAR_CONTENT);
+            writeEntry(zipOutputStream, BAZ_FILENAME, BAZ_CONTENT);
+        }
+        zipBytes = byteArrayOutputStream.toByteArray();
+    }
+
+    @Test
+    public void extractEntries() throws Exception {
+        Map<String, byte[]> entryMap = zipHelper.extractEntries(new ByteArrayInputStream(zipBytes),
+                WANTED_ENTRY_NAME_SET);
+        assertEntries(entryMap);
+    }
+
+    @Test
+    public void unwantedEntriesDontCountTowardsSize() throws Exception {
+        // bar.txt is the only entry that's too big, but we don't want it.
+        zipHelper.setMaxZipEntrySize(FOO_CONTENT.length);
+        zipHelper.extractEntries(new ByteArrayInputStream(zipBytes), WANTED_ENTRY_NAME_SET);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            ".*The number of zip entries is over the max allowed.*")
+    public void tooManyFiles() throws Exception {
+        // Set max num files to 2. This counts unwanted entries too.
+        zipHelper.setMaxNumZipEntries(2);
+
+        // Execute - will throw.
+        zipHelper.extractEntries(new ByteArrayInputStream(zipBytes), WANTED_ENTRY_NAME_SET);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            ".*Zip entry size is over the max allowed size.*")
+    public void tooBigFile() throws Exception {
+        // Set max file size to slightly too small.
+        zipHelper.setMaxZipEntrySize(FOO_CONTENT.length - 1);
+
+        // Execute - will throw.
+        zipHelper.extractEntries(new ByteArrayInputStream(zipBytes), WANTED_ENTRY_NAME_SET);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "Duplicate filename foo.txt")
+    public void duplicateFilename() throws Exception {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(byteArrayOutputStream)) {
+            writeEntry(zipOutputStream, FOO_FILENAME, FOO_CONTENT);
+            // ZipOutputStream won't write duplicate names, so use a different case and fix it up afterwards.
+            writeEntry(zipOutputStream, "FOO.txt", FOO_CONTENT);
+        }
+        byte[] duplicateZipBytes = new String(byteArrayOutputStream.toByteArray(), Charsets.ISO_8859_1)
+                .replace("FOO.txt", FOO_FILENAME).getBytes(Charsets.ISO_8859_1);
+
+        // Execute - will throw.
+        zipHelper.extractEntries(new ByteArrayInputStream(duplicateZipBytes), WANTED_ENTRY_NAME_SET);
+    }
+
+    private static void assertEntries(Map<String, byte[]> entryMap) {
+        assertEquals(entryMap.size(), 2);
+        assertEquals(entryMap.get(FOO_FILENAME), FOO_CONTENT);
+        assertEquals(entryMap.get(BAZ_FILENAME), BAZ_CONTENT);
+        assertFalse(entryMap.containsKey(BAR_FILENAME));
+    }
+
+    private static void writeEntry(ZipOutputStream zipOutputStream, String name, byte[] content) throws IOException {
+        zipOutputStream.putNextEntry(new ZipEntry(name));
+        zipOutputStream.write(content);
+        zipOutputStream.closeEntry();
+    }
+}
@@ -14,6 +14,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
@@ -91,6 +92,42 @@ public class ZipHelperTest {
         assertEquals(unzippedMap.get("baz-file"), "baz content");
     }
 
+    @Test
+    public void testOpenZipAndAddToZip() throws Exception {
+        // mock output (zip) file
+        ByteArrayOutputStream mockZipFileOutputStream = new ByteArrayOutputStream();
+        File mockZipFile = mock(File.class);
+        when(mockFileHelper.getOutputStream(mockZipFile)).thenReturn(mockZipFileOutputStream);
+
+        // execute - Add files one at a time.
+        try (ZipOutputStream zipOutputStream = zipHelper.openZip(mockZipFile)) {
+            zipHelper.addToZip(zipOutputStream, mockFooFile);
+            zipHelper.addToZip(zipOutputStream, mockBarFile);
+        }
+
+        // Validate result.
+        byte[] mockZipFileBytes = mockZipFileOutputStream.toByteArray();
+        Map<String, String> unzippedMap = unzipHelper(mockZipFileBytes);
+
+        assertEquals(unzippedMap.size(), 2);
+        assertEquals(unzippedMap.get("foo-file"), "foo content");
+        assertEquals(unzippedMap.get("bar-file"), "bar content");
+    }
+
+    @Test
+    public void testOpenZipToOutputStream() throws Exception {
+        ByteArrayOutputStream zipOutputStreamTarget = new ByteArrayOutputStream();
+        try (ZipOutputStream zipOutputStream = zipHelper.openZip(zipOutputStreamTarget)) {
+            zipHelper.addToZip(zipOutputStream, mockFooFile);
+            zipHelper.addToZip(zipOutputStream, mockBazFile);
+        }
+
+        Map<String, String> unzippedMap = unzipHelper(zipOutputStreamTarget.toByteArray());
+        assertEquals(unzippedMap.size(), 2);
+        assertEquals(unzippedMap.get("foo-file"), "foo content");
+        assertEquals(unzippedMap.get("baz-file"), "baz content");
+    }
+
     @Test
     public void testZipWithPassword() throws IOException {
         // mock output zip file
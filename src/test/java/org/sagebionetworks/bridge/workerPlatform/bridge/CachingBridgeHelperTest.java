@@ -0,0 +1,291 @@
+package org.sagebionetworks.bridge.workerPlatform.bridge;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import retrofit2.Call;
+import retrofit2.Response;
+
+import org.sagebionetworks.bridge.exporter3.Exporter3TestUtil;
+import org.sagebionetworks.bridge.rest.ClientManager;
+import org.sagebionetworks.bridge.rest.api.ForWorkersApi;
+import org.sagebionetworks.bridge.rest.exceptions.EntityNotFoundException;
+import org.sagebionetworks.bridge.rest.model.App;
+import org.sagebionetworks.bridge.rest.model.Assessment;
+import org.sagebionetworks.bridge.rest.model.AssessmentConfig;
+import org.sagebionetworks.bridge.rest.model.StringList;
+import org.sagebionetworks.bridge.rest.model.Study;
+
+@SuppressWarnings("unchecked")
+public class CachingBridgeHelperTest {
+    private static final String APP_ID = "test-app";
+    private static final String ASSESSMENT_GUID = "test-assessment-guid";
+    private static final String SCHEDULE_GUID = "test-schedule-guid";
+    private static final String STUDY_ID = "test-study";
+    private static final String STUDY_ID_2 = "test-study-2";
+
+    private CachingBridgeHelper bridgeHelper;
+    private ForWorkersApi mockWorkerApi;
+
+    @BeforeMethod
+    public void before() {
+        mockWorkerApi = mock(ForWorkersApi.class);
+
+        ClientManager mockClientManager = mock(ClientManager.class);
+        when(mockClientManager.getClient(ForWorkersApi.class)).thenReturn(mockWorkerApi);
+
+        bridgeHelper = new CachingBridgeHelper();
+        bridgeHelper.setClientManager(mockClientManager);
+    }
+
+    @Test
+    public void getApp() throws Exception {
+        App app = Exporter3TestUtil.makeAppWithEx3Config();
+        Call<App> mockCall = mockCallForValue(app);
+        when(mockWorkerApi.getApp(APP_ID)).thenReturn(mockCall);
+
+        // Call twice. We only call Bridge once.
+        assertSame(bridgeHelper.getApp(APP_ID), app);
+        assertSame(bridgeHelper.getApp(APP_ID), app);
+        verify(mockWorkerApi, times(1)).getApp(APP_ID);
+    }
+
+    @Test
+    public void getAssessmentByGuid() throws Exception {
+        Assessment assessment = new Assessment();
+        Call<Assessment> mockCall = mockCallForValue(assessment);
+        when(mockWorkerApi.getAssessmentByGuidForWorker(APP_ID, ASSESSMENT_GUID)).thenReturn(mockCall);
+
+        assertSame(bridgeHelper.getAssessmentByGuid(APP_ID, ASSESSMENT_GUID), assessment);
+        assertSame(bridgeHelper.getAssessmentByGuid(APP_ID, ASSESSMENT_GUID), assessment);
+        verify(mockWorkerApi, times(1)).getAssessmentByGuidForWorker(APP_ID, ASSESSMENT_GUID);
+    }
+
+    @Test
+    public void getAssessmentConfigByGuid() throws Exception {
+        AssessmentConfig assessmentConfig = new AssessmentConfig();
+        Call<AssessmentConfig> mockCall = mockCallForValue(assessmentConfig);
+        when(mockWorkerApi.getAssessmentConfigForWorker(APP_ID, ASSESSMENT_GUID)).thenReturn(mockCall);
+
+        assertSame(bridgeHelper.getAssessmentConfigByGuid(APP_ID, ASSESSMENT_GUID), assessmentConfig);
+        assertSame(bridgeHelper.getAssessmentConfigByGuid(APP_ID, ASSESSMENT_GUID), assessmentConfig);
+        verify(mockWorkerApi, times(1)).getAssessmentConfigForWorker(APP_ID, ASSESSMENT_GUID);
+    }
+
+    @Test
+    public void getStudy() throws Exception {
+        Study study = Exporter3TestUtil.makeStudyWithEx3Config().identifier(STUDY_ID);
+        Call<Study> mockCall = mockCallForValue(study);
+        when(mockWorkerApi.getStudyForWorker(APP_ID, STUDY_ID)).thenReturn(mockCall);
+
+        Study study2 = Exporter3TestUtil.makeStudyWithEx3Config().identifier(STUDY_ID_2);
+        Call<Study> mockCall2 = mockCallForValue(study2);
+        when(mockWorkerApi.getStudyForWorker(APP_ID, STUDY_ID_2)).thenReturn(mockCall2);
+
+        // Each study is cached separately.
+        assertSame(bridgeHelper.getStudy(APP_ID, STUDY_ID), study);
+        assertSame(bridgeHelper.getStudy(APP_ID, STUDY_ID_2), study2);
+        assertSame(bridgeHelper.getStudy(APP_ID, STUDY_ID), study);
+        assertSame(bridgeHelper.getStudy(APP_ID, STUDY_ID_2), study2);
+        verify(mockWorkerApi, times(1)).getStudyForWorker(APP_ID, STUDY_ID);
+        verify(mockWorkerApi, times(1)).getStudyForWorker(APP_ID, STUDY_ID_2);
+    }
+
+    @Test
+    public void getStudyIdsUsingSchedule() throws Exception {
+        StringList mockStringList = mock(StringList.class);
+        when(mockStringList.getItems()).thenReturn(ImmutableList.of(STUDY_ID));
+        Call<StringList> mockCall = mockCallForValue(mockStringList);
+        when(mockWorkerApi.getStudyIdsUsingSchedule(APP_ID, SCHEDULE_GUID)).thenReturn(mockCall);
+
+        List<String> studyIdList = bridgeHelper.getStudyIdsUsingSchedule(APP_ID, SCHEDULE_GUID);
+        assertEquals(studyIdList, ImmutableList.of(STUDY_ID));
+        assertSame(bridgeHelper.getStudyIdsUsingSchedule(APP_ID, SCHEDULE_GUID), studyIdList);
+        verify(mockWorkerApi, times(1)).getStudyIdsUsingSchedule(APP_ID, SCHEDULE_GUID);
+    }
+
+    @Test
+    public void nullIsNotCached() throws Exception {
+        Call<App> mockCall = mockCallForValue(null);
+        when(mockWorkerApi.getApp(APP_ID)).thenReturn(mockCall);
+
+        assertNull(bridgeHelper.getApp(APP_ID));
+        assertNull(bridgeHelper.getApp(APP_ID));
+        verify(mockWorkerApi, times(2)).getApp(APP_ID);
+    }
+
+    @Test
+    public void bridgeExceptionIsNotCached() throws Exception {
+        App app = Exporter3TestUtil.makeAppWithEx3Config();
+        Call<App> mockCall = mockCallForValue(app);
+        when(mockWorkerApi.getApp(APP_ID)).thenThrow(EntityNotFoundException.class).thenReturn(mockCall);
+
+        // First call throws.
+        try {
+            bridgeHelper.getApp(APP_ID);
+            fail("expected exception");
+        } catch (EntityNotFoundException ex) {
+            // expected exception
+        }
+
+        // Second call goes back to Bridge.
+        assertSame(bridgeHelper.getApp(APP_ID), app);
+        verify(mockWorkerApi, times(2)).getApp(APP_ID);
+    }
+
+    @Test
+    public void ioExceptionIsUnwrapped() throws Exception {
+        IOException originalEx = new IOException("test exception");
+        Call<App> mockCall = mock(Call.class);
+        when(mockCall.execute()).thenThrow(originalEx);
+        when(mockWorkerApi.getApp(APP_ID)).thenReturn(mockCall);
+
+        try {
+            bridgeHelper.getApp(APP_ID);
+            fail("expected exception");
+        } catch (IOException ex) {
+            assertSame(ex, originalEx);
+        }
+    }
+
+    @Test
+    public void concurrentCallsLoadOnce() throws Exception {
+        // The call to Bridge blocks until the second thread is waiting on the cache.
+        App app = Exporter3TestUtil.makeAppWithEx3Config();
+        CountDownLatch loadStartedLatch = new CountDownLatch(1);
+        CountDownLatch finishLoadLatch = new CountDownLatch(1);
+        Call<App> mockCall = mock(Call.class);
+        when(mockCall.execute()).thenAnswer(invocation -> {
+            loadStartedLatch.countDown();
+            finishLoadLatch.await(5, TimeUnit.SECONDS);
+            return Response.success(app);
+        });
+        when(mockWorkerApi.getApp(APP_ID)).thenReturn(mockCall);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            Future<App> future1 = executorService.submit(() -> bridgeHelper.getApp(APP_ID));
+            loadStartedLatch.await(5, TimeUnit.SECONDS);
+            Future<App> future2 = executorService.submit(() -> bridgeHelper.getApp(APP_ID));
+            finishLoadLatch.countDown();
+
+            assertSame(future1.get(5, TimeUnit.SECONDS), app);
+            assertSame(future2.get(5, TimeUnit.SECONDS), app);
+        } finally {
+            executorService.shutdown();
+        }
+        verify(mockWorkerApi, times(1)).getApp(APP_ID);
+    }
+
+    @Test
+    public void appWithoutExporter3IsNotCached() throws Exception {
+        // App doesn't have Exporter 3 enabled yet.
+        App disabledApp = new App().identifier(APP_ID);
+        Call<App> mockDisabledCall = mockCallForValue(disabledApp);
+        App enabledApp = new App().identifier(APP_ID);
+        enabledApp.setExporter3Enabled(true);
+        Call<App> mockEnabledCall = mockCallForValue(enabledApp);
+        when(mockWorkerApi.getApp(APP_ID)).thenReturn(mockDisabledCall, mockEnabledCall);
+
+        // Once it's enabled, we see it right away, and then it's cached.
+        assertSame(bridgeHelper.getApp(APP_ID), disabledApp);
+        assertSame(bridgeHelper.getApp(APP_ID), enabledApp);
+        assertSame(bridgeHelper.getApp(APP_ID), enabledApp);
+        verify(mockWorkerApi, times(2)).getApp(APP_ID);
+    }
+
+    @Test
+    public void appConfiguredOnlyForStudiesIsCached() throws Exception {
+        // Exporter 3 is enabled for the app, but only configured at the study level.
+        App app = new App().identifier(APP_ID);
+        app.setExporter3Enabled(true);
+        Call<App> mockCall = mockCallForValue(app);
+        when(mockWorkerApi.getApp(APP_ID)).thenReturn(mockCall);
+
+        assertSame(bridgeHelper.getApp(APP_ID), app);
+        assertSame(bridgeHelper.getApp(APP_ID), app);
+        verify(mockWorkerApi, times(1)).getApp(APP_ID);
+    }
+
+    @Test
+    public void unconfiguredStudyIsNotCached() throws Exception {
+        // Study isn't configured for Exporter 3 yet.
+        Study unconfiguredStudy = new Study().identifier(STUDY_ID);
+        Call<Study> mockUnconfiguredCall = mockCallForValue(unconfiguredStudy);
+        Study configuredStudy = Exporter3TestUtil.makeStudyWithEx3Config().identifier(STUDY_ID);
+        Call<Study> mockConfiguredCall = mockCallForValue(configuredStudy);
+        when(mockWorkerApi.getStudyForWorker(APP_ID, STUDY_ID)).thenReturn(mockUnconfiguredCall,
+                mockConfiguredCall);
+
+        // Once it's configured, we see it right away, and then it's cached.
+        assertSame(bridgeHelper.getStudy(APP_ID, STUDY_ID), unconfiguredStudy);
+        assertSame(bridgeHelper.getStudy(APP_ID, STUDY_ID), configuredStudy);
+        assertSame(bridgeHelper.getStudy(APP_ID, STUDY_ID), configuredStudy);
+        verify(mockWorkerApi, times(2)).getStudyForWorker(APP_ID, STUDY_ID);
+    }
+
+    @Test
+    public void invalidateApp() throws Exception {
+        Call<App> mockCall = mockCallForValue(Exporter3TestUtil.makeAppWithEx3Config());
+        when(mockWorkerApi.getApp(APP_ID)).thenReturn(mockCall);
+
+        bridgeHelper.getApp(APP_ID);
+        bridgeHelper.invalidateApp(APP_ID);
+        bridgeHelper.getApp(APP_ID);
+        verify(mockWorkerApi, times(2)).getApp(APP_ID);
+    }
+
+    @Test
+    public void invalidateStudy() throws Exception {
+        Call<Study> mockCall = mockCallForValue(Exporter3TestUtil.makeStudyWithEx3Config().identifier(STUDY_ID));
+        when(mockWorkerApi.getStudyForWorker(APP_ID, STUDY_ID)).thenReturn(mockCall);
+
+        bridgeHelper.getStudy(APP_ID, STUDY_ID);
+        bridgeHelper.invalidateStudy(APP_ID, STUDY_ID);
+        bridgeHelper.getStudy(APP_ID, STUDY_ID);
+        verify(mockWorkerApi, times(2)).getStudyForWorker(APP_ID, STUDY_ID);
+    }
+
+    @Test
+    public void invalidateAll() throws Exception {
+        Call<App> mockAppCall = mockCallForValue(Exporter3TestUtil.makeAppWithEx3Config());
+        when(mockWorkerApi.getApp(APP_ID)).thenReturn(mockAppCall);
+
+        Call<Assessment> mockAssessmentCall = mockCallForValue(new Assessment());
+        when(mockWorkerApi.getAssessmentByGuidForWorker(APP_ID, ASSESSMENT_GUID)).thenReturn(mockAssessmentCall);
+
+        bridgeHelper.getApp(APP_ID);
+        bridgeHelper.getAssessmentByGuid(APP_ID, ASSESSMENT_GUID);
+        bridgeHelper.invalidateAll();
+        bridgeHelper.getApp(APP_ID);
+        bridgeHelper.getAssessmentByGuid(APP_ID, ASSESSMENT_GUID);
+        verify(mockWorkerApi, times(2)).getApp(APP_ID);
+        verify(mockWorkerApi, times(2)).getAssessmentByGuidForWorker(APP_ID, ASSESSMENT_GUID);
+    }
+
+    private static <T> Call<T> mockCallForValue(T value) throws Exception {
+        Response<T> response = Response.success(value);
+
+        Call<T> mockCall = mock(Call.class);
+        when(mockCall.execute()).thenReturn(response);
+
+        return mockCall;
+    }
+}
@@ -32,6 +32,7 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.dynamodb.DynamoQueryHelper;
+import org.sagebionetworks.bridge.exporter3.UploadCsvWatermark;
 import org.sagebionetworks.bridge.notification.worker.NotificationType;
 import org.sagebionetworks.bridge.notification.worker.UserNotification;
 import org.sagebionetworks.bridge.notification.worker.WorkerConfig;
@@ -42,6 +43,8 @@ public class DynamoHelperTest {
     private static final String DEFAULT_TABLE_ID = "default-table";
     private static final long MOCK_NOW_MILLIS = DateTime.parse("2018-04-27T16:41:15.831-0700").getMillis();
     private static final String APP_ID = "test-app";
+    private static final String ASSESSMENT_GUID = "test-assessment-guid";
+    private static final String STUDY_ID = "test-study";
     private static final String USER_ID = "test-user";
 
     private static final String DUMMY_FIELD_DEF_LIST_JSON = "[\n" +
@@ -83,6 +86,12 @@ public class DynamoHelperTest {
     @Mock
     private Table mockSynapseSurveyTable;
 
+    @Mock
+    private Table mockUploadCsvWatermarkTable;
+
+    @Mock
+    private Table mockWorkerCheckpointTable;
+
     @Mock
     private Table mockWorkerLogTable;
 
@@ -111,7 +120,9 @@ public class DynamoHelperTest {
         dynamoHelper.setDdbSynapseMapTable(mockSynapseMapTable);
         dynamoHelper.setDdbSynapseSurveyTablesTable(mockSynapseSurveyTable);
         dynamoHelper.setDdbUploadSchemaAppIndex(mockSchemaAppIndex);
+        dynamoHelper.setDdbUploadCsvWatermarkTable(mockUploadCsvWatermarkTable);
         dynamoHelper.setDdbUploadSchemaTable(mockSchemaTable);
+        dynamoHelper.setDdbWorkerCheckpointTable(mockWorkerCheckpointTable);
         dynamoHelper.setDdbWorkerLogTable(mockWorkerLogTable);
     }
 
@@ -403,6 +414,118 @@ public class DynamoHelperTest {
         verify(mockSynapseMapTable).deleteItem("schemaKey", TEST_SCHEMA_KEY.toString());
     }
 
+    @Test
+    public void getUploadCsvWatermarksForStudy() {
+        // Mock query. One watermark has columns, one doesn't.
+        Item assessmentItem = new Item().withPrimaryKey(DynamoHelper.KEY_APP_STUDY, APP_ID + ":" + STUDY_ID,
+                DynamoHelper.KEY_ASSESSMENT_GUID, ASSESSMENT_GUID)
+                .withLong(DynamoHelper.KEY_EXPORTED_UNTIL, 1234L)
+                .withList(DynamoHelper.KEY_METADATA_COLUMNS, ImmutableList.of("meta1", "meta2"))
+                .withList(DynamoHelper.KEY_DATA_COLUMNS, ImmutableList.of("data1"));
+        Item studyItem = new Item().withPrimaryKey(DynamoHelper.KEY_APP_STUDY, APP_ID + ":" + STUDY_ID,
+                DynamoHelper.KEY_ASSESSMENT_GUID, "*")
+                .withLong(DynamoHelper.KEY_EXPORTED_UNTIL, 5678L);
+        when(mockQueryHelper.query(same(mockUploadCsvWatermarkTable), any())).thenReturn(ImmutableList.of(
+                assessmentItem, studyItem));
+
+        // Execute and validate.
+        Map<String, UploadCsvWatermark> watermarkMap = dynamoHelper.getUploadCsvWatermarksForStudy(APP_ID,
+                STUDY_ID);
+        assertEquals(watermarkMap.size(), 2);
+
+        UploadCsvWatermark assessmentWatermark = watermarkMap.get(ASSESSMENT_GUID);
+        assertEquals(assessmentWatermark.getAssessmentGuid(), ASSESSMENT_GUID);
+        assertEquals(assessmentWatermark.getExportedUntil().getMillis(), 1234L);
+        assertEquals(assessmentWatermark.getMetadataColumnSet(), ImmutableSet.of("meta1", "meta2"));
+        assertEquals(assessmentWatermark.getDataColumnSet(), ImmutableSet.of("data1"));
+
+        UploadCsvWatermark studyWatermark = watermarkMap.get("*");
+        assertEquals(studyWatermark.getExportedUntil().getMillis(), 5678L);
+        assertTrue(studyWatermark.getMetadataColumnSet().isEmpty());
+        assertTrue(studyWatermark.getDataColumnSet().isEmpty());
+
+        ArgumentCaptor<QuerySpec> queryCaptor = ArgumentCaptor.forClass(QuerySpec.class);
+        verify(mockQueryHelper).query(same(mockUploadCsvWatermarkTable), queryCaptor.capture());
+        QuerySpec query = queryCaptor.getValue();
+        assertEquals(query.getHashKey().getName(), DynamoHelper.KEY_APP_STUDY);
+        assertEquals(query.getHashKey().getValue(), APP_ID + ":" + STUDY_ID);
+    }
+
+    @Test
+    public void getUploadCsvWatermarksForStudy_NoWatermarks() {
+        when(mockQueryHelper.query(same(mockUploadCsvWatermarkTable), any())).thenReturn(ImmutableList.of());
+        Map<String, UploadCsvWatermark> watermarkMap = dynamoHelper.getUploadCsvWatermarksForStudy(APP_ID,
+                STUDY_ID);
+        assertTrue(watermarkMap.isEmpty());
+    }
+
+    @Test
+    public void writeUploadCsvWatermark() {
+        // Execute.
+        UploadCsvWatermark watermark = new UploadCsvWatermark();
+        watermark.setAssessmentGuid(ASSESSMENT_GUID);
+        watermark.setExportedUntil(new DateTime(1234L));
+        watermark.setMetadataColumnSet(ImmutableSet.of("meta2", "meta1"));
+        dynamoHelper.writeUploadCsvWatermark(APP_ID, STUDY_ID, watermark);
+
+        // Validate back-end. Columns are stored as sorted lists. Empty column sets are stored as empty lists.
+        ArgumentCaptor<Item> itemCaptor = ArgumentCaptor.forClass(Item.class);
+        verify(mockUploadCsvWatermarkTable).putItem(itemCaptor.capture());
+
+        Item item = itemCaptor.getValue();
+        assertEquals(item.getString(DynamoHelper.KEY_APP_STUDY), APP_ID + ":" + STUDY_ID);
+        assertEquals(item.getString(DynamoHelper.KEY_ASSESSMENT_GUID), ASSESSMENT_GUID);
+        assertEquals(item.getLong(DynamoHelper.KEY_EXPORTED_UNTIL), 1234L);
+        assertEquals(item.getList(DynamoHelper.KEY_METADATA_COLUMNS), ImmutableList.of("meta1", "meta2"));
+        assertTrue(item.getList(DynamoHelper.KEY_DATA_COLUMNS).isEmpty());
+    }
+
+    @Test
+    public void getWorkerCheckpoint() {
+        Item item = new Item().withPrimaryKey(DynamoHelper.KEY_WORKER_ID, "dummy worker",
+                DynamoHelper.KEY_CHECKPOINT_KEY, "dummy key").withInt(DynamoHelper.KEY_LINE_OFFSET, 5000);
+        when(mockWorkerCheckpointTable.getItem(DynamoHelper.KEY_WORKER_ID, "dummy worker",
+                DynamoHelper.KEY_CHECKPOINT_KEY, "dummy key")).thenReturn(item);
+
+        // Execute and validate.
+        assertEquals(dynamoHelper.getWorkerCheckpoint("dummy worker", "dummy key"), 5000);
+    }
+
+    @Test
+    public void getWorkerCheckpoint_NoCheckpoint() {
+        when(mockWorkerCheckpointTable.getItem(DynamoHelper.KEY_WORKER_ID, "dummy worker",
+                DynamoHelper.KEY_CHECKPOINT_KEY, "dummy key")).thenReturn(null);
+
+        // Execute and validate.
+        assertEquals(dynamoHelper.getWorkerCheckpoint("dummy worker", "dummy key"), 0);
+    }
+
+    @Test
+    public void writeWorkerCheckpoint() {
+        // Execute
+        dynamoHelper.writeWorkerCheckpoint("dummy worker", "dummy key", 5000);
+
+        // Validate back-end
+        ArgumentCaptor<Item> itemCaptor = ArgumentCaptor.forClass(Item.class);
+        verify(mockWorkerCheckpointTable).putItem(itemCaptor.capture());
+
+        Item item = itemCaptor.getValue();
+        assertEquals(item.getString(DynamoHelper.KEY_WORKER_ID), "dummy worker");
+        assertEquals(item.getString(DynamoHelper.KEY_CHECKPOINT_KEY), "dummy key");
+        assertEquals(item.getInt(DynamoHelper.KEY_LINE_OFFSET), 5000);
+        assertEquals(item.getLong(DynamoHelper.KEY_UPDATED_ON), MOCK_NOW_MILLIS);
+    }
+
+    @Test
+    public void deleteWorkerCheckpoint() {
+        // Execute
+        dynamoHelper.deleteWorkerCheckpoint("dummy worker", "dummy key");
+
+        // Validate back-end
+        verify(mockWorkerCheckpointTable).deleteItem(DynamoHelper.KEY_WORKER_ID, "dummy worker",
+                DynamoHelper.KEY_CHECKPOINT_KEY, "dummy key");
+    }
+
     @Test
     public void writeWorkerLog() {
         // Execute
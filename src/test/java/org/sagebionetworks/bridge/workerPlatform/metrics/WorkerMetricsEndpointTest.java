@@ -0,0 +1,44 @@
+package org.sagebionetworks.bridge.workerPlatform.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.testng.annotations.Test;
+
+public class WorkerMetricsEndpointTest {
+    @Test
+    @SuppressWarnings("unchecked")
+    public void invoke() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        registry.counter(WorkerMetrics.METRIC_REQUEST_REJECTED, WorkerMetrics.TAG_SERVICE, "TestWorker").increment();
+        registry.timer(WorkerMetrics.METRIC_REQUEST, WorkerMetrics.TAG_SERVICE, "TestWorker").record(3,
+                TimeUnit.SECONDS);
+
+        WorkerMetricsEndpoint endpoint = new WorkerMetricsEndpoint();
+        endpoint.setMeterRegistry(registry);
+        assertEquals(endpoint.getId(), WorkerMetricsEndpoint.ENDPOINT_ID);
+        assertFalse(endpoint.isSensitive());
+
+        Map<String, List<Map<String, Object>>> result = endpoint.invoke();
+        assertEquals(result.size(), 2);
+
+        List<Map<String, Object>> rejectedList = result.get(WorkerMetrics.METRIC_REQUEST_REJECTED);
+        assertEquals(rejectedList.size(), 1);
+        Map<String, String> rejectedTags = (Map<String, String>) rejectedList.get(0).get(
+                WorkerMetricsEndpoint.KEY_TAGS);
+        assertEquals(rejectedTags.get(WorkerMetrics.TAG_SERVICE), "TestWorker");
+        Map<String, Object> rejectedMeasurements = (Map<String, Object>) rejectedList.get(0).get(
+                WorkerMetricsEndpoint.KEY_MEASUREMENTS);
+        assertEquals(rejectedMeasurements.get("count"), 1.0);
+
+        Map<String, Object> requestMeasurements = (Map<String, Object>) result.get(WorkerMetrics.METRIC_REQUEST)
+                .get(0).get(WorkerMetricsEndpoint.KEY_MEASUREMENTS);
+        assertEquals(requestMeasurements.get("count"), 1.0);
+        assertEquals(requestMeasurements.get("total"), 3.0);
+    }
+}
@@ -0,0 +1,107 @@
+package org.sagebionetworks.bridge.workerPlatform.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class WorkerMetricsTest {
+    private static final String APP_ID = "test-app";
+    private static final String SERVICE = "TestWorker";
+
+    private SimpleMeterRegistry registry;
+
+    @BeforeMethod
+    public void before() {
+        registry = new SimpleMeterRegistry();
+        Metrics.addRegistry(registry);
+    }
+
+    @AfterMethod
+    public void after() {
+        Metrics.removeRegistry(registry);
+        registry.close();
+    }
+
+    @Test
+    public void timedCallSuccess() {
+        try (WorkerMetrics.TimedCall call = WorkerMetrics.startSynapseCall("getEntity")) {
+            assertEquals(call.success("result"), "result");
+        }
+
+        Timer timer = registry.find(WorkerMetrics.METRIC_CALL)
+                .tag(WorkerMetrics.TAG_DEPENDENCY, WorkerMetrics.DEPENDENCY_SYNAPSE)
+                .tag(WorkerMetrics.TAG_OPERATION, "getEntity")
+                .tag(WorkerMetrics.TAG_OUTCOME, WorkerMetrics.OUTCOME_SUCCESS).timer();
+        assertEquals(timer.count(), 1);
+    }
+
+    @Test
+    public void timedCallError() {
+        try (WorkerMetrics.TimedCall call = WorkerMetrics.startCall(WorkerMetrics.DEPENDENCY_BRIDGE, "getApp")) {
+            throw new IllegalStateException("test exception");
+        } catch (IllegalStateException ex) {
+            // expected exception
+        }
+
+        assertNull(registry.find(WorkerMetrics.METRIC_CALL).tag(WorkerMetrics.TAG_OUTCOME,
+                WorkerMetrics.OUTCOME_SUCCESS).timer());
+        Timer timer = registry.find(WorkerMetrics.METRIC_CALL)
+                .tag(WorkerMetrics.TAG_DEPENDENCY, WorkerMetrics.DEPENDENCY_BRIDGE)
+                .tag(WorkerMetrics.TAG_OPERATION, "getApp")
+                .tag(WorkerMetrics.TAG_OUTCOME, WorkerMetrics.OUTCOME_ERROR).timer();
+        assertEquals(timer.count(), 1);
+    }
+
+    @Test
+    public void recordRequest() {
+        WorkerMetrics.recordRequest(SERVICE, APP_ID, WorkerMetrics.OUTCOME_SUCCESS, TimeUnit.SECONDS.toNanos(2));
+        WorkerMetrics.recordRequest(SERVICE, null, WorkerMetrics.OUTCOME_ERROR, TimeUnit.SECONDS.toNanos(1));
+
+        Timer successTimer = registry.find(WorkerMetrics.METRIC_REQUEST).tag(WorkerMetrics.TAG_SERVICE, SERVICE)
+                .tag(WorkerMetrics.TAG_APP, APP_ID).tag(WorkerMetrics.TAG_OUTCOME, WorkerMetrics.OUTCOME_SUCCESS)
+                .timer();
+        assertEquals(successTimer.count(), 1);
+        assertEquals(successTimer.totalTime(TimeUnit.SECONDS), 2.0, 0.001);
+
+        // Missing app ID is tagged as unknown.
+        Timer errorTimer = registry.find(WorkerMetrics.METRIC_REQUEST).tag(WorkerMetrics.TAG_APP,
+                WorkerMetrics.UNKNOWN).tag(WorkerMetrics.TAG_OUTCOME, WorkerMetrics.OUTCOME_ERROR).timer();
+        assertEquals(errorTimer.count(), 1);
+    }
+
+    @Test
+    public void countersAndDistributions() {
+        WorkerMetrics.incrementRejected(SERVICE);
+        WorkerMetrics.incrementRejected(SERVICE);
+        assertEquals(registry.find(WorkerMetrics.METRIC_REQUEST_REJECTED).tag(WorkerMetrics.TAG_SERVICE, SERVICE)
+                .counter().count(), 2.0, 0.001);
+
+        WorkerMetrics.incrementCount(SERVICE, "succeeded", 3);
+        assertEquals(registry.find(WorkerMetrics.METRIC_COUNT).tag(WorkerMetrics.TAG_NAME, "succeeded").counter()
+                .count(), 3.0, 0.001);
+
+        WorkerMetrics.recordDistribution(WorkerMetrics.METRIC_SQS_BATCH_SIZE, SERVICE, 10);
+        WorkerMetrics.recordDistribution(WorkerMetrics.METRIC_SQS_BATCH_SIZE, SERVICE, 4);
+        assertEquals(registry.find(WorkerMetrics.METRIC_SQS_BATCH_SIZE).summary().totalAmount(), 14.0, 0.001);
+    }
+
+    @Test
+    public void noRegistryIsNoOp() {
+        Metrics.removeRegistry(registry);
+        try {
+            WorkerMetrics.recordQueueWait(SERVICE, 1000);
+        } catch (RuntimeException ex) {
+            fail("Recording with no registry should not throw", ex);
+        }
+        assertNull(registry.find(WorkerMetrics.METRIC_REQUEST_QUEUE_WAIT).timer());
+    }
+}
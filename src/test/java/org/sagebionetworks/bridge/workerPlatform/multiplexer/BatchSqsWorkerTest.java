@@ -0,0 +1,277 @@
+package org.sagebionetworks.bridge.workerPlatform.multiplexer;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.google.common.collect.ImmutableList;
+import org.mockito.ArgumentCaptor;
+import org.joda.time.DateTimeUtils;
+import org.mockito.InOrder;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerRetryableException;
+
+public class BatchSqsWorkerTest {
+    private static final long MAX_SLEEP_TIME_MILLIS = 1000;
+    private static final String QUEUE_URL = "dummy-queue-url";
+    private static final long RECEIVED_MILLIS = 1234567890L;
+    private static final int RETRY_DELAY_SECONDS = 5;
+    private static final int WAIT_TIME_SECONDS = 20;
+
+    private BridgeWorkerPlatformSqsCallback mockCallback;
+    private AmazonSQS mockSqsClient;
+    private BatchSqsWorker worker;
+
+    @BeforeMethod
+    public void before() {
+        // By default, requests complete right away.
+        mockCallback = mock(BridgeWorkerPlatformSqsCallback.class);
+        when(mockCallback.callbackAsync(anyString())).thenReturn(CompletableFuture.completedFuture(null));
+
+        mockSqsClient = mock(AmazonSQS.class);
+        when(mockSqsClient.deleteMessageBatch(any(DeleteMessageBatchRequest.class))).thenReturn(
+                new DeleteMessageBatchResult());
+
+        worker = new BatchSqsWorker();
+        worker.setCallback(mockCallback);
+        worker.setMaxInFlight(12);
+        worker.setMaxSleepTimeMillis(MAX_SLEEP_TIME_MILLIS);
+        worker.setQueueUrl(QUEUE_URL);
+        worker.setRetryDelaySeconds(RETRY_DELAY_SECONDS);
+        worker.setSqsClient(mockSqsClient);
+        worker.setWaitTimeSeconds(WAIT_TIME_SECONDS);
+    }
+
+    @AfterMethod
+    public void after() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void fullBatch() throws Exception {
+        mockReceive(10);
+
+        long sleepMillis = worker.pollOnce();
+        assertEquals(sleepMillis, 0);
+
+        // Verify receive request.
+        ArgumentCaptor<ReceiveMessageRequest> receiveRequestCaptor = ArgumentCaptor.forClass(
+                ReceiveMessageRequest.class);
+        verify(mockSqsClient).receiveMessage(receiveRequestCaptor.capture());
+        ReceiveMessageRequest receiveRequest = receiveRequestCaptor.getValue();
+        assertEquals(receiveRequest.getQueueUrl(), QUEUE_URL);
+        assertEquals(receiveRequest.getMaxNumberOfMessages().intValue(), 10);
+        assertEquals(receiveRequest.getWaitTimeSeconds().intValue(), WAIT_TIME_SECONDS);
+
+        // All messages processed.
+        verify(mockCallback, times(10)).callbackAsync(any());
+
+        // Deletes are flushed in one batch.
+        worker.flushDeletes();
+        List<DeleteMessageBatchRequest> deleteRequestList = captureDeleteRequests(1);
+        assertEquals(deleteRequestList.get(0).getQueueUrl(), QUEUE_URL);
+        assertEquals(deleteRequestList.get(0).getEntries().size(), 10);
+
+        // All slots are free again.
+        assertEquals(worker.getAvailableSlots(), 12);
+    }
+
+    @Test
+    public void partialBatch() throws Exception {
+        mockReceive(5);
+
+        long sleepMillis = worker.pollOnce();
+        assertEquals(sleepMillis, MAX_SLEEP_TIME_MILLIS / 2);
+        verify(mockCallback, times(5)).callbackAsync(any());
+    }
+
+    @Test
+    public void emptyBatch() throws Exception {
+        mockReceive(0);
+
+        long sleepMillis = worker.pollOnce();
+        assertEquals(sleepMillis, MAX_SLEEP_TIME_MILLIS);
+        verify(mockCallback, never()).callbackAsync(any());
+        verify(mockSqsClient, never()).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+    }
+
+    @Test
+    public void onlyReceivesAsManyAsFreeSlots() throws Exception {
+        worker.setMaxInFlight(3);
+        mockReceive(3);
+
+        worker.pollOnce();
+
+        ArgumentCaptor<ReceiveMessageRequest> receiveRequestCaptor = ArgumentCaptor.forClass(
+                ReceiveMessageRequest.class);
+        verify(mockSqsClient).receiveMessage(receiveRequestCaptor.capture());
+        assertEquals(receiveRequestCaptor.getValue().getMaxNumberOfMessages().intValue(), 3);
+    }
+
+    @Test
+    public void errorHandling() throws Exception {
+        mockReceive(3);
+
+        // Message 0 succeeds, message 1 is a bad request, message 2 is retryable.
+        doReturn(failedFuture(new PollSqsWorkerBadRequestException("bad request"))).when(mockCallback)
+                .callbackAsync("body-1");
+        doReturn(failedFuture(new PollSqsWorkerRetryableException("at capacity"))).when(mockCallback)
+                .callbackAsync("body-2");
+
+        worker.pollOnce();
+        worker.flushDeletes();
+
+        // Success and bad request are deleted.
+        List<DeleteMessageBatchRequest> deleteRequestList = captureDeleteRequests(1);
+        List<DeleteMessageBatchRequestEntry> entryList = deleteRequestList.get(0).getEntries();
+        assertEquals(entryList.size(), 2);
+        assertEquals(entryList.get(0).getReceiptHandle(), "receipt-0");
+        assertEquals(entryList.get(1).getReceiptHandle(), "receipt-1");
+
+        // Retryable is left on the queue, but made visible again after the retry delay.
+        ArgumentCaptor<ChangeMessageVisibilityRequest> visibilityRequestCaptor = ArgumentCaptor.forClass(
+                ChangeMessageVisibilityRequest.class);
+        verify(mockSqsClient).changeMessageVisibility(visibilityRequestCaptor.capture());
+        ChangeMessageVisibilityRequest visibilityRequest = visibilityRequestCaptor.getValue();
+        assertEquals(visibilityRequest.getQueueUrl(), QUEUE_URL);
+        assertEquals(visibilityRequest.getReceiptHandle(), "receipt-2");
+        assertEquals(visibilityRequest.getVisibilityTimeout().intValue(), RETRY_DELAY_SECONDS);
+
+        assertEquals(worker.getAvailableSlots(), 12);
+    }
+
+    @Test
+    public void slotIsHeldUntilRequestCompletes() throws Exception {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        doReturn(future).when(mockCallback).callbackAsync("body-0");
+        mockReceive(1);
+
+        // Polling doesn't wait for the request.
+        worker.pollOnce();
+        assertEquals(worker.getAvailableSlots(), 11);
+        worker.flushDeletes();
+        verify(mockSqsClient, never()).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+
+        // Request completes. The slot is released and the message is deleted.
+        future.complete(null);
+        assertEquals(worker.getAvailableSlots(), 12);
+        worker.flushDeletes();
+        List<DeleteMessageBatchRequest> deleteRequestList = captureDeleteRequests(1);
+        assertEquals(deleteRequestList.get(0).getEntries().get(0).getReceiptHandle(), "receipt-0");
+    }
+
+    @Test
+    public void unexpectedErrorIsNotDeleted() throws Exception {
+        mockReceive(1);
+        doReturn(failedFuture(new RuntimeException())).when(mockCallback).callbackAsync("body-0");
+
+        worker.pollOnce();
+        worker.flushDeletes();
+
+        // Not deleted, and waits out the visibility timeout.
+        verify(mockSqsClient, never()).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+        verify(mockSqsClient, never()).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+        assertEquals(worker.getAvailableSlots(), 12);
+    }
+
+    @Test
+    public void callbackThrowsSynchronously() throws Exception {
+        mockReceive(1);
+        doThrow(RuntimeException.class).when(mockCallback).callbackAsync("body-0");
+
+        worker.pollOnce();
+        worker.flushDeletes();
+
+        verify(mockSqsClient, never()).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+        assertEquals(worker.getAvailableSlots(), 12);
+    }
+
+    @Test
+    public void deletesAreChunked() throws Exception {
+        // Two full batches means 20 deletes, which is split into 2 delete batches.
+        mockReceive(10);
+        worker.pollOnce();
+        worker.pollOnce();
+        worker.flushDeletes();
+
+        List<DeleteMessageBatchRequest> deleteRequestList = captureDeleteRequests(2);
+        assertEquals(deleteRequestList.get(0).getEntries().size(), 10);
+        assertEquals(deleteRequestList.get(1).getEntries().size(), 10);
+    }
+
+    @Test
+    public void visibilityLease() throws Exception {
+        VisibilityTimeoutExtender mockExtender = mock(VisibilityTimeoutExtender.class);
+        VisibilityTimeoutExtender.Lease mockLease = mock(VisibilityTimeoutExtender.Lease.class);
+        when(mockExtender.getVisibilityTimeoutSeconds()).thenReturn(300);
+        when(mockExtender.startLease(QUEUE_URL, "message-0", "receipt-0", RECEIVED_MILLIS)).thenReturn(
+                mockLease);
+        worker.setVisibilityTimeoutExtender(mockExtender);
+        DateTimeUtils.setCurrentMillisFixed(RECEIVED_MILLIS);
+
+        mockReceive(1);
+        doReturn(failedFuture(new PollSqsWorkerRetryableException("at capacity"))).when(mockCallback)
+                .callbackAsync("body-0");
+        worker.pollOnce();
+
+        // Receive uses the same visibility timeout as the heartbeat.
+        ArgumentCaptor<ReceiveMessageRequest> receiveRequestCaptor = ArgumentCaptor.forClass(
+                ReceiveMessageRequest.class);
+        verify(mockSqsClient).receiveMessage(receiveRequestCaptor.capture());
+        assertEquals(receiveRequestCaptor.getValue().getVisibilityTimeout().intValue(), 300);
+
+        // Lease is closed even if the request fails, and before the retry delay is set.
+        // The lease is measured from when the message was received.
+        verify(mockExtender).startLease(QUEUE_URL, "message-0", "receipt-0", RECEIVED_MILLIS);
+        InOrder inOrder = inOrder(mockLease, mockSqsClient);
+        inOrder.verify(mockLease).close();
+        inOrder.verify(mockSqsClient).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+    }
+
+    private static CompletableFuture<Void> failedFuture(Throwable throwable) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(throwable);
+        return future;
+    }
+
+    private void mockReceive(int numMessages) {
+        List<Message> messageList = new ArrayList<>();
+        for (int i = 0; i < numMessages; i++) {
+            messageList.add(new Message().withMessageId("message-" + i).withBody("body-" + i)
+                    .withReceiptHandle("receipt-" + i));
+        }
+        when(mockSqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(new ReceiveMessageResult()
+                .withMessages(ImmutableList.copyOf(messageList)));
+    }
+
+    private List<DeleteMessageBatchRequest> captureDeleteRequests(int expectedTimes) {
+        ArgumentCaptor<DeleteMessageBatchRequest> deleteRequestCaptor = ArgumentCaptor.forClass(
+                DeleteMessageBatchRequest.class);
+        verify(mockSqsClient, times(expectedTimes)).deleteMessageBatch(deleteRequestCaptor.capture());
+        return deleteRequestCaptor.getAllValues();
+    }
+}
@@ -5,21 +5,39 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.ImmutableMap;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
 import org.sagebionetworks.bridge.reporter.request.ReportType;
 import org.sagebionetworks.bridge.reporter.worker.BridgeReporterProcessor;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerRetryableException;
 import org.sagebionetworks.bridge.udd.worker.BridgeUddProcessor;
 import org.sagebionetworks.bridge.worker.ThrowingConsumer;
+import org.sagebionetworks.bridge.workerPlatform.metrics.WorkerMetrics;
 import org.sagebionetworks.bridge.workerPlatform.util.Constants;
 
 public class BridgeWorkerPlatformSqsCallbackTest {
@@ -75,6 +93,7 @@ public class BridgeWorkerPlatformSqsCallbackTest {
     private BridgeWorkerPlatformSqsCallback callback;
     private BridgeReporterProcessor mockReporterProcessor;
     private BridgeUddProcessor mockUddProcessor;
+    private SimpleMeterRegistry registry;
 
     @BeforeClass
     public void generalSetup() throws IOException {
@@ -84,6 +103,9 @@ public class BridgeWorkerPlatformSqsCallbackTest {
 
     @BeforeMethod
     public void setup() throws Exception {
+        registry = new SimpleMeterRegistry();
+        Metrics.addRegistry(registry);
+
         mockReporterProcessor = mock(BridgeReporterProcessor.class);
         mockUddProcessor = mock(BridgeUddProcessor.class);
 
@@ -95,6 +117,12 @@ public class BridgeWorkerPlatformSqsCallbackTest {
                 .build());
     }
 
+    @AfterMethod
+    public void after() {
+        Metrics.removeRegistry(registry);
+        registry.close();
+    }
+
     @Test
     public void testBridgeReporter() throws Exception {
         callback.callback(REQUEST_JSON_MSG);
@@ -133,4 +161,112 @@ public class BridgeWorkerPlatformSqsCallbackTest {
                 "}";
         callback.callback(requestText);
     }
+
+    @Test
+    public void callbackAsyncDoesNotBlock() throws Exception {
+        // Reporter blocks until we release it.
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        callback.setWorkersByServiceName(ImmutableMap.<String, ThrowingConsumer<JsonNode>>builder()
+                .put(Constants.SERVICE_TYPE_REPORTER, body -> releaseLatch.await())
+                .build());
+
+        // The call returns right away, and the future completes when the request is done.
+        CompletableFuture<Void> future = callback.callbackAsync(REQUEST_JSON_MSG);
+        assertFalse(future.isDone());
+        releaseLatch.countDown();
+        future.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void callbackAsyncFailsWithWorkerException() throws Exception {
+        doThrow(TestException.class).when(mockReporterProcessor).process(any());
+        try {
+            callback.callbackAsync(REQUEST_JSON_MSG).get(5, TimeUnit.SECONDS);
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof TestException);
+        }
+    }
+
+    @Test
+    public void callbackAsyncBadRequest() throws Exception {
+        try {
+            callback.callbackAsync("not json").get();
+            fail("expected exception");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof PollSqsWorkerBadRequestException);
+        }
+    }
+
+    @Test
+    public void maxAdmittedRequests() {
+        // Reporter has its own limits. UDD uses the defaults.
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get("workerPlatform.service.REPORTER.max.concurrent")).thenReturn("3");
+        when(mockConfig.get("workerPlatform.service.REPORTER.queue.depth")).thenReturn("2");
+        callback.setConfig(mockConfig);
+
+        assertEquals(callback.getMaxAdmittedRequests(), 3 + 2 +
+                BridgeWorkerPlatformSqsCallback.DEFAULT_MAX_CONCURRENT +
+                BridgeWorkerPlatformSqsCallback.DEFAULT_QUEUE_DEPTH);
+    }
+
+    @Test
+    public void serviceAtCapacity() throws Exception {
+        // Reporter gets 1 thread and no queue.
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get("workerPlatform.service.REPORTER.max.concurrent")).thenReturn("1");
+        callback.setConfig(mockConfig);
+
+        // First request blocks until we release it.
+        CountDownLatch startedLatch = new CountDownLatch(1);
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        callback.setWorkersByServiceName(ImmutableMap.<String, ThrowingConsumer<JsonNode>>builder()
+                .put(Constants.SERVICE_TYPE_REPORTER, body -> {
+                    startedLatch.countDown();
+                    releaseLatch.await();
+                })
+                .put(Constants.SERVICE_TYPE_UDD, mockUddProcessor::process)
+                .build());
+
+        ExecutorService pollerExecutor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> firstRequest = pollerExecutor.submit(() -> {
+                callback.callback(REQUEST_JSON_MSG);
+                return null;
+            });
+            startedLatch.await(5, TimeUnit.SECONDS);
+
+            // Second reporter request is rejected as retryable.
+            try {
+                callback.callback(REQUEST_JSON_MSG);
+                throw new AssertionError("expected exception");
+            } catch (PollSqsWorkerRetryableException ex) {
+                // expected exception
+            }
+
+            // UDD still has capacity.
+            callback.callback(REQUEST_JSON_UDD_MSG);
+            verify(mockUddProcessor).process(eq(uddRequestJson));
+
+            // Release the first request.
+            releaseLatch.countDown();
+            firstRequest.get(5, TimeUnit.SECONDS);
+        } finally {
+            pollerExecutor.shutdownNow();
+        }
+
+        // Queue wait, run time, and rejections are reported through WorkerMetrics.
+        assertEquals(registry.find(WorkerMetrics.METRIC_REQUEST_REJECTED)
+                .tag(WorkerMetrics.TAG_SERVICE, Constants.SERVICE_TYPE_REPORTER).counter().count(), 1.0);
+        assertEquals(registry.find(WorkerMetrics.METRIC_REQUEST_QUEUE_WAIT)
+                .tag(WorkerMetrics.TAG_SERVICE, Constants.SERVICE_TYPE_REPORTER).timer().count(), 1);
+        assertEquals(registry.find(WorkerMetrics.METRIC_REQUEST)
+                .tag(WorkerMetrics.TAG_SERVICE, Constants.SERVICE_TYPE_REPORTER)
+                .tag(WorkerMetrics.TAG_OUTCOME, WorkerMetrics.OUTCOME_SUCCESS).timer().count(), 1);
+        assertEquals(registry.find(WorkerMetrics.METRIC_REQUEST)
+                .tag(WorkerMetrics.TAG_SERVICE, Constants.SERVICE_TYPE_UDD)
+                .tag(WorkerMetrics.TAG_APP, TEST_APP_ID)
+                .tag(WorkerMetrics.TAG_OUTCOME, WorkerMetrics.OUTCOME_SUCCESS).timer().count(), 1);
+    }
 }
@@ -0,0 +1,117 @@
+package org.sagebionetworks.bridge.workerPlatform.multiplexer;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.fail;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import org.joda.time.DateTimeUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.sqs.PollSqsCallback;
+
+public class LeasingSqsHelperTest {
+    private static final String MESSAGE_BODY = "dummy-message-body";
+    private static final String MESSAGE_ID = "dummy-message-id";
+    private static final String QUEUE_URL = "dummy-queue-url";
+    private static final String RECEIPT_HANDLE = "dummy-receipt-handle";
+    private static final long RECEIVED_MILLIS = 1234567890L;
+
+    private PollSqsCallback mockCallback;
+    private VisibilityTimeoutExtender mockExtender;
+    private VisibilityTimeoutExtender.Lease mockLease;
+    private AmazonSQS mockSqsClient;
+    private LeasingSqsHelper sqsHelper;
+
+    @BeforeMethod
+    public void before() {
+        DateTimeUtils.setCurrentMillisFixed(RECEIVED_MILLIS);
+
+        mockCallback = mock(PollSqsCallback.class);
+        mockSqsClient = mock(AmazonSQS.class);
+
+        mockLease = mock(VisibilityTimeoutExtender.Lease.class);
+        mockExtender = mock(VisibilityTimeoutExtender.class);
+        when(mockExtender.startLease(QUEUE_URL, MESSAGE_ID, RECEIPT_HANDLE, RECEIVED_MILLIS)).thenReturn(mockLease);
+
+        sqsHelper = new LeasingSqsHelper();
+        sqsHelper.setSqsClient(mockSqsClient);
+        sqsHelper.setVisibilityTimeoutExtender(mockExtender);
+    }
+
+    @AfterMethod
+    public void after() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void leaseIsClosedWhenCallbackSucceeds() throws Exception {
+        mockReceive(new Message().withMessageId(MESSAGE_ID).withBody(MESSAGE_BODY)
+                .withReceiptHandle(RECEIPT_HANDLE));
+
+        // Poll starts the lease, measured from the receive, and extends it right away.
+        Message message = sqsHelper.poll(QUEUE_URL);
+        assertEquals(message.getMessageId(), MESSAGE_ID);
+        verify(mockExtender).startLease(QUEUE_URL, MESSAGE_ID, RECEIPT_HANDLE, RECEIVED_MILLIS);
+        verify(mockLease).extend();
+        verify(mockLease, never()).close();
+        assertEquals(sqsHelper.getNumOpenLeases(), 1);
+
+        // Callback closes the lease.
+        sqsHelper.wrapCallback(mockCallback).callback(MESSAGE_BODY);
+        verify(mockCallback).callback(MESSAGE_BODY);
+        verify(mockLease).close();
+        assertEquals(sqsHelper.getNumOpenLeases(), 0);
+    }
+
+    @Test
+    public void leaseIsClosedWhenCallbackThrows() throws Exception {
+        mockReceive(new Message().withMessageId(MESSAGE_ID).withBody(MESSAGE_BODY)
+                .withReceiptHandle(RECEIPT_HANDLE));
+        RuntimeException ex = new RuntimeException("test exception");
+        doThrow(ex).when(mockCallback).callback(MESSAGE_BODY);
+
+        sqsHelper.poll(QUEUE_URL);
+        try {
+            sqsHelper.wrapCallback(mockCallback).callback(MESSAGE_BODY);
+            fail("expected exception");
+        } catch (RuntimeException thrown) {
+            assertSame(thrown, ex);
+        }
+        verify(mockLease).close();
+        assertEquals(sqsHelper.getNumOpenLeases(), 0);
+    }
+
+    @Test
+    public void noMessage() {
+        mockReceive();
+        assertNull(sqsHelper.poll(QUEUE_URL));
+        verify(mockExtender, never()).startLease(anyString(), anyString(), anyString(), anyLong());
+    }
+
+    @Test
+    public void callbackWithoutLease() throws Exception {
+        // This shouldn't happen, but if it does, it's not an error.
+        sqsHelper.wrapCallback(mockCallback).callback(MESSAGE_BODY);
+        verify(mockCallback).callback(MESSAGE_BODY);
+    }
+
+    private void mockReceive(Message... messages) {
+        when(mockSqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(new ReceiveMessageResult()
+                .withMessages(messages));
+    }
+}
@@ -0,0 +1,130 @@
+package org.sagebionetworks.bridge.workerPlatform.multiplexer;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import org.joda.time.DateTimeUtils;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class VisibilityTimeoutExtenderTest {
+    private static final String MESSAGE_ID = "dummy-message-id";
+    private static final String QUEUE_URL = "dummy-queue-url";
+    private static final String RECEIPT_HANDLE = "dummy-receipt-handle";
+    private static final int VISIBILITY_TIMEOUT_SECONDS = 300;
+
+    private VisibilityTimeoutExtender extender;
+    private ScheduledFuture<?> mockFuture;
+    private ScheduledExecutorService mockScheduledExecutorService;
+    private AmazonSQS mockSqsClient;
+
+    @BeforeMethod
+    public void before() {
+        mockFuture = mock(ScheduledFuture.class);
+        mockScheduledExecutorService = mock(ScheduledExecutorService.class);
+        doReturn(mockFuture).when(mockScheduledExecutorService).scheduleAtFixedRate(any(Runnable.class),
+                anyLong(), anyLong(), any(TimeUnit.class));
+
+        mockSqsClient = mock(AmazonSQS.class);
+
+        extender = new VisibilityTimeoutExtender();
+        extender.setScheduledExecutorService(mockScheduledExecutorService);
+        extender.setSqsClient(mockSqsClient);
+        extender.setVisibilityTimeoutSeconds(VISIBILITY_TIMEOUT_SECONDS);
+    }
+
+    @AfterMethod
+    public void after() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void heartbeatAndClose() {
+        VisibilityTimeoutExtender.Lease lease = extender.startLease(QUEUE_URL, MESSAGE_ID, RECEIPT_HANDLE,
+                DateTimeUtils.currentTimeMillis());
+
+        // Heartbeat is scheduled at half the visibility timeout.
+        long expectedPeriodMillis = TimeUnit.SECONDS.toMillis(VISIBILITY_TIMEOUT_SECONDS) / 2;
+        verify(mockScheduledExecutorService).scheduleAtFixedRate(any(Runnable.class), eq(expectedPeriodMillis),
+                eq(expectedPeriodMillis), eq(TimeUnit.MILLISECONDS));
+
+        // Each heartbeat extends the visibility.
+        lease.extend();
+        lease.extend();
+        assertEquals(lease.getNumExtensions(), 2);
+
+        ArgumentCaptor<ChangeMessageVisibilityRequest> requestCaptor = ArgumentCaptor.forClass(
+                ChangeMessageVisibilityRequest.class);
+        verify(mockSqsClient, times(2)).changeMessageVisibility(requestCaptor.capture());
+        ChangeMessageVisibilityRequest request = requestCaptor.getValue();
+        assertEquals(request.getQueueUrl(), QUEUE_URL);
+        assertEquals(request.getReceiptHandle(), RECEIPT_HANDLE);
+        assertEquals(request.getVisibilityTimeout().intValue(), VISIBILITY_TIMEOUT_SECONDS);
+
+        // Close cancels the heartbeat. Further heartbeats are no-ops.
+        lease.close();
+        verify(mockFuture).cancel(false);
+        lease.extend();
+        assertEquals(lease.getNumExtensions(), 2);
+    }
+
+    @Test
+    public void stopsAtMaxVisibility() {
+        // The message was received 10 seconds before the lease started. The cap is measured from the receive.
+        DateTimeUtils.setCurrentMillisFixed(10_000);
+        VisibilityTimeoutExtender.Lease lease = extender.startLease(QUEUE_URL, MESSAGE_ID, RECEIPT_HANDLE, 0);
+
+        // 100 seconds before the limit, we only ask for the remaining 100 seconds.
+        DateTimeUtils.setCurrentMillisFixed(VisibilityTimeoutExtender.MAX_VISIBILITY_MILLIS - 100_000);
+        lease.extend();
+        ArgumentCaptor<ChangeMessageVisibilityRequest> requestCaptor = ArgumentCaptor.forClass(
+                ChangeMessageVisibilityRequest.class);
+        verify(mockSqsClient).changeMessageVisibility(requestCaptor.capture());
+        assertEquals(requestCaptor.getValue().getVisibilityTimeout().intValue(), 100);
+
+        // At the limit, we stop.
+        DateTimeUtils.setCurrentMillisFixed(VisibilityTimeoutExtender.MAX_VISIBILITY_MILLIS);
+        lease.extend();
+        verify(mockSqsClient, times(1)).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+        verify(mockFuture).cancel(false);
+    }
+
+    @Test
+    public void errorExtendingDoesNotThrow() {
+        when(mockSqsClient.changeMessageVisibility(any(ChangeMessageVisibilityRequest.class))).thenThrow(
+                new AmazonServiceException("test exception"));
+
+        VisibilityTimeoutExtender.Lease lease = extender.startLease(QUEUE_URL, MESSAGE_ID, RECEIPT_HANDLE,
+                DateTimeUtils.currentTimeMillis());
+        lease.extend();
+        assertEquals(lease.getNumExtensions(), 0);
+        verify(mockFuture, never()).cancel(false);
+    }
+
+    @Test
+    public void shortTimeoutUsesMinPeriod() {
+        extender.setVisibilityTimeoutSeconds(1);
+        extender.startLease(QUEUE_URL, MESSAGE_ID, RECEIPT_HANDLE,
+                DateTimeUtils.currentTimeMillis());
+        verify(mockScheduledExecutorService).scheduleAtFixedRate(any(Runnable.class),
+                eq(VisibilityTimeoutExtender.MIN_PERIOD_MILLIS), eq(VisibilityTimeoutExtender.MIN_PERIOD_MILLIS),
+                eq(TimeUnit.MILLISECONDS));
+    }
+}
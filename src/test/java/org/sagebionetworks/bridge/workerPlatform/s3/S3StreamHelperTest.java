@@ -0,0 +1,275 @@
+package org.sagebionetworks.bridge.workerPlatform.s3;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.google.common.io.ByteStreams;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class S3StreamHelperTest {
+    private static final String BUCKET = "test-bucket";
+    private static final String KEY = "test-key";
+    private static final int PART_SIZE = 4;
+    private static final String UPLOAD_ID = "test-upload-id";
+
+    private AmazonS3 mockS3Client;
+    private S3StreamHelper s3StreamHelper;
+    private List<String> uploadedPartList;
+
+    @BeforeMethod
+    public void before() {
+        mockS3Client = mock(AmazonS3.class);
+        InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+        initiateResult.setUploadId(UPLOAD_ID);
+        when(mockS3Client.initiateMultipartUpload(any())).thenReturn(initiateResult);
+
+        // The part buffer is reused, so we need to read each part as it's uploaded.
+        uploadedPartList = new ArrayList<>();
+        when(mockS3Client.uploadPart(any())).thenAnswer(invocation -> {
+            UploadPartRequest request = invocation.getArgumentAt(0, UploadPartRequest.class);
+            uploadedPartList.add(new String(ByteStreams.toByteArray(request.getInputStream()),
+                    StandardCharsets.UTF_8));
+
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag-" + request.getPartNumber());
+            return result;
+        });
+
+        s3StreamHelper = new S3StreamHelper();
+        s3StreamHelper.setPartSize(PART_SIZE);
+        s3StreamHelper.setS3Client(mockS3Client);
+    }
+
+    @Test
+    public void getObjectStream() {
+        S3ObjectInputStream objectInputStream = new S3ObjectInputStream(new ByteArrayInputStream(new byte[0]), null);
+        S3Object s3Object = new S3Object();
+        s3Object.setObjectContent(objectInputStream);
+        when(mockS3Client.getObject(BUCKET, KEY)).thenReturn(s3Object);
+
+        InputStream result = s3StreamHelper.getObjectStream(BUCKET, KEY);
+        assertSame(result, objectInputStream);
+    }
+
+    @Test
+    public void smallFileUsesPut() throws Exception {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType("text/plain");
+        s3StreamHelper.uploadStream(BUCKET, KEY, metadata, stream("abc"));
+
+        ArgumentCaptor<PutObjectRequest> requestCaptor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(mockS3Client).putObject(requestCaptor.capture());
+        PutObjectRequest request = requestCaptor.getValue();
+        assertEquals(request.getBucketName(), BUCKET);
+        assertEquals(request.getKey(), KEY);
+        assertEquals(request.getMetadata().getContentType(), "text/plain");
+        assertEquals(request.getMetadata().getContentLength(), 3);
+        assertEquals(new String(ByteStreams.toByteArray(request.getInputStream()), StandardCharsets.UTF_8), "abc");
+
+        verify(mockS3Client, never()).initiateMultipartUpload(any());
+    }
+
+    @Test
+    public void largeFileUsesMultipart() throws Exception {
+        ObjectMetadata metadata = new ObjectMetadata();
+        s3StreamHelper.uploadStream(BUCKET, KEY, metadata, stream("abcdefghij"));
+
+        ArgumentCaptor<InitiateMultipartUploadRequest> initiateRequestCaptor = ArgumentCaptor.forClass(
+                InitiateMultipartUploadRequest.class);
+        verify(mockS3Client).initiateMultipartUpload(initiateRequestCaptor.capture());
+        assertEquals(initiateRequestCaptor.getValue().getBucketName(), BUCKET);
+        assertEquals(initiateRequestCaptor.getValue().getKey(), KEY);
+        assertSame(initiateRequestCaptor.getValue().getObjectMetadata(), metadata);
+
+        assertEquals(uploadedPartList.size(), 3);
+        assertEquals(uploadedPartList.get(0), "abcd");
+        assertEquals(uploadedPartList.get(1), "efgh");
+        assertEquals(uploadedPartList.get(2), "ij");
+
+        ArgumentCaptor<CompleteMultipartUploadRequest> completeRequestCaptor = ArgumentCaptor.forClass(
+                CompleteMultipartUploadRequest.class);
+        verify(mockS3Client).completeMultipartUpload(completeRequestCaptor.capture());
+        CompleteMultipartUploadRequest completeRequest = completeRequestCaptor.getValue();
+        assertEquals(completeRequest.getUploadId(), UPLOAD_ID);
+        assertEquals(completeRequest.getPartETags().size(), 3);
+        assertEquals(completeRequest.getPartETags().get(2).getPartNumber(), 3);
+        assertEquals(completeRequest.getPartETags().get(2).getETag(), "etag-3");
+
+        verify(mockS3Client, never()).putObject(any(PutObjectRequest.class));
+        verify(mockS3Client, never()).abortMultipartUpload(any());
+    }
+
+    @Test
+    public void exactMultipleOfPartSize() throws Exception {
+        s3StreamHelper.uploadStream(BUCKET, KEY, new ObjectMetadata(), stream("abcdefgh"));
+
+        // No empty trailing part.
+        assertEquals(uploadedPartList.size(), 2);
+        verify(mockS3Client).completeMultipartUpload(any());
+    }
+
+    @Test
+    public void errorAbortsMultipartUpload() throws Exception {
+        // Stream fails after the first part.
+        InputStream inputStream = new ByteArrayInputStream("abcd".getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                if (pos >= count) {
+                    throw new IllegalStateException("test exception");
+                }
+                return super.read(b, off, len);
+            }
+        };
+
+        try {
+            s3StreamHelper.uploadStream(BUCKET, KEY, new ObjectMetadata(), inputStream);
+            fail("expected exception");
+        } catch (IllegalStateException ex) {
+            // expected exception
+        }
+
+        ArgumentCaptor<AbortMultipartUploadRequest> abortRequestCaptor = ArgumentCaptor.forClass(
+                AbortMultipartUploadRequest.class);
+        verify(mockS3Client).abortMultipartUpload(abortRequestCaptor.capture());
+        assertEquals(abortRequestCaptor.getValue().getUploadId(), UPLOAD_ID);
+        verify(mockS3Client, never()).completeMultipartUpload(any());
+    }
+
+    @Test
+    public void errorAbortingStillThrowsOriginalError() throws Exception {
+        when(mockS3Client.completeMultipartUpload(any())).thenThrow(new AmazonServiceException("complete error"));
+        doThrow(new AmazonServiceException("abort error")).when(mockS3Client).abortMultipartUpload(any());
+
+        try {
+            s3StreamHelper.uploadStream(BUCKET, KEY, new ObjectMetadata(), stream("abcdefgh"));
+            fail("expected exception");
+        } catch (AmazonServiceException ex) {
+            assertEquals(ex.getErrorMessage(), "complete error");
+        }
+    }
+
+    @Test
+    public void uploadStreamWritesPartsAsBufferFills() throws Exception {
+        ObjectMetadata metadata = new ObjectMetadata();
+        try (S3UploadOutputStream outputStream = s3StreamHelper.openUploadStream(BUCKET, KEY, metadata)) {
+            // Mix single-byte writes and array writes. Nothing is uploaded until the first part fills up.
+            outputStream.write('a');
+            outputStream.write(bytes("bc"));
+            verify(mockS3Client, never()).initiateMultipartUpload(any());
+
+            outputStream.write(bytes("defghi"));
+            assertEquals(uploadedPartList.size(), 2);
+            assertEquals(uploadedPartList.get(0), "abcd");
+            assertEquals(uploadedPartList.get(1), "efgh");
+
+            outputStream.complete();
+        }
+
+        // Completing uploads the last partial part.
+        assertEquals(uploadedPartList.size(), 3);
+        assertEquals(uploadedPartList.get(2), "i");
+
+        ArgumentCaptor<InitiateMultipartUploadRequest> initiateRequestCaptor = ArgumentCaptor.forClass(
+                InitiateMultipartUploadRequest.class);
+        verify(mockS3Client).initiateMultipartUpload(initiateRequestCaptor.capture());
+        assertSame(initiateRequestCaptor.getValue().getObjectMetadata(), metadata);
+
+        ArgumentCaptor<CompleteMultipartUploadRequest> completeRequestCaptor = ArgumentCaptor.forClass(
+                CompleteMultipartUploadRequest.class);
+        verify(mockS3Client).completeMultipartUpload(completeRequestCaptor.capture());
+        assertEquals(completeRequestCaptor.getValue().getPartETags().size(), 3);
+
+        verify(mockS3Client, never()).abortMultipartUpload(any());
+    }
+
+    @Test
+    public void uploadStreamSmallFileUsesPut() throws Exception {
+        try (S3UploadOutputStream outputStream = s3StreamHelper.openUploadStream(BUCKET, KEY, new ObjectMetadata())) {
+            outputStream.write(bytes("abc"));
+            outputStream.complete();
+        }
+
+        ArgumentCaptor<PutObjectRequest> requestCaptor = ArgumentCaptor.forClass(PutObjectRequest.class);
+        verify(mockS3Client).putObject(requestCaptor.capture());
+        assertEquals(requestCaptor.getValue().getMetadata().getContentLength(), 3);
+        assertEquals(new String(ByteStreams.toByteArray(requestCaptor.getValue().getInputStream()),
+                StandardCharsets.UTF_8), "abc");
+
+        verify(mockS3Client, never()).initiateMultipartUpload(any());
+        verify(mockS3Client, never()).abortMultipartUpload(any());
+    }
+
+    @Test
+    public void uploadStreamCloseWithoutCompleteAborts() throws Exception {
+        S3UploadOutputStream outputStream = s3StreamHelper.openUploadStream(BUCKET, KEY, new ObjectMetadata());
+        outputStream.write(bytes("abcdef"));
+        outputStream.close();
+
+        ArgumentCaptor<AbortMultipartUploadRequest> abortRequestCaptor = ArgumentCaptor.forClass(
+                AbortMultipartUploadRequest.class);
+        verify(mockS3Client).abortMultipartUpload(abortRequestCaptor.capture());
+        assertEquals(abortRequestCaptor.getValue().getUploadId(), UPLOAD_ID);
+
+        // Closing again is a no-op.
+        outputStream.close();
+        verify(mockS3Client).abortMultipartUpload(any());
+        verify(mockS3Client, never()).completeMultipartUpload(any());
+        verify(mockS3Client, never()).putObject(any(PutObjectRequest.class));
+    }
+
+    @Test
+    public void uploadStreamCloseBeforeFirstPartUploadsNothing() throws Exception {
+        S3UploadOutputStream outputStream = s3StreamHelper.openUploadStream(BUCKET, KEY, new ObjectMetadata());
+        outputStream.write(bytes("ab"));
+        outputStream.close();
+
+        verify(mockS3Client, never()).initiateMultipartUpload(any());
+        verify(mockS3Client, never()).abortMultipartUpload(any());
+        verify(mockS3Client, never()).putObject(any(PutObjectRequest.class));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void uploadStreamWriteAfterComplete() throws Exception {
+        try (S3UploadOutputStream outputStream = s3StreamHelper.openUploadStream(BUCKET, KEY, new ObjectMetadata())) {
+            outputStream.complete();
+            outputStream.write('a');
+        }
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
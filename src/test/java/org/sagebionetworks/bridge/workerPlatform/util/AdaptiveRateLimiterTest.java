@@ -0,0 +1,108 @@
+package org.sagebionetworks.bridge.workerPlatform.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.joda.time.DateTimeUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+public class AdaptiveRateLimiterTest {
+    private static final double DELTA = 0.0001;
+    private static final long TARGET_LATENCY_MILLIS = 1000;
+
+    @AfterMethod
+    public void after() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void initialRateIsClamped() {
+        assertEquals(new AdaptiveRateLimiter(100.0, 1.0, 20.0, TARGET_LATENCY_MILLIS).getRate(), 20.0,
+                DELTA);
+        assertEquals(new AdaptiveRateLimiter(0.5, 1.0, 20.0, TARGET_LATENCY_MILLIS).getRate(), 1.0, DELTA);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void minRateMustBePositive() {
+        new AdaptiveRateLimiter(10.0, 0.0, 20.0, TARGET_LATENCY_MILLIS);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void minRateMustNotExceedMaxRate() {
+        new AdaptiveRateLimiter(10.0, 30.0, 20.0, TARGET_LATENCY_MILLIS);
+    }
+
+    @Test
+    public void healthyCallsRaiseRate() {
+        AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter(10.0, 1.0, 20.0, TARGET_LATENCY_MILLIS);
+        rateLimiter.onSuccess(TARGET_LATENCY_MILLIS);
+        assertEquals(rateLimiter.getRate(), 10.1, DELTA);
+
+        // About 1 second's worth of healthy calls raises the rate by about 1.
+        for (int i = 0; i < 10; i++) {
+            rateLimiter.onSuccess(1);
+        }
+        assertEquals(rateLimiter.getRate(), 11.0, 0.1);
+    }
+
+    @Test
+    public void slowCallsDontRaiseRate() {
+        AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter(10.0, 1.0, 20.0, TARGET_LATENCY_MILLIS);
+        rateLimiter.onSuccess(TARGET_LATENCY_MILLIS + 1);
+        assertEquals(rateLimiter.getRate(), 10.0, DELTA);
+    }
+
+    @Test
+    public void rateNeverExceedsMax() {
+        AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter(10.0, 1.0, 10.05, TARGET_LATENCY_MILLIS);
+        rateLimiter.onSuccess(1);
+        assertEquals(rateLimiter.getRate(), 10.05, DELTA);
+    }
+
+    @Test
+    public void throttleHalvesRate() {
+        long nowMillis = 1000000L;
+        DateTimeUtils.setCurrentMillisFixed(nowMillis);
+        AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter(10.0, 1.0, 20.0, TARGET_LATENCY_MILLIS);
+        assertTrue(rateLimiter.onThrottle());
+        assertEquals(rateLimiter.getRate(), 5.0, DELTA);
+
+        // Rate never drops below min.
+        for (int i = 0; i < 10; i++) {
+            nowMillis += AdaptiveRateLimiter.THROTTLE_COOLDOWN_MILLIS;
+            DateTimeUtils.setCurrentMillisFixed(nowMillis);
+            rateLimiter.onThrottle();
+        }
+        assertEquals(rateLimiter.getRate(), 1.0, DELTA);
+    }
+
+    @Test
+    public void throttlesWithinCooldownCutOnce() {
+        DateTimeUtils.setCurrentMillisFixed(1000000L);
+        AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter(16.0, 1.0, 20.0, TARGET_LATENCY_MILLIS);
+
+        // 4 calls in flight are throttled together. Only the first one cuts the rate.
+        assertTrue(rateLimiter.onThrottle());
+        assertFalse(rateLimiter.onThrottle());
+        DateTimeUtils.setCurrentMillisFixed(1000000L + AdaptiveRateLimiter.THROTTLE_COOLDOWN_MILLIS - 1);
+        assertFalse(rateLimiter.onThrottle());
+        assertFalse(rateLimiter.onThrottle());
+        assertEquals(rateLimiter.getRate(), 8.0, DELTA);
+
+        // After the cooldown, the next throttle cuts the rate again.
+        DateTimeUtils.setCurrentMillisFixed(1000000L + AdaptiveRateLimiter.THROTTLE_COOLDOWN_MILLIS);
+        assertTrue(rateLimiter.onThrottle());
+        assertEquals(rateLimiter.getRate(), 4.0, DELTA);
+    }
+
+    @Test
+    public void acquire() {
+        // Just make sure acquire doesn't block for long at a high rate.
+        AdaptiveRateLimiter rateLimiter = new AdaptiveRateLimiter(1000.0, 1.0, 1000.0, TARGET_LATENCY_MILLIS);
+        for (int i = 0; i < 10; i++) {
+            rateLimiter.acquire();
+        }
+    }
+}